@@ -1,5 +1,7 @@
 package com.dx168.fastdex.build.snapshoot;
 
+import java.io.File;
+
 /**
  * Created by tong on 17/3/29.
  */
@@ -8,6 +10,23 @@ public class DiffInfo {
     public String relativeRootPath;
     public String relativeSourceSetPath;
     public Status status;
+    public FileInfo now;
+    public FileInfo old;
+
+    /**
+     * @param rootDir 工程目录，为null时不设置path
+     * @param sourceSetInfo 文件所在的sourceSet
+     */
+    public DiffInfo(String rootDir, SourceSetInfo sourceSetInfo, FileInfo now, FileInfo old, Status status) {
+        this.now = now;
+        this.old = old;
+        this.status = status;
+        this.relativeSourceSetPath = now != null ? now.relativePath : old.relativePath;
+        this.relativeRootPath = new File(sourceSetInfo.relativePath,relativeSourceSetPath).getPath();
+        if (rootDir != null) {
+            this.path = new File(rootDir,relativeRootPath).getAbsolutePath();
+        }
+    }
 
     public DiffInfo(String path, String relativeRootPath, String relativeSourceSetPath, Status status) {
         this.path = path;
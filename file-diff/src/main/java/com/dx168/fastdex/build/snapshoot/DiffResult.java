@@ -27,12 +27,22 @@ public class DiffResult extends HashSet<DiffInfo> {
     /**
      * 把删除的sourceSet下的所有文件当成删除处理
      * 把新增的sourceSet下的所有文件当成新增处理
+     * @param rootDir 工程目录，用来设置DiffInfo的path，为null时不设置
      */
-    public void scanFromDeletedAndIncreased() {
-        //TODO
-
+    public void scanFromDeletedAndIncreased(String rootDir) {
         if (deletedSourceSetInfos != null) {
-
+            for (SourceSetInfo sourceSetInfo : deletedSourceSetInfos) {
+                for (FileInfo fileInfo : sourceSetInfo.getFileInfos()) {
+                    add(new DiffInfo(rootDir,sourceSetInfo,null,fileInfo,DiffInfo.Status.DELETE));
+                }
+            }
+        }
+        if (increasedSourceSetInfos != null) {
+            for (SourceSetInfo sourceSetInfo : increasedSourceSetInfos) {
+                for (FileInfo fileInfo : sourceSetInfo.getFileInfos()) {
+                    add(new DiffInfo(rootDir,sourceSetInfo,fileInfo,null,DiffInfo.Status.ADD));
+                }
+            }
         }
     }
 }
@@ -1,18 +1,38 @@
 package com.dx168.fastdex.build.snapshoot;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 /**
  * Created by tong on 17/3/29.
  */
 public class FileInfo {
+    public static final int CONTENT_HASH_LENGTH = 16;
+
     public String relativePath;
     public long lastModified;
     public long fileLength;
+    /**
+     * 文件内容的md5，只有开启内容对比时才会计算，没计算过为null
+     */
+    public byte[] contentHash;
 
     public FileInfo() {
     }
 
+    public FileInfo(String relativePath, long lastModified, long fileLength, byte[] contentHash) {
+        this.relativePath = relativePath;
+        this.lastModified = lastModified;
+        this.fileLength = fileLength;
+        this.contentHash = contentHash;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -23,8 +43,38 @@ public class FileInfo {
         return relativePath != null ? relativePath.equals(fileInfo.relativePath) : fileInfo.relativePath == null;
     }
 
+    /**
+     * 文件是否发生变化，lastModified或者fileLength不一样时判定为变化
+     * @param old
+     * @return
+     */
     public boolean diff(FileInfo old) {
-        return lastModified == old.lastModified && fileLength == old.fileLength;
+        return lastModified != old.lastModified || fileLength != old.fileLength;
+    }
+
+    /**
+     * 文件是否发生变化，lastModified和fileLength都没变时直接判定为没变化(沿用老的contentHash)，
+     * 否则只对这个文件计算md5和老的contentHash作对比，避免touch、git checkout等只改了时间戳的操作触发变化
+     * @param old
+     * @param sourceSet 当前文件所在的sourceSet目录
+     * @return
+     * @throws IOException
+     */
+    public boolean diff(FileInfo old, File sourceSet) throws IOException {
+        if (!diff(old)) {
+            if (contentHash == null) {
+                contentHash = old.contentHash;
+            }
+            return false;
+        }
+        if (fileLength != old.fileLength) {
+            return true;
+        }
+        //老的快照里没有md5时也计算一次，保存到这次的快照里供下次对比
+        if (contentHash == null) {
+            contentHash = computeContentHash(new File(sourceSet,relativePath));
+        }
+        return old.contentHash == null || !Arrays.equals(contentHash,old.contentHash);
     }
 
     @Override
@@ -39,4 +89,24 @@ public class FileInfo {
         fileInfo.fileLength = file.length();
         return fileInfo;
     }
+
+    public static byte[] computeContentHash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        try (FileInputStream inputStream = new FileInputStream(file);
+             FileChannel channel = inputStream.getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return digest.digest();
+    }
 }
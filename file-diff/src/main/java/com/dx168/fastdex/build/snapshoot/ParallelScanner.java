@@ -0,0 +1,175 @@
+package com.dx168.fastdex.build.snapshoot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 并行扫描sourceSet，每个sourceSet一个任务，每个子目录再fork出一个任务，
+ * 扫描结果先放到并发的文件表里，扫描结束后按relativePath排序写入SourceSetInfo，保证结果和单线程扫描一致
+ *
+ * 和Files.walkFileTree一样不跟随符号链接
+ *
+ * Created by tong on 17/3/29.
+ */
+public class ParallelScanner {
+    private final int parallelism;
+
+    public ParallelScanner() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param parallelism 并行度(线程数)
+     */
+    public ParallelScanner(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be greater than 0: " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public SourceSetInfo scan(File projectPath, File sourceSet, ScanFilter scanFilter) throws IOException {
+        Set<SourceSetInfo> result = scan(projectPath,Collections.singleton(sourceSet),scanFilter);
+        return result.iterator().next();
+    }
+
+    public Set<SourceSetInfo> scan(File projectPath, Set<File> sourceSets, ScanFilter scanFilter) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<SourceSetTask> tasks = new ArrayList<>();
+            for (File sourceSet : sourceSets) {
+                tasks.add(new SourceSetTask(projectPath,sourceSet,scanFilter));
+            }
+            pool.invoke(new InvokeAllTask(tasks));
+
+            Set<SourceSetInfo> result = new HashSet<>();
+            for (SourceSetTask task : tasks) {
+                result.add(task.sourceSetInfo);
+            }
+            return result;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    //任务只在扫描过程中使用，不会被序列化，serialVersionUID只是为了消除-Xlint:serial警告
+    private static final class InvokeAllTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<SourceSetTask> tasks;
+
+        InvokeAllTask(List<SourceSetTask> tasks) {
+            this.tasks = tasks;
+        }
+
+        @Override
+        protected void compute() {
+            invokeAll(tasks);
+        }
+    }
+
+    private static final class SourceSetTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final File projectPath;
+        private final File sourceSet;
+        private final ScanFilter scanFilter;
+        private SourceSetInfo sourceSetInfo;
+
+        SourceSetTask(File projectPath, File sourceSet, ScanFilter scanFilter) {
+            this.projectPath = projectPath;
+            this.sourceSet = sourceSet;
+            this.scanFilter = scanFilter;
+        }
+
+        @Override
+        protected void compute() {
+            ConcurrentHashMap<String,FileInfo> fileTable = new ConcurrentHashMap<>();
+            Path root = sourceSet.toPath();
+            if (Files.isDirectory(root)) {
+                new DirectoryTask(sourceSet,root,scanFilter,fileTable).compute();
+            }
+
+            List<FileInfo> fileInfos = new ArrayList<>(fileTable.values());
+            Collections.sort(fileInfos,SnapshootFormat.PATH_COMPARATOR);
+
+            SourceSetInfo info = new SourceSetInfo(projectPath.toPath().relativize(root).toString());
+            info.ensureCapacity(fileInfos.size());
+            for (FileInfo fileInfo : fileInfos) {
+                info.addFileInfo(fileInfo);
+            }
+            sourceSetInfo = info;
+        }
+    }
+
+    private static final class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final File sourceSet;
+        private final Path dir;
+        private final ScanFilter scanFilter;
+        private final ConcurrentHashMap<String,FileInfo> fileTable;
+
+        DirectoryTask(File sourceSet, Path dir, ScanFilter scanFilter, ConcurrentHashMap<String,FileInfo> fileTable) {
+            this.sourceSet = sourceSet;
+            this.dir = dir;
+            this.scanFilter = scanFilter;
+            this.fileTable = fileTable;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirectoryTask> subTasks = null;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path path : stream) {
+                    BasicFileAttributes attrs = Files.readAttributes(path,BasicFileAttributes.class,LinkOption.NOFOLLOW_LINKS);
+                    if (attrs.isDirectory()) {
+                        if (subTasks == null) {
+                            subTasks = new ArrayList<>();
+                        }
+                        DirectoryTask task = new DirectoryTask(sourceSet,path,scanFilter,fileTable);
+                        task.fork();
+                        subTasks.add(task);
+                        continue;
+                    }
+
+                    File file = path.toFile();
+                    if (scanFilter != null && !scanFilter.preVisitFile(file)) {
+                        continue;
+                    }
+                    FileInfo fileInfo = FileInfo.create(sourceSet,file);
+                    fileTable.put(fileInfo.relativePath,fileInfo);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            if (subTasks != null) {
+                for (ForkJoinTask<Void> task : subTasks) {
+                    task.join();
+                }
+            }
+        }
+    }
+}
@@ -33,6 +33,7 @@ import java.util.*;
  */
 
 /**
+ * 上面是快照的逻辑结构，落地时使用{@link SnapshootFormat}的二进制格式
  *
  * Created by tong on 17/3/29.
  */
@@ -54,8 +55,8 @@ public class ProjectSnapshoot {
      * 保存到本地
      * @param file
      */
-    public void serialize(File file) {
-        //保存到本地
+    public void serialize(File file) throws IOException {
+        SnapshootFormat.write(this,file);
     }
 
     public SourceSetInfo getSourceSetInfoByRelativePath(String relativePath) {
@@ -73,6 +74,21 @@ public class ProjectSnapshoot {
      * @return
      */
     public DiffResult diff(ProjectSnapshoot oldSnapshoot) {
+        try {
+            return diff(oldSnapshoot,false);
+        } catch (IOException e) {
+            //不做内容对比时不会读文件
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 当前的快照与老的快照作对比(以当前快照为第一视角)
+     * @param oldSnapshoot 老的快照
+     * @param contentHash 是否开启内容对比，开启后只对lastModified或者fileLength变化的文件计算md5
+     * @return
+     */
+    public DiffResult diff(ProjectSnapshoot oldSnapshoot, boolean contentHash) throws IOException {
         if (!rootDir.equals(oldSnapshoot.rootDir)) {
             throw new IllegalStateException("root dir not equal");
         }
@@ -132,29 +148,89 @@ public class ProjectSnapshoot {
         needScanSourceSetInfos.removeAll(increasedSourceSetInfos);
 
         DiffResult result = new DiffResult(deletedSourceSetInfos,increasedSourceSetInfos);
-        result.scanFromDeletedAndIncreased();
+        result.scanFromDeletedAndIncreased(rootDir);
 
         for (SourceSetInfo sourceSetInfo : needScanSourceSetInfos) {
             SourceSetInfo now = sourceSetInfo;
             SourceSetInfo old = oldSnapshoot.getSourceSetInfoByRelativePath(sourceSetInfo.relativePath);
 
-            List<DiffInfo> diffInfos = now.diff(old);
+            List<DiffInfo> diffInfos = now.diff(old,rootDir,contentHash);
             result.addAll(diffInfos);
         }
         return result;
     }
 
+    /**
+     * 只对比已知发生变化的路径，不遍历所有文件(由{@link SnapshootWatcher}提供变化的路径)
+     * @param oldSnapshoot 老的快照
+     * @param changedPaths sourceSet的relativePath -> 发生变化的文件(相对于sourceSet)
+     * @return
+     */
+    public DiffResult diff(ProjectSnapshoot oldSnapshoot, Map<String,Set<String>> changedPaths) {
+        try {
+            return diff(oldSnapshoot,changedPaths,false);
+        } catch (IOException e) {
+            //不做内容对比时不会读文件
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 同{@link #diff(ProjectSnapshoot, Map)}
+     * @param contentHash 是否开启内容对比，同{@link #diff(ProjectSnapshoot, boolean)}
+     * @return
+     */
+    public DiffResult diff(ProjectSnapshoot oldSnapshoot, Map<String,Set<String>> changedPaths, boolean contentHash) throws IOException {
+        DiffResult result = new DiffResult(Collections.<SourceSetInfo>emptySet(),Collections.<SourceSetInfo>emptySet());
+        for (Map.Entry<String,Set<String>> entry : changedPaths.entrySet()) {
+            SourceSetInfo now = getSourceSetInfoByRelativePath(entry.getKey());
+            SourceSetInfo old = oldSnapshoot.getSourceSetInfoByRelativePath(entry.getKey());
+            if (now == null || old == null) {
+                continue;
+            }
+            File sourceSetDir = contentHash ? new File(now.join(this)) : null;
+            for (String relativePath : entry.getValue()) {
+                FileInfo nowFileInfo = now.getByRelativePath(relativePath);
+                FileInfo oldFileInfo = old.getByRelativePath(relativePath);
+                if (nowFileInfo == null && oldFileInfo == null) {
+                    continue;
+                }
+                if (nowFileInfo == null) {
+                    result.add(new DiffInfo(rootDir,now,null,oldFileInfo,DiffInfo.Status.DELETE));
+                }
+                else if (oldFileInfo == null) {
+                    result.add(new DiffInfo(rootDir,now,nowFileInfo,null,DiffInfo.Status.ADD));
+                }
+                else if (sourceSetDir != null ? nowFileInfo.diff(oldFileInfo,sourceSetDir) : nowFileInfo.diff(oldFileInfo)) {
+                    result.add(new DiffInfo(rootDir,now,nowFileInfo,oldFileInfo,DiffInfo.Status.MODIFIED));
+                }
+            }
+        }
+        return result;
+    }
+
     /**
      * 从本地读取
      * @param file
-     * @return
+     * @param currentRootDir 当前的工程目录，工程被移动过时以当前目录为准(sourceSet和文件都是相对路径)
+     * @return 没有快照或者快照格式不匹配时返回null
      */
-    public static ProjectSnapshoot load(File file, File currentRootDir) {
-        //TODO
-        return null;
+    public static ProjectSnapshoot load(File file, File currentRootDir) throws IOException {
+        ProjectSnapshoot snapshoot = SnapshootFormat.read(file);
+        if (snapshoot != null && currentRootDir != null) {
+            snapshoot.rootDir = currentRootDir.getAbsolutePath();
+        }
+        return snapshoot;
     }
 
     public static ProjectSnapshoot create(String name, File projectPath, Set<File> sourceSets, ScanFilter scanFilter) throws IOException {
+        return create(name,projectPath,sourceSets,scanFilter,1);
+    }
+
+    /**
+     * @param parallelism 扫描的并行度，小于等于1时单线程扫描，否则使用{@link ParallelScanner}
+     */
+    public static ProjectSnapshoot create(String name, File projectPath, Set<File> sourceSets, ScanFilter scanFilter, int parallelism) throws IOException {
         if (name == null || name.length() == 0) {
             throw new IllegalArgumentException("name is null");
         }
@@ -169,6 +245,10 @@ public class ProjectSnapshoot {
         }
 
         ProjectSnapshoot snapshoot = new ProjectSnapshoot(name,projectPath.getAbsolutePath(),new HashSet<>());
+        if (parallelism > 1) {
+            snapshoot.sourceSetInfos.addAll(new ParallelScanner(parallelism).scan(projectPath,sourceSets,scanFilter));
+            return snapshoot;
+        }
         for (File sourceSet : sourceSets) {
             snapshoot.sourceSetInfos.add(SourceSetInfo.create(projectPath,sourceSet,scanFilter));
         }
@@ -0,0 +1,156 @@
+package com.dx168.fastdex.build.snapshoot;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * 快照的二进制格式，每次构建写一次，下次构建通过内存映射读回来
+ *
+ * header:
+ *   int     magic
+ *   int     version
+ *   utf     name
+ *   utf     rootDir
+ *   int     sourceSet个数
+ * sourceSet:
+ *   utf     relativePath
+ *   int     文件个数
+ *   file(按relativePath排序):
+ *     utf     relativePath
+ *     long    lastModified
+ *     long    fileLength
+ *     byte    是否有contentHash
+ *     byte[16] contentHash(可选)
+ *
+ * utf为 unsigned short长度 + utf-8字节
+ *
+ * Created by tong on 17/3/29.
+ */
+public class SnapshootFormat {
+    public static final int MAGIC = 0x46445353;
+    public static final int VERSION = 1;
+
+    public static final Comparator<FileInfo> PATH_COMPARATOR = new Comparator<FileInfo>() {
+        @Override
+        public int compare(FileInfo o1, FileInfo o2) {
+            return o1.relativePath.compareTo(o2.relativePath);
+        }
+    };
+
+    public static void write(ProjectSnapshoot snapshoot, File file) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        //先写临时文件再改名，避免构建中断留下写了一半的快照
+        File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile),64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out,snapshoot.name);
+            writeString(out,snapshoot.rootDir);
+
+            List<SourceSetInfo> sourceSetInfos = new ArrayList<>(snapshoot.sourceSetInfos);
+            out.writeInt(sourceSetInfos.size());
+            for (SourceSetInfo sourceSetInfo : sourceSetInfos) {
+                writeString(out,sourceSetInfo.relativePath);
+
+                List<FileInfo> fileInfos = new ArrayList<>(sourceSetInfo.getFileInfos());
+                Collections.sort(fileInfos,PATH_COMPARATOR);
+                out.writeInt(fileInfos.size());
+                for (FileInfo fileInfo : fileInfos) {
+                    writeString(out,fileInfo.relativePath);
+                    out.writeLong(fileInfo.lastModified);
+                    out.writeLong(fileInfo.fileLength);
+                    if (fileInfo.contentHash != null) {
+                        out.writeByte(1);
+                        out.write(fileInfo.contentHash,0,FileInfo.CONTENT_HASH_LENGTH);
+                    }
+                    else {
+                        out.writeByte(0);
+                    }
+                }
+            }
+        }
+
+        if (file.exists() && !file.delete()) {
+            throw new IOException("can not delete: " + file.getAbsolutePath());
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("can not rename " + tmpFile.getAbsolutePath() + " to " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * 读取快照，文件不存在或者格式不匹配时返回null(当成没有快照处理，走全量)
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static ProjectSnapshoot read(File file) throws IOException {
+        if (file == null || !file.isFile() || file.length() < 8) {
+            return null;
+        }
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file,"r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+
+            ProjectSnapshoot snapshoot = new ProjectSnapshoot(readString(buffer),readString(buffer),new HashSet<SourceSetInfo>());
+            int sourceSetCount = buffer.getInt();
+            for (int i = 0; i < sourceSetCount; i++) {
+                SourceSetInfo sourceSetInfo = new SourceSetInfo(readString(buffer));
+                int fileCount = buffer.getInt();
+                sourceSetInfo.ensureCapacity(fileCount);
+                for (int j = 0; j < fileCount; j++) {
+                    String relativePath = readString(buffer);
+                    long lastModified = buffer.getLong();
+                    long fileLength = buffer.getLong();
+                    byte[] contentHash = null;
+                    if (buffer.get() != 0) {
+                        contentHash = new byte[FileInfo.CONTENT_HASH_LENGTH];
+                        buffer.get(contentHash);
+                    }
+                    sourceSetInfo.addFileInfo(new FileInfo(relativePath,lastModified,fileLength,contentHash));
+                }
+                snapshoot.sourceSetInfos.add(sourceSetInfo);
+            }
+            return snapshoot;
+        } catch (RuntimeException e) {
+            //文件被截断等情况，当成没有快照
+            return null;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("string too long: " + str);
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes,StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,432 @@
+package com.dx168.fastdex.build.snapshoot;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 常驻的监听模式，通过WatchService记录两次构建之间变化的路径，
+ * 构建时调用{@link #update()}只对变化的路径重新获取文件信息，不再扫描整个目录树，
+ * 出现OVERFLOW(事件丢失)或者sourceSet根目录失效时才退化成全量扫描
+ *
+ * WatchService不支持递归监听，所以每个子目录都要单独注册
+ *
+ * 后台线程只是及时处理事件(注册新建的子目录，避免事件队列溢出)，{@link #update()}计算差异前会把已经
+ * 产生但还没处理的事件取完(包括后台线程刚取出的key，见{@link #takeLock})；macOS上的WatchService是轮询实现(默认10秒一次)，update时可能还没检测到最近的变化，
+ * 所以这种情况下每次update都全量扫描
+ *
+ * Created by tong on 17/3/29.
+ */
+public class SnapshootWatcher implements Closeable {
+    private final String name;
+    private final File projectPath;
+    private Set<File> sourceSets;
+    private final ScanFilter scanFilter;
+    private final int parallelism;
+    /**
+     * 是否开启内容对比，同{@link ProjectSnapshoot#diff(ProjectSnapshoot, boolean)}
+     */
+    private final boolean contentHash;
+
+    private final Map<WatchKey,WatchedDir> watchedDirs = new HashMap<>();
+    /**
+     * 已经注册监听的sourceSet根目录
+     */
+    private final Set<File> watchedRoots = new HashSet<>();
+    /**
+     * sourceSet的relativePath -> 发生变化的文件或者目录(相对于sourceSet)
+     */
+    private final Map<String,Set<String>> changedPaths = new HashMap<>();
+    /**
+     * sourceSet的relativePath -> 按relativePath排序的文件信息，与当前快照一致，
+     * 第一次refresh时从快照建立，之后只原地更新变化的路径，全量扫描时丢弃
+     */
+    private final Map<String,TreeMap<String,FileInfo>> fileIndexes = new HashMap<>();
+    private boolean needRescan;
+
+    private WatchService watchService;
+    private boolean pollingWatchService;
+    /**
+     * 后台线程已经取出但还没处理的key，update时由调用线程处理
+     */
+    private volatile WatchKey takenKey;
+    /**
+     * 后台线程从take()等待到记录下{@link #takenKey}期间一直持有这个锁，update拿到锁以后就不会有取出了却没有记录的key；
+     * update会中断后台线程的take()，让它释放锁并等update结束
+     */
+    private final ReentrantLock takeLock = new ReentrantLock();
+    private volatile boolean closed;
+    private Thread watchThread;
+    private ProjectSnapshoot snapshoot;
+
+    public SnapshootWatcher(String name, File projectPath, Set<File> sourceSets, ScanFilter scanFilter) {
+        this(name,projectPath,sourceSets,scanFilter,1);
+    }
+
+    public SnapshootWatcher(String name, File projectPath, Set<File> sourceSets, ScanFilter scanFilter, int parallelism) {
+        this(name,projectPath,sourceSets,scanFilter,parallelism,false);
+    }
+
+    /**
+     * @param contentHash 是否开启内容对比，开启后只改了lastModified的文件不算变化，全量扫描和只对比变化路径时都一样
+     */
+    public SnapshootWatcher(String name, File projectPath, Set<File> sourceSets, ScanFilter scanFilter, int parallelism, boolean contentHash) {
+        this.name = name;
+        this.projectPath = projectPath;
+        this.sourceSets = sourceSets;
+        this.scanFilter = scanFilter;
+        this.parallelism = parallelism;
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * 开始监听，先注册监听再做首次全量扫描，保证扫描期间发生的变化不会丢
+     * @return 首次扫描的快照
+     * @throws IOException
+     */
+    public synchronized ProjectSnapshoot start() throws IOException {
+        if (watchService != null) {
+            throw new IllegalStateException("watcher already started");
+        }
+        watchService = FileSystems.getDefault().newWatchService();
+        pollingWatchService = watchService.getClass().getName().endsWith("PollingWatchService");
+        registerNewRoots();
+
+        watchThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processEvents();
+            }
+        },"fastdex-snapshoot-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+
+        snapshoot = scan();
+        return snapshoot;
+    }
+
+    public synchronized ProjectSnapshoot getSnapshoot() {
+        return snapshoot;
+    }
+
+    /**
+     * 根据上次调用以来记录的变化生成新的快照，并返回与上一个快照的差异
+     * @return
+     * @throws IOException
+     */
+    public synchronized DiffResult update() throws IOException {
+        return update(sourceSets);
+    }
+
+    /**
+     * 同{@link #update()}，sourceSet有变化时使用
+     * @param sourceSets 当前的sourceSet，新增的sourceSet会注册监听，移除的sourceSet不再监听
+     * @return
+     * @throws IOException
+     */
+    public synchronized DiffResult update(Set<File> sourceSets) throws IOException {
+        if (watchService == null) {
+            throw new IllegalStateException("watcher not started");
+        }
+        drainPendingKeys();
+        if (pollingWatchService) {
+            needRescan = true;
+        }
+        if (sourceSets != this.sourceSets) {
+            unregisterRemovedRoots(sourceSets);
+            this.sourceSets = sourceSets;
+        }
+        registerNewRoots();
+
+        ProjectSnapshoot oldSnapshoot = snapshoot;
+        if (needRescan) {
+            needRescan = false;
+            changedPaths.clear();
+            fileIndexes.clear();
+            snapshoot = scan();
+            return snapshoot.diff(oldSnapshoot,contentHash);
+        }
+
+        Map<String,Set<String>> changes = new HashMap<>();
+        ProjectSnapshoot newSnapshoot = new ProjectSnapshoot(oldSnapshoot.name,oldSnapshoot.rootDir,new HashSet<SourceSetInfo>());
+        for (File sourceSet : sourceSets) {
+            String sourceSetPath = projectPath.toPath().relativize(sourceSet.toPath()).toString();
+            SourceSetInfo oldSourceSetInfo = oldSnapshoot.getSourceSetInfoByRelativePath(sourceSetPath);
+            Set<String> paths = changedPaths.get(sourceSetPath);
+            if (paths == null || paths.isEmpty() || oldSourceSetInfo == null) {
+                if (oldSourceSetInfo != null) {
+                    newSnapshoot.sourceSetInfos.add(oldSourceSetInfo);
+                }
+                continue;
+            }
+
+            Set<String> changedFiles = new HashSet<>();
+            newSnapshoot.sourceSetInfos.add(refresh(sourceSet,oldSourceSetInfo,paths,changedFiles));
+            changes.put(sourceSetPath,changedFiles);
+        }
+        changedPaths.clear();
+        snapshoot = newSnapshoot;
+        return snapshoot.diff(oldSnapshoot,changes,contentHash);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        if (watchService != null) {
+            watchService.close();
+        }
+        if (watchThread != null) {
+            watchThread.interrupt();
+        }
+        watchedDirs.clear();
+        watchedRoots.clear();
+        fileIndexes.clear();
+    }
+
+    /**
+     * 只扫描存在的sourceSet，不存在的sourceSet等出现时由{@link #registerNewRoots()}触发重新扫描
+     */
+    private ProjectSnapshoot scan() throws IOException {
+        Set<File> existingSourceSets = new HashSet<>();
+        for (File sourceSet : sourceSets) {
+            if (sourceSet.isDirectory()) {
+                existingSourceSets.add(sourceSet);
+            }
+        }
+        if (existingSourceSets.isEmpty()) {
+            return new ProjectSnapshoot(name,projectPath.getAbsolutePath(),new HashSet<SourceSetInfo>());
+        }
+        return ProjectSnapshoot.create(name,projectPath,existingSourceSets,scanFilter,parallelism);
+    }
+
+    /**
+     * 注册start以后才出现的sourceSet根目录(包括被删除后又重新创建的)，快照里没有这些sourceSet，需要重新扫描
+     */
+    private void registerNewRoots() throws IOException {
+        for (File sourceSet : sourceSets) {
+            if (!watchedRoots.contains(sourceSet) && sourceSet.isDirectory()) {
+                registerAll(sourceSet,sourceSet.toPath());
+                watchedRoots.add(sourceSet);
+                needRescan = true;
+            }
+        }
+    }
+
+    private void unregisterRemovedRoots(Set<File> sourceSets) {
+        Iterator<Map.Entry<WatchKey,WatchedDir>> iterator = watchedDirs.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<WatchKey,WatchedDir> entry = iterator.next();
+            if (!sourceSets.contains(entry.getValue().sourceSet)) {
+                entry.getKey().cancel();
+                iterator.remove();
+            }
+        }
+        watchedRoots.retainAll(sourceSets);
+        for (File sourceSet : this.sourceSets) {
+            if (!sourceSets.contains(sourceSet)) {
+                needRescan = true;
+            }
+        }
+    }
+
+    /**
+     * 处理已经产生但还没处理的事件，包括后台线程已经取出但还在等锁的key
+     */
+    private void drainPendingKeys() {
+        watchThread.interrupt();
+        takeLock.lock();
+        try {
+            WatchKey key = takenKey;
+            if (key != null) {
+                takenKey = null;
+                processKey(key);
+            }
+            while ((key = watchService.poll()) != null) {
+                processKey(key);
+            }
+        } catch (ClosedWatchServiceException e) {
+            needRescan = true;
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * 只对变化的路径重新获取文件信息，目录被删除或者移走时把目录下所有文件都当成变化
+     *
+     * 文件索引原地更新，只有变化的路径需要查找和修改，新的SourceSetInfo按顺序从索引复制，不需要再排序
+     */
+    private SourceSetInfo refresh(File sourceSet, SourceSetInfo oldSourceSetInfo, Set<String> paths, Set<String> changedFiles) throws IOException {
+        TreeMap<String,FileInfo> fileInfos = fileIndexes.get(oldSourceSetInfo.relativePath);
+        if (fileInfos == null) {
+            fileInfos = new TreeMap<>();
+            for (FileInfo fileInfo : oldSourceSetInfo.getFileInfos()) {
+                fileInfos.put(fileInfo.relativePath,fileInfo);
+            }
+            fileIndexes.put(oldSourceSetInfo.relativePath,fileInfos);
+        }
+
+        try {
+            updateFileIndex(sourceSet,fileInfos,paths,changedFiles);
+        } catch (IOException e) {
+            //索引可能只更新了一部分，下次从快照重新建立
+            fileIndexes.remove(oldSourceSetInfo.relativePath);
+            throw e;
+        }
+
+        SourceSetInfo sourceSetInfo = new SourceSetInfo(oldSourceSetInfo.relativePath);
+        sourceSetInfo.ensureCapacity(fileInfos.size());
+        for (FileInfo fileInfo : fileInfos.values()) {
+            sourceSetInfo.addFileInfo(fileInfo);
+        }
+        return sourceSetInfo;
+    }
+
+    private void updateFileIndex(File sourceSet, SortedMap<String,FileInfo> fileInfos, Set<String> paths, Set<String> changedFiles) throws IOException {
+        for (String path : paths) {
+            //目录下原有的文件
+            String prefix = path + File.separator;
+            changedFiles.addAll(fileInfos.subMap(prefix,prefix + Character.MAX_VALUE).keySet());
+            changedFiles.add(path);
+
+            File file = new File(sourceSet,path);
+            if (file.isDirectory()) {
+                Files.walkFileTree(file.toPath(),new SimpleFileVisitor<Path>(){
+                    @Override
+                    public FileVisitResult visitFile(Path filePath, BasicFileAttributes attrs) throws IOException {
+                        changedFiles.add(sourceSet.toPath().relativize(filePath).toString());
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+        }
+
+        for (String path : changedFiles) {
+            File file = new File(sourceSet,path);
+            if (file.isFile() && (scanFilter == null || scanFilter.preVisitFile(file))) {
+                fileInfos.put(path,FileInfo.create(sourceSet,file));
+            }
+            else {
+                fileInfos.remove(path);
+            }
+        }
+    }
+
+    private void registerAll(File sourceSet, Path dir) throws IOException {
+        Files.walkFileTree(dir,new SimpleFileVisitor<Path>(){
+            @Override
+            public FileVisitResult preVisitDirectory(Path subDir, BasicFileAttributes attrs) throws IOException {
+                WatchKey key = subDir.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                watchedDirs.put(key,new WatchedDir(sourceSet,subDir));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void processEvents() {
+        while (true) {
+            WatchKey key;
+            takeLock.lock();
+            try {
+                key = watchService.take();
+                takenKey = key;
+            } catch (InterruptedException e) {
+                if (closed) {
+                    return;
+                }
+                key = null;
+            } catch (ClosedWatchServiceException e) {
+                return;
+            } finally {
+                takeLock.unlock();
+            }
+
+            synchronized (this) {
+                if (key == null) {
+                    //被update中断，等update处理完再继续take
+                    continue;
+                }
+                //可能已经在update时处理过了
+                if (takenKey == key) {
+                    takenKey = null;
+                    processKey(key);
+                }
+            }
+        }
+    }
+
+    private void processKey(WatchKey key) {
+        WatchedDir watchedDir = watchedDirs.get(key);
+        if (watchedDir != null) {
+            for (WatchEvent<?> event : key.pollEvents()) {
+                handleEvent(watchedDir,event);
+            }
+        }
+
+        if (!key.reset()) {
+            watchedDirs.remove(key);
+            //sourceSet根目录被删除或者移走，只能重新扫描，重新创建时再注册
+            if (watchedDir != null && watchedDir.dir.equals(watchedDir.sourceSet.toPath())) {
+                watchedRoots.remove(watchedDir.sourceSet);
+                needRescan = true;
+            }
+        }
+    }
+
+    private void handleEvent(WatchedDir watchedDir, WatchEvent<?> event) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            needRescan = true;
+            return;
+        }
+
+        Path child = watchedDir.dir.resolve((Path) event.context());
+        Path sourceSetPath = watchedDir.sourceSet.toPath();
+        String sourceSetRelativePath = projectPath.toPath().relativize(sourceSetPath).toString();
+        Set<String> paths = changedPaths.get(sourceSetRelativePath);
+        if (paths == null) {
+            paths = new HashSet<>();
+            changedPaths.put(sourceSetRelativePath,paths);
+        }
+        paths.add(sourceSetPath.relativize(child).toString());
+
+        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child)) {
+            try {
+                registerAll(watchedDir.sourceSet,child);
+            } catch (IOException e) {
+                needRescan = true;
+            }
+        }
+    }
+
+    private static final class WatchedDir {
+        final File sourceSet;
+        final Path dir;
+
+        WatchedDir(File sourceSet, Path dir) {
+            this.sourceSet = sourceSet;
+            this.dir = dir;
+        }
+    }
+}
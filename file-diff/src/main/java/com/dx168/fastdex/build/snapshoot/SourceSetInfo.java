@@ -16,6 +16,7 @@ public class SourceSetInfo {
     public String relativePath;
     private List<FileInfo> fileInfos;
     private Map<String,Integer> fileInfoMap;
+    private boolean sorted = true;
 
     public SourceSetInfo() {
     }
@@ -31,16 +32,39 @@ public class SourceSetInfo {
         if (fileInfoMap == null) {
             fileInfoMap = new HashMap<>();
         }
+        if (sorted && !fileInfos.isEmpty()) {
+            sorted = fileInfos.get(fileInfos.size() - 1).relativePath.compareTo(fileInfo.relativePath) < 0;
+        }
         fileInfos.add(fileInfo);
         fileInfoMap.put(fileInfo.relativePath,fileInfos.size() - 1);
     }
 
+    public void ensureCapacity(int capacity) {
+        if (fileInfos == null) {
+            fileInfos = new ArrayList<>(capacity);
+        }
+        if (fileInfoMap == null) {
+            fileInfoMap = new HashMap<>(Math.max(16,(int) (capacity / 0.75f) + 1));
+        }
+    }
+
+    public List<FileInfo> getFileInfos() {
+        if (fileInfos == null) {
+            return Collections.emptyList();
+        }
+        return fileInfos;
+    }
+
     public FileInfo getFileInfoByIndex(int index) {
         return fileInfos.get(index);
     }
 
     public FileInfo getByRelativePath(String relativePath) {
-        return getFileInfoByIndex(fileInfoMap.get(relativePath));
+        if (fileInfoMap == null) {
+            return null;
+        }
+        Integer index = fileInfoMap.get(relativePath);
+        return index != null ? getFileInfoByIndex(index) : null;
     }
 
     public String join(ProjectSnapshoot projectSnapshoot) {
@@ -48,89 +72,87 @@ public class SourceSetInfo {
     }
 
     public List<DiffInfo> diff(SourceSetInfo oldSourceSetInfo) {
-//        Set<FileInfo> deletedFileInfos = new HashSet<>(old.fileInfos);
-//        deletedFileInfos.removeAll(fileInfos);
-
-        /*
-            假如 当前的sourceSets:
-            com/dx168/fastdex/sample/MainActivity.java
-
-            老的sourceSets:
-            com/dx168/fastdex/sample/MainActivity.java
-            com/dx168/fastdex/sample/MainActivity2.java
-
-            删除的是
-            com/dx168/fastdex/sample/MainActivity2.java
-         */
-        //删除掉的sourceSet
-        Set<FileInfo> deletedFileInfos = new HashSet<>(oldSourceSetInfo.fileInfos);
-        deletedFileInfos.removeAll(fileInfos);
-
-        /*
-            假如 当前的sourceSets:
-            com/dx168/fastdex/sample/MainActivity.java
-            com/dx168/fastdex/sample/MainActivity2.java
-
-            老的sourceSets:
-            com/dx168/fastdex/sample/MainActivity.java
-
-            新增的是
-            com/dx168/fastdex/sample/MainActivity2.java
-         */
-        //新增的sourceSet
-        Set<FileInfo> increasedFileInfos = new HashSet<>(fileInfos);
-        increasedFileInfos.removeAll(oldSourceSetInfo.fileInfos);
-
-        /*
-            假如 当前的sourceSets:
-            com/dx168/fastdex/sample/MainActivity.java
-            com/dx168/fastdex/sample/MainActivity2.java
-            com/dx168/fastdex/sample/MainActivity3.java
-
-            老的sourceSets:
-            com/dx168/fastdex/sample/MainActivity.java
-            com/dx168/fastdex/sample/MainActivity2.java
-            com/dx168/fastdex/sample/MainActivity4.java
-
-            新增的是
-            com/dx168/fastdex/sample/MainActivity3.java
-            删除的是
-            com/dx168/fastdex/sample/MainActivity4.java
-
-            除了删除的和新增的就是所有需要进行扫描的SourceSetInfo
-            com/dx168/fastdex/sample/MainActivity.java
-            com/dx168/fastdex/sample/MainActivity2.java
-         */
-        Set<FileInfo> needDiffFileInfos = new HashSet<>(fileInfos);
-        needDiffFileInfos.addAll(oldSourceSetInfo.fileInfos);
-        needDiffFileInfos.removeAll(deletedFileInfos);
-        needDiffFileInfos.removeAll(increasedFileInfos);
-
-        List<DiffInfo> diffInfos = new ArrayList<>();
-        scanFromDeletedAndIncreased(diffInfos,oldSourceSetInfo,deletedFileInfos,increasedFileInfos);
+        try {
+            return diff(oldSourceSetInfo,null,false);
+        } catch (IOException e) {
+            //不做内容对比时不会读文件
+            throw new IllegalStateException(e);
+        }
+    }
 
-        for (FileInfo fileInfo : needDiffFileInfos) {
-            FileInfo now = fileInfo;
-            FileInfo old = oldSourceSetInfo.getByRelativePath(fileInfo.relativePath);
+    /**
+     * 两边都按relativePath排好序后做一次归并，一趟输出所有的DiffInfo
+     *
+     * 假如 当前的文件:
+     * a.java b.java c.java
+     *
+     * 老的文件:
+     * a.java b.java d.java
+     *
+     * 新增的是c.java，删除的是d.java，a.java和b.java需要对比lastModified和fileLength
+     *
+     * @param oldSourceSetInfo
+     * @param rootDir 工程目录，用来设置DiffInfo的path，为null时不设置
+     * @param contentHash 是否开启内容对比，lastModified或者fileLength变化的文件会计算md5确认是否真的变化(需要rootDir)
+     * @return
+     * @throws IOException
+     */
+    public List<DiffInfo> diff(SourceSetInfo oldSourceSetInfo, String rootDir, boolean contentHash) throws IOException {
+        File sourceSetDir = contentHash ? new File(new File(rootDir),relativePath) : null;
+        List<FileInfo> nowFileInfos = getSortedFileInfos();
+        List<FileInfo> oldFileInfos = oldSourceSetInfo.getSortedFileInfos();
 
-            if (now.diff(old)) {
-                diffInfos.add(new DiffInfo(now,old, DiffInfo.Status.MODIFIED));
+        List<DiffInfo> diffInfos = new ArrayList<>();
+        int nowSize = nowFileInfos.size();
+        int oldSize = oldFileInfos.size();
+        int i = 0;
+        int j = 0;
+        while (i < nowSize && j < oldSize) {
+            FileInfo now = nowFileInfos.get(i);
+            FileInfo old = oldFileInfos.get(j);
+            int result = now.relativePath.compareTo(old.relativePath);
+            if (result < 0) {
+                diffInfos.add(new DiffInfo(rootDir,this,now,null,DiffInfo.Status.ADD));
+                i++;
+            }
+            else if (result > 0) {
+                diffInfos.add(new DiffInfo(rootDir,this,null,old,DiffInfo.Status.DELETE));
+                j++;
             }
+            else {
+                boolean changed = sourceSetDir != null ? now.diff(old,sourceSetDir) : now.diff(old);
+                if (changed) {
+                    diffInfos.add(new DiffInfo(rootDir,this,now,old,DiffInfo.Status.MODIFIED));
+                }
+                i++;
+                j++;
+            }
+        }
+        for (; i < nowSize; i++) {
+            diffInfos.add(new DiffInfo(rootDir,this,nowFileInfos.get(i),null,DiffInfo.Status.ADD));
+        }
+        for (; j < oldSize; j++) {
+            diffInfos.add(new DiffInfo(rootDir,this,null,oldFileInfos.get(j),DiffInfo.Status.DELETE));
         }
         return diffInfos;
     }
 
-    private void scanFromDeletedAndIncreased(List<DiffInfo> diffInfos,SourceSetInfo oldSourceSetInfo, Set<FileInfo> deletedFileInfos, Set<FileInfo> increasedFileInfos) {
-        if (deletedFileInfos != null) {
-            for (FileInfo fileInfo : deletedFileInfos) {
-                diffInfos.add(new DiffInfo(null,fileInfo, DiffInfo.Status.DELETE));
-            }
+    /**
+     * 按relativePath排序的文件列表，按顺序添加的(加载的快照、并行扫描的结果)直接返回，不需要再排序
+     * @return
+     */
+    public List<FileInfo> getSortedFileInfos() {
+        if (fileInfos == null) {
+            return Collections.emptyList();
         }
-        if (increasedFileInfos != null) {
-            for (FileInfo fileInfo : increasedFileInfos) {
-                diffInfos.add(new DiffInfo(fileInfo,null, DiffInfo.Status.DELETE));
+        if (!sorted) {
+            Collections.sort(fileInfos,SnapshootFormat.PATH_COMPARATOR);
+            for (int i = 0; i < fileInfos.size(); i++) {
+                fileInfoMap.put(fileInfos.get(i).relativePath,i);
             }
+            sorted = true;
         }
+        return fileInfos;
     }
 
     @Override
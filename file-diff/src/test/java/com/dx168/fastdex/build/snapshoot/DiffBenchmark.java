@@ -0,0 +1,92 @@
+package com.dx168.fastdex.build.snapshoot;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 对比归并方式的SourceSetInfo.diff和原来基于HashSet的实现
+ *
+ * 用法: DiffBenchmark [文件个数(默认5000)]
+ *
+ * 原来的实现里HashSet.removeAll(List)在两边大小相同时会对List逐个contains，是O(n^2)的，文件个数不要给太大
+ *
+ * Created by tong on 17/3/29.
+ */
+public class DiffBenchmark {
+    private static final int WARMUP = 20;
+    private static final int ITERATIONS = 50;
+
+    public static void main(String[] args) {
+        int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+
+        //老的快照，当前快照删除1%、新增1%、修改1%
+        SourceSetInfo old = new SourceSetInfo("src/main/java");
+        SourceSetInfo now = new SourceSetInfo("src/main/java");
+        for (int i = 0; i < fileCount; i++) {
+            String path = String.format("com/example/p%04d/Class%08d.java",i / 100,i);
+            old.addFileInfo(new FileInfo(path,1000L,100L,null));
+            if (i % 100 == 0) {
+                continue;
+            }
+            now.addFileInfo(new FileInfo(path,i % 100 == 1 ? 2000L : 1000L,100L,null));
+            if (i % 100 == 2) {
+                now.addFileInfo(new FileInfo(path + "_new",1000L,100L,null));
+            }
+        }
+
+        long mergeJoin = measure(now,old,true);
+        long hashSet = measure(now,old,false);
+        System.out.println(String.format("files: %d, diffs: %d, merge join: %d us, hash set: %d us",
+                fileCount,now.diff(old).size(),mergeJoin,hashSet));
+    }
+
+    private static long measure(SourceSetInfo now, SourceSetInfo old, boolean mergeJoin) {
+        int count = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            count += mergeJoin ? now.diff(old).size() : hashSetDiff(now,old).size();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            count += mergeJoin ? now.diff(old).size() : hashSetDiff(now,old).size();
+        }
+        long cost = (System.nanoTime() - start) / ITERATIONS / 1000;
+        if (count == 0) {
+            System.out.println();
+        }
+        return cost;
+    }
+
+    /**
+     * 原来的实现
+     */
+    private static List<DiffInfo> hashSetDiff(SourceSetInfo now, SourceSetInfo old) {
+        Set<FileInfo> deletedFileInfos = new HashSet<>(old.getFileInfos());
+        deletedFileInfos.removeAll(now.getFileInfos());
+
+        Set<FileInfo> increasedFileInfos = new HashSet<>(now.getFileInfos());
+        increasedFileInfos.removeAll(old.getFileInfos());
+
+        Set<FileInfo> needDiffFileInfos = new HashSet<>(now.getFileInfos());
+        needDiffFileInfos.addAll(old.getFileInfos());
+        needDiffFileInfos.removeAll(deletedFileInfos);
+        needDiffFileInfos.removeAll(increasedFileInfos);
+
+        List<DiffInfo> diffInfos = new ArrayList<>();
+        for (FileInfo fileInfo : deletedFileInfos) {
+            diffInfos.add(new DiffInfo(null,old,null,fileInfo,DiffInfo.Status.DELETE));
+        }
+        for (FileInfo fileInfo : increasedFileInfos) {
+            diffInfos.add(new DiffInfo(null,now,fileInfo,null,DiffInfo.Status.ADD));
+        }
+        for (FileInfo fileInfo : needDiffFileInfos) {
+            FileInfo nowFileInfo = now.getByRelativePath(fileInfo.relativePath);
+            FileInfo oldFileInfo = old.getByRelativePath(fileInfo.relativePath);
+            if (nowFileInfo.diff(oldFileInfo)) {
+                diffInfos.add(new DiffInfo(null,now,nowFileInfo,oldFileInfo,DiffInfo.Status.MODIFIED));
+            }
+        }
+        return diffInfos;
+    }
+}
@@ -0,0 +1,81 @@
+package com.dx168.fastdex.build.snapshoot;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link FileInfo#diff(FileInfo)}在文件变化时返回true
+ *
+ * Created by tong on 17/3/29.
+ */
+public class FileInfoTest {
+    private File sourceSet;
+
+    @Before
+    public void createSourceSet() throws IOException {
+        sourceSet = Files.createTempDirectory("file-info").toFile();
+    }
+
+    @After
+    public void deleteSourceSet() throws IOException {
+        TestFiles.deleteRecursively(sourceSet);
+    }
+
+    @Test
+    public void diffIsTrueWhenChanged() {
+        FileInfo old = new FileInfo("A.java",1000,10,null);
+
+        assertFalse(new FileInfo("A.java",1000,10,null).diff(old));
+        assertTrue(new FileInfo("A.java",2000,10,null).diff(old));
+        assertTrue(new FileInfo("A.java",1000,11,null).diff(old));
+    }
+
+    @Test
+    public void contentHashIgnoresTouch() throws IOException {
+        File file = TestFiles.write(sourceSet,"com/example/A.java","class A {}");
+        FileInfo old = FileInfo.create(sourceSet,file);
+        old.contentHash = FileInfo.computeContentHash(file);
+
+        //只改时间戳
+        assertTrue(file.setLastModified(old.lastModified + 10000));
+        FileInfo touched = FileInfo.create(sourceSet,file);
+        assertTrue(touched.diff(old));
+        assertFalse(touched.diff(old,sourceSet));
+        assertArrayEquals(old.contentHash,touched.contentHash);
+
+        //长度不变，内容变了
+        TestFiles.write(sourceSet,"com/example/A.java","class B {}");
+        assertTrue(file.setLastModified(old.lastModified + 20000));
+        assertTrue(FileInfo.create(sourceSet,file).diff(old,sourceSet));
+    }
+
+    @Test
+    public void contentHashSkipsUnchangedFiles() throws IOException {
+        File file = TestFiles.write(sourceSet,"A.java","class A {}");
+        FileInfo old = FileInfo.create(sourceSet,file);
+        old.contentHash = new byte[FileInfo.CONTENT_HASH_LENGTH];
+
+        //lastModified和fileLength都没变时不读文件，沿用老的contentHash
+        FileInfo now = FileInfo.create(sourceSet,file);
+        assertFalse(now.diff(old,sourceSet));
+        assertArrayEquals(old.contentHash,now.contentHash);
+
+        //长度变了不需要计算md5
+        TestFiles.write(sourceSet,"A.java","class AA {}");
+        FileInfo resized = FileInfo.create(sourceSet,file);
+        assertTrue(resized.diff(old,sourceSet));
+        assertNull(resized.contentHash);
+        assertEquals(old.relativePath,resized.relativePath);
+    }
+}
@@ -0,0 +1,90 @@
+package com.dx168.fastdex.build.snapshoot;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * {@link ParallelScanner}的结果要和单线程扫描一致
+ *
+ * Created by tong on 17/3/29.
+ */
+public class ParallelScannerTest {
+    private File projectDir;
+
+    @Before
+    public void createProject() throws IOException {
+        projectDir = Files.createTempDirectory("parallel-scanner").toFile();
+        for (int i = 0; i < 300; i++) {
+            TestFiles.write(projectDir,"src/main/java/com/example/p" + (i % 7) + "/q" + (i % 3) + "/Class" + i + ".java","class Class" + i + " {}");
+        }
+        TestFiles.write(projectDir,"src/main/java/Root.java","class Root {}");
+        TestFiles.write(projectDir,"src/main/java/com/example/p0/README.md","ignored");
+        TestFiles.write(projectDir,"src/main/res/values/strings.xml","<resources/>");
+        TestFiles.write(projectDir,"src/main/res/layout/main.xml","<LinearLayout/>");
+        new File(projectDir,"src/main/java/com/example/empty").mkdirs();
+    }
+
+    @After
+    public void deleteProject() throws IOException {
+        TestFiles.deleteRecursively(projectDir);
+    }
+
+    @Test
+    public void sameResultAsSerialScan() throws IOException {
+        Set<File> sourceSets = new HashSet<>(Arrays.asList(
+                new File(projectDir,"src/main/java"),
+                new File(projectDir,"src/main/res")));
+        assertSameSnapshoot(sourceSets,null);
+        assertSameSnapshoot(sourceSets,new FileSuffixFilter(".java"));
+    }
+
+    @Test
+    public void scanSingleSourceSet() throws IOException {
+        File sourceSet = new File(projectDir,"src/main/res");
+        SourceSetInfo parallel = new ParallelScanner(2).scan(projectDir,sourceSet,null);
+        assertSameSourceSet(SourceSetInfo.create(projectDir,sourceSet,null),parallel);
+        assertEquals(2,parallel.getFileInfos().size());
+    }
+
+    private void assertSameSnapshoot(Set<File> sourceSets, ScanFilter filter) throws IOException {
+        ProjectSnapshoot serial = ProjectSnapshoot.create("app",projectDir,sourceSets,filter,1);
+        ProjectSnapshoot parallel = ProjectSnapshoot.create("app",projectDir,sourceSets,filter,4);
+
+        assertEquals(serial.sourceSetInfos.size(),parallel.sourceSetInfos.size());
+        for (SourceSetInfo expected : serial.sourceSetInfos) {
+            SourceSetInfo actual = parallel.getSourceSetInfoByRelativePath(expected.relativePath);
+            assertNotNull(actual);
+            assertSameSourceSet(expected,actual);
+        }
+        assertEquals(0,parallel.diff(serial).size());
+    }
+
+    private static void assertSameSourceSet(SourceSetInfo expected, SourceSetInfo actual) {
+        assertEquals(expected.relativePath,actual.relativePath);
+        //单线程扫描按目录遍历顺序添加，并行扫描按relativePath排序添加
+        List<FileInfo> expectedFileInfos = expected.getSortedFileInfos();
+        List<FileInfo> actualFileInfos = actual.getFileInfos();
+        assertEquals(expectedFileInfos.size(),actualFileInfos.size());
+        for (int i = 0; i < expectedFileInfos.size(); i++) {
+            FileInfo e = expectedFileInfos.get(i);
+            FileInfo a = actualFileInfos.get(i);
+            assertEquals(e.relativePath,a.relativePath);
+            assertEquals(e.lastModified,a.lastModified);
+            assertEquals(e.fileLength,a.fileLength);
+            assertArrayEquals(e.contentHash,a.contentHash);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.dx168.fastdex.build.snapshoot;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * 对比单线程扫描和并行扫描的耗时
+ *
+ * 用法: ScanBenchmark [文件个数(默认10000,100000)] [并行度(默认cpu核数)]
+ *
+ * Created by tong on 17/3/29.
+ */
+public class ScanBenchmark {
+    private static final int WARMUP = 3;
+    private static final int ITERATIONS = 5;
+
+    public static void main(String[] args) throws IOException {
+        int[] fileCounts = args.length > 0 ? new int[]{Integer.parseInt(args[0])} : new int[]{10000,100000};
+        int parallelism = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        for (int fileCount : fileCounts) {
+            File projectDir = Files.createTempDirectory("scan-benchmark").toFile();
+            try {
+                File sourceSet = new File(projectDir,"src/main/java");
+                generate(sourceSet,fileCount);
+                Set<File> sourceSets = Collections.singleton(sourceSet);
+                ScanFilter filter = new FileSuffixFilter(".java");
+
+                long serial = measure(projectDir,sourceSets,filter,1);
+                long parallel = measure(projectDir,sourceSets,filter,parallelism);
+                System.out.println(String.format("files: %d, walkFileTree: %d ms, parallel(%d): %d ms",fileCount,serial,parallelism,parallel));
+            } finally {
+                delete(projectDir);
+            }
+        }
+    }
+
+    private static long measure(File projectDir, Set<File> sourceSets, ScanFilter filter, int parallelism) throws IOException {
+        for (int i = 0; i < WARMUP; i++) {
+            ProjectSnapshoot.create("benchmark",projectDir,sourceSets,filter,parallelism);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            ProjectSnapshoot.create("benchmark",projectDir,sourceSets,filter,parallelism);
+        }
+        return (System.nanoTime() - start) / ITERATIONS / 1000000;
+    }
+
+    /**
+     * 生成类似java工程的目录结构，每个包100个文件，每10个包嵌套一层
+     */
+    private static void generate(File sourceSet, int fileCount) throws IOException {
+        byte[] content = "class A {}".getBytes();
+        for (int i = 0; i < fileCount; i++) {
+            int pkg = i / 100;
+            File dir = new File(sourceSet,"com/example/p" + (pkg / 10) + "/p" + pkg);
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("mkdirs fail: " + dir);
+            }
+            try (FileOutputStream out = new FileOutputStream(new File(dir,"Class" + i + ".java"))) {
+                out.write(content);
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,111 @@
+package com.dx168.fastdex.build.snapshoot;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * {@link SnapshootFormat}写入再读回来的内容要和原快照一致
+ *
+ * Created by tong on 17/3/29.
+ */
+public class SnapshootFormatTest {
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("snapshoot-format").toFile();
+    }
+
+    @After
+    public void deleteDir() throws IOException {
+        TestFiles.deleteRecursively(dir);
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        byte[] hash = new byte[FileInfo.CONTENT_HASH_LENGTH];
+        for (int i = 0; i < hash.length; i++) {
+            hash[i] = (byte) (i * 17);
+        }
+
+        SourceSetInfo java = new SourceSetInfo("src/main/java");
+        //故意乱序添加，写入时会按relativePath排序
+        java.addFileInfo(new FileInfo("com/example/b/B.java",1490000000123L,42,null));
+        java.addFileInfo(new FileInfo("com/example/a/A.java",Long.MAX_VALUE,0,hash));
+        java.addFileInfo(new FileInfo("com/example/中文.java",-1,Integer.MAX_VALUE + 1L,null));
+        SourceSetInfo empty = new SourceSetInfo("src/main/empty");
+
+        ProjectSnapshoot snapshoot = new ProjectSnapshoot("app","/project",new HashSet<>(Arrays.asList(java,empty)));
+        File file = new File(dir,"snapshoot/app.bin");
+        snapshoot.serialize(file);
+
+        ProjectSnapshoot loaded = ProjectSnapshoot.load(file,null);
+        assertNotNull(loaded);
+        assertEquals("app",loaded.name);
+        assertEquals("/project",loaded.rootDir);
+        assertEquals(2,loaded.sourceSetInfos.size());
+        assertEquals(0,loaded.getSourceSetInfoByRelativePath("src/main/empty").getFileInfos().size());
+
+        List<FileInfo> fileInfos = loaded.getSourceSetInfoByRelativePath("src/main/java").getFileInfos();
+        assertEquals(3,fileInfos.size());
+        assertFileInfo(fileInfos.get(0),"com/example/a/A.java",Long.MAX_VALUE,0,hash);
+        assertFileInfo(fileInfos.get(1),"com/example/b/B.java",1490000000123L,42,null);
+        assertFileInfo(fileInfos.get(2),"com/example/中文.java",-1,Integer.MAX_VALUE + 1L,null);
+
+        //读回来的快照和原快照对比没有差异
+        assertEquals(0,snapshoot.diff(loaded).size());
+    }
+
+    @Test
+    public void loadUsesCurrentRootDir() throws IOException {
+        ProjectSnapshoot snapshoot = new ProjectSnapshoot("app","/old/project",new HashSet<SourceSetInfo>());
+        File file = new File(dir,"app.bin");
+        snapshoot.serialize(file);
+
+        assertEquals(dir.getAbsolutePath(),ProjectSnapshoot.load(file,dir).rootDir);
+    }
+
+    @Test
+    public void missingOrInvalidFileReadsAsNull() throws IOException {
+        assertNull(SnapshootFormat.read(new File(dir,"missing.bin")));
+
+        File json = new File(dir,"json.bin");
+        Files.write(json.toPath(),"{\"name\":\"app\"}".getBytes("UTF-8"));
+        assertNull(SnapshootFormat.read(json));
+
+        SourceSetInfo java = new SourceSetInfo("src/main/java");
+        java.addFileInfo(new FileInfo("A.java",1,2,null));
+        File truncated = new File(dir,"truncated.bin");
+        new ProjectSnapshoot("app","/project",new HashSet<>(Arrays.asList(java))).serialize(truncated);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(truncated,"rw")) {
+            randomAccessFile.setLength(randomAccessFile.length() - 5);
+        }
+        assertNull(SnapshootFormat.read(truncated));
+    }
+
+    private static void assertFileInfo(FileInfo fileInfo, String relativePath, long lastModified, long fileLength, byte[] contentHash) {
+        assertEquals(relativePath,fileInfo.relativePath);
+        assertEquals(lastModified,fileInfo.lastModified);
+        assertEquals(fileLength,fileInfo.fileLength);
+        if (contentHash == null) {
+            assertNull(fileInfo.contentHash);
+        }
+        else {
+            assertArrayEquals(contentHash,fileInfo.contentHash);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.dx168.fastdex.build.snapshoot;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link SnapshootWatcher}只对变化的路径刷新快照，结果要和全量扫描一致
+ *
+ * WatchService的事件是异步送达的，所以每次修改以后反复update直到看到这次修改
+ *
+ * Created by tong on 17/3/29.
+ */
+public class SnapshootWatcherTest {
+    private File projectDir;
+    private File sourceSet;
+    private SnapshootWatcher watcher;
+
+    @Before
+    public void setUp() throws IOException {
+        projectDir = Files.createTempDirectory("watcher").toFile();
+        sourceSet = new File(projectDir,"src/main/java");
+        TestFiles.write(sourceSet,"a/A.java","a");
+        TestFiles.write(sourceSet,"a/B.java","b");
+        TestFiles.write(sourceSet,"c/C.java","c");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+        }
+        TestFiles.deleteRecursively(projectDir);
+    }
+
+    @Test
+    public void updateMatchesFullScan() throws Exception {
+        watcher = new SnapshootWatcher("test",projectDir,Collections.singleton(sourceSet),null);
+        watcher.start();
+
+        TestFiles.write(sourceSet,"a/A.java","aa");
+        assertEquals(Collections.singleton("a/A.java"),awaitChanges(DiffInfo.Status.MODIFIED));
+        assertSameAsFullScan();
+
+        TestFiles.write(sourceSet,"d/e/D.java","d");
+        assertEquals(Collections.singleton("d/e/D.java"),awaitChanges(DiffInfo.Status.ADD));
+        assertSameAsFullScan();
+
+        TestFiles.deleteRecursively(new File(sourceSet,"a"));
+        Set<String> deleted = new HashSet<>();
+        deleted.add("a/A.java");
+        deleted.add("a/B.java");
+        assertEquals(deleted,awaitChanges(DiffInfo.Status.DELETE));
+        assertSameAsFullScan();
+    }
+
+    @Test
+    public void updateComparesContentHash() throws Exception {
+        watcher = new SnapshootWatcher("test",projectDir,Collections.singleton(sourceSet),null,1,true);
+        watcher.start();
+
+        //长度没变的修改要算一次md5，之后的快照里就有md5了
+        File file = TestFiles.write(sourceSet,"c/C.java","x");
+        long lastModified = file.lastModified() + 10000;
+        assertTrue(file.setLastModified(lastModified));
+        assertEquals(Collections.singleton("c/C.java"),awaitChanges(DiffInfo.Status.MODIFIED));
+
+        //只改了lastModified，开启内容对比时不算变化
+        lastModified += 10000;
+        assertTrue(file.setLastModified(lastModified));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (getFileInfo("c/C.java").lastModified != lastModified) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("touch not seen");
+            }
+            assertEquals(0,watcher.update().size());
+            Thread.sleep(10);
+        }
+    }
+
+    private FileInfo getFileInfo(String relativePath) {
+        return watcher.getSnapshoot().getSourceSetInfoByRelativePath("src/main/java").getByRelativePath(relativePath);
+    }
+
+    /**
+     * 反复update直到有变化，返回这些变化的路径，同时检查变化的类型
+     */
+    private Set<String> awaitChanges(DiffInfo.Status status) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            DiffResult diffResult = watcher.update();
+            if (!diffResult.isEmpty()) {
+                Set<String> paths = new HashSet<>();
+                for (DiffInfo diffInfo : diffResult) {
+                    assertEquals(diffInfo.relativeSourceSetPath,status,diffInfo.status);
+                    assertEquals(new File("src/main/java",diffInfo.relativeSourceSetPath).getPath(),diffInfo.relativeRootPath);
+                    assertEquals(new File(projectDir,diffInfo.relativeRootPath).getAbsolutePath(),diffInfo.path);
+                    paths.add(diffInfo.relativeSourceSetPath.replace(File.separatorChar,'/'));
+                }
+                return paths;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                fail("no changes seen");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private void assertSameAsFullScan() throws IOException {
+        ProjectSnapshoot fullScan = ProjectSnapshoot.create("test",projectDir,Collections.singleton(sourceSet),null);
+        assertEquals(0,fullScan.diff(watcher.getSnapshoot()).size());
+        assertEquals(0,watcher.getSnapshoot().diff(fullScan).size());
+    }
+}
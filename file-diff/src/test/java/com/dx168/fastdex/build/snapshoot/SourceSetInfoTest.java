@@ -0,0 +1,136 @@
+package com.dx168.fastdex.build.snapshoot;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link SourceSetInfo#diff(SourceSetInfo)}的归并对比，输入不要求有序
+ *
+ * Created by tong on 17/3/29.
+ */
+public class SourceSetInfoTest {
+
+    @Test
+    public void diffUnsortedInput() {
+        SourceSetInfo now = new SourceSetInfo("src/main/java");
+        now.addFileInfo(new FileInfo("c.java",1,1,null));
+        now.addFileInfo(new FileInfo("a.java",1,1,null));
+        now.addFileInfo(new FileInfo("b.java",2,1,null));
+        now.addFileInfo(new FileInfo("e/f.java",1,1,null));
+
+        SourceSetInfo old = new SourceSetInfo("src/main/java");
+        old.addFileInfo(new FileInfo("d.java",1,1,null));
+        old.addFileInfo(new FileInfo("b.java",1,1,null));
+        old.addFileInfo(new FileInfo("e/f.java",1,1,null));
+        old.addFileInfo(new FileInfo("a.java",1,1,null));
+
+        Map<String,DiffInfo> diffInfos = toMap(now.diff(old));
+        assertEquals(3,diffInfos.size());
+        assertDiffInfo(diffInfos.get("c.java"),DiffInfo.Status.ADD);
+        assertDiffInfo(diffInfos.get("d.java"),DiffInfo.Status.DELETE);
+        assertDiffInfo(diffInfos.get("b.java"),DiffInfo.Status.MODIFIED);
+        assertEquals(2,diffInfos.get("b.java").now.lastModified);
+        assertEquals(1,diffInfos.get("b.java").old.lastModified);
+
+        //排序以后按路径查找还要正确
+        assertEquals("e/f.java",now.getByRelativePath("e/f.java").relativePath);
+        assertEquals("d.java",old.getByRelativePath("d.java").relativePath);
+        assertNull(now.getByRelativePath("d.java"));
+    }
+
+    @Test
+    public void diffWithEmptySide() {
+        SourceSetInfo files = new SourceSetInfo("src/main/java");
+        files.addFileInfo(new FileInfo("b.java",1,1,null));
+        files.addFileInfo(new FileInfo("a.java",1,1,null));
+        SourceSetInfo empty = new SourceSetInfo("src/main/java");
+
+        List<DiffInfo> added = files.diff(empty);
+        assertEquals(2,added.size());
+        for (DiffInfo diffInfo : added) {
+            assertDiffInfo(diffInfo,DiffInfo.Status.ADD);
+        }
+        List<DiffInfo> deleted = empty.diff(files);
+        assertEquals(2,deleted.size());
+        for (DiffInfo diffInfo : deleted) {
+            assertDiffInfo(diffInfo,DiffInfo.Status.DELETE);
+        }
+        assertEquals(0,files.diff(files).size());
+    }
+
+    @Test
+    public void diffMatchesMapLookup() {
+        Random random = new Random(42);
+        for (int round = 0; round < 20; round++) {
+            Map<String,FileInfo> nowFiles = new HashMap<>();
+            Map<String,FileInfo> oldFiles = new HashMap<>();
+            for (int i = 0; i < 500; i++) {
+                String path = "com/example/p" + random.nextInt(10) + "/Class" + i + ".java";
+                int kind = random.nextInt(4);
+                if (kind != 0) {
+                    nowFiles.put(path,new FileInfo(path,kind == 3 ? 2 : 1,10,null));
+                }
+                if (kind != 1) {
+                    oldFiles.put(path,new FileInfo(path,1,10,null));
+                }
+            }
+
+            Map<String,DiffInfo.Status> expected = new TreeMap<>();
+            for (FileInfo fileInfo : nowFiles.values()) {
+                FileInfo oldFileInfo = oldFiles.get(fileInfo.relativePath);
+                if (oldFileInfo == null) {
+                    expected.put(fileInfo.relativePath,DiffInfo.Status.ADD);
+                }
+                else if (fileInfo.diff(oldFileInfo)) {
+                    expected.put(fileInfo.relativePath,DiffInfo.Status.MODIFIED);
+                }
+            }
+            for (FileInfo fileInfo : oldFiles.values()) {
+                if (!nowFiles.containsKey(fileInfo.relativePath)) {
+                    expected.put(fileInfo.relativePath,DiffInfo.Status.DELETE);
+                }
+            }
+
+            Map<String,DiffInfo.Status> actual = new TreeMap<>();
+            for (DiffInfo diffInfo : create(nowFiles,random).diff(create(oldFiles,random))) {
+                assertNull(actual.put(diffInfo.relativeSourceSetPath,diffInfo.status));
+            }
+            assertEquals(expected,actual);
+        }
+    }
+
+    private static SourceSetInfo create(Map<String,FileInfo> files, Random random) {
+        List<FileInfo> fileInfos = new ArrayList<>(files.values());
+        Collections.shuffle(fileInfos,random);
+        SourceSetInfo sourceSetInfo = new SourceSetInfo("src/main/java");
+        for (FileInfo fileInfo : fileInfos) {
+            sourceSetInfo.addFileInfo(fileInfo);
+        }
+        return sourceSetInfo;
+    }
+
+    private static Map<String,DiffInfo> toMap(List<DiffInfo> diffInfos) {
+        Map<String,DiffInfo> map = new HashMap<>();
+        for (DiffInfo diffInfo : diffInfos) {
+            map.put(diffInfo.relativeSourceSetPath,diffInfo);
+        }
+        return map;
+    }
+
+    private static void assertDiffInfo(DiffInfo diffInfo, DiffInfo.Status status) {
+        assertEquals(status,diffInfo.status);
+        assertTrue((diffInfo.now != null) == (status != DiffInfo.Status.DELETE));
+        assertTrue((diffInfo.old != null) == (status != DiffInfo.Status.ADD));
+    }
+}
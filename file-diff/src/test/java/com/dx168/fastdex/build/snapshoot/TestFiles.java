@@ -0,0 +1,33 @@
+package com.dx168.fastdex.build.snapshoot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * 测试用的文件工具
+ *
+ * Created by tong on 17/3/29.
+ */
+public class TestFiles {
+    public static File write(File dir, String relativePath, String content) throws IOException {
+        File file = new File(dir,relativePath);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(),content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    public static void deleteRecursively(File file) throws IOException {
+        if (file == null || !file.exists()) {
+            return;
+        }
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        Files.delete(file.toPath());
+    }
+}
@@ -1,11 +1,17 @@
 package test;
 
+import test.jar.ClassInject;
+import test.jar.InjectPipeline;
+import test.jar.RawZipCopier;
+import test.jar.ZipEntryFilter;
+
 import java.io.*;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
@@ -38,7 +44,23 @@ public class JarOperation {
      * @throws IOException
      */
     public static void transformNormalJar(File inputJar, File outputJar, Set<String> willInjectClassPatterns) throws IOException {
-        transformJar(inputJar,outputJar,new NormalProcessor(willInjectClassPatterns));
+        transformNormalJar(inputJar,outputJar,willInjectClassPatterns,Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * 转换全量打包的jar包，往所有的项目代码中注入代码
+     * @param inputJar                  输入jar
+     * @param outputJar                 补丁jar输出位置
+     * @param willInjectClassPatterns   所有项目代码的class路径正则列表
+     * @param threadCount               注入代码的线程数，为1时在当前线程顺序处理
+     * @throws IOException
+     */
+    public static void transformNormalJar(File inputJar, File outputJar, Set<String> willInjectClassPatterns, int threadCount) throws IOException {
+        if (threadCount <= 1) {
+            transformJar(inputJar,outputJar,new NormalProcessor(willInjectClassPatterns));
+            return;
+        }
+        new InjectPipeline(threadCount).transform(inputJar,outputJar,new ClassMatcher(willInjectClassPatterns));
     }
 
     /**
@@ -53,9 +75,56 @@ public class JarOperation {
      * @throws IOException
      */
     public static void transformPatchJar(File inputJar, File outputJar, Set<String> changedClassPatterns) throws IOException {
+        transformPatchJar(inputJar,outputJar,changedClassPatterns,true);
+    }
+
+    /**
+     * 转换补丁jar包，从jar中移除没有变化的class
+     * @param inputJar              输入jar
+     * @param outputJar             补丁jar输出位置
+     * @param changedClassPatterns  所有变化的class路径正则列表
+     * @param rawCopy               为true时直接拷贝压缩后的entry，不解压也不重新压缩
+     * @throws IOException
+     */
+    public static void transformPatchJar(File inputJar, File outputJar, Set<String> changedClassPatterns, boolean rawCopy) throws IOException {
+        if (rawCopy) {
+            try {
+                rawCopyJar(inputJar,outputJar,new ClassMatcher(changedClassPatterns));
+                return;
+            } catch (ZipException e) {
+                //zip64等不支持直接拷贝的格式回退到解压重新压缩
+                System.out.println("==raw copy fail, fallback: " + e.getMessage());
+            }
+        }
         transformJar(inputJar,outputJar,new PatchProcessor(changedClassPatterns));
     }
 
+    /**
+     * 把匹配的entry原样拷贝到输出jar
+     * @param inputJar      输入jar
+     * @param outputJar     输出jar的路径
+     * @param matcher       需要拷贝的class
+     * @throws IOException
+     */
+    private static void rawCopyJar(File inputJar, File outputJar, ClassMatcher matcher) throws IOException {
+        if (outputJar.exists()) {
+            outputJar.delete();
+        }
+
+        RawZipCopier copier = new RawZipCopier(inputJar,outputJar);
+        try {
+            for (RawZipCopier.Entry entry : copier.getEntries()) {
+                if (entry.isDirectory() || !matcher.accept(entry.name)) {
+                    continue;
+                }
+                System.out.println("==entry: " + entry.name);
+                copier.copy(entry);
+            }
+        } finally {
+            copier.close();
+        }
+    }
+
     /**
      * 转换jar包
      * @param inputJar      输入jar
@@ -96,30 +165,21 @@ public class JarOperation {
 
         @Override
         public void process(ZipFile zipFile, ZipEntry entry, ZipOutputStream outputJarStream) throws IOException {
-            for (Pattern pattern : patterns) {
-                if (pattern.matcher(entry.getName()).matches()) {
-                    outputJarStream.putNextEntry(new ZipEntry(entry.getName()));
-                    System.out.println("==entry: " + entry.getName());
-
-                    byte[] classBytes = readStream(zipFile.getInputStream(entry));
-                    outputJarStream.write(classBytes);
-                    outputJarStream.closeEntry();
-                    break;
-                }
+            if (matcher.accept(entry.getName())) {
+                outputJarStream.putNextEntry(new ZipEntry(entry.getName()));
+                System.out.println("==entry: " + entry.getName());
+
+                copyStream(zipFile.getInputStream(entry),outputJarStream);
+                outputJarStream.closeEntry();
             }
         }
     }
 
     private static class NormalProcessor extends Processor {
-        protected Set<Pattern> patterns;
+        protected ClassMatcher matcher;
 
         public NormalProcessor(Set<String> willInjectClassPatterns) {
-            patterns = new HashSet<Pattern>();
-            if (willInjectClassPatterns != null && !willInjectClassPatterns.isEmpty()) {
-                for (String patternStr : willInjectClassPatterns) {
-                    patterns.add(Pattern.compile(patternStr));
-                }
-            }
+            matcher = new ClassMatcher(willInjectClassPatterns);
         }
 
         @Override
@@ -127,41 +187,66 @@ public class JarOperation {
             outputJarStream.putNextEntry(new ZipEntry(entry.getName()));
             System.out.println("==entry: " + entry.getName());
             byte[] classBytes = readStream(zipFile.getInputStream(entry));
-            if (patterns != null) {
-                for (Pattern pattern : patterns) {
-                    if (pattern.matcher(entry.getName()).matches()) {
-                        //TODO inject  classBytes = inject(classBytes)
-                        System.out.println("==注入代码: " + entry.getName());
-                        break;
-                    }
-                }
+            if (matcher.accept(entry.getName())) {
+                System.out.println("==注入代码: " + entry.getName());
+                classBytes = ClassInject.inject(classBytes);
             }
             outputJarStream.write(classBytes);
             outputJarStream.closeEntry();
         }
     }
 
+    /**
+     * 把所有的class路径正则合并成一个正则，每个entry只需要匹配一次
+     */
+    private static class ClassMatcher implements ZipEntryFilter {
+        private final Pattern pattern;
+
+        public ClassMatcher(Set<String> classPatterns) {
+            if (classPatterns == null || classPatterns.isEmpty()) {
+                pattern = null;
+                return;
+            }
+            StringBuilder sb = new StringBuilder();
+            for (String patternStr : classPatterns) {
+                if (sb.length() > 0) {
+                    sb.append('|');
+                }
+                sb.append("(?:").append(patternStr).append(')');
+            }
+            pattern = Pattern.compile(sb.toString());
+        }
+
+        public boolean accept(String entryName) {
+            return pattern != null && pattern.matcher(entryName).matches();
+        }
+    }
+
     private static abstract class Processor {
+        private static final int BUFFER_SIZE = 8192;
+
         public abstract void process(ZipFile zipFile,ZipEntry entry,ZipOutputStream outputJarStream) throws IOException;
 
         protected byte[] readStream(InputStream is) throws IOException {
             final ByteArrayOutputStream output = new ByteArrayOutputStream();
-            final int bufferSize = 1024;
             try {
-                final BufferedInputStream bIn = new BufferedInputStream(is);
-                int length;
-                byte[] buffer = new byte[bufferSize];
-                byte[] bufferCopy;
-                while ((length = bIn.read(buffer, 0, bufferSize)) != -1) {
-                    bufferCopy = new byte[length];
-                    System.arraycopy(buffer, 0, bufferCopy, 0, length);
-                    output.write(bufferCopy);
-                }
-                bIn.close();
+                copyStream(is,output);
             } finally {
                 output.close();
             }
             return output.toByteArray();
         }
+
+        protected void copyStream(InputStream is, OutputStream os) throws IOException {
+            try {
+                int length;
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while ((length = is.read(buffer, 0, BUFFER_SIZE)) != -1) {
+                    os.write(buffer, 0, length);
+                }
+            } finally {
+                is.close();
+            }
+        }
     }
 }
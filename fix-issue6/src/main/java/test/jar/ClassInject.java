@@ -0,0 +1,76 @@
+package test.jar;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * 往所有的构造方法里注入对AntilazyLoad的引用，防止类被打上CLASS_ISPREVERIFIED标记
+ *
+ * 注入后的代码:
+ * if (Boolean.FALSE.booleanValue()) {
+ *     System.out.println(AntilazyLoad.class);
+ * }
+ *
+ * 产物只给dx用，dx不读StackMapTable，所以只计算maxs不重新计算frames
+ *
+ * Created by tong on 17/3/23.
+ */
+public class ClassInject implements Opcodes {
+    public static final String ANTILAZY_LOAD_CLASS_DESC = "Lcom/dx168/fastdex/runtime/antilazyload/AntilazyLoad;";
+
+    public static byte[] inject(byte[] classBytes) {
+        ClassReader classReader = new ClassReader(classBytes);
+        ClassWriter classWriter = new ClassWriter(classReader,ClassWriter.COMPUTE_MAXS);
+        classReader.accept(new InjectClassVisitor(classWriter),0);
+        return classWriter.toByteArray();
+    }
+
+    private static class InjectClassVisitor extends ClassVisitor {
+        private boolean isInterface;
+
+        public InjectClassVisitor(ClassVisitor classVisitor) {
+            super(ASM5,classVisitor);
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+            isInterface = (access & ACC_INTERFACE) != 0;
+            super.visit(version,access,name,signature,superName,interfaces);
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+            MethodVisitor mv = super.visitMethod(access,name,desc,signature,exceptions);
+            if (!isInterface && "<init>".equals(name)) {
+                return new InjectMethodVisitor(mv);
+            }
+            return mv;
+        }
+    }
+
+    private static class InjectMethodVisitor extends MethodVisitor {
+        public InjectMethodVisitor(MethodVisitor mv) {
+            super(ASM5,mv);
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            if (opcode == RETURN) {
+                mv.visitFieldInsn(GETSTATIC,"java/lang/Boolean","FALSE","Ljava/lang/Boolean;");
+                mv.visitMethodInsn(INVOKEVIRTUAL,"java/lang/Boolean","booleanValue","()Z",false);
+                Label label = new Label();
+                mv.visitJumpInsn(IFEQ,label);
+                mv.visitFieldInsn(GETSTATIC,"java/lang/System","out","Ljava/io/PrintStream;");
+                mv.visitLdcInsn(Type.getType(ANTILAZY_LOAD_CLASS_DESC));
+                mv.visitMethodInsn(INVOKEVIRTUAL,"java/io/PrintStream","println","(Ljava/lang/Object;)V",false);
+                mv.visitLabel(label);
+            }
+            super.visitInsn(opcode);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package test.jar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * 并行注入jar包中的class
+ *
+ * 读: 调用线程按顺序读出每个entry，提交给worker线程池
+ * 注入: worker对匹配的class执行ClassInject.inject，不匹配的原样返回
+ * 写: 写线程按提交的顺序从有界的重排队列里取结果写到输出jar，输出的entry顺序和输入一致
+ *
+ * 重排队列满了读线程就会阻塞，同一时刻最多只有queueCapacity个entry在内存里
+ *
+ * Created by tong on 17/3/23.
+ */
+public class InjectPipeline {
+    private static final int BUFFER_SIZE = 8192;
+    private static final Task END = new Task(null,null);
+
+    private final int threadCount;
+    private final int queueCapacity;
+
+    private long readNanos;
+    private final AtomicLong injectNanos = new AtomicLong();
+    private final AtomicInteger injectCount = new AtomicInteger();
+    private long writeNanos;
+
+    public InjectPipeline(int threadCount) {
+        this(threadCount,threadCount * 4);
+    }
+
+    public InjectPipeline(int threadCount, int queueCapacity) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount must be >= 1");
+        }
+        this.threadCount = threadCount;
+        this.queueCapacity = Math.max(1,queueCapacity);
+    }
+
+    /**
+     * @param inputJar      输入jar
+     * @param outputJar     输出jar的路径
+     * @param injectFilter  需要注入代码的class
+     * @throws IOException
+     */
+    public void transform(File inputJar, File outputJar, final ZipEntryFilter injectFilter) throws IOException {
+        if (outputJar.exists()) {
+            outputJar.delete();
+        }
+
+        long start = System.nanoTime();
+        final BlockingQueue<Task> queue = new ArrayBlockingQueue<Task>(queueCapacity);
+        ExecutorService workers = Executors.newFixedThreadPool(threadCount);
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        ZipFile zipFile = new ZipFile(inputJar);
+        final ZipOutputStream outputJarStream = new ZipOutputStream(new FileOutputStream(outputJar));
+        Throwable failure = null;
+        try {
+            Future<Void> writerFuture = writer.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    write(queue,outputJarStream);
+                    return null;
+                }
+            });
+
+            Enumeration enumeration = zipFile.entries();
+            while (enumeration.hasMoreElements()) {
+                ZipEntry entry = (ZipEntry) enumeration.nextElement();
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                final String name = entry.getName();
+                long readStart = System.nanoTime();
+                final byte[] classBytes = readStream(zipFile.getInputStream(entry));
+                readNanos += System.nanoTime() - readStart;
+
+                Future<byte[]> future = workers.submit(new Callable<byte[]>() {
+                    public byte[] call() throws Exception {
+                        if (!injectFilter.accept(name)) {
+                            return classBytes;
+                        }
+                        long injectStart = System.nanoTime();
+                        byte[] result = ClassInject.inject(classBytes);
+                        injectNanos.addAndGet(System.nanoTime() - injectStart);
+                        injectCount.incrementAndGet();
+                        return result;
+                    }
+                });
+                put(queue,new Task(name,future),writerFuture);
+            }
+            put(queue,END,writerFuture);
+            get(writerFuture);
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } catch (Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            workers.shutdownNow();
+            writer.shutdownNow();
+            //写线程停下来以后才能关闭输出流，否则关闭时写线程可能还在写
+            boolean writerStopped = awaitTermination(writer);
+            IOException closeFailure = close(zipFile,null);
+            if (writerStopped) {
+                closeFailure = close(outputJarStream,closeFailure);
+            }
+            //最先发生的异常已经在往外抛了，关闭时的异常不能覆盖它
+            if (failure == null) {
+                if (!writerStopped) {
+                    throw new IOException("interrupted while waiting for the writer");
+                }
+                if (closeFailure != null) {
+                    throw closeFailure;
+                }
+            }
+        }
+
+        System.out.println(String.format("==inject pipeline threads: %d, injected: %d, read: %d ms, inject: %d ms (sum of workers), write: %d ms, total: %d ms",
+                threadCount,injectCount.get(),toMillis(readNanos),toMillis(injectNanos.get()),toMillis(writeNanos),toMillis(System.nanoTime() - start)));
+    }
+
+    public long getReadNanos() {
+        return readNanos;
+    }
+
+    public long getInjectNanos() {
+        return injectNanos.get();
+    }
+
+    public long getWriteNanos() {
+        return writeNanos;
+    }
+
+    private void write(BlockingQueue<Task> queue, ZipOutputStream outputJarStream) throws Exception {
+        while (true) {
+            Task task = queue.take();
+            if (task == END) {
+                break;
+            }
+            byte[] classBytes = get(task.future);
+            long writeStart = System.nanoTime();
+            outputJarStream.putNextEntry(new ZipEntry(task.name));
+            outputJarStream.write(classBytes);
+            outputJarStream.closeEntry();
+            writeNanos += System.nanoTime() - writeStart;
+        }
+    }
+
+    private static boolean awaitTermination(ExecutorService executor) {
+        try {
+            //shutdownNow以后写线程在take或者get时会被中断，正在写的entry写完就会退出
+            return executor.awaitTermination(Long.MAX_VALUE,TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return 之前的异常，如果之前没有异常返回关闭时的异常
+     */
+    private static IOException close(ZipFile zipFile, IOException failure) {
+        try {
+            zipFile.close();
+        } catch (IOException e) {
+            return failure != null ? failure : e;
+        }
+        return failure;
+    }
+
+    private static IOException close(ZipOutputStream outputStream, IOException failure) {
+        try {
+            outputStream.close();
+        } catch (IOException e) {
+            return failure != null ? failure : e;
+        }
+        return failure;
+    }
+
+    /**
+     * 写线程失败时不再等待队列空出位置，直接把写线程的异常抛出去
+     */
+    private static void put(BlockingQueue<Task> queue, Task task, Future<Void> writerFuture) throws IOException {
+        try {
+            while (!queue.offer(task,100,TimeUnit.MILLISECONDS)) {
+                if (writerFuture.isDone()) {
+                    get(writerFuture);
+                    throw new IOException("writer stopped unexpectedly");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        }
+    }
+
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            IOException exception = new IOException(String.valueOf(cause));
+            exception.initCause(cause);
+            throw exception;
+        }
+    }
+
+    private static byte[] readStream(InputStream is) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            int length;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while ((length = is.read(buffer,0,BUFFER_SIZE)) != -1) {
+                output.write(buffer,0,length);
+            }
+        } finally {
+            is.close();
+        }
+        return output.toByteArray();
+    }
+
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private static class Task {
+        final String name;
+        final Future<byte[]> future;
+
+        Task(String name, Future<byte[]> future) {
+            this.name = name;
+            this.future = future;
+        }
+    }
+}
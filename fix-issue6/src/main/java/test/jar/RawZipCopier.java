@@ -0,0 +1,236 @@
+package test.jar;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipException;
+
+/**
+ * 不解压不重新压缩，直接把输入zip里的entry(local header、压缩后的数据、data descriptor)原样拷贝到输出zip
+ *
+ * 只读central directory拿到每个entry的位置，数据通过FileChannel.transferTo拷贝，
+ * close时按新的偏移写出central directory和end of central directory
+ *
+ * 不支持zip64，遇到时抛ZipException，调用方可以回退到ZipOutputStream
+ *
+ * Created by tong on 17/3/23.
+ */
+public class RawZipCopier implements Closeable {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_HEADER_SIGNATURE = 0x06054b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_HEADER_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+    private final RandomAccessFile inputFile;
+    private final FileChannel inputChannel;
+    private final FileOutputStream outputStream;
+    private final FileChannel outputChannel;
+    private final List<Entry> entries;
+    private final List<Entry> copiedEntries = new ArrayList<Entry>();
+    private long outputPosition;
+    private boolean closed;
+
+    public RawZipCopier(File inputZip, File outputZip) throws IOException {
+        inputFile = new RandomAccessFile(inputZip,"r");
+        inputChannel = inputFile.getChannel();
+        try {
+            entries = readCentralDirectory();
+        } catch (IOException e) {
+            inputFile.close();
+            throw e;
+        }
+        outputStream = new FileOutputStream(outputZip);
+        outputChannel = outputStream.getChannel();
+    }
+
+    /**
+     * 输入zip中的所有entry，按central directory中的顺序
+     * @return
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * 把entry原样拷贝到输出zip
+     * @param entry
+     * @throws IOException
+     */
+    public void copy(Entry entry) throws IOException {
+        ByteBuffer localHeader = read(entry.localHeaderOffset,LOCAL_HEADER_SIZE);
+        if (localHeader.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("invalid local header: " + entry.name);
+        }
+        int nameLength = localHeader.getShort(26) & 0xFFFF;
+        int extraLength = localHeader.getShort(28) & 0xFFFF;
+        long dataEnd = entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength + entry.compressedSize;
+        if (entry.hasDataDescriptor()) {
+            //data descriptor的签名是可选的
+            dataEnd += read(dataEnd,4).getInt(0) == DATA_DESCRIPTOR_SIGNATURE ? 16 : 12;
+        }
+
+        long newOffset = outputPosition;
+        transfer(entry.localHeaderOffset,dataEnd - entry.localHeaderOffset);
+        copiedEntries.add(new Entry(entry,newOffset));
+    }
+
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            long centralDirectoryOffset = outputPosition;
+            for (Entry entry : copiedEntries) {
+                ByteBuffer header = ByteBuffer.wrap(entry.centralHeader.clone()).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(42,(int) entry.localHeaderOffset);
+                write(header);
+            }
+            long centralDirectorySize = outputPosition - centralDirectoryOffset;
+            if (copiedEntries.size() > 0xFFFF || centralDirectoryOffset > 0xFFFFFFFFL) {
+                throw new ZipException("zip64 not supported");
+            }
+
+            ByteBuffer end = ByteBuffer.allocate(END_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            end.putInt(END_HEADER_SIGNATURE);
+            end.putShort((short) 0);
+            end.putShort((short) 0);
+            end.putShort((short) copiedEntries.size());
+            end.putShort((short) copiedEntries.size());
+            end.putInt((int) centralDirectorySize);
+            end.putInt((int) centralDirectoryOffset);
+            end.putShort((short) 0);
+            end.flip();
+            write(end);
+        } finally {
+            try {
+                outputStream.close();
+            } finally {
+                inputFile.close();
+            }
+        }
+    }
+
+    private List<Entry> readCentralDirectory() throws IOException {
+        long fileLength = inputChannel.size();
+        if (fileLength < END_HEADER_SIZE) {
+            throw new ZipException("not a zip file");
+        }
+        //end of central directory后面最多跟65535字节的注释，从后往前找签名
+        int tailLength = (int) Math.min(fileLength,END_HEADER_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = read(fileLength - tailLength,tailLength);
+        int endOffset = -1;
+        for (int i = tailLength - END_HEADER_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_HEADER_SIGNATURE) {
+                endOffset = i;
+                break;
+            }
+        }
+        if (endOffset == -1) {
+            throw new ZipException("end of central directory not found");
+        }
+
+        int entryCount = tail.getShort(endOffset + 10) & 0xFFFF;
+        long centralDirectorySize = tail.getInt(endOffset + 12) & 0xFFFFFFFFL;
+        long centralDirectoryOffset = tail.getInt(endOffset + 16) & 0xFFFFFFFFL;
+        if (entryCount == 0xFFFF || centralDirectorySize == 0xFFFFFFFFL || centralDirectoryOffset == 0xFFFFFFFFL) {
+            throw new ZipException("zip64 not supported");
+        }
+
+        ByteBuffer centralDirectory = read(centralDirectoryOffset,(int) centralDirectorySize);
+        List<Entry> result = new ArrayList<Entry>(entryCount);
+        int position = 0;
+        for (int i = 0; i < entryCount; i++) {
+            if (centralDirectory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("invalid central directory header");
+            }
+            int nameLength = centralDirectory.getShort(position + 28) & 0xFFFF;
+            int extraLength = centralDirectory.getShort(position + 30) & 0xFFFF;
+            int commentLength = centralDirectory.getShort(position + 32) & 0xFFFF;
+            int headerLength = CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+
+            byte[] centralHeader = new byte[headerLength];
+            centralDirectory.position(position);
+            centralDirectory.get(centralHeader);
+
+            int flags = centralDirectory.getShort(position + 8) & 0xFFFF;
+            //general purpose flag第11位表示文件名是utf-8编码
+            String name = new String(centralHeader,CENTRAL_HEADER_SIZE,nameLength,(flags & 0x800) != 0 ? "UTF-8" : "ISO-8859-1");
+            long compressedSize = centralDirectory.getInt(position + 20) & 0xFFFFFFFFL;
+            long localHeaderOffset = centralDirectory.getInt(position + 42) & 0xFFFFFFFFL;
+            result.add(new Entry(name,flags,compressedSize,localHeaderOffset,centralHeader));
+            position += headerLength;
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (inputChannel.read(buffer,position + buffer.position()) == -1) {
+                throw new ZipException("unexpected end of zip file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private void transfer(long position, long length) throws IOException {
+        long transferred = 0;
+        while (transferred < length) {
+            long count = inputChannel.transferTo(position + transferred,length - transferred,outputChannel);
+            if (count <= 0) {
+                throw new ZipException("unexpected end of zip file");
+            }
+            transferred += count;
+        }
+        outputPosition += length;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            outputPosition += outputChannel.write(buffer);
+        }
+    }
+
+    public static class Entry {
+        public final String name;
+        private final int flags;
+        private final long compressedSize;
+        private final long localHeaderOffset;
+        private final byte[] centralHeader;
+
+        private Entry(String name, int flags, long compressedSize, long localHeaderOffset, byte[] centralHeader) {
+            this.name = name;
+            this.flags = flags;
+            this.compressedSize = compressedSize;
+            this.localHeaderOffset = localHeaderOffset;
+            this.centralHeader = centralHeader;
+        }
+
+        private Entry(Entry entry, long localHeaderOffset) {
+            this(entry.name,entry.flags,entry.compressedSize,localHeaderOffset,entry.centralHeader);
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        private boolean hasDataDescriptor() {
+            return (flags & 0x08) != 0;
+        }
+    }
+}
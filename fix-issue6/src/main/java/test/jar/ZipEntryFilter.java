@@ -4,5 +4,9 @@ package test.jar;
  * Created by tong on 17/3/23.
  */
 public interface ZipEntryFilter {
-
+    /**
+     * @param entryName jar中entry的路径，例如 com/dx168/fastdex/sample/MainActivity.class
+     * @return
+     */
+    boolean accept(String entryName);
 }
@@ -18,7 +18,10 @@ package com.android.builder.dexing;
 
 import com.android.SdkConstants;
 import com.android.annotations.NonNull;
+import com.android.dex.Dex;
 import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * A single DEX file in a dex archive. It is uniquely identified with {@link #relativePathInArchive}
@@ -26,12 +29,20 @@ import com.google.common.base.Preconditions;
  */
 public final class DexArchiveEntry {
 
-    @NonNull private final byte[] dexFileContent;
+    @NonNull private final ByteBuffer dexFileContent;
     @NonNull private final String relativePathInArchive;
 
     public DexArchiveEntry(@NonNull byte[] dexFileContent, @NonNull String relativePathInArchive) {
+        this(ByteBuffer.wrap(dexFileContent), relativePathInArchive);
+    }
+
+    /**
+     * Creates an entry reading from the remaining bytes of {@code dexFileContent}, which may be a
+     * memory mapping of the dex archive (see {@link DexArchives#readDexFile(java.nio.file.Path)}).
+     */
+    DexArchiveEntry(@NonNull ByteBuffer dexFileContent, @NonNull String relativePathInArchive) {
         this.relativePathInArchive = relativePathInArchive;
-        this.dexFileContent = dexFileContent;
+        this.dexFileContent = dexFileContent.slice();
     }
 
     /**
@@ -48,10 +59,26 @@ public final class DexArchiveEntry {
                 + SdkConstants.DOT_CLASS;
     }
 
-    /** Returns content of this DEX file. */
+    /**
+     * Returns content of this DEX file. The content is copied onto the heap if the entry is memory
+     * mapped, use {@link #openDex()} to read it in place.
+     */
     @NonNull
     public byte[] getDexFileContent() {
-        return dexFileContent;
+        if (dexFileContent.hasArray()
+                && dexFileContent.arrayOffset() == 0
+                && dexFileContent.remaining() == dexFileContent.array().length) {
+            return dexFileContent.array();
+        }
+        byte[] content = new byte[dexFileContent.remaining()];
+        dexFileContent.duplicate().get(content);
+        return content;
+    }
+
+    /** Returns a new {@link Dex} reading the content of this DEX file without copying it. */
+    @NonNull
+    public Dex openDex() throws IOException {
+        return Dex.wrap(dexFileContent);
     }
 
     /**
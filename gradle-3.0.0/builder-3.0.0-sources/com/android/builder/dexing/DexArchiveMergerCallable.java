@@ -17,6 +17,7 @@
 package com.android.builder.dexing;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.dex.Dex;
 import com.android.dx.command.dexer.DxContext;
 import com.android.dx.merge.CollisionPolicy;
@@ -28,6 +29,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collection;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Helper class used to merge specified DEX files to a location. To accomplish that, it directly
@@ -38,14 +40,28 @@ public class DexArchiveMergerCallable implements Callable<Void> {
     @NonNull private final Collection<Dex> dexesToMerge;
     @NonNull private final Path outputDex;
     @NonNull private final DxContext dxContext;
+    @Nullable private final ForkJoinPool forkJoinPool;
 
     public DexArchiveMergerCallable(
             @NonNull Collection<Dex> dexesToMerge,
             @NonNull Path outputDex,
             @NonNull DxContext dxContext) {
+        this(dexesToMerge, outputDex, dxContext, null);
+    }
+
+    /**
+     * @param forkJoinPool pool the {@link DexMerger} runs the parallel parts of the merge on,
+     *     usually the one this callable is submitted to, or {@code null} to merge serially
+     */
+    public DexArchiveMergerCallable(
+            @NonNull Collection<Dex> dexesToMerge,
+            @NonNull Path outputDex,
+            @NonNull DxContext dxContext,
+            @Nullable ForkJoinPool forkJoinPool) {
         this.dexesToMerge = dexesToMerge;
         this.outputDex = outputDex;
         this.dxContext = dxContext;
+        this.forkJoinPool = forkJoinPool;
     }
 
     @Override
@@ -57,6 +73,7 @@ public class DexArchiveMergerCallable implements Callable<Void> {
                             dexesToMerge.toArray(new Dex[dexesToMerge.size()]),
                             CollisionPolicy.FAIL,
                             dxContext);
+            dexMerger.setPool(forkJoinPool);
 
             Dex output = dexMerger.merge();
             Verify.verifyNotNull(
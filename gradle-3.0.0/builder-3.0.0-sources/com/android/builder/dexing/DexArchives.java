@@ -20,7 +20,11 @@ import com.android.SdkConstants;
 import com.android.annotations.NonNull;
 import com.google.common.collect.Lists;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Collection;
 import java.util.List;
 import java.util.function.Predicate;
@@ -31,6 +35,21 @@ public final class DexArchives {
     public static final Predicate<Path> DEX_ENTRY_FILTER =
             f -> f.toString().endsWith(SdkConstants.DOT_DEX);
 
+    /**
+     * Whether dex archives are memory mapped when reading them. A mapping keeps its file open until
+     * it is garbage collected, and on Windows that prevents the next build from overwriting or
+     * deleting the file.
+     */
+    static final boolean MAP_DEX_FILES =
+            SdkConstants.currentPlatform() != SdkConstants.PLATFORM_WINDOWS;
+
+    /**
+     * Smallest DEX file that {@link #readDexFile(Path)} maps. Every mapping uses at least a page
+     * and counts towards the per-process limit of mappings, which a directory dex archive with one
+     * small file per class would otherwise exceed.
+     */
+    private static final long MIN_MAPPED_DEX_FILE_SIZE = 64 * 1024;
+
     private DexArchives() {
     }
 
@@ -51,6 +70,23 @@ public final class DexArchives {
         }
     }
 
+    /**
+     * Returns the content of a DEX file, memory mapped if it is large enough and {@link
+     * #MAP_DEX_FILES} allows it, or read onto the heap otherwise.
+     */
+    @NonNull
+    static ByteBuffer readDexFile(@NonNull Path dexFile) throws IOException {
+        if (MAP_DEX_FILES) {
+            try (FileChannel channel = FileChannel.open(dexFile, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size >= MIN_MAPPED_DEX_FILE_SIZE) {
+                    return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                }
+            }
+        }
+        return ByteBuffer.wrap(Files.readAllBytes(dexFile));
+    }
+
     @NonNull
     static List<DexArchiveEntry> getEntriesFromSingleArchive(@NonNull Path archivePath)
             throws IOException {
@@ -23,6 +23,7 @@ import com.google.common.collect.ImmutableList;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Iterator;
@@ -87,7 +88,7 @@ final class DirDexArchive implements DexArchive {
     }
 
     private DexArchiveEntry createEntry(@NonNull Path dexFile) throws IOException {
-        byte[] content = Files.readAllBytes(dexFile);
+        ByteBuffer content = DexArchives.readDexFile(dexFile);
         Path relativePath = getRootPath().relativize(dexFile);
 
         return new DexArchiveEntry(content, PathUtils.toSystemIndependentPath(relativePath));
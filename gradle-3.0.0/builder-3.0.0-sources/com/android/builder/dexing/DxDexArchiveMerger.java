@@ -66,7 +66,8 @@ public final class DxDexArchiveMerger implements DexArchiveMerger {
      * executor, in order to be sure the merging is finished.
      *
      * @param dxContext dx context necessary for the merging process
-     * @param forkJoinPool executor used to schedule tasks in the merging process
+     * @param forkJoinPool executor used to schedule tasks in the merging process, each {@link
+     *     DexMerger} also runs the parallel parts of its merge on it
      */
     public DxDexArchiveMerger(@NonNull DxContext dxContext, @NonNull ForkJoinPool forkJoinPool) {
         this(dxContext, new ReferenceCountMergingStrategy(), forkJoinPool);
@@ -161,7 +162,7 @@ public final class DxDexArchiveMerger implements DexArchiveMerger {
                                     List<DexArchiveEntry> entries = dexArchive.getFiles();
                                     List<Dex> dexes = new ArrayList<>(entries.size());
                                     for (DexArchiveEntry e : entries) {
-                                        dexes.add(new Dex(e.getDexFileContent()));
+                                        dexes.add(e.openDex());
                                     }
 
                                     dexesFromArchives.put(dexArchive.getRootPath(), dexes);
@@ -226,7 +227,7 @@ public final class DxDexArchiveMerger implements DexArchiveMerger {
 
         while (entries.hasNext()) {
             DexArchiveEntry entry = entries.next();
-            Dex dex = new Dex(entry.getDexFileContent());
+            Dex dex = entry.openDex();
 
             if (dexingType == DexingType.LEGACY_MULTIDEX) {
                 // check if this should go to the main dex
@@ -268,7 +269,8 @@ public final class DxDexArchiveMerger implements DexArchiveMerger {
 
     private ForkJoinTask<Void> submitForMerging(
             @NonNull List<Dex> dexes, @NonNull Path dexOutputPath) {
-        return forkJoinPool.submit(new DexArchiveMergerCallable(dexes, dexOutputPath, dxContext));
+        return forkJoinPool.submit(
+                new DexArchiveMergerCallable(dexes, dexOutputPath, dxContext, forkJoinPool));
     }
 
     @NonNull
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.dexing;
+
+import com.android.SdkConstants;
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.dex.Dex;
+import com.android.dex.DexIndexOverflowException;
+import com.android.dx.command.dexer.DxContext;
+import com.android.dx.merge.IncrementalDexMerger;
+import com.android.ide.common.blame.parser.DexParser;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Updates a DEX file merged from a directory dex archive, using {@link IncrementalDexMerger}.
+ * Classes of the removed and changed dex archive entries are dropped from the merged DEX file, and
+ * the changed and added entries are merged into it.
+ *
+ * <p>Returns {@code false} and leaves the merged DEX file untouched if the result does not fit into
+ * a single DEX file. The invoker should then merge all entries again.
+ */
+public class IncrementalDexArchiveMergerCallable implements Callable<Boolean> {
+
+    @NonNull private final Path mergedDex;
+    @NonNull private final Set<String> removedTypes;
+    @NonNull private final Collection<Path> addedDexFiles;
+    @NonNull private final DxContext dxContext;
+    @Nullable private final ForkJoinPool forkJoinPool;
+
+    /**
+     * @param mergedDex DEX file written by the previous merge, it is overwritten with the result
+     * @param removedTypes type descriptors of the classes to drop, see {@link
+     *     #toTypeDescriptor(String)}
+     * @param addedDexFiles dex archive entries of the changed and added classes
+     * @param dxContext dx context necessary for the merging process
+     * @param forkJoinPool pool the merge runs its parallel parts on, or {@code null} to merge
+     *     serially
+     */
+    public IncrementalDexArchiveMergerCallable(
+            @NonNull Path mergedDex,
+            @NonNull Set<String> removedTypes,
+            @NonNull Collection<Path> addedDexFiles,
+            @NonNull DxContext dxContext,
+            @Nullable ForkJoinPool forkJoinPool) {
+        this.mergedDex = mergedDex;
+        this.removedTypes = removedTypes;
+        this.addedDexFiles = addedDexFiles;
+        this.dxContext = dxContext;
+        this.forkJoinPool = forkJoinPool;
+    }
+
+    /**
+     * Returns the type descriptor of the class in a dex archive entry, e.g. {@code Lcom/foo/Bar;}
+     * for {@code com/foo/Bar.dex}.
+     */
+    @NonNull
+    public static String toTypeDescriptor(@NonNull String relativeUnixPath) {
+        Preconditions.checkState(
+                relativeUnixPath.endsWith(SdkConstants.DOT_DEX),
+                "Dex archives: %s is not a .DEX file",
+                relativeUnixPath);
+        return "L"
+                + relativeUnixPath.substring(
+                        0, relativeUnixPath.length() - SdkConstants.DOT_DEX.length())
+                + ";";
+    }
+
+    @Override
+    public Boolean call() throws Exception {
+        try {
+            Dex[] added = new Dex[addedDexFiles.size()];
+            int i = 0;
+            for (Path dexFile : addedDexFiles) {
+                added[i++] = Dex.wrap(DexArchives.readDexFile(dexFile));
+            }
+
+            Dex merged = Dex.wrap(DexArchives.readDexFile(mergedDex));
+            IncrementalDexMerger merger =
+                    new IncrementalDexMerger(merged, removedTypes, added, dxContext);
+            merger.setPool(forkJoinPool);
+            Dex output = merger.merge();
+
+            // write next to the merged file and move, a failed write keeps the previous output
+            Path tmp = mergedDex.resolveSibling(mergedDex.getFileName() + ".tmp");
+            output.writeTo(tmp.toFile());
+            Files.move(tmp, mergedDex, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (DexIndexOverflowException e) {
+            return false;
+        } catch (Exception e) {
+            dxContext.err.println(DexParser.DX_UNEXPECTED_EXCEPTION);
+            dxContext.err.println(Throwables.getRootCause(e));
+            dxContext.err.print(Throwables.getStackTraceAsString(e));
+
+            throw new DexArchiveMergerException("Unable to merge dex", e);
+        }
+    }
+}
@@ -23,6 +23,10 @@ import com.google.common.io.ByteStreams;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
@@ -40,6 +44,11 @@ final class NonIncrementalJarDexArchive implements DexArchive {
 
     private static final FileTime ZERO_TIME = FileTime.fromMillis(0);
 
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    /** General purpose flag set when the sizes follow the entry data instead of its header. */
+    private static final int DATA_DESCRIPTOR_FLAG = 1 << 3;
+
     private final Path targetPath;
     @Nullable private JarOutputStream jarOutputStream;
     @Nullable private ZipFile readOnlyZipFile;
@@ -99,6 +108,13 @@ final class NonIncrementalJarDexArchive implements DexArchive {
     @Override
     public List<DexArchiveEntry> getFiles() throws IOException {
         Preconditions.checkNotNull(readOnlyZipFile, "Archive is not readable : %s", targetPath);
+        if (DexArchives.MAP_DEX_FILES) {
+            List<DexArchiveEntry> mappedEntries = mapStoredEntries(readOnlyZipFile.size());
+            if (mappedEntries != null) {
+                return mappedEntries;
+            }
+        }
+
         List<DexArchiveEntry> dexEntries = new ArrayList<>();
         Enumeration<? extends ZipEntry> entries = readOnlyZipFile.entries();
         while (entries.hasMoreElements()) {
@@ -112,6 +128,59 @@ final class NonIncrementalJarDexArchive implements DexArchive {
         return dexEntries;
     }
 
+    /**
+     * Maps this archive once and returns its entries as slices of the mapping, so the DEX files are
+     * not copied onto the heap. Entries written by {@link #addFile(String, byte[], int, int)} are
+     * stored without compression and have their sizes in the local header, so they can be found by
+     * walking the local headers. Returns {@code null} if the archive does not have this layout.
+     */
+    @Nullable
+    private List<DexArchiveEntry> mapStoredEntries(int entryCount) throws IOException {
+        ByteBuffer archive;
+        try (FileChannel channel = FileChannel.open(targetPath, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            archive = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        archive.order(ByteOrder.LITTLE_ENDIAN);
+
+        List<DexArchiveEntry> dexEntries = new ArrayList<>(entryCount);
+        int position = 0;
+        while (dexEntries.size() < entryCount) {
+            if (position + LOCAL_HEADER_SIZE > archive.limit()
+                    || archive.getInt(position) != LOCAL_HEADER_SIGNATURE) {
+                return null;
+            }
+            int flags = archive.getShort(position + 6) & 0xFFFF;
+            int method = archive.getShort(position + 8) & 0xFFFF;
+            long compressedSize = archive.getInt(position + 18) & 0xFFFFFFFFL;
+            long size = archive.getInt(position + 22) & 0xFFFFFFFFL;
+            int nameLength = archive.getShort(position + 26) & 0xFFFF;
+            int extraLength = archive.getShort(position + 28) & 0xFFFF;
+            long dataStart = (long) position + LOCAL_HEADER_SIZE + nameLength + extraLength;
+            if ((flags & DATA_DESCRIPTOR_FLAG) != 0
+                    || method != ZipEntry.STORED
+                    || compressedSize != size
+                    || dataStart + size > archive.limit()) {
+                return null;
+            }
+
+            byte[] name = new byte[nameLength];
+            ByteBuffer nameBuffer = archive.duplicate();
+            nameBuffer.position(position + LOCAL_HEADER_SIZE);
+            nameBuffer.get(name);
+
+            ByteBuffer content = archive.duplicate();
+            content.position((int) dataStart);
+            content.limit((int) (dataStart + size));
+            dexEntries.add(
+                    new DexArchiveEntry(content, new String(name, StandardCharsets.UTF_8)));
+            position = (int) (dataStart + size);
+        }
+        return dexEntries;
+    }
+
     @Override
     public void close() throws IOException {
         if (jarOutputStream != null) {
@@ -19,8 +19,10 @@ package com.android.builder.internal.aapt;
 import com.android.annotations.NonNull;
 import com.android.builder.png.AaptProcess;
 import com.android.builder.tasks.Job;
+import com.android.builder.tasks.JobQueue;
 import com.android.builder.tasks.QueueThreadContext;
 import com.android.builder.tasks.WorkQueue;
+import com.android.builder.tasks.WorkStealingQueue;
 import com.android.ide.common.internal.ResourceProcessor;
 import com.android.utils.ILogger;
 import java.util.Map;
@@ -42,10 +44,13 @@ public abstract class QueuedResourceProcessor implements ResourceProcessor {
                     MAX_DEFAULT_NUMBER_DAEMON_PROCESSES,
                     Runtime.getRuntime().availableProcessors());
 
+    /** Whether new processors use a {@link WorkStealingQueue} rather than a {@link WorkQueue}. */
+    private static volatile boolean useWorkStealingQueue = false;
+
     @NonNull protected final String aaptLocation;
     @NonNull protected final ILogger logger;
     // Queue responsible for handling all passed jobs with a pool of worker threads.
-    @NonNull protected final WorkQueue<AaptProcess> processingRequests;
+    @NonNull protected final JobQueue<AaptProcess> processingRequests;
     // list of outstanding jobs.
     @NonNull
     protected final Map<Integer, ConcurrentLinkedQueue<Job<AaptProcess>>> outstandingJobs =
@@ -76,9 +81,29 @@ public abstract class QueuedResourceProcessor implements ResourceProcessor {
             processToUse = DEFAULT_NUMBER_DAEMON_PROCESSES;
         }
 
-        processingRequests =
-                new WorkQueue<>(
-                        logger, queueThreadContext, "queued-resource-processor", processToUse, 0);
+        if (useWorkStealingQueue) {
+            processingRequests =
+                    new WorkStealingQueue<>(
+                            logger, queueThreadContext, "queued-resource-processor", processToUse);
+        } else {
+            processingRequests =
+                    new WorkQueue<>(
+                            logger,
+                            queueThreadContext,
+                            "queued-resource-processor",
+                            processToUse,
+                            0);
+        }
+    }
+
+    /**
+     * Sets whether processors created from now on run their jobs on a {@link WorkStealingQueue},
+     * which starts aapt processes as jobs are queued and retires idle ones, instead of a {@link
+     * WorkQueue} with a fixed number of aapt processes. Processors are shared in the JVM, so this
+     * does not affect existing processors.
+     */
+    public static void setUseWorkStealingQueue(boolean useWorkStealingQueue) {
+        QueuedResourceProcessor.useWorkStealingQueue = useWorkStealingQueue;
     }
 
     protected void waitForAll(int key) throws InterruptedException {
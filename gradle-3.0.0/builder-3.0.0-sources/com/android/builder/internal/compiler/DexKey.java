@@ -20,10 +20,9 @@ import com.android.annotations.NonNull;
 import com.android.repository.Revision;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Objects;
+import java.io.DataOutput;
 import java.io.File;
-import org.w3c.dom.Attr;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
+import java.io.IOException;
 
 /**
  * Key to store Item/StoredItem in maps.
@@ -35,10 +34,6 @@ import org.w3c.dom.Node;
  */
 class DexKey extends PreProcessCache.Key {
 
-    protected static final String ATTR_JUMBO_MODE = "jumboMode";
-
-    protected static final String ATTR_OPTIMIZE = "optimize";
-
     private final boolean mJumboMode;
 
     private final boolean mOptimize;
@@ -53,16 +48,10 @@ class DexKey extends PreProcessCache.Key {
         mOptimize = optimize;
     }
 
-    protected void writeFieldsToXml(@NonNull Node itemNode) {
-        Document document = itemNode.getOwnerDocument();
-
-        Attr jumboMode = document.createAttribute(ATTR_JUMBO_MODE);
-        jumboMode.setValue(Boolean.toString(this.mJumboMode));
-        itemNode.getAttributes().setNamedItem(jumboMode);
-
-        Attr optimize = document.createAttribute(ATTR_OPTIMIZE);
-        optimize.setValue(Boolean.toString(this.mOptimize));
-        itemNode.getAttributes().setNamedItem(optimize);
+    @Override
+    protected void writeFields(@NonNull DataOutput output) throws IOException {
+        output.writeBoolean(mJumboMode);
+        output.writeBoolean(mOptimize);
     }
 
     @Override
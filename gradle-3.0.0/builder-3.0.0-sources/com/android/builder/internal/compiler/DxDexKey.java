@@ -19,17 +19,14 @@ package com.android.builder.internal.compiler;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.repository.Revision;
-import com.google.common.base.Joiner;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Objects;
-import com.google.common.base.Splitter;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+import java.io.DataOutput;
 import java.io.File;
+import java.io.IOException;
 import java.util.List;
-import org.w3c.dom.Attr;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
 
 /**
  * Key to store the dexed items. This is dx tool specific key, and in addition to
@@ -39,12 +36,6 @@ import org.w3c.dom.Node;
  */
 final class DxDexKey extends DexKey {
 
-    private static final char ADDITIONAL_PARAMETERS_SEPARATOR = ',';
-    private static final String ATTR_ADDITIONAL_PARAMETERS = "custom-flags";
-
-    private static final String ATTR_IS_MULTIDEX = "is-multidex";
-    private static final String ATTR_MIN_SDK_VERSION = "min-sdk-version";
-
     @NonNull private final ImmutableSortedSet<String> additionalParameters;
     @Nullable private Integer minSdkVersion;
     @Nullable private Boolean isMultiDex;
@@ -82,41 +73,26 @@ final class DxDexKey extends DexKey {
     }
 
     static final PreProcessCache.KeyFactory<DxDexKey> FACTORY =
-            (sourceFile, revision, attrMap) -> {
-                boolean jumboMode =
-                        Boolean.parseBoolean(attrMap.getNamedItem(ATTR_JUMBO_MODE).getNodeValue());
-
-                boolean optimize;
-                Node optimizeAttribute = attrMap.getNamedItem(ATTR_OPTIMIZE);
-
-                //noinspection SimplifiableIfStatement
-                if (optimizeAttribute != null) {
-                    optimize = Boolean.parseBoolean(optimizeAttribute.getNodeValue());
-                } else {
-                    // Old code didn't set this attribute and always used optimizations.
-                    optimize = true;
-                }
-
-                List<String> additionalParameters = ImmutableList.of();
-                Node additionalParametersAttribute =
-                        attrMap.getNamedItem(ATTR_ADDITIONAL_PARAMETERS);
-                if (additionalParametersAttribute != null) {
-                    additionalParameters =
-                            Splitter.on(ADDITIONAL_PARAMETERS_SEPARATOR)
-                                    .omitEmptyStrings()
-                                    .splitToList(additionalParametersAttribute.getNodeValue());
+            (sourceFile, revision, input) -> {
+                // Fields written by DexKey.writeFields
+                boolean jumboMode = input.readBoolean();
+                boolean optimize = input.readBoolean();
+
+                int additionalParameterCount = input.readInt();
+                List<String> additionalParameters =
+                        Lists.newArrayListWithCapacity(additionalParameterCount);
+                for (int i = 0; i < additionalParameterCount; i++) {
+                    additionalParameters.add(input.readUTF());
                 }
 
                 Boolean isMultiDex = null;
-                Node multiDexAttr = attrMap.getNamedItem(ATTR_IS_MULTIDEX);
-                if (multiDexAttr != null) {
-                    isMultiDex = Boolean.parseBoolean(multiDexAttr.getNodeValue());
+                if (input.readBoolean()) {
+                    isMultiDex = input.readBoolean();
                 }
 
                 Integer minSdkVersion = null;
-                Node minSdkVersionAttr = attrMap.getNamedItem(ATTR_MIN_SDK_VERSION);
-                if (minSdkVersionAttr != null) {
-                    minSdkVersion = Integer.parseInt(minSdkVersionAttr.getNodeValue());
+                if (input.readBoolean()) {
+                    minSdkVersion = input.readInt();
                 }
 
                 return DxDexKey.of(
@@ -130,27 +106,22 @@ final class DxDexKey extends DexKey {
             };
 
     @Override
-    protected void writeFieldsToXml(@NonNull Node itemNode) {
-        super.writeFieldsToXml(itemNode);
-
-        Document document = itemNode.getOwnerDocument();
-        if (!additionalParameters.isEmpty()) {
-            Attr additionalParameters = document.createAttribute(ATTR_ADDITIONAL_PARAMETERS);
-            additionalParameters.setValue(
-                    Joiner.on(ADDITIONAL_PARAMETERS_SEPARATOR).join(this.additionalParameters));
-            itemNode.getAttributes().setNamedItem(additionalParameters);
+    protected void writeFields(@NonNull DataOutput output) throws IOException {
+        super.writeFields(output);
+
+        output.writeInt(additionalParameters.size());
+        for (String additionalParameter : additionalParameters) {
+            output.writeUTF(additionalParameter);
         }
 
+        output.writeBoolean(isMultiDex != null);
         if (isMultiDex != null) {
-            Attr multiDexAttr = document.createAttribute(ATTR_IS_MULTIDEX);
-            multiDexAttr.setValue(Boolean.toString(isMultiDex));
-            itemNode.getAttributes().setNamedItem(multiDexAttr);
+            output.writeBoolean(isMultiDex);
         }
 
+        output.writeBoolean(minSdkVersion != null);
         if (minSdkVersion != null) {
-            Attr minSdkVersionAttr = document.createAttribute(ATTR_MIN_SDK_VERSION);
-            minSdkVersionAttr.setValue(Integer.toString(minSdkVersion));
-            itemNode.getAttributes().setNamedItem(minSdkVersionAttr);
+            output.writeInt(minSdkVersion);
         }
     }
 
@@ -19,7 +19,6 @@ package com.android.builder.internal.compiler;
 import static com.google.common.base.Preconditions.checkState;
 
 import com.android.annotations.NonNull;
-import com.android.annotations.Nullable;
 import com.android.builder.core.AndroidBuilder;
 import com.android.builder.core.DexOptions;
 import com.android.ide.common.process.ProcessException;
@@ -32,8 +31,6 @@ import java.io.File;
 import java.io.IOException;
 import java.util.List;
 import java.util.logging.Logger;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
 
 /**
  * Pre Dexing cache.
@@ -187,21 +184,6 @@ public class PreDexCache extends PreProcessCache<DxDexKey> {
         return false;
     }
 
-    @Nullable
-    @Override
-    protected Node createItemNode(
-            @NonNull Document document,
-            @NonNull DxDexKey itemKey,
-            @NonNull BaseItem item) throws IOException {
-        Node itemNode = super.createItemNode(document, itemKey, item);
-
-        if (itemNode != null) {
-            itemKey.writeFieldsToXml(itemNode);
-        }
-
-        return itemNode;
-    }
-
     private static void checkSame(@NonNull File source, @NonNull File dest) {
         if (source.equals(dest)) {
             Logger.getAnonymousLogger().info(
@@ -21,47 +21,73 @@ import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
 import com.android.annotations.concurrency.GuardedBy;
 import com.android.annotations.concurrency.Immutable;
-import com.android.ide.common.xml.XmlPrettyPrinter;
+import com.android.builder.utils.FileHasher;
+import com.android.builder.utils.FileHashers;
 import com.android.repository.Revision;
 import com.android.utils.FileUtils;
 import com.android.utils.ILogger;
 import com.android.utils.Pair;
-import com.android.utils.XmlUtils;
-import com.google.common.base.Charsets;
 import com.google.common.base.Objects;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 import com.google.common.hash.HashCode;
-import com.google.common.hash.Hashing;
-import com.google.common.io.Files;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import org.w3c.dom.Attr;
-import org.w3c.dom.Document;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Cache of the outputs of processing jar files, e.g. pre-dexing them.
+ *
+ * <p>The items processed in a build are stored in an append-only binary log, so that they can be
+ * reused by later builds. Each build appends records for the items that it added or that became
+ * invalid, rather than rewriting all the items, and the log is compacted once most of its records
+ * have been superseded. The stored items are kept in memory between builds of the same JVM, and
+ * loading them again only reads the records appended since they were last read.
+ *
+ * <p>The log starts with a header (magic number, version, name of the hash function of the source
+ * files), followed by length-prefixed records that each put or remove one item.
+ */
 abstract class PreProcessCache<T extends PreProcessCache.Key> {
 
-    private static final String NODE_ITEMS = "items";
-    private static final String NODE_ITEM = "item";
-    private static final String NODE_DEX = "dex";
-    private static final String ATTR_VERSION = "version";
-    private static final String ATTR_JAR = "jar";
-    private static final String ATTR_DEX = "dex";
-    private static final String ATTR_SHA1 = "sha1";
-    private static final String ATTR_REVISION = "revision";
+    private static final int LOG_MAGIC = 0x50504331; // "PPC1"
+    private static final int LOG_VERSION = 1;
+
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
 
-    private static final String XML_VERSION = "2";
+    /** The log is compacted once it has at least this many records... */
+    @VisibleForTesting static final int COMPACTION_MIN_RECORDS = 1000;
+
+    /** ...and at least this many times as many records as stored items. */
+    @VisibleForTesting static final int COMPACTION_RECORDS_PER_ITEM = 2;
+
+    /** Records larger than this are assumed to be the result of a corrupted log. */
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    /** The hasher used for the stored items' hashes when none is configured. */
+    private static final FileHasher DEFAULT_HASHER = FileHashers.SHA1;
 
     interface BaseItem {
         @NonNull
@@ -86,15 +112,19 @@ abstract class PreProcessCache<T extends PreProcessCache.Key> {
         private final File mSourceFile;
         @NonNull
         private final List<File> mOutputFiles;
+        @Nullable
+        private final HashCode mSourceHash;
         @NonNull
         private final CountDownLatch mLatch;
 
         Item(
                 @NonNull File sourceFile,
                 @NonNull List<File> outputFiles,
+                @Nullable HashCode sourceHash,
                 @NonNull CountDownLatch latch) {
             mSourceFile = sourceFile;
             mOutputFiles = Lists.newArrayList(outputFiles);
+            mSourceHash = sourceHash;
             mLatch = latch;
         }
 
@@ -103,6 +133,7 @@ abstract class PreProcessCache<T extends PreProcessCache.Key> {
                 @NonNull CountDownLatch latch) {
             mSourceFile = sourceFile;
             mOutputFiles = Lists.newArrayList();
+            mSourceHash = null;
             mLatch = latch;
         }
 
@@ -118,10 +149,14 @@ abstract class PreProcessCache<T extends PreProcessCache.Key> {
             return mOutputFiles;
         }
 
+        /**
+         * Returns the hash of the source file if this item was reused from a stored item, or null
+         * if the source file was processed during this build.
+         */
         @Nullable
         @Override
         public HashCode getSourceHash() {
-            return null;
+            return mSourceHash;
         }
 
         @NonNull
@@ -239,6 +274,12 @@ abstract class PreProcessCache<T extends PreProcessCache.Key> {
             return mSourceFile;
         }
 
+        /**
+         * Writes the fields of subclasses to the item storage, to be read back by their {@link
+         * KeyFactory}. The source file and the build tools revision are written by the cache.
+         */
+        protected void writeFields(@NonNull DataOutput output) throws IOException {}
+
         @SuppressWarnings("RedundantIfStatement")
         @Override
         public boolean equals(Object o) {
@@ -268,21 +309,54 @@ abstract class PreProcessCache<T extends PreProcessCache.Key> {
     }
 
     interface KeyFactory<T> {
-        T of(@NonNull File sourceFile, @NonNull Revision revision, @NonNull NamedNodeMap attrMap);
+        T of(@NonNull File sourceFile, @NonNull Revision revision, @NonNull DataInput input)
+                throws IOException;
     }
 
     @GuardedBy("this")
     private boolean mLoaded = false;
 
+    /** The items used during the current build. */
+    @NonNull private final ConcurrentMap<T, Item> mMap = new ConcurrentHashMap<>();
+
+    /** The items of the item storage, as of when it was last read or written. */
+    @NonNull private final ConcurrentMap<T, StoredItem> mStoredItems = new ConcurrentHashMap<>();
+
+    /** The item storage that {@link #mStoredItems} were read from, or null if none was read. */
     @GuardedBy("this")
-    private final Map<T, Item> mMap = Maps.newHashMap();
+    @Nullable
+    private File mLogFile;
+
+    /**
+     * The {@link BasicFileAttributes#fileKey()} of {@link #mLogFile}, used to detect that it was
+     * replaced by another process.
+     */
     @GuardedBy("this")
-    private final Map<T, StoredItem> mStoredItems = Maps.newHashMap();
+    @Nullable
+    private Object mLogFileKey;
 
+    /**
+     * The timestamp of {@link #mLogFile} when it was last read or written, used instead of {@link
+     * #mLogFileKey} on file systems without file keys.
+     */
     @GuardedBy("this")
-    private int mMisses = 0;
+    private long mLogLastModified;
+
+    /** The number of bytes of {@link #mLogFile} that have been read or written. */
     @GuardedBy("this")
-    private int mHits = 0;
+    private long mLogLength;
+
+    /** The number of records in {@link #mLogFile}. */
+    @GuardedBy("this")
+    private int mLogRecordCount;
+
+    /** The name of the hash function of the {@link #mStoredItems}' hashes. */
+    @GuardedBy("this")
+    @Nullable
+    private String mLogHashFunction;
+
+    @NonNull private final AtomicInteger mMisses = new AtomicInteger();
+    @NonNull private final AtomicInteger mHits = new AtomicInteger();
 
     @NonNull
     protected abstract KeyFactory<T> getKeyFactory();
@@ -306,7 +380,7 @@ abstract class PreProcessCache<T extends PreProcessCache.Key> {
      * This can happen when the generated files was removed by an external event.
      * @param itemKey the key of the item to re-generate
      */
-    synchronized Pair<Item, Boolean> regenerateItem(@NonNull ILogger logger, @NonNull T itemKey) {
+    Pair<Item, Boolean> regenerateItem(@NonNull ILogger logger, @NonNull T itemKey) {
         mMap.remove(itemKey);
         return getItem(logger, itemKey);
     }
@@ -318,7 +392,7 @@ abstract class PreProcessCache<T extends PreProcessCache.Key> {
      * @param itemKey the key of the item
      * @return a pair of item, boolean
      */
-    synchronized Pair<Item, Boolean> getItem(@NonNull ILogger logger, @NonNull T itemKey) {
+    Pair<Item, Boolean> getItem(@NonNull ILogger logger, @NonNull T itemKey) {
 
         File inputFile = itemKey.getSourceFile();
         if (inputFile.isDirectory()) {
@@ -328,59 +402,96 @@ abstract class PreProcessCache<T extends PreProcessCache.Key> {
 
         // get the item
         Item item = mMap.get(itemKey);
+        if (item != null) {
+            return Pair.of(item, false);
+        }
 
-        boolean newItem = false;
-
-        if (item == null) {
-            // check if we have a stored version.
-            StoredItem storedItem = mStoredItems.get(itemKey);
-
-            logger.verbose("StoredItem is %1$s", storedItem);
-
-            if (storedItem != null) {
-                // check the sha1 is still valid, and the pre-dex files are still there.
-                HashCode hash = getHash(inputFile);
-                logger.verbose("Hash for %1$s is %2$s", inputFile.getAbsolutePath(), hash);
-                if (storedItem.areOutputFilesPresent() &&
-                        storedItem.getSourceHash().equals(hash)) {
-
-                    logger.verbose("Cached result for getItem(" + inputFile + "): "
-                            + storedItem.getOutputFiles());
-                    for (File f : storedItem.getOutputFiles()) {
-                        logger.verbose(
-                                String.format("%s l:%d ts:%d", f, f.length(), f.lastModified()));
-                    }
-
-                    // create an item where the outFile is the one stored since it
-                    // represent the pre-dexed library already.
-                    // Next time this lib needs to be pre-dexed, we'll use the item
-                    // rather than the stored item, allowing us to not compute the sha1 again.
-                    // Use a 0-count latch since there is nothing to do.
-                    item = new Item(inputFile, storedItem.getOutputFiles(), new CountDownLatch(0));
-                }
-            }
+        // Hashing the source file takes a while for large libraries, so it is done before
+        // computeIfAbsent, which blocks the other threads calling it for keys in the same bin of
+        // the map. Threads racing on the same key may both hash it, but only one item is kept.
+        Item reusedItem = reuseStoredItem(logger, itemKey);
+        boolean[] newItem = {false};
+        item =
+                mMap.computeIfAbsent(
+                        itemKey,
+                        key -> {
+                            if (reusedItem != null) {
+                                return reusedItem;
+                            }
+
+                            // if we didn't find a valid stored item, create a new one.
+                            newItem[0] = true;
+                            return new Item(inputFile, new CountDownLatch(1));
+                        });
+
+        return Pair.of(item, newItem[0]);
+    }
 
-            // if we didn't find a valid stored item, create a new one.
-            if (item == null) {
-                item = new Item(inputFile, new CountDownLatch(1));
-                newItem = true;
-            }
-            mMap.put(itemKey, item);
+    /**
+     * Returns an item for the outputs of the stored item of the given key if the source file has
+     * not changed and the outputs are still there, or null otherwise.
+     */
+    @Nullable
+    private Item reuseStoredItem(@NonNull ILogger logger, @NonNull T itemKey) {
+        File inputFile = itemKey.getSourceFile();
+
+        // check if we have a stored version.
+        StoredItem storedItem = mStoredItems.get(itemKey);
+
+        logger.verbose("StoredItem is %1$s", storedItem);
+
+        if (storedItem == null) {
+            return null;
+        }
+
+        // check the hash is still valid, and the pre-dex files are still there.
+        HashCode hash = getHash(inputFile);
+        logger.verbose("Hash for %1$s is %2$s", inputFile.getAbsolutePath(), hash);
+        if (!storedItem.areOutputFilesPresent() || !storedItem.getSourceHash().equals(hash)) {
+            return null;
         }
 
-        return Pair.of(item, newItem);
+        logger.verbose("Cached result for getItem(" + inputFile + "): "
+                + storedItem.getOutputFiles());
+        for (File f : storedItem.getOutputFiles()) {
+            logger.verbose(String.format("%s l:%d ts:%d", f, f.length(), f.lastModified()));
+        }
+
+        // create an item where the outFile is the one stored since it
+        // represent the pre-dexed library already.
+        // Next time this lib needs to be pre-dexed, we'll use the item
+        // rather than the stored item, allowing us to not compute the hash again.
+        // Use a 0-count latch since there is nothing to do.
+        return new Item(
+                inputFile, storedItem.getOutputFiles(), storedItem.getSourceHash(),
+                new CountDownLatch(0));
     }
 
     @Nullable
     private static HashCode getHash(@NonNull File file) {
         try {
-            return Files.hash(file, Hashing.sha1());
+            return getHasher().hash(file);
         } catch (IOException ignored) {
         }
 
         return null;
     }
 
+    /**
+     * Returns the hasher for the source files, which is SHA-1 unless another hasher has been
+     * configured via {@link FileHashers#configure}.
+     */
+    @NonNull
+    private static FileHasher getHasher() {
+        return FileHashers.getHasherForCaches(DEFAULT_HASHER);
+    }
+
+    /**
+     * Saves the items of the current build to the given item storage, and clears them.
+     *
+     * <p>The stored items remain in memory, so that the next call to {@link #load} only needs to
+     * read what other processes have appended to the item storage in the meantime.
+     */
     public synchronized void clear(@Nullable File itemStorage, @Nullable ILogger logger) throws
             IOException {
         if (!mMap.isEmpty()) {
@@ -389,207 +500,329 @@ abstract class PreProcessCache<T extends PreProcessCache.Key> {
             }
 
             if (logger != null) {
-                logger.verbose("PREDEX CACHE HITS:   %1$d", mHits);
-                logger.verbose("PREDEX CACHE MISSES: %1$d", mMisses);
+                logger.verbose("PREDEX CACHE HITS:   %1$d", mHits.get());
+                logger.verbose("PREDEX CACHE MISSES: %1$d", mMisses.get());
             }
         }
 
         mMap.clear();
-        mStoredItems.clear();
-        mHits = 0;
-        mMisses = 0;
+        mHits.set(0);
+        mMisses.set(0);
         mLoaded = false;
     }
 
     private synchronized void loadItems(@NonNull File itemStorage) {
+        if (!getHasher().getName().equals(mLogHashFunction)) {
+            // The stored hashes can only be compared with hashes computed by the same hasher
+            resetStoredItems();
+        }
+
         if (!itemStorage.isFile()) {
+            resetStoredItems();
             return;
         }
 
-        try {
-            Document document = XmlUtils.parseUtfXmlFile(itemStorage, true);
-
-            // get the root node
-            Node rootNode = document.getDocumentElement();
-            if (rootNode == null || !NODE_ITEMS.equals(rootNode.getLocalName())) {
-                return;
+        try (FileChannel channel = FileChannel.open(itemStorage.toPath(), StandardOpenOption.READ)) {
+            if (!isSameLog(itemStorage, channel.size())) {
+                resetStoredItems();
+                mLogFile = itemStorage;
+                mLogFileKey = getFileKey(itemStorage);
+
+                DataInputStream input = new DataInputStream(Channels.newInputStream(channel));
+                if (input.readInt() != LOG_MAGIC
+                        || input.readInt() != LOG_VERSION
+                        || !getHasher().getName().equals(input.readUTF())) {
+                    // An old or incompatible item storage, which will be replaced when saving
+                    resetStoredItems();
+                    return;
+                }
+                mLogLength = channel.position();
+                mLogHashFunction = getHasher().getName();
             }
 
+            // Only read the records that were appended since the log was last read or written
+            channel.position(mLogLength);
+            readRecords(new BufferedInputStream(Channels.newInputStream(channel)));
+            mLogLastModified = itemStorage.lastModified();
+        } catch (Exception ignored) {
+            // if we fail to read parts or any of the file, all it'll do is fail to reuse an
+            // already pre-dexed library, so that's not a super big deal.
+        }
+    }
 
-            // check the version of the XML
-            NamedNodeMap rootAttrMap = rootNode.getAttributes();
-            Node versionAttr = rootAttrMap.getNamedItem(ATTR_VERSION);
-            if (versionAttr == null || !XML_VERSION.equals(versionAttr.getNodeValue())) {
+    /**
+     * Reads the records of the given stream into {@link #mStoredItems}, stopping at the end of the
+     * stream or at an incomplete record (e.g., if a process was killed while appending to the
+     * log).
+     */
+    private void readRecords(@NonNull InputStream stream) throws IOException {
+        DataInputStream input = new DataInputStream(stream);
+        while (true) {
+            byte[] record;
+            try {
+                int recordSize = input.readInt();
+                if (recordSize < 0 || recordSize > MAX_RECORD_SIZE) {
+                    return;
+                }
+                record = new byte[recordSize];
+                input.readFully(record);
+            } catch (EOFException e) {
                 return;
             }
 
-            NodeList nodes = rootNode.getChildNodes();
-
-            for (int i = 0, n = nodes.getLength(); i < n; i++) {
-                Node node = nodes.item(i);
-
-                if (node.getNodeType() != Node.ELEMENT_NODE ||
-                        !NODE_ITEM.equals(node.getLocalName())) {
-                    continue;
+            DataInputStream recordInput = new DataInputStream(new ByteArrayInputStream(record));
+            byte type = recordInput.readByte();
+            File sourceFile = new File(recordInput.readUTF());
+            Revision revision = Revision.parseRevision(recordInput.readUTF());
+            T key = getKeyFactory().of(sourceFile, revision, recordInput);
+            if (type == RECORD_PUT) {
+                byte[] hash = new byte[recordInput.readUnsignedByte()];
+                recordInput.readFully(hash);
+                int outputFileCount = recordInput.readInt();
+                List<File> outputFiles = Lists.newArrayListWithCapacity(outputFileCount);
+                for (int i = 0; i < outputFileCount; i++) {
+                    outputFiles.add(new File(recordInput.readUTF()));
                 }
+                mStoredItems.put(
+                        key, new StoredItem(sourceFile, outputFiles, HashCode.fromBytes(hash)));
+            } else {
+                mStoredItems.remove(key);
+            }
 
-                NamedNodeMap attrMap = node.getAttributes();
+            mLogLength += Integer.BYTES + record.length;
+            mLogRecordCount++;
+        }
+    }
 
-                File sourceFile = new File(attrMap.getNamedItem(ATTR_JAR).getNodeValue());
-                Revision revision = Revision.parseRevision(attrMap.getNamedItem(
-                        ATTR_REVISION).getNodeValue());
+    private synchronized void saveItems(@NonNull File itemStorage) throws IOException {
+        if (!itemStorage.equals(mLogFile)) {
+            // Only append to the item storage that the stored items were read from
+            resetStoredItems();
+        }
 
-                List<File> outputFiles = Lists.newArrayList();
-                NodeList dexNodes = node.getChildNodes();
-                for (int j = 0, m = dexNodes.getLength(); j < m; j++) {
-                    Node dexNode = dexNodes.item(j);
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        int recordCount = 0;
 
-                    if (dexNode.getNodeType() != Node.ELEMENT_NODE ||
-                            !NODE_DEX.equals(dexNode.getLocalName())) {
-                        continue;
-                    }
+        for (Map.Entry<T, Item> entry : mMap.entrySet()) {
+            T key = entry.getKey();
+            Item item = entry.getValue();
+            StoredItem storedItem = mStoredItems.get(key);
 
-                    NamedNodeMap dexAttrMap = dexNode.getAttributes();
-                    outputFiles.add(new File(dexAttrMap.getNamedItem(ATTR_DEX).getNodeValue()));
+            StoredItem newStoredItem = null;
+            if (item.areOutputFilesPresent()) {
+                // Items reused from the stored items have not changed
+                if (item.getSourceHash() != null && storedItem != null) {
+                    continue;
+                }
+                HashCode hashCode = item.getSourceHash();
+                if (hashCode == null) {
+                    hashCode = getHash(item.getSourceFile());
                 }
+                if (hashCode != null) {
+                    newStoredItem =
+                            new StoredItem(item.getSourceFile(), item.getOutputFiles(), hashCode);
+                }
+            }
 
-                StoredItem item = new StoredItem(
-                        sourceFile,
-                        outputFiles,
-                        HashCode.fromString(attrMap.getNamedItem(ATTR_SHA1).getNodeValue()));
+            if (newStoredItem != null) {
+                writeRecord(records, RECORD_PUT, key, newStoredItem);
+                mStoredItems.put(key, newStoredItem);
+                recordCount++;
+            } else if (storedItem != null) {
+                writeRecord(records, RECORD_REMOVE, key, null);
+                mStoredItems.remove(key);
+                recordCount++;
+            }
+        }
 
-                T key = getKeyFactory().of(sourceFile, revision, attrMap);
+        // check that the source files still exist in order to avoid
+        // storing libraries that are gone.
+        for (Map.Entry<T, StoredItem> entry : mStoredItems.entrySet()) {
+            StoredItem storedItem = entry.getValue();
+            if (!mMap.containsKey(entry.getKey())
+                    && (!storedItem.getSourceFile().isFile()
+                            || !storedItem.areOutputFilesPresent())) {
+                writeRecord(records, RECORD_REMOVE, entry.getKey(), null);
+                mStoredItems.remove(entry.getKey());
+                recordCount++;
+            }
+        }
 
-                mStoredItems.put(key, item);
+        FileUtils.mkdirs(itemStorage.getParentFile());
+
+        // Processes append to and compact the log under a lock on a sibling file rather than on
+        // the log itself, since compacting replaces the log with a new file.
+        File lockFile = new File(itemStorage.getParentFile(), itemStorage.getName() + ".lock");
+        try (FileChannel lockChannel =
+                        FileChannel.open(
+                                lockFile.toPath(),
+                                StandardOpenOption.CREATE,
+                                StandardOpenOption.WRITE);
+                FileLock ignored = lockChannel.lock()) {
+            int totalRecordCount = mLogRecordCount + recordCount;
+            if (mLogFile == null
+                    || !itemStorage.isFile()
+                    || (totalRecordCount >= COMPACTION_MIN_RECORDS
+                            && totalRecordCount
+                                    >= COMPACTION_RECORDS_PER_ITEM * mStoredItems.size())) {
+                compact(itemStorage);
+            } else if (recordCount > 0) {
+                append(itemStorage, records.toByteArray(), recordCount);
             }
-        } catch (Exception ignored) {
-            // if we fail to read parts or any of the file, all it'll do is fail to reuse an
-            // already pre-dexed library, so that's not a super big deal.
         }
     }
 
-    private synchronized void saveItems(@NonNull File itemStorage) throws IOException {
-        // write "compact" blob
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        factory.setNamespaceAware(true);
-        factory.setValidating(false);
-        factory.setIgnoringComments(true);
-        DocumentBuilder builder;
+    /**
+     * Appends the given records to the item storage. Must be called with the log lock held.
+     */
+    private void append(@NonNull File itemStorage, @NonNull byte[] records, int recordCount)
+            throws IOException {
+        long size = itemStorage.length();
+        if (size != mLogLength || !isSameLog(itemStorage, size)) {
+            // Another process appended to or replaced the log, rewrite it from what we know
+            compact(itemStorage);
+            return;
+        }
 
-        try {
-            builder = factory.newDocumentBuilder();
-            Document document = builder.newDocument();
-
-            Node rootNode = document.createElement(NODE_ITEMS);
-            document.appendChild(rootNode);
-
-            // Set the version
-            Attr attr = document.createAttribute(ATTR_VERSION);
-            attr.setValue(XML_VERSION);
-            rootNode.getAttributes().setNamedItem(attr);
-
-            Set<T> keys = Sets.newHashSetWithExpectedSize(mMap.size() + mStoredItems.size());
-            keys.addAll(mMap.keySet());
-            keys.addAll(mStoredItems.keySet());
-
-            for (T key : keys) {
-                Item item = mMap.get(key);
-
-                if (item != null) {
-
-                    Node itemNode = createItemNode(document,
-                            key,
-                            item);
-                    if (itemNode != null) {
-                        rootNode.appendChild(itemNode);
-                    }
-
-                } else {
-                    StoredItem storedItem = mStoredItems.get(key);
-                    // check that the source file still exists in order to avoid
-                    // storing libraries that are gone.
-                    if (storedItem != null &&
-                            storedItem.getSourceFile().isFile() &&
-                            storedItem.areOutputFilesPresent()) {
-                        Node itemNode = createItemNode(document,
-                                key,
-                                storedItem);
-                        if (itemNode != null) {
-                            rootNode.appendChild(itemNode);
-                        }
-                    }
-                }
+        try (FileChannel channel =
+                FileChannel.open(
+                        itemStorage.toPath(),
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(records);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
             }
-
-            String content = XmlPrettyPrinter.prettyPrint(document, true);
-
-            FileUtils.mkdirs(itemStorage.getParentFile());
-            Files.write(content, itemStorage, Charsets.UTF_8);
-        } catch (ParserConfigurationException ignored) {
         }
+        mLogLength += records.length;
+        mLogRecordCount += recordCount;
+        mLogLastModified = itemStorage.lastModified();
     }
 
-    @Nullable
-    protected Node createItemNode(
-            @NonNull Document document,
-            @NonNull T itemKey,
-            @NonNull BaseItem item) throws IOException {
-        if (!item.areOutputFilesPresent()) {
-            return null;
+    /**
+     * Replaces the item storage with a log that only contains the current stored items. Must be
+     * called with the log lock held.
+     */
+    private void compact(@NonNull File itemStorage) throws IOException {
+        String hashFunction = getHasher().getName();
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(log);
+        header.writeInt(LOG_MAGIC);
+        header.writeInt(LOG_VERSION);
+        header.writeUTF(hashFunction);
+        for (Map.Entry<T, StoredItem> entry : mStoredItems.entrySet()) {
+            writeRecord(log, RECORD_PUT, entry.getKey(), entry.getValue());
         }
 
-        Node itemNode = document.createElement(NODE_ITEM);
-
-        Attr attr = document.createAttribute(ATTR_JAR);
-        attr.setValue(item.getSourceFile().getPath());
-        itemNode.getAttributes().setNamedItem(attr);
+        // Replace the log in one step, so that other processes never read a partial log
+        Path tempFile =
+                Files.createTempFile(
+                        itemStorage.getParentFile().toPath(), itemStorage.getName(), ".tmp");
+        try {
+            Files.write(tempFile, log.toByteArray());
+            Files.move(
+                    tempFile,
+                    itemStorage.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
 
-        attr = document.createAttribute(ATTR_REVISION);
-        attr.setValue(itemKey.getBuildToolsRevision().toString());
-        itemNode.getAttributes().setNamedItem(attr);
+        mLogFile = itemStorage;
+        mLogFileKey = getFileKey(itemStorage);
+        mLogLastModified = itemStorage.lastModified();
+        mLogLength = log.size();
+        mLogRecordCount = mStoredItems.size();
+        mLogHashFunction = hashFunction;
+    }
 
-        HashCode hashCode = item.getSourceHash();
-        if (hashCode == null) {
-            try {
-                hashCode = Files.hash(item.getSourceFile(), Hashing.sha1());
-            } catch (IOException ex) {
-                // If we can't compute the hash for whatever reason, simply skip this entry.
-                return null;
+    /** Writes a length-prefixed record to put or remove the item of the given key. */
+    private static <T extends Key> void writeRecord(
+            @NonNull ByteArrayOutputStream records,
+            byte type,
+            @NonNull T key,
+            @Nullable StoredItem item)
+            throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(record);
+        output.writeByte(type);
+        output.writeUTF(key.getSourceFile().getPath());
+        output.writeUTF(key.getBuildToolsRevision().toString());
+        key.writeFields(output);
+        if (item != null) {
+            byte[] hash = item.getSourceHash().asBytes();
+            output.writeByte(hash.length);
+            output.write(hash);
+            output.writeInt(item.getOutputFiles().size());
+            for (File outputFile : item.getOutputFiles()) {
+                output.writeUTF(outputFile.getPath());
             }
         }
-        attr = document.createAttribute(ATTR_SHA1);
-        attr.setValue(hashCode.toString());
-        itemNode.getAttributes().setNamedItem(attr);
+        output.flush();
 
-        for (File dexFile : item.getOutputFiles()) {
+        DataOutputStream recordsOutput = new DataOutputStream(records);
+        recordsOutput.writeInt(record.size());
+        record.writeTo(recordsOutput);
+        recordsOutput.flush();
+    }
 
-            Node dexNode = document.createElement(NODE_DEX);
-            itemNode.appendChild(dexNode);
+    private void resetStoredItems() {
+        mStoredItems.clear();
+        mLogFile = null;
+        mLogFileKey = null;
+        mLogLastModified = 0;
+        mLogLength = 0;
+        mLogRecordCount = 0;
+        mLogHashFunction = null;
+    }
 
-            attr = document.createAttribute(ATTR_DEX);
-            attr.setValue(dexFile.getPath());
-            dexNode.getAttributes().setNamedItem(attr);
+    /**
+     * Returns whether the item storage, which is {@code size} bytes long, is still the log that
+     * was last read or written, possibly with records appended by other processes.
+     *
+     * <p>File systems without file keys (e.g., NTFS) cannot tell a log replaced by another process
+     * apart from one it appended to, so there the log is only the same if its size and timestamp
+     * have not changed at all.
+     */
+    private boolean isSameLog(@NonNull File itemStorage, long size) {
+        if (!itemStorage.equals(mLogFile)) {
+            return false;
+        }
+        Object fileKey = getFileKey(itemStorage);
+        if (fileKey != null) {
+            return fileKey.equals(mLogFileKey) && size >= mLogLength;
         }
+        return mLogFileKey == null
+                && size == mLogLength
+                && itemStorage.lastModified() == mLogLastModified;
+    }
 
-        return itemNode;
+    @Nullable
+    private static Object getFileKey(@NonNull File file) {
+        try {
+            return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+        } catch (IOException e) {
+            return null;
+        }
     }
 
-    synchronized void incrementMisses() {
-        mMisses++;
+    void incrementMisses() {
+        mMisses.incrementAndGet();
     }
 
-    synchronized void incrementHits() {
-        mHits++;
+    void incrementHits() {
+        mHits.incrementAndGet();
     }
 
     @VisibleForTesting
-    /*package*/ synchronized int getMisses() {
-        return mMisses;
+    /*package*/ int getMisses() {
+        return mMisses.get();
     }
 
     @VisibleForTesting
-    /*package*/ synchronized int getHits() {
-        return mHits;
+    /*package*/ int getHits() {
+        return mHits.get();
     }
 
 }
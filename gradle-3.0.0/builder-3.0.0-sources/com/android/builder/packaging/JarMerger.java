@@ -19,21 +19,29 @@ package com.android.builder.packaging;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.utils.PathUtils;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.jar.JarEntry;
 import java.util.jar.JarOutputStream;
+import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -53,11 +61,29 @@ public class JarMerger implements Closeable {
         InputStream filter(@NonNull String entryPath, @NonNull InputStream input);
     }
 
+    /** How the entries of the merged jar are written. */
+    public enum MergeMode {
+        /** All entries are decompressed and compressed again through a {@link JarOutputStream}. */
+        RECOMPRESS,
+        /**
+         * Entries of jars are copied without decompressing them, and the files of directories
+         * are compressed in parallel, then written in sorted order.
+         */
+        COPY_COMPRESSED,
+    }
+
     public static final FileTime ZERO_TIME = FileTime.fromMillis(0);
 
+    /** Number of files of a directory that are compressed in parallel, then written. */
+    private static final int PARALLEL_COMPRESSION_BATCH_SIZE = 512;
+
     private final byte[] buffer = new byte[8192];
 
-    @NonNull private final JarOutputStream jarOutputStream;
+    /** The output in {@link MergeMode#RECOMPRESS} mode. */
+    @Nullable private final JarOutputStream jarOutputStream;
+
+    /** The output in {@link MergeMode#COPY_COMPRESSED} mode. */
+    @Nullable private final RawZipWriter rawZipWriter;
 
     @Nullable private final ZipEntryFilter filter;
 
@@ -66,10 +92,22 @@ public class JarMerger implements Closeable {
     }
 
     public JarMerger(@NonNull Path jarFile, @Nullable ZipEntryFilter filter) throws IOException {
+        this(jarFile, filter, MergeMode.RECOMPRESS);
+    }
+
+    public JarMerger(
+            @NonNull Path jarFile, @Nullable ZipEntryFilter filter, @NonNull MergeMode mergeMode)
+            throws IOException {
         this.filter = filter;
         Files.createDirectories(jarFile.getParent());
-        jarOutputStream =
-                new JarOutputStream(new BufferedOutputStream(Files.newOutputStream(jarFile)));
+        if (mergeMode == MergeMode.COPY_COMPRESSED) {
+            jarOutputStream = null;
+            rawZipWriter = new RawZipWriter(jarFile);
+        } else {
+            jarOutputStream =
+                    new JarOutputStream(new BufferedOutputStream(Files.newOutputStream(jarFile)));
+            rawZipWriter = null;
+        }
     }
 
     public void addDirectory(@NonNull Path directory) throws IOException {
@@ -102,6 +140,10 @@ public class JarMerger implements Closeable {
                     }
                 });
         ImmutableSortedMap<String, Path> sortedFiles = candidateFiles.build();
+        if (rawZipWriter != null) {
+            addFilesInParallel(rawZipWriter, sortedFiles, transformer);
+            return;
+        }
         for (Map.Entry<String, Path> entry : sortedFiles.entrySet()) {
             String entryPath = entry.getKey();
             try (InputStream is = new BufferedInputStream(Files.newInputStream(entry.getValue()))) {
@@ -117,12 +159,78 @@ public class JarMerger implements Closeable {
         }
     }
 
+    /**
+     * Compresses the given files in parallel, in batches, and writes them in the order of the
+     * map. The transformer, if any, is called on the calling thread in that order.
+     */
+    private static void addFilesInParallel(
+            @NonNull RawZipWriter writer,
+            @NonNull ImmutableSortedMap<String, Path> sortedFiles,
+            @Nullable Transformer transformer)
+            throws IOException {
+        for (List<Map.Entry<String, Path>> batch :
+                Lists.partition(sortedFiles.entrySet().asList(), PARALLEL_COMPRESSION_BATCH_SIZE)) {
+            List<RawZipWriter.CompressedEntry> compressedEntries;
+            try {
+                if (transformer == null) {
+                    compressedEntries =
+                            batch.parallelStream()
+                                    .map(
+                                            entry ->
+                                                    RawZipWriter.compress(
+                                                            entry.getKey(),
+                                                            readAllBytes(entry.getValue())))
+                                    .collect(Collectors.toList());
+                } else {
+                    List<Map.Entry<String, byte[]>> contents = new ArrayList<>(batch.size());
+                    for (Map.Entry<String, Path> entry : batch) {
+                        try (InputStream is =
+                                new BufferedInputStream(Files.newInputStream(entry.getValue()))) {
+                            @Nullable InputStream is2 = transformer.filter(entry.getKey(), is);
+                            if (is2 != null) {
+                                contents.add(
+                                        new AbstractMap.SimpleImmutableEntry<>(
+                                                entry.getKey(), ByteStreams.toByteArray(is2)));
+                            }
+                        }
+                    }
+                    compressedEntries =
+                            contents.parallelStream()
+                                    .map(
+                                            entry ->
+                                                    RawZipWriter.compress(
+                                                            entry.getKey(), entry.getValue()))
+                                    .collect(Collectors.toList());
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            for (RawZipWriter.CompressedEntry compressedEntry : compressedEntries) {
+                writer.write(compressedEntry);
+            }
+        }
+    }
+
+    @NonNull
+    private static byte[] readAllBytes(@NonNull Path file) {
+        try {
+            return Files.readAllBytes(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     public void addJar(@NonNull Path file) throws IOException {
         addJar(file, filter);
     }
 
     public void addJar(@NonNull Path file, @Nullable ZipEntryFilter filterOverride)
             throws IOException {
+        if (rawZipWriter != null) {
+            addJarWithoutRecompressing(rawZipWriter, file, filterOverride);
+            return;
+        }
         try (ZipInputStream zis =
                 new ZipInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
 
@@ -158,12 +266,44 @@ public class JarMerger implements Closeable {
         }
     }
 
+    /** Copies the entries of the given jar without decompressing them. */
+    private static void addJarWithoutRecompressing(
+            @NonNull RawZipWriter writer,
+            @NonNull Path file,
+            @Nullable ZipEntryFilter filterOverride)
+            throws IOException {
+        try (RawZipReader reader = new RawZipReader(file)) {
+            for (RawZipReader.Entry entry : reader.readEntries()) {
+                // do not take directories
+                if (entry.isDirectory()) {
+                    continue;
+                }
+
+                // Filter out files, e.g. META-INF folder, not classes.
+                try {
+                    if (filterOverride != null && !filterOverride.checkEntry(entry.name)) {
+                        continue;
+                    }
+                } catch (ZipAbortException e) {
+                    throw new IOException(e);
+                }
+
+                writer.copy(reader, entry);
+            }
+        }
+    }
+
     @Override
     public void close() throws IOException {
-        jarOutputStream.close();
+        if (rawZipWriter != null) {
+            rawZipWriter.close();
+        } else {
+            Preconditions.checkNotNull(jarOutputStream).close();
+        }
     }
 
     private void write(@NonNull JarEntry entry, @NonNull InputStream from) throws IOException {
+        JarOutputStream jarOutputStream = Preconditions.checkNotNull(this.jarOutputStream);
         entry.setLastModifiedTime(ZERO_TIME);
         entry.setLastAccessTime(ZERO_TIME);
         entry.setCreationTime(ZERO_TIME);
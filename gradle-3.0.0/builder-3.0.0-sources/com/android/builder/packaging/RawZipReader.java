@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.packaging;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.concurrency.Immutable;
+import com.google.common.collect.ImmutableList;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the entries of a zip file from its central directory, and copies their data without
+ * decompressing it.
+ *
+ * <p>Zip64 archives are supported. Encrypted entries are not.
+ */
+final class RawZipReader implements Closeable {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int MAX_EOCD_COMMENT_SIZE = 0xFFFF;
+
+    private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_EOCD_SIZE = 56;
+
+    private static final int CENTRAL_DIRECTORY_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+    private static final int ZIP64_EXTRA_FIELD_ID = 0x0001;
+
+    private static final int FLAG_ENCRYPTED = 0x1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @NonNull private final Path file;
+
+    @NonNull private final FileChannel channel;
+
+    RawZipReader(@NonNull Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+    }
+
+    /** Returns the entries of the zip file, in the order of its central directory. */
+    @NonNull
+    List<Entry> readEntries() throws IOException {
+        long fileSize = channel.size();
+        ByteBuffer tail =
+                read(Math.max(0, fileSize - EOCD_SIZE - MAX_EOCD_COMMENT_SIZE), fileSize);
+        int eocd = -1;
+        for (int i = tail.limit() - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new ZipException("Not a zip file: " + file);
+        }
+        long eocdOffset = fileSize - tail.limit() + eocd;
+
+        long entryCount = tail.getShort(eocd + 10) & 0xFFFF;
+        long directorySize = tail.getInt(eocd + 12) & 0xFFFFFFFFL;
+        long directoryOffset = tail.getInt(eocd + 16) & 0xFFFFFFFFL;
+
+        if (eocdOffset >= ZIP64_EOCD_LOCATOR_SIZE) {
+            ByteBuffer locator = read(eocdOffset - ZIP64_EOCD_LOCATOR_SIZE, eocdOffset);
+            if (locator.getInt(0) == ZIP64_EOCD_LOCATOR_SIGNATURE) {
+                long zip64EocdOffset = locator.getLong(8);
+                ByteBuffer zip64Eocd = read(zip64EocdOffset, zip64EocdOffset + ZIP64_EOCD_SIZE);
+                if (zip64Eocd.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                    throw new ZipException("Invalid Zip64 end of central directory: " + file);
+                }
+                entryCount = zip64Eocd.getLong(32);
+                directorySize = zip64Eocd.getLong(40);
+                directoryOffset = zip64Eocd.getLong(48);
+            }
+        }
+
+        ByteBuffer directory = read(directoryOffset, directoryOffset + directorySize);
+        ImmutableList.Builder<Entry> entries = ImmutableList.builder();
+        int position = 0;
+        for (long i = 0; i < entryCount; i++) {
+            if (directory.getInt(position) != CENTRAL_DIRECTORY_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid central directory: " + file);
+            }
+            int flags = directory.getShort(position + 8) & 0xFFFF;
+            int method = directory.getShort(position + 10) & 0xFFFF;
+            int crc = directory.getInt(position + 16);
+            long compressedSize = directory.getInt(position + 20) & 0xFFFFFFFFL;
+            long size = directory.getInt(position + 24) & 0xFFFFFFFFL;
+            int nameLength = directory.getShort(position + 28) & 0xFFFF;
+            int extraLength = directory.getShort(position + 30) & 0xFFFF;
+            int commentLength = directory.getShort(position + 32) & 0xFFFF;
+            long localHeaderOffset = directory.getInt(position + 42) & 0xFFFFFFFFL;
+
+            byte[] nameBytes = new byte[nameLength];
+            directory.position(position + CENTRAL_DIRECTORY_HEADER_SIZE);
+            directory.get(nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+            // Values that do not fit in 32 bits are in the Zip64 extra field, in this order
+            int extra = position + CENTRAL_DIRECTORY_HEADER_SIZE + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = directory.getShort(extra) & 0xFFFF;
+                int length = directory.getShort(extra + 2) & 0xFFFF;
+                if (id == ZIP64_EXTRA_FIELD_ID) {
+                    int field = extra + 4;
+                    if (size == 0xFFFFFFFFL) {
+                        size = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == 0xFFFFFFFFL) {
+                        compressedSize = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (localHeaderOffset == 0xFFFFFFFFL) {
+                        localHeaderOffset = directory.getLong(field);
+                    }
+                }
+                extra += 4 + length;
+            }
+
+            if ((flags & FLAG_ENCRYPTED) != 0) {
+                throw new ZipException("Encrypted entries are not supported: " + name);
+            }
+
+            entries.add(
+                    new Entry(
+                            name, flags, method, crc, compressedSize, size, localHeaderOffset));
+            position = extraEnd + commentLength;
+        }
+        return entries.build();
+    }
+
+    /** Copies the compressed data of the given entry to the given stream. */
+    void copyRawData(@NonNull Entry entry, @NonNull OutputStream out) throws IOException {
+        ByteBuffer localHeader =
+                read(entry.localHeaderOffset, entry.localHeaderOffset + LOCAL_HEADER_SIZE);
+        if (localHeader.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Invalid local header for " + entry.name + " in " + file);
+        }
+        long position =
+                entry.localHeaderOffset
+                        + LOCAL_HEADER_SIZE
+                        + (localHeader.getShort(26) & 0xFFFF)
+                        + (localHeader.getShort(28) & 0xFFFF);
+        long end = position + entry.compressedSize;
+
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(BUFFER_SIZE, end - position));
+            int count = channel.read(buffer, position);
+            if (count < 0) {
+                throw new ZipException("Truncated entry " + entry.name + " in " + file);
+            }
+            out.write(buffer.array(), 0, count);
+            position += count;
+        }
+    }
+
+    @NonNull
+    private ByteBuffer read(long start, long end) throws IOException {
+        if (end - start > Integer.MAX_VALUE || start < 0 || end > channel.size()) {
+            throw new ZipException("Invalid zip file: " + file);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new ZipException("Truncated zip file: " + file);
+            }
+        }
+        buffer.flip();
+        return buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /** An entry of the central directory. */
+    @Immutable
+    static final class Entry {
+
+        @NonNull final String name;
+        final int flags;
+        final int method;
+        final int crc;
+        final long compressedSize;
+        final long size;
+        final long localHeaderOffset;
+
+        Entry(
+                @NonNull String name,
+                int flags,
+                int method,
+                int crc,
+                long compressedSize,
+                long size,
+                long localHeaderOffset) {
+            this.name = name;
+            this.flags = flags;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+}
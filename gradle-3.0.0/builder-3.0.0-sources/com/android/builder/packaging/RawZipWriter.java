@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.packaging;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.concurrency.Immutable;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a zip file from entries whose data is already compressed, either copied from another zip
+ * file by {@link RawZipReader} or compressed beforehand by {@link #compress}.
+ *
+ * <p>Like {@link JarMerger}'s {@link java.util.jar.JarOutputStream}, entries have a zero
+ * timestamp (which zip files represent as 1980-01-01), and duplicate entries are rejected. The
+ * output does not depend on the time zone or on the order in which entries were compressed.
+ * Zip64 is used when the archive has too many entries or is too large for the plain zip format.
+ */
+final class RawZipWriter implements Closeable {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_DIRECTORY_HEADER_SIGNATURE = 0x02014b50;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+
+    private static final int ZIP64_EXTRA_FIELD_ID = 0x0001;
+
+    private static final int VERSION_STORED = 10;
+    private static final int VERSION_DEFLATED = 20;
+    private static final int VERSION_ZIP64 = 45;
+
+    /** Flag for names and comments encoded in UTF-8. */
+    private static final int FLAG_UTF8 = 0x800;
+
+    /** Flag for sizes and CRC written in a data descriptor, after the data. */
+    private static final int FLAG_DATA_DESCRIPTOR = 0x8;
+
+    /** The DOS date of 1980-01-01, the earliest date that zip files can represent. */
+    private static final int DOS_DATE_1980 = (1 << 5) | 1;
+
+    private static final long MAX_32_BIT_VALUE = 0xFFFFFFFFL;
+    private static final int MAX_16_BIT_VALUE = 0xFFFF;
+
+    @NonNull private final CountingOutputStream out;
+
+    @NonNull private final List<CentralDirectoryRecord> records = new ArrayList<>();
+
+    @NonNull private final Set<String> names = new HashSet<>();
+
+    RawZipWriter(@NonNull Path file) throws IOException {
+        out = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+    }
+
+    /** Compresses the given content as the data of a new entry. */
+    @NonNull
+    static CompressedEntry compress(@NonNull String name, @NonNull byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 2 + 64);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true /* nowrap */);
+        try (DeflaterOutputStream deflaterStream =
+                new DeflaterOutputStream(compressed, deflater)) {
+            deflaterStream.write(content);
+        } catch (IOException e) {
+            // ByteArrayOutputStream does not throw
+            throw new AssertionError(e);
+        } finally {
+            deflater.end();
+        }
+        return new CompressedEntry(
+                name, (int) crc.getValue(), content.length, compressed.toByteArray());
+    }
+
+    /** Writes an entry whose data was compressed by {@link #compress}. */
+    void write(@NonNull CompressedEntry entry) throws IOException {
+        writeLocalHeader(
+                entry.name,
+                0 /* flags */,
+                ZipEntry.DEFLATED,
+                entry.crc,
+                entry.data.length,
+                entry.size);
+        out.write(entry.data);
+    }
+
+    /** Copies an entry of the given zip file without decompressing it. */
+    void copy(@NonNull RawZipReader reader, @NonNull RawZipReader.Entry entry) throws IOException {
+        if (entry.method != ZipEntry.STORED && entry.method != ZipEntry.DEFLATED) {
+            throw new ZipException(
+                    "Unsupported compression method " + entry.method + " for " + entry.name);
+        }
+        if (entry.size > MAX_32_BIT_VALUE || entry.compressedSize > MAX_32_BIT_VALUE) {
+            throw new ZipException("Entry is too large: " + entry.name);
+        }
+        // Sizes and CRC are known now, so they are written in the local header
+        writeLocalHeader(
+                entry.name,
+                entry.flags & ~FLAG_DATA_DESCRIPTOR & ~FLAG_UTF8,
+                entry.method,
+                entry.crc,
+                entry.compressedSize,
+                entry.size);
+        long start = out.getCount();
+        reader.copyRawData(entry, out);
+        if (out.getCount() - start != entry.compressedSize) {
+            throw new ZipException("Truncated entry: " + entry.name);
+        }
+    }
+
+    private void writeLocalHeader(
+            @NonNull String name, int flags, int method, int crc, long compressedSize, long size)
+            throws IOException {
+        if (!names.add(name)) {
+            throw new ZipException("duplicate entry: " + name);
+        }
+
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length != name.length()) {
+            flags |= FLAG_UTF8;
+        }
+        int version = method == ZipEntry.STORED ? VERSION_STORED : VERSION_DEFLATED;
+        records.add(
+                new CentralDirectoryRecord(
+                        nameBytes,
+                        version,
+                        flags,
+                        method,
+                        crc,
+                        compressedSize,
+                        size,
+                        out.getCount()));
+
+        ByteBuffer header = newBuffer(30 + nameBytes.length);
+        header.putInt(LOCAL_HEADER_SIGNATURE);
+        header.putShort((short) version);
+        header.putShort((short) flags);
+        header.putShort((short) method);
+        header.putShort((short) 0); // time
+        header.putShort((short) DOS_DATE_1980);
+        header.putInt(crc);
+        header.putInt((int) compressedSize);
+        header.putInt((int) size);
+        header.putShort((short) nameBytes.length);
+        header.putShort((short) 0); // extra field length
+        header.put(nameBytes);
+        out.write(header.array());
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            long directoryOffset = out.getCount();
+            for (CentralDirectoryRecord record : records) {
+                record.write(out);
+            }
+            long directorySize = out.getCount() - directoryOffset;
+
+            boolean zip64 =
+                    records.size() >= MAX_16_BIT_VALUE
+                            || directoryOffset >= MAX_32_BIT_VALUE
+                            || directorySize >= MAX_32_BIT_VALUE;
+            if (zip64) {
+                long zip64EocdOffset = out.getCount();
+                ByteBuffer zip64Eocd = newBuffer(56);
+                zip64Eocd.putInt(ZIP64_EOCD_SIGNATURE);
+                zip64Eocd.putLong(44); // size of the remaining record
+                zip64Eocd.putShort((short) VERSION_ZIP64); // version made by
+                zip64Eocd.putShort((short) VERSION_ZIP64); // version needed
+                zip64Eocd.putInt(0); // this disk
+                zip64Eocd.putInt(0); // disk of the central directory
+                zip64Eocd.putLong(records.size());
+                zip64Eocd.putLong(records.size());
+                zip64Eocd.putLong(directorySize);
+                zip64Eocd.putLong(directoryOffset);
+                out.write(zip64Eocd.array());
+
+                ByteBuffer locator = newBuffer(20);
+                locator.putInt(ZIP64_EOCD_LOCATOR_SIGNATURE);
+                locator.putInt(0); // disk of the Zip64 end of central directory
+                locator.putLong(zip64EocdOffset);
+                locator.putInt(1); // number of disks
+                out.write(locator.array());
+            }
+
+            ByteBuffer eocd = newBuffer(22);
+            eocd.putInt(EOCD_SIGNATURE);
+            eocd.putShort((short) 0); // this disk
+            eocd.putShort((short) 0); // disk of the central directory
+            eocd.putShort((short) Math.min(records.size(), MAX_16_BIT_VALUE));
+            eocd.putShort((short) Math.min(records.size(), MAX_16_BIT_VALUE));
+            eocd.putInt((int) Math.min(directorySize, MAX_32_BIT_VALUE));
+            eocd.putInt((int) Math.min(directoryOffset, MAX_32_BIT_VALUE));
+            eocd.putShort((short) 0); // comment length
+            out.write(eocd.array());
+        } finally {
+            out.close();
+        }
+    }
+
+    @NonNull
+    private static ByteBuffer newBuffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** The data of an entry compressed by {@link #compress}. */
+    @Immutable
+    static final class CompressedEntry {
+
+        @NonNull private final String name;
+        private final int crc;
+        private final long size;
+        @NonNull private final byte[] data;
+
+        private CompressedEntry(@NonNull String name, int crc, long size, @NonNull byte[] data) {
+            this.name = name;
+            this.crc = crc;
+            this.size = size;
+            this.data = data;
+        }
+    }
+
+    /** The central directory header of a written entry. */
+    @Immutable
+    private static final class CentralDirectoryRecord {
+
+        @NonNull private final byte[] name;
+        private final int version;
+        private final int flags;
+        private final int method;
+        private final int crc;
+        private final long compressedSize;
+        private final long size;
+        private final long localHeaderOffset;
+
+        CentralDirectoryRecord(
+                @NonNull byte[] name,
+                int version,
+                int flags,
+                int method,
+                int crc,
+                long compressedSize,
+                long size,
+                long localHeaderOffset) {
+            this.name = name;
+            this.version = version;
+            this.flags = flags;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        void write(@NonNull OutputStream out) throws IOException {
+            // Only the offset of the local header can exceed 32 bits, entries are not that large
+            boolean zip64 = localHeaderOffset >= MAX_32_BIT_VALUE;
+            int extraLength = zip64 ? 12 : 0;
+
+            ByteBuffer header = newBuffer(46 + name.length + extraLength);
+            header.putInt(CENTRAL_DIRECTORY_HEADER_SIGNATURE);
+            header.putShort((short) (zip64 ? VERSION_ZIP64 : version)); // version made by
+            header.putShort((short) (zip64 ? VERSION_ZIP64 : version)); // version needed
+            header.putShort((short) flags);
+            header.putShort((short) method);
+            header.putShort((short) 0); // time
+            header.putShort((short) DOS_DATE_1980);
+            header.putInt(crc);
+            header.putInt((int) compressedSize);
+            header.putInt((int) size);
+            header.putShort((short) name.length);
+            header.putShort((short) extraLength);
+            header.putShort((short) 0); // comment length
+            header.putShort((short) 0); // disk number
+            header.putShort((short) 0); // internal attributes
+            header.putInt(0); // external attributes
+            header.putInt((int) Math.min(localHeaderOffset, MAX_32_BIT_VALUE));
+            header.put(name);
+            if (zip64) {
+                header.putShort((short) ZIP64_EXTRA_FIELD_ID);
+                header.putShort((short) 8);
+                header.putLong(localHeaderOffset);
+            }
+            out.write(header.array());
+        }
+    }
+
+    /** An output stream that counts the bytes written, i.e., the current offset in the file. */
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(@NonNull OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
@@ -20,6 +20,7 @@ import com.android.annotations.NonNull;
 import com.android.tools.build.gradle.internal.profile.GradleTaskExecutionType;
 import com.android.tools.build.gradle.internal.profile.GradleTransformExecutionType;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.gson.stream.JsonWriter;
 import com.google.protobuf.InvalidProtocolBufferException;
@@ -114,6 +115,15 @@ public class ChromeTracingProfileConverter {
     }
 
     public static void toJson(@NonNull Path protoFile) throws IOException, AbnormalExitException {
+        toJson(protoFile, ImmutableList.of());
+    }
+
+    /**
+     * Converts the given proto file and adds the given phases, which are not part of the proto, to
+     * the output.
+     */
+    public static void toJson(@NonNull Path protoFile, @NonNull Iterable<PhaseRecord> phases)
+            throws IOException, AbnormalExitException {
         GradleBuildProfile profile;
         try {
             profile = GradleBuildProfile
@@ -203,11 +213,59 @@ public class ChromeTracingProfileConverter {
                         .name("dur").value(duration == 0 ? 100 : duration)
                         .endObject();
             }
+            for (PhaseRecord phase : phases) {
+                writePhase(writer, phase);
+            }
             writer.endArray();
         }
 
     }
 
+    private static void writePhase(@NonNull JsonWriter writer, @NonNull PhaseRecord phase)
+            throws IOException {
+        long timestamp = phase.getStartTimeInMs() * 1000;
+        long duration = Math.max(1, phase.getWallTimeInNs() / 1000);
+        writer.beginObject()
+                .name("pid").value(1)
+                .name("tid").value(phase.getThreadId())
+                .name("name").value(phase.getCategory() + ": " + phase.getName())
+                .name("cat").value(phase.getCategory())
+                .name("args");
+        {
+            writer.beginObject();
+            if (phase.getParentSpanId() != 0) {
+                writer.name("parent_span_id").value(phase.getParentSpanId());
+            }
+            writer.name("wall_time_ms").value(phase.getWallTimeInNs() / 1e6);
+            if (phase.getProcessCpuTimeInNs() != PhaseRecord.UNKNOWN) {
+                writer.name("process_cpu_time_ms").value(phase.getProcessCpuTimeInNs() / 1e6);
+            }
+            if (phase.getProcessAllocatedBytes() != PhaseRecord.UNKNOWN) {
+                writer.name("process_allocated_bytes").value(phase.getProcessAllocatedBytes());
+            }
+            for (Map.Entry<String, Long> counter : phase.getCounters().entrySet()) {
+                writer.name(counter.getKey()).value(counter.getValue());
+            }
+            writer.endObject();
+        }
+        writer.name("ph").value("X")
+                .name("ts").value(timestamp)
+                .name("dur").value(duration)
+                .endObject();
+
+        // Counters are also written as counter events, so they can be plotted over the build.
+        for (Map.Entry<String, Long> counter : phase.getCounters().entrySet()) {
+            writer.beginObject()
+                    .name("pid").value(1)
+                    .name("ph").value("C")
+                    .name("name").value(phase.getCategory() + ": " + counter.getKey())
+                    .name("ts").value(timestamp + duration)
+                    .name("args");
+            writer.beginObject().name(counter.getKey()).value(counter.getValue()).endObject();
+            writer.endObject();
+        }
+    }
+
     static final class ProjectHolder {
         final GradleBuildProject project;
         final Map<Long, GradleBuildVariant> variants;
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.profile;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.concurrency.Immutable;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Measurements for one phase of a longer operation (e.g. "build graph" in the shrinker), as
+ * recorded by {@link PhaseRecorder}.
+ *
+ * <p>Phases are finer grained than {@link com.google.wireless.android.sdk.stats.GradleBuildProfileSpan
+ * spans} and are attached to the span that was being recorded by {@link ThreadRecorder} on the
+ * same thread, if any.
+ */
+@Immutable
+public final class PhaseRecord {
+
+    /** Value used for measurements that are not supported by the running JVM. */
+    public static final long UNKNOWN = -1;
+
+    @NonNull private final String category;
+    @NonNull private final String name;
+    private final long threadId;
+    private final long parentSpanId;
+    private final long startTimeInMs;
+    private final long wallTimeInNs;
+    private final long processCpuTimeInNs;
+    private final long processAllocatedBytes;
+    @NonNull private final ImmutableMap<String, Long> counters;
+
+    PhaseRecord(
+            @NonNull String category,
+            @NonNull String name,
+            long threadId,
+            long parentSpanId,
+            long startTimeInMs,
+            long wallTimeInNs,
+            long processCpuTimeInNs,
+            long processAllocatedBytes,
+            @NonNull ImmutableMap<String, Long> counters) {
+        this.category = category;
+        this.name = name;
+        this.threadId = threadId;
+        this.parentSpanId = parentSpanId;
+        this.startTimeInMs = startTimeInMs;
+        this.wallTimeInNs = wallTimeInNs;
+        this.processCpuTimeInNs = processCpuTimeInNs;
+        this.processAllocatedBytes = processAllocatedBytes;
+        this.counters = counters;
+    }
+
+    /** Returns the operation this phase is part of, e.g. "shrinker". */
+    @NonNull
+    public String getCategory() {
+        return category;
+    }
+
+    @NonNull
+    public String getName() {
+        return name;
+    }
+
+    /** Returns the thread id, as used by {@link ThreadRecorder} for the spans. */
+    public long getThreadId() {
+        return threadId;
+    }
+
+    /** Returns the id of the enclosing span, or 0 if there was none. */
+    public long getParentSpanId() {
+        return parentSpanId;
+    }
+
+    public long getStartTimeInMs() {
+        return startTimeInMs;
+    }
+
+    public long getWallTimeInNs() {
+        return wallTimeInNs;
+    }
+
+    /**
+     * Returns the CPU time used by the whole process during this phase, which includes work done
+     * by worker threads but also unrelated work, e.g. other tasks or garbage collection. Returns
+     * {@link #UNKNOWN} if not supported.
+     */
+    public long getProcessCpuTimeInNs() {
+        return processCpuTimeInNs;
+    }
+
+    /**
+     * Returns the number of bytes allocated during this phase by all threads of the process that
+     * were still alive at its end, which includes unrelated work as well. Returns {@link
+     * #UNKNOWN} if not supported.
+     */
+    public long getProcessAllocatedBytes() {
+        return processAllocatedBytes;
+    }
+
+    /** Returns additional values sampled at the end of the phase, e.g. data structure sizes. */
+    @NonNull
+    public ImmutableMap<String, Long> getCounters() {
+        return counters;
+    }
+}
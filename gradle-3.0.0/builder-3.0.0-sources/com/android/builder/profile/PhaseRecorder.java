@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.profile;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.collect.ImmutableMap;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Records consecutive phases of an operation running on the current thread, e.g. the steps of a
+ * transform.
+ *
+ * <p>For every phase the wall time, the CPU time of the whole process and the bytes allocated by all
+ * threads of the process are measured, together with counters provided by the caller. The CPU
+ * time and allocations include the worker threads of the operation, but also any unrelated work
+ * running in the same process, such as other tasks or the garbage collector. Phases are written to {@link
+ * ProcessProfileWriter} and end up in the Chrome trace, nested in the span being recorded by
+ * {@link ThreadRecorder} on the current thread. They can also be printed to stdout, which is
+ * useful when running outside of a profiled build.
+ *
+ * <p>If profiling is not enabled, {@link #start(String, String)} returns a recorder that does
+ * nothing, so phases can be left in place in production code.
+ *
+ * <p>Typical usage:
+ *
+ * <pre>
+ * PhaseRecorder phases = PhaseRecorder.start("shrinker", "android.newShrinker.profile");
+ * buildGraph();
+ * phases.endPhase("build graph", ImmutableMap.of("nodes", nodeCount));
+ * writeOutput();
+ * phases.endPhase("write output");
+ * </pre>
+ */
+public final class PhaseRecorder {
+
+    private static final PhaseRecorder DISABLED = new PhaseRecorder("", false, false);
+
+    @NonNull private final String mCategory;
+    private final boolean mWrite;
+    private final boolean mPrint;
+
+    private long mStartTimeInMs;
+    private long mStartNanos;
+    private long mStartCpuTimeInNs;
+
+    /** The threads alive at the start of the phase, or null if allocations can't be measured. */
+    @Nullable private long[] mStartThreadIds;
+
+    /** The bytes allocated by each of {@link #mStartThreadIds} at the start of the phase. */
+    @Nullable private long[] mStartAllocatedBytes;
+
+    private PhaseRecorder(@NonNull String category, boolean write, boolean print) {
+        mCategory = category;
+        mWrite = write;
+        mPrint = print;
+    }
+
+    /**
+     * Starts recording the first phase.
+     *
+     * @param category name of the operation, used to group phases in the trace
+     * @param printProperty name of a system property that, when set, causes phases to be printed
+     *     to stdout
+     */
+    @NonNull
+    public static PhaseRecorder start(@NonNull String category, @Nullable String printProperty) {
+        boolean write = ProcessProfileWriterFactory.getFactory().isInitialized();
+        boolean print = printProperty != null && System.getProperty(printProperty) != null;
+        if (!write && !print) {
+            return DISABLED;
+        }
+
+        PhaseRecorder recorder = new PhaseRecorder(category, write, print);
+        recorder.restart();
+        return recorder;
+    }
+
+    /**
+     * Returns true if phases are recorded. Can be used to avoid computing expensive counters for
+     * nothing.
+     */
+    public boolean isEnabled() {
+        return mWrite || mPrint;
+    }
+
+    /** Ends the current phase and starts the next one. */
+    public void endPhase(@NonNull String name) {
+        endPhase(name, ImmutableMap.of());
+    }
+
+    /**
+     * Ends the current phase and starts the next one.
+     *
+     * @param name name of the phase that just ended
+     * @param counters values to attach to the phase, e.g. sizes of data structures
+     */
+    public void endPhase(@NonNull String name, @NonNull Map<String, Long> counters) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        long wallTimeInNs = System.nanoTime() - mStartNanos;
+        long endCpuTimeInNs = getProcessCpuTime();
+        long cpuTimeInNs =
+                mStartCpuTimeInNs != PhaseRecord.UNKNOWN && endCpuTimeInNs != PhaseRecord.UNKNOWN
+                        ? endCpuTimeInNs - mStartCpuTimeInNs
+                        : PhaseRecord.UNKNOWN;
+        long allocatedBytes = getAllocatedBytesSinceStart();
+
+        PhaseRecord record =
+                new PhaseRecord(
+                        mCategory,
+                        name,
+                        ThreadRecorder.getCurrentThreadId(),
+                        ThreadRecorder.getCurrentSpanId(),
+                        mStartTimeInMs,
+                        wallTimeInNs,
+                        cpuTimeInNs,
+                        allocatedBytes,
+                        ImmutableMap.copyOf(counters));
+
+        if (mWrite) {
+            ProcessProfileWriter.get().writePhase(record);
+        }
+        if (mPrint) {
+            print(record);
+        }
+
+        // Don't count the time spent recording towards the next phase.
+        restart();
+    }
+
+    private void restart() {
+        mStartTimeInMs = System.currentTimeMillis();
+        mStartCpuTimeInNs = getProcessCpuTime();
+        com.sun.management.ThreadMXBean threads = getThreadMXBean();
+        if (threads != null) {
+            mStartThreadIds = threads.getAllThreadIds();
+            mStartAllocatedBytes = threads.getThreadAllocatedBytes(mStartThreadIds);
+        } else {
+            mStartThreadIds = null;
+            mStartAllocatedBytes = null;
+        }
+        mStartNanos = System.nanoTime();
+    }
+
+    private static void print(@NonNull PhaseRecord record) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(record.getName())
+                .append(": ")
+                .append(String.format(Locale.US, "%.1f ms", record.getWallTimeInNs() / 1e6));
+        if (record.getProcessCpuTimeInNs() != PhaseRecord.UNKNOWN) {
+            sb.append(
+                    String.format(
+                            Locale.US,
+                            ", process cpu %.1f ms",
+                            record.getProcessCpuTimeInNs() / 1e6));
+        }
+        if (record.getProcessAllocatedBytes() != PhaseRecord.UNKNOWN) {
+            sb.append(
+                    String.format(
+                            Locale.US,
+                            ", process allocated %.1f MiB",
+                            record.getProcessAllocatedBytes() / 1048576.0));
+        }
+        for (Map.Entry<String, Long> counter : record.getCounters().entrySet()) {
+            sb.append(", ").append(counter.getKey()).append(' ').append(counter.getValue());
+        }
+        System.out.println(sb);
+    }
+
+    private static long getProcessCpuTime() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (!(os instanceof com.sun.management.OperatingSystemMXBean)) {
+            return PhaseRecord.UNKNOWN;
+        }
+        long cpuTime = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        return cpuTime >= 0 ? cpuTime : PhaseRecord.UNKNOWN;
+    }
+
+    /**
+     * Returns the bytes allocated since the start of the phase by the threads that are alive at
+     * its end, or {@link PhaseRecord#UNKNOWN} if not supported.
+     *
+     * <p>The JVM only reports allocations of live threads, so each thread's own difference is
+     * summed: allocations of threads that ended during the phase are missing, but they don't
+     * make the total go down.
+     */
+    private long getAllocatedBytesSinceStart() {
+        com.sun.management.ThreadMXBean threads = getThreadMXBean();
+        if (threads == null || mStartThreadIds == null || mStartAllocatedBytes == null) {
+            return PhaseRecord.UNKNOWN;
+        }
+
+        Map<Long, Long> startAllocatedBytes = new HashMap<>();
+        for (int i = 0; i < mStartThreadIds.length; i++) {
+            startAllocatedBytes.put(mStartThreadIds[i], mStartAllocatedBytes[i]);
+        }
+
+        long[] threadIds = threads.getAllThreadIds();
+        long[] allocatedBytes = threads.getThreadAllocatedBytes(threadIds);
+        long total = 0;
+        for (int i = 0; i < threadIds.length; i++) {
+            if (allocatedBytes[i] < 0) {
+                // The thread ended after its id was read.
+                continue;
+            }
+            Long start = startAllocatedBytes.get(threadIds[i]);
+            total += start != null && start >= 0 ? allocatedBytes[i] - start : allocatedBytes[i];
+        }
+        return total;
+    }
+
+    /** Returns the thread bean if it can measure allocations, or null otherwise. */
+    @Nullable
+    private static com.sun.management.ThreadMXBean getThreadMXBean() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+        if (!sunThreads.isThreadAllocatedMemorySupported()
+                || !sunThreads.isThreadAllocatedMemoryEnabled()) {
+            return null;
+        }
+        return sunThreads;
+    }
+}
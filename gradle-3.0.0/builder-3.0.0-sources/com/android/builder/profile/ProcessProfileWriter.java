@@ -71,6 +71,8 @@ public final class ProcessProfileWriter implements ProfileRecordWriter {
 
     private final ConcurrentLinkedQueue<GradleBuildProfileSpan> spans;
 
+    private final ConcurrentLinkedQueue<PhaseRecord> phases;
+
     @Override
     public long allocateRecordId() {
         return lastRecordId.incrementAndGet();
@@ -94,6 +96,7 @@ public final class ProcessProfileWriter implements ProfileRecordWriter {
         mStartMemoryStats = createAndRecordMemorySample();
         mProjects = CacheBuilder.newBuilder().build(new ProjectCacheLoader(mNameAnonymizer));
         spans = new ConcurrentLinkedQueue<>();
+        phases = new ConcurrentLinkedQueue<>();
     }
 
     /** Append a span record to the build profile. Thread safe. */
@@ -108,6 +111,16 @@ public final class ProcessProfileWriter implements ProfileRecordWriter {
         spans.add(executionRecord.build());
     }
 
+    /**
+     * Append a phase record to the build profile. Thread safe.
+     *
+     * <p>Phases have no representation in {@link GradleBuildProfile}, so they are only written to
+     * the chrome tracing output.
+     */
+    void writePhase(@NonNull PhaseRecord phase) {
+        phases.add(phase);
+    }
+
     /**
      * Finishes processing the outstanding {@link GradleBuildProfileSpan} publication and shuts down
      * the processing queue. Write the final output file to the given path.
@@ -152,7 +165,7 @@ public final class ProcessProfileWriter implements ProfileRecordWriter {
                 }
 
                 if (mEnableChromeTracingOutput) {
-                    ChromeTracingProfileConverter.toJson(outputFile);
+                    ChromeTracingProfileConverter.toJson(outputFile, phases);
                 }
             } catch (IOException e) {
                 throw new UncheckedIOException(e);
@@ -41,7 +41,7 @@ public final class ThreadRecorder implements Recorder {
     // Dummy implementation that records nothing but comply to the overall recording contracts.
     private static final Recorder NO_OP_RECORDER = new NoOpRecorder();
     private static final AtomicLong THREAD_ID_ALLOCATOR = new AtomicLong(1);
-    private static final Recorder RECORDER = new ThreadRecorder();
+    private static final ThreadRecorder RECORDER = new ThreadRecorder();
 
     /**
      * Do not put anything else than JDK classes in the ThreadLocal as it prevents that class and
@@ -57,6 +57,20 @@ public final class ThreadRecorder implements Recorder {
         return ProcessProfileWriterFactory.getFactory().isInitialized() ? RECORDER : NO_OP_RECORDER;
     }
 
+    /** Returns the id used for the current thread in the recorded spans. */
+    static long getCurrentThreadId() {
+        return RECORDER.threadId.get();
+    }
+
+    /**
+     * Returns the id of the innermost span being recorded on the current thread, or 0 if there is
+     * none.
+     */
+    static long getCurrentSpanId() {
+        Long spanId = RECORDER.recordStacks.get().peek();
+        return spanId != null ? spanId : 0;
+    }
+
 
     @Nullable
     @Override
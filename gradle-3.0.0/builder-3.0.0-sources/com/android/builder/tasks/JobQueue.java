@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.tasks;
+
+import com.android.annotations.NonNull;
+
+/**
+ * A queue that accepts {@link Job}s and runs them on worker threads, each of which is associated
+ * with the queue's {@link QueueThreadContext}.
+ */
+public interface JobQueue<T> {
+
+    /** Queues a job to be run by one of the worker threads. */
+    void push(@NonNull Job<T> job) throws InterruptedException;
+
+    /**
+     * Waits until all the queued jobs have been processed, then stops the worker threads and
+     * shuts down the queue's {@link QueueThreadContext}. Jobs pushed afterwards start new worker
+     * threads.
+     *
+     * @throws InterruptedException if the shutdown sequence is interrupted
+     */
+    void shutdown() throws InterruptedException;
+
+    /** Returns a human readable queue name, mainly used for identification purposes. */
+    @NonNull
+    String getName();
+
+    /** Returns the number of jobs waiting to be scheduled. */
+    int size();
+}
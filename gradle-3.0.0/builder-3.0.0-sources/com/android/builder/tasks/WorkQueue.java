@@ -30,7 +30,7 @@ import java.util.stream.Collectors;
  *
  * @author jedo@google.com (Jerome Dochez)
  */
-public class WorkQueue<T> implements Runnable {
+public class WorkQueue<T> implements Runnable, JobQueue<T> {
 
     private static final boolean VERBOSE = System.getenv("GRADLE_WORK_QUEUE_VERBOSE") != null;
 
@@ -113,7 +113,8 @@ public class WorkQueue<T> implements Runnable {
         this.mQueueThreadContext = queueThreadContext;
     }
 
-    public void push(Job<T> job) throws InterruptedException {
+    @Override
+    public void push(@NonNull Job<T> job) throws InterruptedException {
         _push(new QueueTask<>(QueueTask.ActionType.Normal, job));
         checkWorkforce();
     }
@@ -158,6 +159,7 @@ public class WorkQueue<T> implements Runnable {
      * to the queue once the shutdown process has started....
      * @throws InterruptedException if the shutdown sequence is interrupted
      */
+    @Override
     public synchronized void shutdown() throws InterruptedException {
 
         List<Thread> livingThreads =
@@ -186,6 +188,8 @@ public class WorkQueue<T> implements Runnable {
      *
      * @return a unique meaningful descriptive name
      */
+    @NonNull
+    @Override
     public String getName() {
         return mName;
     }
@@ -195,6 +199,7 @@ public class WorkQueue<T> implements Runnable {
      *
      * @return the size of the queue.
      */
+    @Override
     public int size() {
         return mPendingJobs.size();
     }
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.tasks;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.concurrency.GuardedBy;
+import com.android.annotations.concurrency.Immutable;
+import com.android.utils.ILogger;
+import com.google.common.base.MoreObjects;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link JobQueue} backed by a work-stealing {@link ForkJoinPool}, as an alternative to {@link
+ * WorkQueue}.
+ *
+ * <p>Jobs are submitted to the pool without any locking, and idle workers steal them from each
+ * other. The pool starts workers as jobs are queued, up to the given workforce, and retires
+ * workers that stay idle, so there is no growth ratio to tune. Each worker creates its {@link
+ * QueueThreadContext} resources (e.g., an aapt process) before running its first job and destroys
+ * them when it is retired. If a job fails, the worker's resources are recreated for the next job
+ * rather than the worker being lost.
+ *
+ * <p>The queue records how long jobs wait to be scheduled and how long they run, and how many
+ * jobs are queued, see {@link #getStats()}.
+ */
+public class WorkStealingQueue<T> implements JobQueue<T> {
+
+    @NonNull private final ILogger mLogger;
+
+    @NonNull private final String mName;
+
+    @NonNull private final QueueThreadContext<T> mQueueThreadContext;
+
+    private final int mWorkforce;
+
+    @NonNull private final AtomicInteger mThreadId = new AtomicInteger(0);
+
+    @GuardedBy("this")
+    @Nullable
+    private ForkJoinPool mPool;
+
+    @NonNull private final AtomicInteger mQueuedJobs = new AtomicInteger(0);
+    @NonNull private final LongAccumulator mMaxQueuedJobs = new LongAccumulator(Math::max, 0);
+    @NonNull private final LongAdder mCompletedJobs = new LongAdder();
+    @NonNull private final LongAdder mFailedJobs = new LongAdder();
+    @NonNull private final LongAdder mQueueWaitNanos = new LongAdder();
+    @NonNull private final LongAdder mRunNanos = new LongAdder();
+
+    /**
+     * Creates a new queue.
+     *
+     * @param logger to log messages
+     * @param queueThreadContext the context notified of the workers' creation, tasks and
+     *     destruction
+     * @param queueName a meaningful descriptive name.
+     * @param workforce the maximum number of worker threads for this queue.
+     */
+    public WorkStealingQueue(
+            @NonNull ILogger logger,
+            @NonNull QueueThreadContext<T> queueThreadContext,
+            @NonNull String queueName,
+            int workforce) {
+        this.mLogger = logger;
+        this.mName = queueName;
+        this.mQueueThreadContext = queueThreadContext;
+        this.mWorkforce = workforce;
+    }
+
+    @Override
+    public void push(@NonNull Job<T> job) {
+        long queuedTime = System.nanoTime();
+        mMaxQueuedJobs.accumulate(mQueuedJobs.incrementAndGet());
+        try {
+            getPool().execute(() -> runJob(job, queuedTime));
+        } catch (RejectedExecutionException e) {
+            // The pool was shut down by a concurrent call to shutdown() after getPool() returned it
+            mQueuedJobs.decrementAndGet();
+            mFailedJobs.increment();
+            job.error(e);
+        }
+    }
+
+    @NonNull
+    private synchronized ForkJoinPool getPool() {
+        if (mPool == null) {
+            mPool =
+                    new ForkJoinPool(
+                            mWorkforce,
+                            Worker::new,
+                            null /* handler */,
+                            true /* asyncMode, jobs are run in the order they are queued */);
+        }
+        return mPool;
+    }
+
+    private void runJob(@NonNull Job<T> job, long queuedTime) {
+        long startTime = System.nanoTime();
+        mQueuedJobs.decrementAndGet();
+        mQueueWaitNanos.add(startTime - queuedTime);
+
+        @SuppressWarnings("unchecked") // Only the pool's workers run jobs.
+        Worker worker = (Worker) Thread.currentThread();
+        if (!worker.createContext()) {
+            mFailedJobs.increment();
+            job.error(new RuntimeException("No server to serve request. Check logs for details."));
+            return;
+        }
+
+        try {
+            mQueueThreadContext.runTask(job);
+        } catch (Throwable e) {
+            mLogger.warning("Exception while processing task %1$s", e);
+            mFailedJobs.increment();
+            job.error(e);
+            // The worker's resources may be in a bad state, start over for the next job
+            worker.destroyContext();
+            return;
+        }
+
+        // wait for the job completion.
+        try {
+            if (job.await()) {
+                mCompletedJobs.increment();
+            } else {
+                mFailedJobs.increment();
+            }
+        } catch (InterruptedException e) {
+            mLogger.error(e, "Thread(%1$s): Interrupted", worker.getName());
+            mFailedJobs.increment();
+            Thread.currentThread().interrupt();
+        }
+        mRunNanos.add(System.nanoTime() - startTime);
+    }
+
+    @Override
+    public void shutdown() throws InterruptedException {
+        ForkJoinPool pool;
+        synchronized (this) {
+            pool = mPool;
+            mPool = null;
+        }
+        if (pool != null) {
+            // Previously queued jobs are still run, and the workers destroy their context as they
+            // terminate.
+            pool.shutdown();
+            while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                mLogger.verbose("Waiting for %1$d jobs of %2$s", mQueuedJobs.get(), mName);
+            }
+            mLogger.verbose("%1$s: %2$s", mName, getStats());
+        }
+        mQueueThreadContext.shutdown();
+    }
+
+    @NonNull
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public int size() {
+        return mQueuedJobs.get();
+    }
+
+    /** Returns the statistics of the jobs run by this queue so far. */
+    @NonNull
+    public Stats getStats() {
+        return new Stats(
+                mCompletedJobs.sum(),
+                mFailedJobs.sum(),
+                mQueuedJobs.get(),
+                mMaxQueuedJobs.get(),
+                mQueueWaitNanos.sum(),
+                mRunNanos.sum());
+    }
+
+    /** A worker thread of the pool, which owns the resources created by the queue's context. */
+    private final class Worker extends ForkJoinWorkerThread {
+
+        private boolean mContextCreated = false;
+
+        Worker(@NonNull ForkJoinPool pool) {
+            super(pool);
+            setName(mName + "_" + mThreadId.incrementAndGet());
+            setDaemon(true);
+        }
+
+        /**
+         * Creates the context resources of this worker if they have not been created yet, and
+         * returns whether they are available.
+         */
+        boolean createContext() {
+            if (!mContextCreated) {
+                try {
+                    mContextCreated = mQueueThreadContext.creation(this);
+                } catch (IOException e) {
+                    mLogger.verbose(
+                            "Thread(%1$s): Exception while starting thread : (%2$s)",
+                            getName(), e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (!mContextCreated) {
+                    mLogger.verbose(
+                            "Thread(%1$s): Could not start slave process.", getName());
+                }
+            }
+            return mContextCreated;
+        }
+
+        void destroyContext() {
+            if (!mContextCreated) {
+                return;
+            }
+            mContextCreated = false;
+            try {
+                mQueueThreadContext.destruction(this);
+            } catch (IOException | InterruptedException e) {
+                mLogger.error(e, "Thread(%1$s): %2$s", getName(), e.getMessage());
+            }
+        }
+
+        @Override
+        protected void onTermination(@Nullable Throwable exception) {
+            try {
+                destroyContext();
+            } finally {
+                super.onTermination(exception);
+            }
+        }
+    }
+
+    /** Statistics of the jobs run by a {@link WorkStealingQueue}. */
+    @Immutable
+    public static final class Stats {
+
+        private final long completedJobs;
+        private final long failedJobs;
+        private final int queuedJobs;
+        private final long maxQueuedJobs;
+        private final long queueWaitNanos;
+        private final long runNanos;
+
+        Stats(
+                long completedJobs,
+                long failedJobs,
+                int queuedJobs,
+                long maxQueuedJobs,
+                long queueWaitNanos,
+                long runNanos) {
+            this.completedJobs = completedJobs;
+            this.failedJobs = failedJobs;
+            this.queuedJobs = queuedJobs;
+            this.maxQueuedJobs = maxQueuedJobs;
+            this.queueWaitNanos = queueWaitNanos;
+            this.runNanos = runNanos;
+        }
+
+        public long getCompletedJobs() {
+            return completedJobs;
+        }
+
+        public long getFailedJobs() {
+            return failedJobs;
+        }
+
+        /** Returns the number of jobs currently waiting to be scheduled. */
+        public int getQueuedJobs() {
+            return queuedJobs;
+        }
+
+        /** Returns the largest number of jobs that have been waiting to be scheduled at once. */
+        public long getMaxQueuedJobs() {
+            return maxQueuedJobs;
+        }
+
+        /** Returns the total time that jobs have waited to be scheduled. */
+        public long getQueueWaitNanos() {
+            return queueWaitNanos;
+        }
+
+        /** Returns the total time that jobs have been running, until their completion. */
+        public long getRunNanos() {
+            return runNanos;
+        }
+
+        @Override
+        public String toString() {
+            long jobs = Math.max(1, completedJobs + failedJobs);
+            return MoreObjects.toStringHelper(this)
+                    .add("completedJobs", completedJobs)
+                    .add("failedJobs", failedJobs)
+                    .add("queuedJobs", queuedJobs)
+                    .add("maxQueuedJobs", maxQueuedJobs)
+                    .add("meanQueueWaitMs", TimeUnit.NANOSECONDS.toMillis(queueWaitNanos / jobs))
+                    .add("meanRunMs", TimeUnit.NANOSECONDS.toMillis(runNanos / jobs))
+                    .toString();
+        }
+    }
+}
@@ -32,10 +32,15 @@ import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 
 /**
  * A cache for already-created files/directories.
@@ -74,6 +79,16 @@ import java.util.concurrent.atomic.AtomicInteger;
  * <p>If a cache entry exists but is found to be corrupted, the cache entry will be deleted and
  * recreated.
  *
+ * <p>The cache does not evict cache entries by itself. The client can call {@link #evict(long,
+ * long)} to delete cache entries that have not been used for some time or that do not fit in a
+ * size budget.
+ *
+ * <p>Optionally, the cache can keep an in-process index of the cache entries that it has found or
+ * created. Queries for those entries are then answered without taking the locks described above
+ * (which are file locks in the case of {@code MULTI_PROCESS} locking scope), and only queries that
+ * miss the index fall back to locking. See {@link #getInstanceWithMultiProcessLocking(File,
+ * boolean)}.
+ *
  * <p>This class is thread-safe.
  */
 @Immutable
@@ -95,17 +110,39 @@ public class FileCache {
         SINGLE_PROCESS
     }
 
+    /**
+     * The precision of the last access times of cache entries. A cache entry's last access time is
+     * only updated when it is older than this, so that a cache hit does not usually write to disk.
+     */
+    private static final long ACCESS_TIME_PRECISION_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * The time for which a cache entry is kept after it was last used, even if the cache does not
+     * fit in its size budget. Clients may keep using a cached file/directory returned by {@link
+     * #createFileInCacheIfAbsent(Inputs, ExceptionConsumer)} after the query has returned (e.g.,
+     * until the end of their build), so recently used cache entries must not be evicted.
+     */
+    @VisibleForTesting
+    static final long MIN_UNUSED_TIME_BEFORE_EVICTION_MILLIS = TimeUnit.HOURS.toMillis(6);
+
     @NonNull private final File cacheDirectory;
 
     @NonNull private final LockingScope lockingScope;
 
+    @Nullable private final FileCacheIndex inProcessIndex;
+
     // Additional fields used for testing only
     @NonNull private final AtomicInteger missCount = new AtomicInteger(0);
     @NonNull private final AtomicInteger hitCount = new AtomicInteger(0);
 
-    private FileCache(@NonNull File cacheDirectory, @NonNull LockingScope lockingScope) {
+    private FileCache(
+            @NonNull File cacheDirectory,
+            @NonNull LockingScope lockingScope,
+            boolean useInProcessIndex) {
         this.cacheDirectory = cacheDirectory;
         this.lockingScope = lockingScope;
+        this.inProcessIndex =
+                useInProcessIndex ? FileCacheIndex.getInstance(cacheDirectory) : null;
     }
 
     /**
@@ -132,7 +169,33 @@ public class FileCache {
      */
     @NonNull
     public static FileCache getInstanceWithMultiProcessLocking(@NonNull File cacheDirectory) {
-        return new FileCache(cacheDirectory, LockingScope.MULTI_PROCESS);
+        return new FileCache(cacheDirectory, LockingScope.MULTI_PROCESS, false);
+    }
+
+    /**
+     * Returns a {@code FileCache} instance where synchronization takes effect for threads both
+     * within the same process and across different processes, as with {@link
+     * #getInstanceWithMultiProcessLocking(File)}, and which optionally keeps an in-process index of
+     * the cache entries.
+     *
+     * <p>With the in-process index, once this process has found or created a cache entry, later
+     * queries for it are answered without inter-process locking, as long as the entry's inputs
+     * file is unchanged. Queries that miss the index take the inter-process locks, with at most
+     * one thread of this process waiting for the locks of the same cache entry at a time. The
+     * index is shared by all the {@code FileCache} instances of the same cache directory in this
+     * process, and its metrics are available via {@link #getInProcessIndexStats()}.
+     *
+     * <p>The index should only be used when cache entries are deleted via the cache's API (e.g.,
+     * {@link #delete()}), since it relies on each entry's inputs file being written last and
+     * deleted together with the entry.
+     *
+     * @param cacheDirectory the cache directory, which may not yet exist
+     * @param useInProcessIndex whether to keep an in-process index of the cache entries
+     */
+    @NonNull
+    public static FileCache getInstanceWithMultiProcessLocking(
+            @NonNull File cacheDirectory, boolean useInProcessIndex) {
+        return new FileCache(cacheDirectory, LockingScope.MULTI_PROCESS, useInProcessIndex);
     }
 
     /**
@@ -151,7 +214,22 @@ public class FileCache {
      */
     @NonNull
     public static FileCache getInstanceWithSingleProcessLocking(@NonNull File cacheDirectory) {
-        return new FileCache(cacheDirectory, LockingScope.SINGLE_PROCESS);
+        return new FileCache(cacheDirectory, LockingScope.SINGLE_PROCESS, false);
+    }
+
+    /**
+     * Returns a {@code FileCache} instance where synchronization takes effect for threads within
+     * the same process but not for threads across different processes, as with {@link
+     * #getInstanceWithSingleProcessLocking(File)}, and which optionally keeps an in-process index
+     * of the cache entries (see {@link #getInstanceWithMultiProcessLocking(File, boolean)}).
+     *
+     * @param cacheDirectory the cache directory, which may not yet exist
+     * @param useInProcessIndex whether to keep an in-process index of the cache entries
+     */
+    @NonNull
+    public static FileCache getInstanceWithSingleProcessLocking(
+            @NonNull File cacheDirectory, boolean useInProcessIndex) {
+        return new FileCache(cacheDirectory, LockingScope.SINGLE_PROCESS, useInProcessIndex);
     }
 
     @NonNull
@@ -368,6 +446,75 @@ public class FileCache {
             @NonNull Callable<Void> actionIfCacheHit,
             @NonNull Callable<Void> actionIfCacheMissedOrCorrupted)
             throws ExecutionException, IOException {
+        if (inProcessIndex == null) {
+            return queryCacheEntryWithLocking(
+                    inputs, cacheEntryDir, actionIfCacheHit, actionIfCacheMissedOrCorrupted);
+        }
+
+        // Cache entries in the in-process index are complete and can be read without locking
+        if (runIfInProcessIndex(cacheEntryDir, actionIfCacheHit)) {
+            return new QueryResult(QueryEvent.HIT);
+        }
+
+        // Otherwise, let only one thread of this process query the cache entry with locking. The
+        // other threads will then find the cache entry in the index.
+        Lock lock = inProcessIndex.lock(cacheEntryDir);
+        try {
+            if (runIfInProcessIndex(cacheEntryDir, actionIfCacheHit)) {
+                return new QueryResult(QueryEvent.HIT);
+            }
+            inProcessIndex.recordMiss();
+            return queryCacheEntryWithLocking(
+                    inputs, cacheEntryDir, actionIfCacheHit, actionIfCacheMissedOrCorrupted);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs the given action if the cache entry is in the in-process index, without locking. The
+     * entry is checked again after the action has run, since another process might have deleted it
+     * in the meantime.
+     *
+     * @return {@code true} if the action was run on a complete cache entry, or {@code false} if the
+     *     cache entry needs to be queried with locking
+     */
+    private boolean runIfInProcessIndex(
+            @NonNull File cacheEntryDir, @NonNull Callable<Void> actionIfCacheHit) {
+        Preconditions.checkNotNull(inProcessIndex);
+        File inputsFile = getInputsFile(cacheEntryDir);
+        if (!inProcessIndex.isComplete(cacheEntryDir, inputsFile)) {
+            return false;
+        }
+        try {
+            actionIfCacheHit.call();
+        } catch (Exception exception) {
+            // The cache entry may have been deleted while the action was running. The query with
+            // locking will find out, and will run the action again or report the exception.
+            inProcessIndex.remove(cacheEntryDir);
+            return false;
+        }
+        if (!inProcessIndex.isComplete(cacheEntryDir, inputsFile)) {
+            inProcessIndex.remove(cacheEntryDir);
+            return false;
+        }
+        inProcessIndex.recordHit();
+        hitCount.incrementAndGet();
+        recordAccess(cacheEntryDir);
+        return true;
+    }
+
+    /**
+     * Queries the cache entry with locking, as described in {@link #queryCacheEntry(Inputs, File,
+     * Callable, Callable)}.
+     */
+    @NonNull
+    private QueryResult queryCacheEntryWithLocking(
+            @NonNull Inputs inputs,
+            @NonNull File cacheEntryDir,
+            @NonNull Callable<Void> actionIfCacheHit,
+            @NonNull Callable<Void> actionIfCacheMissedOrCorrupted)
+            throws ExecutionException, IOException {
         // The underlying facility for multi-process locking (SynchronizedFile) requires that the
         // parent directory of the file/directory being synchronized exist (see method
         // getSynchronizedFile), so we create the parent directory first (if it does not yet exist).
@@ -389,23 +536,24 @@ public class FileCache {
             // read/written to. (Further locking within the cache will make sure multiple
             // threads/processes can read but cannot write to the same cache entry at the same
             // time.)
-            return getSynchronizedFile(cacheDirectory).read(sameCacheDirectory -> {
+            return readLocked(cacheDirectory, sameCacheDirectory -> {
                 // Create (or recreate) the cache directory since it may not exist or might have
                 // been deleted. The following method call is thread-safe and process-safe.
                 FileUtils.mkdirs(cacheDirectory);
 
                 // Guard the cache entry directory with a READ lock so that multiple
                 // threads/processes can read it at the same time
-                QueryResult queryResult = getSynchronizedFile(cacheEntryDir).read(
-                        (sameCacheEntryDir) -> {
-                            QueryResult result = checkCacheEntry(inputs, cacheEntryDir);
-                            // If the cache entry is HIT, run the given action
-                            if (result.getQueryEvent().equals(QueryEvent.HIT)) {
-                                hitCount.incrementAndGet();
-                                actionIfCacheHit.call();
-                            }
-                            return result;
-                        });
+                QueryResult queryResult = readLocked(cacheEntryDir, sameCacheEntryDir -> {
+                    QueryResult result = checkCacheEntry(inputs, cacheEntryDir);
+                    // If the cache entry is HIT, run the given action
+                    if (result.getQueryEvent().equals(QueryEvent.HIT)) {
+                        hitCount.incrementAndGet();
+                        actionIfCacheHit.call();
+                        recordAccess(cacheEntryDir);
+                        addToInProcessIndex(cacheEntryDir);
+                    }
+                    return result;
+                });
                 // If the cache entry is HIT, return immediately
                 if (queryResult.getQueryEvent().equals(QueryEvent.HIT)) {
                     return queryResult;
@@ -413,7 +561,7 @@ public class FileCache {
 
                 // Guard the cache entry directory with an WRITE lock so that only one
                 // thread/process can write to it
-                return getSynchronizedFile(cacheEntryDir).write(sameCacheEntryDir -> {
+                return writeLocked(cacheEntryDir, sameCacheEntryDir -> {
                     // Check the cache entry again as it might have been changed by another
                     // thread/process since the last time we checked it.
                     QueryResult result = checkCacheEntry(inputs, cacheEntryDir);
@@ -422,6 +570,8 @@ public class FileCache {
                     if (result.getQueryEvent().equals(QueryEvent.HIT)) {
                         hitCount.incrementAndGet();
                         actionIfCacheHit.call();
+                        recordAccess(cacheEntryDir);
+                        addToInProcessIndex(cacheEntryDir);
                         return result;
                     }
 
@@ -447,6 +597,7 @@ public class FileCache {
                     // to check whether a cache entry is corrupted or not.
                     Files.asCharSink(getInputsFile(cacheEntryDir), StandardCharsets.UTF_8)
                             .write(inputs.toString());
+                    addToInProcessIndex(cacheEntryDir);
 
                     return result;
                 });
@@ -480,6 +631,16 @@ public class FileCache {
     public boolean cacheEntryExists(@NonNull Inputs inputs) throws IOException {
         // This method is a stripped-down version of queryCacheEntry(). See queryCacheEntry() for
         // an explanation of this code.
+        File cacheEntryDir = getCacheEntryDir(inputs);
+        if (inProcessIndex != null) {
+            if (inProcessIndex.isComplete(cacheEntryDir, getInputsFile(cacheEntryDir))) {
+                inProcessIndex.recordHit();
+                recordAccess(cacheEntryDir);
+                return true;
+            }
+            inProcessIndex.recordMiss();
+        }
+
         if (lockingScope == LockingScope.MULTI_PROCESS) {
             Preconditions.checkNotNull(
                     cacheDirectory.getCanonicalFile().getParentFile(),
@@ -489,12 +650,17 @@ public class FileCache {
 
         try {
             QueryResult queryResult =
-                    getSynchronizedFile(cacheDirectory).read(
-                            sameCacheDirectory -> {
-                                FileUtils.mkdirs(cacheDirectory);
-                                return getSynchronizedFile(getCacheEntryDir(inputs)).read(
-                                        (cacheEntryDir) -> checkCacheEntry(inputs, cacheEntryDir));
-                            });
+                    readLocked(cacheDirectory, sameCacheDirectory -> {
+                        FileUtils.mkdirs(cacheDirectory);
+                        return readLocked(cacheEntryDir, sameCacheEntryDir -> {
+                            QueryResult result = checkCacheEntry(inputs, cacheEntryDir);
+                            if (result.getQueryEvent().equals(QueryEvent.HIT)) {
+                                recordAccess(cacheEntryDir);
+                                addToInProcessIndex(cacheEntryDir);
+                            }
+                            return result;
+                        });
+                    });
             return queryResult.getQueryEvent().equals(QueryEvent.HIT);
         } catch (ExecutionException exception) {
             for (Throwable exceptionInCausalChain : Throwables.getCausalChain(exception)) {
@@ -630,12 +796,13 @@ public class FileCache {
         }
 
         try {
-            getSynchronizedFile(cacheDirectory)
-                    .write(
-                            sameCacheDirectory -> {
-                                FileUtils.deletePath(cacheDirectory);
-                                return null;
-                            });
+            writeLocked(cacheDirectory, sameCacheDirectory -> {
+                FileUtils.deletePath(cacheDirectory);
+                if (inProcessIndex != null) {
+                    inProcessIndex.clear();
+                }
+                return null;
+            });
         } catch (ExecutionException exception) {
             // We need to figure out whether the exception comes from the deletion action. If so, we
             // rethrow the exception as an IOException; otherwise, we rethrow the exception as a
@@ -649,6 +816,124 @@ public class FileCache {
         }
     }
 
+    /**
+     * Evicts the cache entries that have not been used for the given time, and then the least
+     * recently used cache entries until the cache fits in the given size.
+     *
+     * <p>Cache entries used within the last {@link #MIN_UNUSED_TIME_BEFORE_EVICTION_MILLIS} are
+     * never evicted, even if the given unused time is shorter, as they may still be in use by a
+     * running build. The cache may therefore remain larger than the given size. The last use of a
+     * cache entry is tracked with the timestamp of its directory, which is updated at most every
+     * {@link #ACCESS_TIME_PRECISION_MILLIS} (see {@link #recordAccess(File)}).
+     *
+     * <p>This method can run while other threads/processes are using the cache: each cache entry
+     * is evicted while holding a WRITE lock on it, so it is not evicted while it is being created
+     * or copied, and it will simply be recreated if it is queried again. The cache directory is
+     * guarded with a READ lock, so {@link #delete()} blocks until this method returns.
+     *
+     * @param maxSizeInBytes the size that the cache should fit in, or {@link Long#MAX_VALUE}
+     * @param maxUnusedTimeMillis the time after which unused cache entries are evicted, or {@link
+     *     Long#MAX_VALUE}
+     * @return the result of the eviction
+     */
+    @NonNull
+    public EvictionResult evict(long maxSizeInBytes, long maxUnusedTimeMillis)
+            throws IOException {
+        // See method delete() for why we check the parent directory first
+        if (lockingScope == LockingScope.MULTI_PROCESS) {
+            if (!FileUtils.parentDirExists(cacheDirectory)) {
+                return new EvictionResult(0, 0, 0);
+            }
+        }
+
+        try {
+            return readLocked(cacheDirectory, sameCacheDirectory -> {
+                File[] cacheEntryDirs = cacheDirectory.listFiles(File::isDirectory);
+                if (cacheEntryDirs == null) {
+                    return new EvictionResult(0, 0, 0);
+                }
+
+                // Visit the cache entries from the least to the most recently used
+                List<CacheEntryUsage> cacheEntries = new ArrayList<>(cacheEntryDirs.length);
+                long cacheSize = 0;
+                for (File cacheEntryDir : cacheEntryDirs) {
+                    CacheEntryUsage cacheEntry = new CacheEntryUsage(cacheEntryDir);
+                    cacheEntries.add(cacheEntry);
+                    cacheSize += cacheEntry.size;
+                }
+                cacheEntries.sort(Comparator.comparingLong(cacheEntry -> cacheEntry.lastAccess));
+
+                long now = System.currentTimeMillis();
+                int evictedCount = 0;
+                long evictedSize = 0;
+                for (CacheEntryUsage cacheEntry : cacheEntries) {
+                    long unusedTime = now - cacheEntry.lastAccess;
+                    boolean expired = unusedTime > maxUnusedTimeMillis;
+                    boolean overBudget = cacheSize > maxSizeInBytes;
+                    if (unusedTime <= MIN_UNUSED_TIME_BEFORE_EVICTION_MILLIS
+                            || (!expired && !overBudget)) {
+                        // The remaining cache entries have been used more recently
+                        break;
+                    }
+                    if (evictCacheEntry(cacheEntry)) {
+                        evictedCount++;
+                        evictedSize += cacheEntry.size;
+                        cacheSize -= cacheEntry.size;
+                    }
+                }
+                return new EvictionResult(evictedCount, evictedSize, cacheSize);
+            });
+        } catch (ExecutionException exception) {
+            for (Throwable exceptionInCausalChain : Throwables.getCausalChain(exception)) {
+                if (exceptionInCausalChain instanceof IOException) {
+                    throw new IOException(exception);
+                }
+            }
+            throw new RuntimeException(exception);
+        }
+    }
+
+    /**
+     * Deletes a cache entry unless it has been used since it was selected for eviction. This method
+     * must be called while holding a READ lock on the cache directory.
+     *
+     * @return {@code true} if the cache entry was deleted
+     */
+    private boolean evictCacheEntry(@NonNull CacheEntryUsage cacheEntry)
+            throws ExecutionException {
+        File cacheEntryDir = cacheEntry.cacheEntryDir;
+        return writeLocked(cacheEntryDir, sameCacheEntryDir -> {
+            if (cacheEntryDir.lastModified() != cacheEntry.lastAccess) {
+                return false;
+            }
+            if (inProcessIndex != null) {
+                inProcessIndex.remove(cacheEntryDir);
+            }
+
+            // Delete the inputs file first, so that if the deletion is interrupted, the remains of
+            // the cache entry are seen as a corrupted cache entry rather than a complete one
+            FileUtils.deleteIfExists(getInputsFile(cacheEntryDir));
+            FileUtils.deletePath(cacheEntryDir);
+            return true;
+        });
+    }
+
+    /**
+     * Records that a cache entry has been used by updating the timestamp of its directory, unless
+     * the timestamp is already more recent than {@link #ACCESS_TIME_PRECISION_MILLIS}. This avoids
+     * writing file metadata on every cache hit.
+     *
+     * <p>This method does not need a lock on the cache entry: if the cache entry is being deleted,
+     * updating its timestamp has no effect.
+     */
+    private static void recordAccess(@NonNull File cacheEntryDir) {
+        long now = System.currentTimeMillis();
+        if (now - cacheEntryDir.lastModified() > ACCESS_TIME_PRECISION_MILLIS) {
+            //noinspection ResultOfMethodCallIgnored
+            cacheEntryDir.setLastModified(now);
+        }
+    }
+
     /**
      * Returns a {@link SynchronizedFile} to synchronize access to the given file/directory.
      *
@@ -671,6 +956,64 @@ public class FileCache {
         }
     }
 
+    /**
+     * Executes an action on the given file/directory while holding a READ lock on it, recording the
+     * time spent waiting for the lock if the cache has an in-process index.
+     */
+    private <V> V readLocked(
+            @NonNull File fileToSynchronize, @NonNull ExceptionFunction<File, V> action)
+            throws ExecutionException {
+        SynchronizedFile synchronizedFile = getSynchronizedFile(fileToSynchronize);
+        if (inProcessIndex == null) {
+            return synchronizedFile.read(action);
+        }
+        long start = System.nanoTime();
+        return synchronizedFile.read(
+                sameFile -> {
+                    inProcessIndex.recordLockWait(start);
+                    return action.accept(sameFile);
+                });
+    }
+
+    /**
+     * Executes an action on the given file/directory while holding a WRITE lock on it, recording
+     * the time spent waiting for the lock if the cache has an in-process index.
+     */
+    private <V> V writeLocked(
+            @NonNull File fileToSynchronize, @NonNull ExceptionFunction<File, V> action)
+            throws ExecutionException {
+        SynchronizedFile synchronizedFile = getSynchronizedFile(fileToSynchronize);
+        if (inProcessIndex == null) {
+            return synchronizedFile.write(action);
+        }
+        long start = System.nanoTime();
+        return synchronizedFile.write(
+                sameFile -> {
+                    inProcessIndex.recordLockWait(start);
+                    return action.accept(sameFile);
+                });
+    }
+
+    /**
+     * Adds a complete cache entry to the in-process index, if the cache has one. This method must
+     * be called while holding a lock on the cache entry directory.
+     */
+    private void addToInProcessIndex(@NonNull File cacheEntryDir) {
+        if (inProcessIndex != null) {
+            inProcessIndex.add(cacheEntryDir, getInputsFile(cacheEntryDir));
+        }
+    }
+
+    /**
+     * Returns the metrics of the in-process index of this cache's directory, or null if this cache
+     * does not use an in-process index. The metrics cover all the {@code FileCache} instances
+     * sharing the index.
+     */
+    @Nullable
+    public InProcessIndexStats getInProcessIndexStats() {
+        return inProcessIndex != null ? inProcessIndex.getStats() : null;
+    }
+
     @VisibleForTesting
     int getMisses() {
         return missCount.get();
@@ -686,6 +1029,7 @@ public class FileCache {
         return MoreObjects.toStringHelper(this)
                 .add("cacheDirectory", cacheDirectory)
                 .add("lockingScope", lockingScope)
+                .add("inProcessIndex", inProcessIndex != null)
                 .toString();
     }
 
@@ -837,11 +1181,20 @@ public class FileCache {
                 return this;
             }
 
-            /** Returns the hash of the file's contents. */
+            /**
+             * Returns the hash of the file's contents, computed with the hasher configured via
+             * {@link FileHashers#configure}, or with SHA-256 by default. Hashes computed with other
+             * hashers are prefixed with the hasher's name, so that they are never compared with
+             * SHA-256 hashes in existing cache entries.
+             */
             @NonNull
             private static String getFileHash(@NonNull File file) {
+                FileHasher hasher = FileHashers.getHasherForCaches(FileHashers.SHA256);
                 try {
-                    return Files.asByteSource(file).hash(Hashing.sha256()).toString();
+                    String hash = hasher.hash(file).toString();
+                    return hasher.getName().equals(FileHashers.SHA256.getName())
+                            ? hash
+                            : hasher.getName() + ":" + hash;
                 } catch (IOException e) {
                     throw new UncheckedIOException(e);
                 }
@@ -1017,6 +1370,124 @@ public class FileCache {
         }
     }
 
+    /** The last access time and size of a cache entry, as seen when selecting entries to evict. */
+    @Immutable
+    private static final class CacheEntryUsage {
+
+        @NonNull private final File cacheEntryDir;
+
+        private final long lastAccess;
+
+        private final long size;
+
+        CacheEntryUsage(@NonNull File cacheEntryDir) {
+            this.cacheEntryDir = cacheEntryDir;
+            this.lastAccess = cacheEntryDir.lastModified();
+            long size = 0;
+            for (File file : FileUtils.getAllFiles(cacheEntryDir)) {
+                size += file.length();
+            }
+            this.size = size;
+        }
+    }
+
+    /** The result of {@link #evict(long, long)}. */
+    @Immutable
+    public static final class EvictionResult {
+
+        private final int evictedEntryCount;
+
+        private final long evictedSizeInBytes;
+
+        private final long remainingSizeInBytes;
+
+        EvictionResult(int evictedEntryCount, long evictedSizeInBytes, long remainingSizeInBytes) {
+            this.evictedEntryCount = evictedEntryCount;
+            this.evictedSizeInBytes = evictedSizeInBytes;
+            this.remainingSizeInBytes = remainingSizeInBytes;
+        }
+
+        /** Returns the number of cache entries that were evicted. */
+        public int getEvictedEntryCount() {
+            return evictedEntryCount;
+        }
+
+        /** Returns the total size of the cache entries that were evicted. */
+        public long getEvictedSizeInBytes() {
+            return evictedSizeInBytes;
+        }
+
+        /** Returns the total size of the cache entries that were kept. */
+        public long getRemainingSizeInBytes() {
+            return remainingSizeInBytes;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("evictedEntryCount", evictedEntryCount)
+                    .add("evictedSizeInBytes", evictedSizeInBytes)
+                    .add("remainingSizeInBytes", remainingSizeInBytes)
+                    .toString();
+        }
+    }
+
+    /**
+     * Metrics of the in-process index of a cache, see {@link
+     * #getInstanceWithMultiProcessLocking(File, boolean)}.
+     */
+    @Immutable
+    public static final class InProcessIndexStats {
+
+        private final long hitCount;
+
+        private final long missCount;
+
+        private final long lockCount;
+
+        private final long lockWaitNanos;
+
+        InProcessIndexStats(long hitCount, long missCount, long lockCount, long lockWaitNanos) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.lockCount = lockCount;
+            this.lockWaitNanos = lockWaitNanos;
+        }
+
+        /** Returns the number of queries answered from the index, without locking. */
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        /** Returns the number of queries that missed the index and were answered with locking. */
+        public long getMissCount() {
+            return missCount;
+        }
+
+        /**
+         * Returns the number of locks acquired by the cache, including the in-process locks of
+         * the index and the locks of {@link SynchronizedFile}.
+         */
+        public long getLockCount() {
+            return lockCount;
+        }
+
+        /** Returns the total time spent waiting for the locks counted by {@link #getLockCount()}. */
+        public long getLockWaitNanos() {
+            return lockWaitNanos;
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("hitCount", hitCount)
+                    .add("missCount", missCount)
+                    .add("lockCount", lockCount)
+                    .add("lockWaitMillis", lockWaitNanos / 1_000_000)
+                    .toString();
+        }
+    }
+
     /**
      * The event that happens when the client queries a cache entry: the cache entry may be hit,
      * missed, or corrupted.
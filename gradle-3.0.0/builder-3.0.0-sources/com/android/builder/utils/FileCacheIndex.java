@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.utils;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.concurrency.Immutable;
+import com.google.common.util.concurrent.Striped;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * An in-process index of the entries of a {@link FileCache} that are known to be complete, which
+ * lets the cache answer queries for those entries without taking the (possibly inter-process)
+ * locks of {@link SynchronizedFile}.
+ *
+ * <p>An entry is added to the index once a locked query has found it or created it, together with
+ * the size and timestamp of its inputs file. The inputs file is written last when an entry is
+ * created and is missing while an entry is being deleted or recreated, so an entry whose inputs
+ * file still has the recorded size and timestamp is complete. The index re-checks this before and
+ * after using an entry without locks, and falls back to the locked query if it has changed (e.g.,
+ * because another process deleted the cache).
+ *
+ * <p>Queries for the same entry that miss the index are serialized by a striped lock, so that
+ * only one thread of this process waits for the inter-process lock of an entry and the others
+ * find the entry in the index afterwards.
+ *
+ * <p>There is one index per physical cache directory, shared by all the {@link FileCache}
+ * instances of that directory in this process.
+ *
+ * <p>This class is thread-safe.
+ */
+final class FileCacheIndex {
+
+    /** Number of locks that the entries are striped over. */
+    private static final int LOCK_STRIPES = 64;
+
+    @NonNull
+    private static final ConcurrentMap<File, FileCacheIndex> instances = new ConcurrentHashMap<>();
+
+    @NonNull private final ConcurrentMap<String, Stamp> entries = new ConcurrentHashMap<>();
+
+    @NonNull private final Striped<Lock> entryLocks = Striped.lock(LOCK_STRIPES);
+
+    @NonNull private final LongAdder hits = new LongAdder();
+    @NonNull private final LongAdder misses = new LongAdder();
+    @NonNull private final LongAdder lockCount = new LongAdder();
+    @NonNull private final LongAdder lockWaitNanos = new LongAdder();
+
+    private FileCacheIndex() {}
+
+    /** Returns the index of the given cache directory, which may not yet exist. */
+    @NonNull
+    static FileCacheIndex getInstance(@NonNull File cacheDirectory) {
+        File canonicalCacheDirectory;
+        try {
+            canonicalCacheDirectory = cacheDirectory.getCanonicalFile();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return instances.computeIfAbsent(canonicalCacheDirectory, dir -> new FileCacheIndex());
+    }
+
+    /**
+     * Returns {@code true} if the given cache entry is in the index and its inputs file has not
+     * changed since it was added.
+     */
+    boolean isComplete(@NonNull File cacheEntryDir, @NonNull File inputsFile) {
+        Stamp stamp = entries.get(cacheEntryDir.getName());
+        return stamp != null && stamp.matches(inputsFile);
+    }
+
+    /**
+     * Adds the given cache entry to the index. This method must be called while holding a lock on
+     * the cache entry, after the entry has been found or created.
+     */
+    void add(@NonNull File cacheEntryDir, @NonNull File inputsFile) {
+        Stamp stamp = Stamp.of(inputsFile);
+        if (stamp != null) {
+            entries.put(cacheEntryDir.getName(), stamp);
+        } else {
+            entries.remove(cacheEntryDir.getName());
+        }
+    }
+
+    /** Removes the given cache entry from the index. */
+    void remove(@NonNull File cacheEntryDir) {
+        entries.remove(cacheEntryDir.getName());
+    }
+
+    /** Removes all the entries from the index. */
+    void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Acquires the in-process lock of the given cache entry, recording how long it took. The
+     * caller must release the returned lock.
+     */
+    @NonNull
+    Lock lock(@NonNull File cacheEntryDir) {
+        Lock lock = entryLocks.get(cacheEntryDir.getName());
+        long start = System.nanoTime();
+        lock.lock();
+        recordLockWait(start);
+        return lock;
+    }
+
+    void recordHit() {
+        hits.increment();
+    }
+
+    void recordMiss() {
+        misses.increment();
+    }
+
+    /** Records a lock acquisition which started at the given {@link System#nanoTime()}. */
+    void recordLockWait(long startNanos) {
+        lockCount.increment();
+        lockWaitNanos.add(System.nanoTime() - startNanos);
+    }
+
+    @NonNull
+    FileCache.InProcessIndexStats getStats() {
+        return new FileCache.InProcessIndexStats(
+                hits.sum(), misses.sum(), lockCount.sum(), lockWaitNanos.sum());
+    }
+
+    /** The size and timestamp of the inputs file of a complete cache entry. */
+    @Immutable
+    private static final class Stamp {
+
+        private final long length;
+
+        private final long lastModified;
+
+        private Stamp(long length, long lastModified) {
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        /** Returns the stamp of the given inputs file, or null if the file does not exist. */
+        @Nullable
+        static Stamp of(@NonNull File inputsFile) {
+            // File.lastModified() returns 0 if the file does not exist
+            long lastModified = inputsFile.lastModified();
+            return lastModified != 0 ? new Stamp(inputsFile.length(), lastModified) : null;
+        }
+
+        boolean matches(@NonNull File inputsFile) {
+            return inputsFile.lastModified() == lastModified && inputsFile.length() == length;
+        }
+    }
+}
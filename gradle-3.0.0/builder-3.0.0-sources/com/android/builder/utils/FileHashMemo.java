@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.utils;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.VisibleForTesting;
+import com.android.annotations.concurrency.Immutable;
+import com.android.utils.FileUtils;
+import com.google.common.hash.HashCode;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers the hashes of files by path, size and timestamp, so that unchanged files are not
+ * hashed again in later builds. The memo is loaded from and saved to a file.
+ *
+ * <p>A file's size and timestamp may not change when it is rewritten within the granularity of
+ * the file system's timestamps. To avoid returning stale hashes, a hash is only remembered if the
+ * file was last modified at least {@link #TIMESTAMP_GRANULARITY_MILLIS} before it was hashed, and
+ * did not change while it was being hashed.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class FileHashMemo {
+
+    private static final int VERSION = 1;
+
+    /** The coarsest timestamp granularity of the supported file systems (FAT). */
+    @VisibleForTesting static final long TIMESTAMP_GRANULARITY_MILLIS = 2000;
+
+    @NonNull
+    private static final ConcurrentMap<File, FileHashMemo> instances = new ConcurrentHashMap<>();
+
+    @NonNull private final File storage;
+
+    /** Map from hasher name to the memoized hashes of the files, by absolute path. */
+    @NonNull
+    private final ConcurrentMap<String, ConcurrentMap<String, Entry>> entries =
+            new ConcurrentHashMap<>();
+
+    @NonNull private final AtomicInteger hits = new AtomicInteger();
+    @NonNull private final AtomicInteger misses = new AtomicInteger();
+
+    private volatile boolean modified;
+
+    private FileHashMemo(@NonNull File storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Returns the memo stored in the given file, loading it the first time it is requested in this
+     * JVM. If the file does not exist or cannot be read, the memo starts out empty.
+     */
+    @NonNull
+    public static FileHashMemo getInstance(@NonNull File storage) {
+        File canonicalStorage;
+        try {
+            canonicalStorage = storage.getCanonicalFile();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return instances.computeIfAbsent(
+                canonicalStorage,
+                file -> {
+                    FileHashMemo memo = new FileHashMemo(file);
+                    memo.load();
+                    return memo;
+                });
+    }
+
+    /** Returns a hasher that looks up and records the hashes computed by the given hasher. */
+    @NonNull
+    FileHasher memoize(@NonNull FileHasher hasher) {
+        ConcurrentMap<String, Entry> hashes =
+                entries.computeIfAbsent(hasher.getName(), name -> new ConcurrentHashMap<>());
+        return new FileHasher() {
+            @NonNull
+            @Override
+            public String getName() {
+                return hasher.getName();
+            }
+
+            @NonNull
+            @Override
+            public HashCode hash(@NonNull File file) throws IOException {
+                return hashAndRemember(hasher, hashes, file);
+            }
+        };
+    }
+
+    @NonNull
+    private HashCode hashAndRemember(
+            @NonNull FileHasher hasher,
+            @NonNull ConcurrentMap<String, Entry> hashes,
+            @NonNull File file)
+            throws IOException {
+        String path = file.getAbsolutePath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+        Entry entry = hashes.get(path);
+        if (entry != null && entry.length == length && entry.lastModified == lastModified) {
+            hits.incrementAndGet();
+            return entry.hash;
+        }
+
+        misses.incrementAndGet();
+        long hashingStart = System.currentTimeMillis();
+        HashCode hash = hasher.hash(file);
+        if (lastModified != 0
+                && lastModified < hashingStart - TIMESTAMP_GRANULARITY_MILLIS
+                && file.length() == length
+                && file.lastModified() == lastModified) {
+            hashes.put(path, new Entry(length, lastModified, hash));
+            modified = true;
+        } else if (entry != null) {
+            hashes.remove(path);
+            modified = true;
+        }
+        return hash;
+    }
+
+    @VisibleForTesting
+    int getHits() {
+        return hits.get();
+    }
+
+    @VisibleForTesting
+    int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Saves the memo if it has changed since it was loaded or last saved. Hashes of files that no
+     * longer exist are dropped.
+     */
+    public synchronized void save() throws IOException {
+        if (!modified) {
+            return;
+        }
+        modified = false;
+
+        FileUtils.mkdirs(storage.getParentFile());
+        File tempFile = new File(storage.getParentFile(), storage.getName() + ".tmp");
+        try (DataOutputStream output =
+                new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            // Write snapshots of the maps, since other threads may be adding hashes
+            Map<String, Map<String, Entry>> snapshot = new HashMap<>();
+            for (Map.Entry<String, ConcurrentMap<String, Entry>> hasher : entries.entrySet()) {
+                hasher.getValue().keySet().removeIf(path -> !new File(path).isFile());
+                snapshot.put(hasher.getKey(), new HashMap<>(hasher.getValue()));
+            }
+            output.writeInt(VERSION);
+            output.writeInt(snapshot.size());
+            for (Map.Entry<String, Map<String, Entry>> hasher : snapshot.entrySet()) {
+                output.writeUTF(hasher.getKey());
+                output.writeInt(hasher.getValue().size());
+                for (Map.Entry<String, Entry> hash : hasher.getValue().entrySet()) {
+                    output.writeUTF(hash.getKey());
+                    output.writeLong(hash.getValue().length);
+                    output.writeLong(hash.getValue().lastModified);
+                    byte[] bytes = hash.getValue().hash.asBytes();
+                    output.writeByte(bytes.length);
+                    output.write(bytes);
+                }
+            }
+        }
+        // Replace the memo in one step, so that a concurrent build never reads a partial file
+        Files.move(
+                tempFile.toPath(),
+                storage.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void load() {
+        if (!storage.isFile()) {
+            return;
+        }
+        try (DataInputStream input =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(storage)))) {
+            if (input.readInt() != VERSION) {
+                return;
+            }
+            int hasherCount = input.readInt();
+            for (int i = 0; i < hasherCount; i++) {
+                ConcurrentMap<String, Entry> hashes = new ConcurrentHashMap<>();
+                entries.put(input.readUTF(), hashes);
+                int hashCount = input.readInt();
+                for (int j = 0; j < hashCount; j++) {
+                    String path = input.readUTF();
+                    long length = input.readLong();
+                    long lastModified = input.readLong();
+                    byte[] bytes = new byte[input.readUnsignedByte()];
+                    input.readFully(bytes);
+                    hashes.put(path, new Entry(length, lastModified, HashCode.fromBytes(bytes)));
+                }
+            }
+        } catch (IOException | RuntimeException ignored) {
+            // A memo that cannot be read only means that files are hashed again
+            entries.clear();
+        }
+    }
+
+    /** The memoized hash of a file with a given size and timestamp. */
+    @Immutable
+    private static final class Entry {
+
+        private final long length;
+
+        private final long lastModified;
+
+        @NonNull private final HashCode hash;
+
+        Entry(long length, long lastModified, @NonNull HashCode hash) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+}
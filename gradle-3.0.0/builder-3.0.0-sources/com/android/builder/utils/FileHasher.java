@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.utils;
+
+import com.android.annotations.NonNull;
+import com.google.common.hash.HashCode;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Computes the hash of a file's contents, to be used as (part of) a cache key.
+ *
+ * <p>Implementations are provided by {@link FileHashers}. They must be thread-safe.
+ */
+public interface FileHasher {
+
+    /**
+     * Returns a name that identifies how this hasher computes hashes. Hashes computed by hashers
+     * with different names must not be compared with each other.
+     */
+    @NonNull
+    String getName();
+
+    /** Returns the hash of the contents of the given regular file. */
+    @NonNull
+    HashCode hash(@NonNull File file) throws IOException;
+}
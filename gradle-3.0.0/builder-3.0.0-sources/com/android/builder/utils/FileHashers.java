@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.utils;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.annotations.concurrency.Immutable;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * The {@link FileHasher}s available to caches, and the hasher that caches are configured to use.
+ *
+ * <p>{@link FileCache.Inputs.Builder#putFile} and the pre-dex cache hash the files they cache
+ * results for. By default they keep using the cryptographic hash functions they have always used,
+ * so that existing cache entries remain valid. The plugin can {@link #configure configure} a
+ * faster, non-cryptographic hasher for both, and a {@link FileHashMemo} that remembers the hashes
+ * of unchanged files across builds.
+ */
+public final class FileHashers {
+
+    /** SHA-1 of the file's contents, read as a stream. */
+    @NonNull public static final FileHasher SHA1 = new StreamingFileHasher("sha1", Hashing.sha1());
+
+    /** SHA-256 of the file's contents, read as a stream. */
+    @NonNull
+    public static final FileHasher SHA256 = new StreamingFileHasher("sha256", Hashing.sha256());
+
+    /** Murmur3 128-bit hash of the file's contents, read through a buffer. */
+    @NonNull
+    public static final FileHasher MURMUR3_128 =
+            new ChunkedFileHasher("murmur3_128", Hashing.murmur3_128(), false);
+
+    /**
+     * Murmur3 128-bit hash of the file's contents, where files larger than {@link
+     * #PARALLEL_HASHING_THRESHOLD} are hashed as chunks of {@link #CHUNK_SIZE} bytes in parallel,
+     * and then the hashes of the chunks are hashed together. The hashes of large files are
+     * therefore different from those computed by {@link #MURMUR3_128}.
+     */
+    @NonNull
+    public static final FileHasher MURMUR3_128_PARALLEL =
+            new ChunkedFileHasher("murmur3_128-parallel", Hashing.murmur3_128(), true);
+
+    @NonNull
+    private static final List<FileHasher> HASHERS =
+            ImmutableList.of(SHA1, SHA256, MURMUR3_128, MURMUR3_128_PARALLEL);
+
+    /** Size of the chunks that large files are hashed in. */
+    @VisibleForTesting static final int CHUNK_SIZE = 16 * 1024 * 1024;
+
+    /** Size above which {@link #MURMUR3_128_PARALLEL} hashes files in parallel. */
+    @VisibleForTesting static final long PARALLEL_HASHING_THRESHOLD = 4L * CHUNK_SIZE;
+
+    /** Size of the buffer that files are read through. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Nullable private static volatile FileHasher configuredHasher;
+
+    @Nullable private static volatile FileHashMemo configuredMemo;
+
+    private FileHashers() {}
+
+    /**
+     * Returns the hasher with the given name (see {@link FileHasher#getName()}).
+     *
+     * @throws IllegalArgumentException if there is no hasher with this name
+     */
+    @NonNull
+    public static FileHasher forName(@NonNull String name) {
+        for (FileHasher hasher : HASHERS) {
+            if (hasher.getName().equals(name)) {
+                return hasher;
+            }
+        }
+        throw new IllegalArgumentException(
+                String.format(
+                        "Unknown file hash function '%1$s', expected one of %2$s",
+                        name,
+                        HASHERS.stream().map(FileHasher::getName).collect(Collectors.toList())));
+    }
+
+    /**
+     * Configures how caches hash files in this JVM.
+     *
+     * @param hasher the hasher to use instead of each cache's default hasher, or null to use the
+     *     defaults
+     * @param memo the memo to look up and record hashes in, or null to always hash files
+     */
+    public static void configure(@Nullable FileHasher hasher, @Nullable FileHashMemo memo) {
+        configuredHasher = hasher;
+        configuredMemo = memo;
+    }
+
+    /**
+     * Returns the hasher that a cache should use: the configured hasher, or the cache's default
+     * hasher if none is configured, looking up hashes in the configured memo if there is one.
+     */
+    @NonNull
+    public static FileHasher getHasherForCaches(@NonNull FileHasher defaultHasher) {
+        FileHasher hasher = configuredHasher;
+        FileHashMemo memo = configuredMemo;
+        if (hasher == null) {
+            hasher = defaultHasher;
+        }
+        return memo != null ? memo.memoize(hasher) : hasher;
+    }
+
+    /** A hasher that reads files as a stream. */
+    @Immutable
+    private static final class StreamingFileHasher implements FileHasher {
+
+        @NonNull private final String name;
+
+        @NonNull private final HashFunction hashFunction;
+
+        StreamingFileHasher(@NonNull String name, @NonNull HashFunction hashFunction) {
+            this.name = name;
+            this.hashFunction = hashFunction;
+        }
+
+        @NonNull
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @NonNull
+        @Override
+        public HashCode hash(@NonNull File file) throws IOException {
+            return Files.asByteSource(file).hash(hashFunction);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * A hasher that reads files through a buffer, and optionally hashes the chunks of large files
+     * in parallel.
+     *
+     * <p>Files are read rather than memory-mapped: the hash function consumes the bytes from a
+     * heap array either way, and a mapping would keep the file locked on Windows until it is
+     * garbage collected.
+     */
+    @Immutable
+    private static final class ChunkedFileHasher implements FileHasher {
+
+        @NonNull private final String name;
+
+        @NonNull private final HashFunction hashFunction;
+
+        private final boolean parallel;
+
+        ChunkedFileHasher(
+                @NonNull String name, @NonNull HashFunction hashFunction, boolean parallel) {
+            this.name = name;
+            this.hashFunction = hashFunction;
+            this.parallel = parallel;
+        }
+
+        @NonNull
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @NonNull
+        @Override
+        public HashCode hash(@NonNull File file) throws IOException {
+            Preconditions.checkArgument(file.isFile(), file + " is not a file.");
+            try (FileChannel channel =
+                    FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (!parallel || size <= PARALLEL_HASHING_THRESHOLD) {
+                    Hasher hasher = hashFunction.newHasher();
+                    putChunk(channel, 0, size, hasher, new byte[BUFFER_SIZE]);
+                    return hasher.hash();
+                }
+
+                int chunkCount = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+                List<HashCode> chunkHashes;
+                try {
+                    chunkHashes =
+                            IntStream.range(0, chunkCount)
+                                    .parallel()
+                                    .mapToObj(chunk -> hashChunk(channel, chunk, size))
+                                    .collect(Collectors.toList());
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                Hasher hasher = hashFunction.newHasher().putLong(size);
+                for (HashCode chunkHash : chunkHashes) {
+                    hasher.putBytes(chunkHash.asBytes());
+                }
+                return hasher.hash();
+            }
+        }
+
+        @NonNull
+        private HashCode hashChunk(@NonNull FileChannel channel, int chunk, long size) {
+            long position = (long) chunk * CHUNK_SIZE;
+            Hasher hasher = hashFunction.newHasher();
+            try {
+                putChunk(channel, position, Math.min(CHUNK_SIZE, size - position), hasher,
+                        new byte[BUFFER_SIZE]);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return hasher.hash();
+        }
+
+        private static void putChunk(
+                @NonNull FileChannel channel,
+                long position,
+                long length,
+                @NonNull Hasher hasher,
+                @NonNull byte[] buffer)
+                throws IOException {
+            // Positional reads do not move the channel's position, so that the chunks of a file
+            // can be read from the same channel in parallel.
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+            long end = position + length;
+            while (position < end) {
+                byteBuffer.clear();
+                byteBuffer.limit((int) Math.min(buffer.length, end - position));
+                int count = channel.read(byteBuffer, position);
+                if (count < 0) {
+                    throw new EOFException(
+                            String.format(
+                                    "Unexpected end of file at %1$d, expected %2$d bytes",
+                                    position, end));
+                }
+                hasher.putBytes(buffer, 0, count);
+                position += count;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -33,6 +33,9 @@ import java.io.OutputStream;
 import java.io.UTFDataFormatException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.AbstractList;
@@ -58,6 +61,13 @@ public final class Dex {
     // Note: libcore.util.EmptyArray cannot be accessed when this code isn't run on Dalvik.
     static final short[] EMPTY_SHORT_ARRAY = new short[0];
 
+    private static final int ZIP_LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int ZIP_CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int ZIP_END_HEADER_SIGNATURE = 0x06054b50;
+    private static final int ZIP_LOCAL_HEADER_SIZE = 30;
+    private static final int ZIP_CENTRAL_HEADER_SIZE = 46;
+    private static final int ZIP_END_HEADER_SIZE = 22;
+
     private ByteBuffer data;
     private final TableOfContents tableOfContents = new TableOfContents();
     private int nextSectionStart = 0;
@@ -82,6 +92,15 @@ public final class Dex {
         this.tableOfContents.readFrom(this);
     }
 
+    /**
+     * Creates a new dex that reads from the remaining bytes of {@code data} without copying them,
+     * e.g. from a slice of a memory mapped file. It is an error to modify the content of {@code
+     * data} after using it to create a dex buffer.
+     */
+    public static Dex wrap(ByteBuffer data) throws IOException {
+        return new Dex(data.slice());
+    }
+
     /**
      * Creates a new empty dex of the specified size.
      */
@@ -125,6 +144,126 @@ public final class Dex {
         }
     }
 
+    /**
+     * Creates a new dex that reads from a read-only memory mapping of {@code file} instead of
+     * copying it onto the heap. For archives, {@code classes.dex} is mapped in place when it is
+     * stored uncompressed; compressed entries are inflated as in {@link #Dex(File)}.
+     *
+     * <p>The returned dex cannot be written to. The mapping stays valid after this method
+     * returns and is released when the dex is garbage collected.
+     */
+    public static Dex openMapped(File file) throws IOException {
+        if (FileUtils.hasArchiveSuffix(file.getName())) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer mapped = mapStoredEntry(channel, DexFormat.DEX_IN_JAR_NAME);
+                if (mapped != null) {
+                    return new Dex(mapped);
+                }
+            }
+            return new Dex(file);
+        } else if (file.getName().endsWith(".dex")) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                return new Dex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        } else {
+            throw new DexException("unknown output extension: " + file);
+        }
+    }
+
+    /**
+     * Maps the data of the archive entry {@code name} if it is stored without compression.
+     * Returns null if the entry is missing, compressed, or the archive uses zip64, in which
+     * case the caller should fall back to {@link ZipFile}.
+     */
+    private static ByteBuffer mapStoredEntry(FileChannel channel, String name)
+            throws IOException {
+        long fileLength = channel.size();
+        if (fileLength < ZIP_END_HEADER_SIZE) {
+            return null;
+        }
+        // The end of central directory record is followed by a comment of up to 64 KiB.
+        int tailLength = (int) Math.min(fileLength, ZIP_END_HEADER_SIZE + 0xFFFF);
+        ByteBuffer tail = readFully(channel, fileLength - tailLength, tailLength);
+        int end = -1;
+        for (int i = tailLength - ZIP_END_HEADER_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == ZIP_END_HEADER_SIGNATURE) {
+                end = i;
+                break;
+            }
+        }
+        if (end == -1) {
+            return null;
+        }
+        int entryCount = tail.getShort(end + 10) & 0xFFFF;
+        long directorySize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+        long directoryOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+        if (entryCount == 0xFFFF || directorySize == 0xFFFFFFFFL
+                || directoryOffset == 0xFFFFFFFFL
+                || directoryOffset + directorySize > fileLength) {
+            return null;
+        }
+
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer directory = readFully(channel, directoryOffset, (int) directorySize);
+        int position = 0;
+        for (int i = 0; i < entryCount; i++) {
+            if (position + ZIP_CENTRAL_HEADER_SIZE > directory.limit()
+                    || directory.getInt(position) != ZIP_CENTRAL_HEADER_SIGNATURE) {
+                return null;
+            }
+            int method = directory.getShort(position + 10) & 0xFFFF;
+            long compressedSize = directory.getInt(position + 20) & 0xFFFFFFFFL;
+            long size = directory.getInt(position + 24) & 0xFFFFFFFFL;
+            int nameLength = directory.getShort(position + 28) & 0xFFFF;
+            int extraLength = directory.getShort(position + 30) & 0xFFFF;
+            int commentLength = directory.getShort(position + 32) & 0xFFFF;
+            long localHeaderOffset = directory.getInt(position + 42) & 0xFFFFFFFFL;
+
+            if (nameLength == nameBytes.length
+                    && regionEquals(directory, position + ZIP_CENTRAL_HEADER_SIZE, nameBytes)) {
+                if (method != ZipEntry.STORED || compressedSize != size
+                        || size == 0xFFFFFFFFL || localHeaderOffset == 0xFFFFFFFFL) {
+                    return null;
+                }
+                ByteBuffer localHeader =
+                        readFully(channel, localHeaderOffset, ZIP_LOCAL_HEADER_SIZE);
+                if (localHeader.getInt(0) != ZIP_LOCAL_HEADER_SIGNATURE) {
+                    return null;
+                }
+                long dataOffset = localHeaderOffset + ZIP_LOCAL_HEADER_SIZE
+                        + (localHeader.getShort(26) & 0xFFFF)
+                        + (localHeader.getShort(28) & 0xFFFF);
+                if (dataOffset + size > fileLength) {
+                    return null;
+                }
+                return channel.map(FileChannel.MapMode.READ_ONLY, dataOffset, size);
+            }
+            position += ZIP_CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return null;
+    }
+
+    private static boolean regionEquals(ByteBuffer buffer, int offset, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(offset + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new DexException("unexpected end of archive");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
     /**
      * It is the caller's responsibility to close {@code in}.
      */
@@ -36,6 +36,11 @@ import com.android.dx.command.dexer.DxContext;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Combine two dex files into one.
@@ -83,11 +88,30 @@ public final class DexMerger {
 
     private final TableOfContents contentsOut;
 
-    private final InstructionTransformer instructionTransformer;
+    /** writes code and debug info items straight into {@link #dexOut} */
+    private final CodeWriter codeWriter;
 
     /** minimum number of wasted bytes before it's worthwhile to compact the result */
     private int compactWasteThreshold = 1024 * 1024; // 1MiB
 
+    /** number of threads used to merge; 1 merges on the calling thread */
+    private int parallelism = 1;
+
+    /** pool of the caller to merge on instead of a pool owned by this merger, may be null */
+    private ForkJoinPool sharedPool;
+
+    /** only set while a parallel merge is running */
+    private ForkJoinPool pool;
+
+    /** code items rendered ahead of time by a parallel merge, keyed by input dex */
+    private Map<IndexMap, PreparedCode> preparedCodes;
+
+    /** type descriptors of classes to leave out, keyed by the index of their input dex */
+    private final Map<Integer, Set<String>> removedClasses = new HashMap<Integer, Set<String>>();
+
+    /** inputs whose instructions don't need rewriting; computed before writing class defs */
+    private Set<IndexMap> identityIndexMaps = Collections.emptySet();
+
     public DexMerger(Dex[] dexes, CollisionPolicy collisionPolicy, DxContext context)
             throws IOException {
         this(dexes, collisionPolicy, context, new WriterSizes(dexes));
@@ -106,7 +130,6 @@ public final class DexMerger {
         for (int i = 0; i < dexes.length; i++) {
             indexMaps[i] = new IndexMap(dexOut, dexes[i].getTableOfContents());
         }
-        instructionTransformer = new InstructionTransformer();
 
         headerOut = dexOut.appendSection(writerSizes.header, "header");
         idsDefsOut = dexOut.appendSection(writerSizes.idsDefs, "ids defs");
@@ -151,12 +174,35 @@ public final class DexMerger {
                 writerSizes.annotationsDirectory, "annotations directory");
 
         contentsOut.dataSize = dexOut.getNextSectionStart() - contentsOut.dataOff;
+
+        codeWriter = new CodeWriter(dexOut, codeOut, debugInfoOut);
     }
 
     public void setCompactWasteThreshold(int compactWasteThreshold) {
         this.compactWasteThreshold = compactWasteThreshold;
     }
 
+    /**
+     * Leaves the classes named by {@code typeDescriptors} in input {@code dexIndex} out of the
+     * result. Their IDs and annotations are still merged, so the result may contain unused
+     * entries.
+     */
+    void removeClasses(int dexIndex, Set<String> typeDescriptors) {
+        removedClasses.put(dexIndex, typeDescriptors);
+    }
+
+    /**
+     * Sets the number of threads used to merge. With more than one thread the sorted ID
+     * sections are read and k-way merged in parallel, and the code items of each input dex
+     * are transformed concurrently. The result is byte-identical to a serial merge.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism < 1: " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
     private Dex mergeDexes() throws IOException {
         mergeStringIds();
         mergeTypeIds();
@@ -187,6 +233,41 @@ public final class DexMerger {
         return dexOut;
     }
 
+    /**
+     * Merges on {@code pool} with its parallelism, instead of on a pool of {@link
+     * #setParallelism(int)} threads created for this merge. Merges running concurrently on the
+     * same pool then share its threads.
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.sharedPool = pool;
+    }
+
+    private Dex mergeDexesWithPool() throws IOException {
+        if (sharedPool != null) {
+            if (sharedPool.getParallelism() == 1) {
+                return mergeDexes();
+            }
+            pool = sharedPool;
+            try {
+                return mergeDexes();
+            } finally {
+                pool = null;
+                preparedCodes = null;
+            }
+        }
+        if (parallelism == 1) {
+            return mergeDexes();
+        }
+        pool = new ForkJoinPool(parallelism);
+        try {
+            return mergeDexes();
+        } finally {
+            pool.shutdown();
+            pool = null;
+            preparedCodes = null;
+        }
+    }
+
     public Dex merge() throws IOException {
         if (dexes.length == 1) {
             return dexes[0];
@@ -195,7 +276,7 @@ public final class DexMerger {
         }
 
         long start = System.nanoTime();
-        Dex result = mergeDexes();
+        Dex result = mergeDexesWithPool();
 
         /*
          * We use pessimistic sizes when merging dex files. If those sizes
@@ -207,7 +288,9 @@ public final class DexMerger {
         if (wastedByteCount >  + compactWasteThreshold) {
             DexMerger compacter = new DexMerger(
                     new Dex[] {dexOut, new Dex(0)}, CollisionPolicy.FAIL, context, compactedSizes);
-            result = compacter.mergeDexes();
+            compacter.parallelism = parallelism;
+            compacter.sharedPool = sharedPool;
+            result = compacter.mergeDexesWithPool();
             context.out.printf("Result compacted from %.1fKiB to %.1fKiB to save %.1fKiB%n",
                     dexOut.getLength() / 1024f,
                     result.getLength() / 1024f,
@@ -245,59 +328,169 @@ public final class DexMerger {
          * at a time.
          */
         public final void mergeSorted() {
-            TableOfContents.Section[] sections = new TableOfContents.Section[dexes.length];
+            if (pool != null) {
+                mergeSortedInParallel();
+                return;
+            }
             Dex.Section[] dexSections = new Dex.Section[dexes.length];
+            int[] sizes = new int[dexes.length];
             int[] offsets = new int[dexes.length];
             int[] indexes = new int[dexes.length];
 
-            // values contains one value from each dex, sorted for fast retrieval of
-            // the smallest value. The list associated with a value has the indexes
-            // of the dexes that had that value.
-            TreeMap<T, List<Integer>> values = new TreeMap<T, List<Integer>>();
+            // current holds the next value of each dex. heap holds the indexes of the dexes
+            // that have a next value, ordered by that value for fast retrieval of the
+            // smallest one.
+            @SuppressWarnings("unchecked")
+            T[] current = (T[]) new Comparable[dexes.length];
+            int[] heap = new int[dexes.length];
+            int heapSize = 0;
 
             for (int i = 0; i < dexes.length; i++) {
-                sections[i] = getSection(dexes[i].getTableOfContents());
-                dexSections[i] = sections[i].exists() ? dexes[i].open(sections[i].off) : null;
-                // Fill in values with the first value of each dex.
-                offsets[i] = readIntoMap(
-                        dexSections[i], sections[i], indexMaps[i], indexes[i], values, i);
+                TableOfContents.Section section = getSection(dexes[i].getTableOfContents());
+                sizes[i] = section.size;
+                if (section.exists() && section.size > 0) {
+                    dexSections[i] = dexes[i].open(section.off);
+                    // Fill in the first value of each dex.
+                    offsets[i] = dexSections[i].getPosition();
+                    current[i] = read(dexSections[i], indexMaps[i], 0);
+                    heap[heapSize] = i;
+                    siftUp(heap, heapSize++, current);
+                }
             }
-            if (values.isEmpty()) {
+            if (heapSize == 0) {
                 getSection(contentsOut).off = 0;
                 getSection(contentsOut).size = 0;
                 return;
             }
             getSection(contentsOut).off = out.getPosition();
 
+            int[] polled = new int[dexes.length];
             int outCount = 0;
-            while (!values.isEmpty()) {
-                Map.Entry<T, List<Integer>> first = values.pollFirstEntry();
-                for (Integer dex : first.getValue()) {
+            while (heapSize > 0) {
+                T value = current[heap[0]];
+                int polledCount = 0;
+                while (heapSize > 0 && current[heap[0]].compareTo(value) == 0) {
+                    polled[polledCount++] = heap[0];
+                    heap[0] = heap[--heapSize];
+                    siftDown(heap, heapSize, 0, current);
+                }
+                for (int p = 0; p < polledCount; p++) {
+                    int dex = polled[p];
                     updateIndex(offsets[dex], indexMaps[dex], indexes[dex]++, outCount);
                     // Fetch the next value of the dexes we just polled out
-                    offsets[dex] = readIntoMap(dexSections[dex], sections[dex],
-                            indexMaps[dex], indexes[dex], values, dex);
+                    if (indexes[dex] < sizes[dex]) {
+                        offsets[dex] = dexSections[dex].getPosition();
+                        current[dex] = read(dexSections[dex], indexMaps[dex], indexes[dex]);
+                        heap[heapSize] = dex;
+                        siftUp(heap, heapSize++, current);
+                    } else {
+                        current[dex] = null;
+                    }
                 }
-                write(first.getKey());
+                write(value);
                 outCount++;
             }
 
             getSection(contentsOut).size = outCount;
         }
 
-        private int readIntoMap(Dex.Section in, TableOfContents.Section section, IndexMap indexMap,
-                                int index, TreeMap<T, List<Integer>> values, int dex) {
-            int offset = in != null ? in.getPosition() : -1;
-            if (index < section.size) {
-                T v = read(in, indexMap, index);
-                List<Integer> l = values.get(v);
-                if (l == null) {
-                    l = new ArrayList<Integer>();
-                    values.put(v, l);
+        /** Orders dexes by their current value, and equal values by dex index. */
+        private boolean less(T[] current, int a, int b) {
+            int compare = current[a].compareTo(current[b]);
+            return compare < 0 || (compare == 0 && a < b);
+        }
+
+        private void siftUp(int[] heap, int pos, T[] current) {
+            int dex = heap[pos];
+            while (pos > 0) {
+                int parent = (pos - 1) >>> 1;
+                if (!less(current, dex, heap[parent])) {
+                    break;
+                }
+                heap[pos] = heap[parent];
+                pos = parent;
+            }
+            heap[pos] = dex;
+        }
+
+        private void siftDown(int[] heap, int heapSize, int pos, T[] current) {
+            if (heapSize == 0) {
+                return;
+            }
+            int dex = heap[pos];
+            while (true) {
+                int child = pos * 2 + 1;
+                if (child >= heapSize) {
+                    break;
+                }
+                if (child + 1 < heapSize && less(current, heap[child + 1], heap[child])) {
+                    child++;
+                }
+                if (!less(current, heap[child], dex)) {
+                    break;
                 }
-                l.add(dex);
+                heap[pos] = heap[child];
+                pos = child;
             }
-            return offset;
+            heap[pos] = dex;
+        }
+
+        /**
+         * Same result as {@link #mergeSorted}, but reads each dex's section on its own thread,
+         * merges the sorted runs pairwise in parallel and adjusts each dex's indices
+         * concurrently. Only writing the merged values is serial.
+         */
+        private void mergeSortedInParallel() {
+            final List<List<T>> runs = new ArrayList<List<T>>(dexes.length);
+            final int[][] offsets = new int[dexes.length][];
+            List<Callable<Void>> reads = new ArrayList<Callable<Void>>(dexes.length);
+            for (int i = 0; i < dexes.length; i++) {
+                runs.add(Collections.<T>emptyList());
+                final int dex = i;
+                reads.add(() -> {
+                    TableOfContents.Section section = getSection(dexes[dex].getTableOfContents());
+                    if (!section.exists()) {
+                        return null;
+                    }
+                    List<T> run = new ArrayList<T>(section.size);
+                    offsets[dex] = new int[section.size];
+                    Dex.Section in = dexes[dex].open(section.off);
+                    for (int index = 0; index < section.size; index++) {
+                        offsets[dex][index] = in.getPosition();
+                        run.add(read(in, indexMaps[dex], index));
+                    }
+                    runs.set(dex, run);
+                    return null;
+                });
+            }
+            invokeAll(reads);
+
+            final List<T> merged = pool.invoke(new SortedRunMerger<T>(runs, 0, runs.size()));
+            if (merged.isEmpty()) {
+                getSection(contentsOut).off = 0;
+                getSection(contentsOut).size = 0;
+                return;
+            }
+
+            List<Callable<Void>> updates = new ArrayList<Callable<Void>>(dexes.length);
+            for (int i = 0; i < dexes.length; i++) {
+                final int dex = i;
+                updates.add(() -> {
+                    List<T> run = runs.get(dex);
+                    for (int index = 0; index < run.size(); index++) {
+                        int newIndex = Collections.binarySearch(merged, run.get(index));
+                        updateIndex(offsets[dex][index], indexMaps[dex], index, newIndex);
+                    }
+                    return null;
+                });
+            }
+            invokeAll(updates);
+
+            getSection(contentsOut).off = out.getPosition();
+            for (T value : merged) {
+                write(value);
+            }
+            getSection(contentsOut).size = merged.size();
         }
 
         /**
@@ -307,73 +500,177 @@ public final class DexMerger {
         public final void mergeUnsorted() {
             getSection(contentsOut).off = out.getPosition();
 
-            List<UnsortedValue> all = new ArrayList<UnsortedValue>();
-            for (int i = 0; i < dexes.length; i++) {
-                all.addAll(readUnsortedValues(dexes[i], indexMaps[i]));
+            int count = 0;
+            for (Dex dex : dexes) {
+                TableOfContents.Section section = getSection(dex.getTableOfContents());
+                if (section.exists()) {
+                    count += section.size;
+                }
             }
-            if (all.isEmpty()) {
+            if (count == 0) {
                 getSection(contentsOut).off = 0;
                 getSection(contentsOut).size = 0;
                 return;
             }
-            Collections.sort(all);
+
+            // each value with the dex, index and offset it was read from, in parallel arrays
+            @SuppressWarnings("unchecked")
+            T[] values = (T[]) new Comparable[count];
+            int[] sources = new int[count];
+            int[] indexes = new int[count];
+            int[] offsets = new int[count];
+            int all = 0;
+            for (int i = 0; i < dexes.length; i++) {
+                TableOfContents.Section section = getSection(dexes[i].getTableOfContents());
+                if (!section.exists()) {
+                    continue;
+                }
+                Dex.Section in = dexes[i].open(section.off);
+                for (int index = 0; index < section.size; index++) {
+                    offsets[all] = in.getPosition();
+                    values[all] = read(in, indexMaps[i], 0);
+                    sources[all] = i;
+                    indexes[all] = index;
+                    all++;
+                }
+            }
+            int[] order = sortedOrder(values);
 
             int outCount = 0;
-            for (int i = 0; i < all.size(); ) {
-                UnsortedValue e1 = all.get(i++);
-                updateIndex(e1.offset, e1.indexMap, e1.index, outCount - 1);
+            for (int i = 0; i < count; ) {
+                int e1 = order[i++];
+                updateIndex(offsets[e1], indexMaps[sources[e1]], indexes[e1], outCount - 1);
 
-                while (i < all.size() && e1.compareTo(all.get(i)) == 0) {
-                    UnsortedValue e2 = all.get(i++);
-                    updateIndex(e2.offset, e2.indexMap, e2.index, outCount - 1);
+                while (i < count && values[e1].compareTo(values[order[i]]) == 0) {
+                    int e2 = order[i++];
+                    updateIndex(offsets[e2], indexMaps[sources[e2]], indexes[e2], outCount - 1);
                 }
 
-                write(e1.value);
+                write(values[e1]);
                 outCount++;
             }
 
             getSection(contentsOut).size = outCount;
         }
 
-        private List<UnsortedValue> readUnsortedValues(Dex source, IndexMap indexMap) {
-            TableOfContents.Section section = getSection(source.getTableOfContents());
-            if (!section.exists()) {
-                return Collections.emptyList();
+        /**
+         * Returns the positions of {@code values} in sorted order. Like
+         * {@link Collections#sort}, the sort is stable.
+         */
+        private int[] sortedOrder(T[] values) {
+            int[] order = new int[values.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
             }
-
-            List<UnsortedValue> result = new ArrayList<UnsortedValue>();
-            Dex.Section in = source.open(section.off);
-            for (int i = 0; i < section.size; i++) {
-                int offset = in.getPosition();
-                T value = read(in, indexMap, 0);
-                result.add(new UnsortedValue(source, indexMap, value, i, offset));
+            // bottom-up merge sort, alternating between order and scratch
+            int[] scratch = new int[values.length];
+            for (int width = 1; width < order.length; width *= 2) {
+                for (int from = 0; from < order.length; from += width * 2) {
+                    int mid = Math.min(from + width, order.length);
+                    int to = Math.min(from + width * 2, order.length);
+                    int a = from;
+                    int b = mid;
+                    for (int k = from; k < to; k++) {
+                        if (b >= to || (a < mid
+                                && values[order[a]].compareTo(values[order[b]]) <= 0)) {
+                            scratch[k] = order[a++];
+                        } else {
+                            scratch[k] = order[b++];
+                        }
+                    }
+                }
+                int[] swap = order;
+                order = scratch;
+                scratch = swap;
             }
-            return result;
+            return order;
         }
 
         abstract TableOfContents.Section getSection(TableOfContents tableOfContents);
         abstract T read(Dex.Section in, IndexMap indexMap, int index);
         abstract void updateIndex(int offset, IndexMap indexMap, int oldIndex, int newIndex);
         abstract void write(T value);
+    }
 
-        class UnsortedValue implements Comparable<UnsortedValue> {
-            final Dex source;
-            final IndexMap indexMap;
-            final T value;
-            final int index;
-            final int offset;
+    /**
+     * Merges sorted runs into one sorted list without duplicates, splitting the runs in
+     * halves that are merged on different threads.
+     */
+    private static final class SortedRunMerger<T extends Comparable<T>>
+            extends RecursiveTask<List<T>> {
+        private final List<List<T>> runs;
+        private final int from;
+        private final int to;
+
+        SortedRunMerger(List<List<T>> runs, int from, int to) {
+            this.runs = runs;
+            this.from = from;
+            this.to = to;
+        }
 
-            UnsortedValue(Dex source, IndexMap indexMap, T value, int index, int offset) {
-                this.source = source;
-                this.indexMap = indexMap;
-                this.value = value;
-                this.index = index;
-                this.offset = offset;
+        @Override
+        protected List<T> compute() {
+            if (to - from == 0) {
+                return Collections.emptyList();
             }
+            if (to - from == 1) {
+                return merge(runs.get(from), Collections.<T>emptyList());
+            }
+            int middle = (from + to) >>> 1;
+            SortedRunMerger<T> left = new SortedRunMerger<T>(runs, from, middle);
+            left.fork();
+            List<T> right = new SortedRunMerger<T>(runs, middle, to).compute();
+            return merge(left.join(), right);
+        }
 
-            @Override
-            public int compareTo(UnsortedValue unsortedValue) {
-                return value.compareTo(unsortedValue.value);
+        private static <T extends Comparable<T>> List<T> merge(List<T> a, List<T> b) {
+            List<T> result = new ArrayList<T>(a.size() + b.size());
+            int i = 0;
+            int j = 0;
+            while (i < a.size() || j < b.size()) {
+                T next;
+                if (j == b.size()) {
+                    next = a.get(i++);
+                } else if (i == a.size()) {
+                    next = b.get(j++);
+                } else {
+                    int compare = a.get(i).compareTo(b.get(j));
+                    if (compare < 0) {
+                        next = a.get(i++);
+                    } else if (compare > 0) {
+                        next = b.get(j++);
+                    } else {
+                        next = a.get(i++);
+                        j++;
+                    }
+                }
+                if (result.isEmpty() || result.get(result.size() - 1).compareTo(next) != 0) {
+                    result.add(next);
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Runs {@code tasks} on {@link #pool} and rethrows the first failure.
+     */
+    private void invokeAll(List<Callable<Void>> tasks) {
+        for (Future<Void> future : pool.invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DexException(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new DexException(cause);
             }
         }
     }
@@ -599,12 +896,51 @@ public final class DexMerger {
         contentsOut.classDefs.off = idsDefsOut.getPosition();
         contentsOut.classDefs.size = types.length;
 
+        identityIndexMaps = Collections.newSetFromMap(new IdentityHashMap<IndexMap, Boolean>());
+        for (IndexMap indexMap : indexMaps) {
+            if (indexMap.hasIdentityIndices()) {
+                identityIndexMaps.add(indexMap);
+            }
+        }
+        if (pool != null) {
+            prepareCode(types);
+        }
+
         for (SortableType type : types) {
             Dex in = type.getDex();
             transformClassDef(in, type.getClassDef(), type.getIndexMap());
         }
     }
 
+    /**
+     * Transforms the code items of every input dex on its own thread, so that writing the
+     * class defs only has to copy them.
+     */
+    private void prepareCode(final SortableType[] types) {
+        preparedCodes = new IdentityHashMap<IndexMap, PreparedCode>();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(dexes.length);
+        for (int i = 0; i < dexes.length; i++) {
+            final Dex in = dexes[i];
+            final IndexMap indexMap = indexMaps[i];
+            TableOfContents contents = in.getTableOfContents();
+            if (!contents.codes.exists()) {
+                continue;
+            }
+            final PreparedCode prepared;
+            try {
+                prepared = new PreparedCode(contents);
+            } catch (IOException e) {
+                throw new DexException(e);
+            }
+            preparedCodes.put(indexMap, prepared);
+            tasks.add(() -> {
+                prepared.transform(in, indexMap, identityIndexMaps.contains(indexMap), types);
+                return null;
+            });
+        }
+        invokeAll(tasks);
+    }
+
     /**
      * Returns the union of classes from both files, sorted in order such that
      * a class is always preceded by its supertype and implemented interfaces.
@@ -613,7 +949,9 @@ public final class DexMerger {
         // size is pessimistic; doesn't include arrays
         SortableType[] sortableTypes = new SortableType[contentsOut.typeIds.size];
         for (int i = 0; i < dexes.length; i++) {
-            readSortableTypes(sortableTypes, dexes[i], indexMaps[i]);
+            Set<String> removed = removedClasses.get(i);
+            readSortableTypes(sortableTypes, dexes[i], indexMaps[i],
+                    removed != null ? removed : Collections.<String>emptySet());
         }
 
         /*
@@ -649,8 +987,12 @@ public final class DexMerger {
      * it later.
      */
     private void readSortableTypes(SortableType[] sortableTypes, Dex buffer,
-            IndexMap indexMap) {
+            IndexMap indexMap, Set<String> removed) {
         for (ClassDef classDef : buffer.classDefs()) {
+            if (!removed.isEmpty()
+                    && removed.contains(buffer.typeNames().get(classDef.getTypeIndex()))) {
+                continue;
+            }
             SortableType sortableType = indexMap.adjust(
                     new SortableType(buffer, indexMap, classDef));
             int t = sortableType.getTypeIndex();
@@ -878,176 +1220,299 @@ public final class DexMerger {
             } else {
                 codeOut.alignToFourBytesWithZeroFill();
                 classDataOut.writeUleb128(codeOut.getPosition());
-                transformCode(in, in.readCode(method), indexMap);
+                PreparedCode prepared = preparedCodes != null ? preparedCodes.get(indexMap) : null;
+                if (prepared != null) {
+                    prepared.copyNext(dexOut, codeOut, debugInfoOut, contentsOut);
+                } else {
+                    Code code = in.readCode(method);
+                    contentsOut.codes.size++;
+                    if (code.getDebugInfoOffset() != 0) {
+                        contentsOut.debugInfos.size++;
+                    }
+                    codeWriter.transformCode(
+                            in, code, indexMap, identityIndexMaps.contains(indexMap));
+                }
             }
         }
     }
 
-    private void transformCode(Dex in, Code code, IndexMap indexMap) {
-        contentsOut.codes.size++;
-        codeOut.assertFourByteAligned();
+    /**
+     * Writes code items and the debug info items they point to. The serial merge writes
+     * straight into the output; a parallel merge gives each input dex a scratch dex.
+     */
+    private static final class CodeWriter {
+        private final Dex dex;
+        private final Dex.Section codeOut;
+        private final Dex.Section debugInfoOut;
+        private final InstructionTransformer instructionTransformer =
+                new InstructionTransformer();
+
+        CodeWriter(Dex dex, Dex.Section codeOut, Dex.Section debugInfoOut) {
+            this.dex = dex;
+            this.codeOut = codeOut;
+            this.debugInfoOut = debugInfoOut;
+        }
 
-        codeOut.writeUnsignedShort(code.getRegistersSize());
-        codeOut.writeUnsignedShort(code.getInsSize());
-        codeOut.writeUnsignedShort(code.getOutsSize());
+        /**
+         * @param identityIndices true to copy the instructions as they are, because
+         *     {@code indexMap} maps every index to itself
+         */
+        void transformCode(Dex in, Code code, IndexMap indexMap, boolean identityIndices) {
+            codeOut.assertFourByteAligned();
 
-        Code.Try[] tries = code.getTries();
-        Code.CatchHandler[] catchHandlers = code.getCatchHandlers();
-        codeOut.writeUnsignedShort(tries.length);
+            codeOut.writeUnsignedShort(code.getRegistersSize());
+            codeOut.writeUnsignedShort(code.getInsSize());
+            codeOut.writeUnsignedShort(code.getOutsSize());
 
-        int debugInfoOffset = code.getDebugInfoOffset();
-        if (debugInfoOffset != 0) {
-            codeOut.writeInt(debugInfoOut.getPosition());
-            transformDebugInfoItem(in.open(debugInfoOffset), indexMap);
-        } else {
-            codeOut.writeInt(0);
-        }
+            Code.Try[] tries = code.getTries();
+            Code.CatchHandler[] catchHandlers = code.getCatchHandlers();
+            codeOut.writeUnsignedShort(tries.length);
 
-        short[] instructions = code.getInstructions();
-        short[] newInstructions = instructionTransformer.transform(indexMap, instructions);
-        codeOut.writeInt(newInstructions.length);
-        codeOut.write(newInstructions);
-
-        if (tries.length > 0) {
-            if (newInstructions.length % 2 == 1) {
-                codeOut.writeShort((short) 0); // padding
-            }
-
-            /*
-             * We can't write the tries until we've written the catch handlers.
-             * Unfortunately they're in the opposite order in the dex file so we
-             * need to transform them out-of-order.
-             */
-            Dex.Section triesSection = dexOut.open(codeOut.getPosition());
-            codeOut.skip(tries.length * SizeOf.TRY_ITEM);
-            int[] offsets = transformCatchHandlers(indexMap, catchHandlers);
-            transformTries(triesSection, tries, offsets);
-        }
-    }
+            int debugInfoOffset = code.getDebugInfoOffset();
+            if (debugInfoOffset != 0) {
+                codeOut.writeInt(debugInfoOut.getPosition());
+                transformDebugInfoItem(in.open(debugInfoOffset), indexMap);
+            } else {
+                codeOut.writeInt(0);
+            }
 
-    /**
-     * Writes the catch handlers to {@code codeOut} and returns their indices.
-     */
-    private int[] transformCatchHandlers(IndexMap indexMap, Code.CatchHandler[] catchHandlers) {
-        int baseOffset = codeOut.getPosition();
-        codeOut.writeUleb128(catchHandlers.length);
-        int[] offsets = new int[catchHandlers.length];
-        for (int i = 0; i < catchHandlers.length; i++) {
-            offsets[i] = codeOut.getPosition() - baseOffset;
-            transformEncodedCatchHandler(catchHandlers[i], indexMap);
-        }
-        return offsets;
-    }
+            short[] instructions = code.getInstructions();
+            short[] newInstructions = identityIndices
+                    ? instructions
+                    : instructionTransformer.transform(indexMap, instructions);
+            codeOut.writeInt(newInstructions.length);
+            codeOut.write(newInstructions);
 
-    private void transformTries(Dex.Section out, Code.Try[] tries,
-            int[] catchHandlerOffsets) {
-        for (Code.Try tryItem : tries) {
-            out.writeInt(tryItem.getStartAddress());
-            out.writeUnsignedShort(tryItem.getInstructionCount());
-            out.writeUnsignedShort(catchHandlerOffsets[tryItem.getCatchHandlerIndex()]);
-        }
-    }
+            if (tries.length > 0) {
+                if (newInstructions.length % 2 == 1) {
+                    codeOut.writeShort((short) 0); // padding
+                }
 
-    private static final byte DBG_END_SEQUENCE = 0x00;
-    private static final byte DBG_ADVANCE_PC = 0x01;
-    private static final byte DBG_ADVANCE_LINE = 0x02;
-    private static final byte DBG_START_LOCAL = 0x03;
-    private static final byte DBG_START_LOCAL_EXTENDED = 0x04;
-    private static final byte DBG_END_LOCAL = 0x05;
-    private static final byte DBG_RESTART_LOCAL = 0x06;
-    private static final byte DBG_SET_PROLOGUE_END = 0x07;
-    private static final byte DBG_SET_EPILOGUE_BEGIN = 0x08;
-    private static final byte DBG_SET_FILE = 0x09;
-
-    private void transformDebugInfoItem(Dex.Section in, IndexMap indexMap) {
-        contentsOut.debugInfos.size++;
-        int lineStart = in.readUleb128();
-        debugInfoOut.writeUleb128(lineStart);
-
-        int parametersSize = in.readUleb128();
-        debugInfoOut.writeUleb128(parametersSize);
-
-        for (int p = 0; p < parametersSize; p++) {
-            int parameterName = in.readUleb128p1();
-            debugInfoOut.writeUleb128p1(indexMap.adjustString(parameterName));
+                /*
+                 * We can't write the tries until we've written the catch handlers.
+                 * Unfortunately they're in the opposite order in the dex file so we
+                 * need to transform them out-of-order.
+                 */
+                Dex.Section triesSection = dex.open(codeOut.getPosition());
+                codeOut.skip(tries.length * SizeOf.TRY_ITEM);
+                int[] offsets = transformCatchHandlers(indexMap, catchHandlers);
+                transformTries(triesSection, tries, offsets);
+            }
         }
 
-        int addrDiff;    // uleb128   address delta.
-        int lineDiff;    // sleb128   line delta.
-        int registerNum; // uleb128   register number.
-        int nameIndex;   // uleb128p1 string index.    Needs indexMap adjustment.
-        int typeIndex;   // uleb128p1 type index.      Needs indexMap adjustment.
-        int sigIndex;    // uleb128p1 string index.    Needs indexMap adjustment.
-
-        while (true) {
-            int opcode = in.readByte();
-            debugInfoOut.writeByte(opcode);
-
-            switch (opcode) {
-            case DBG_END_SEQUENCE:
-                return;
+        /**
+         * Writes the catch handlers to {@code codeOut} and returns their indices.
+         */
+        private int[] transformCatchHandlers(IndexMap indexMap, Code.CatchHandler[] catchHandlers) {
+            int baseOffset = codeOut.getPosition();
+            codeOut.writeUleb128(catchHandlers.length);
+            int[] offsets = new int[catchHandlers.length];
+            for (int i = 0; i < catchHandlers.length; i++) {
+                offsets[i] = codeOut.getPosition() - baseOffset;
+                transformEncodedCatchHandler(catchHandlers[i], indexMap);
+            }
+            return offsets;
+        }
 
-            case DBG_ADVANCE_PC:
-                addrDiff = in.readUleb128();
-                debugInfoOut.writeUleb128(addrDiff);
-                break;
+        private void transformTries(Dex.Section out, Code.Try[] tries,
+                int[] catchHandlerOffsets) {
+            for (Code.Try tryItem : tries) {
+                out.writeInt(tryItem.getStartAddress());
+                out.writeUnsignedShort(tryItem.getInstructionCount());
+                out.writeUnsignedShort(catchHandlerOffsets[tryItem.getCatchHandlerIndex()]);
+            }
+        }
 
-            case DBG_ADVANCE_LINE:
-                lineDiff = in.readSleb128();
-                debugInfoOut.writeSleb128(lineDiff);
-                break;
+        private static final byte DBG_END_SEQUENCE = 0x00;
+        private static final byte DBG_ADVANCE_PC = 0x01;
+        private static final byte DBG_ADVANCE_LINE = 0x02;
+        private static final byte DBG_START_LOCAL = 0x03;
+        private static final byte DBG_START_LOCAL_EXTENDED = 0x04;
+        private static final byte DBG_END_LOCAL = 0x05;
+        private static final byte DBG_RESTART_LOCAL = 0x06;
+        private static final byte DBG_SET_PROLOGUE_END = 0x07;
+        private static final byte DBG_SET_EPILOGUE_BEGIN = 0x08;
+        private static final byte DBG_SET_FILE = 0x09;
+
+        private void transformDebugInfoItem(Dex.Section in, IndexMap indexMap) {
+            int lineStart = in.readUleb128();
+            debugInfoOut.writeUleb128(lineStart);
+
+            int parametersSize = in.readUleb128();
+            debugInfoOut.writeUleb128(parametersSize);
+
+            for (int p = 0; p < parametersSize; p++) {
+                int parameterName = in.readUleb128p1();
+                debugInfoOut.writeUleb128p1(indexMap.adjustString(parameterName));
+            }
 
-            case DBG_START_LOCAL:
-            case DBG_START_LOCAL_EXTENDED:
-                registerNum = in.readUleb128();
-                debugInfoOut.writeUleb128(registerNum);
-                nameIndex = in.readUleb128p1();
-                debugInfoOut.writeUleb128p1(indexMap.adjustString(nameIndex));
-                typeIndex = in.readUleb128p1();
-                debugInfoOut.writeUleb128p1(indexMap.adjustType(typeIndex));
-                if (opcode == DBG_START_LOCAL_EXTENDED) {
-                    sigIndex = in.readUleb128p1();
-                    debugInfoOut.writeUleb128p1(indexMap.adjustString(sigIndex));
+            int addrDiff;    // uleb128   address delta.
+            int lineDiff;    // sleb128   line delta.
+            int registerNum; // uleb128   register number.
+            int nameIndex;   // uleb128p1 string index.    Needs indexMap adjustment.
+            int typeIndex;   // uleb128p1 type index.      Needs indexMap adjustment.
+            int sigIndex;    // uleb128p1 string index.    Needs indexMap adjustment.
+
+            while (true) {
+                int opcode = in.readByte();
+                debugInfoOut.writeByte(opcode);
+
+                switch (opcode) {
+                case DBG_END_SEQUENCE:
+                    return;
+
+                case DBG_ADVANCE_PC:
+                    addrDiff = in.readUleb128();
+                    debugInfoOut.writeUleb128(addrDiff);
+                    break;
+
+                case DBG_ADVANCE_LINE:
+                    lineDiff = in.readSleb128();
+                    debugInfoOut.writeSleb128(lineDiff);
+                    break;
+
+                case DBG_START_LOCAL:
+                case DBG_START_LOCAL_EXTENDED:
+                    registerNum = in.readUleb128();
+                    debugInfoOut.writeUleb128(registerNum);
+                    nameIndex = in.readUleb128p1();
+                    debugInfoOut.writeUleb128p1(indexMap.adjustString(nameIndex));
+                    typeIndex = in.readUleb128p1();
+                    debugInfoOut.writeUleb128p1(indexMap.adjustType(typeIndex));
+                    if (opcode == DBG_START_LOCAL_EXTENDED) {
+                        sigIndex = in.readUleb128p1();
+                        debugInfoOut.writeUleb128p1(indexMap.adjustString(sigIndex));
+                    }
+                    break;
+
+                case DBG_END_LOCAL:
+                case DBG_RESTART_LOCAL:
+                    registerNum = in.readUleb128();
+                    debugInfoOut.writeUleb128(registerNum);
+                    break;
+
+                case DBG_SET_FILE:
+                    nameIndex = in.readUleb128p1();
+                    debugInfoOut.writeUleb128p1(indexMap.adjustString(nameIndex));
+                    break;
+
+                case DBG_SET_PROLOGUE_END:
+                case DBG_SET_EPILOGUE_BEGIN:
+                default:
+                    break;
                 }
-                break;
+            }
+        }
 
-            case DBG_END_LOCAL:
-            case DBG_RESTART_LOCAL:
-                registerNum = in.readUleb128();
-                debugInfoOut.writeUleb128(registerNum);
-                break;
+        private void transformEncodedCatchHandler(Code.CatchHandler catchHandler, IndexMap indexMap) {
+            int catchAllAddress = catchHandler.getCatchAllAddress();
+            int[] typeIndexes = catchHandler.getTypeIndexes();
+            int[] addresses = catchHandler.getAddresses();
 
-            case DBG_SET_FILE:
-                nameIndex = in.readUleb128p1();
-                debugInfoOut.writeUleb128p1(indexMap.adjustString(nameIndex));
-                break;
+            if (catchAllAddress != -1) {
+                codeOut.writeSleb128(-typeIndexes.length);
+            } else {
+                codeOut.writeSleb128(typeIndexes.length);
+            }
 
-            case DBG_SET_PROLOGUE_END:
-            case DBG_SET_EPILOGUE_BEGIN:
-            default:
-                break;
+            for (int i = 0; i < typeIndexes.length; i++) {
+                codeOut.writeUleb128(indexMap.adjustType(typeIndexes[i]));
+                codeOut.writeUleb128(addresses[i]);
+            }
+
+            if (catchAllAddress != -1) {
+                codeOut.writeUleb128(catchAllAddress);
             }
         }
     }
 
-    private void transformEncodedCatchHandler(Code.CatchHandler catchHandler, IndexMap indexMap) {
-        int catchAllAddress = catchHandler.getCatchAllAddress();
-        int[] typeIndexes = catchHandler.getTypeIndexes();
-        int[] addresses = catchHandler.getAddresses();
+    /**
+     * Code and debug info items of one input dex, transformed into a scratch dex on a worker
+     * thread in the same order the class defs are written, so they can be copied into the
+     * output as-is.
+     */
+    private static final class PreparedCode {
+        /** offset of debug_info_off within a code_item */
+        private static final int DEBUG_INFO_OFFSET = 4 * SizeOf.USHORT;
+
+        private final Dex scratch;
+        private final Dex.Section codeOut;
+        private final Dex.Section debugInfoOut;
+        /** codeStart, codeEnd, debugInfoStart (-1 if none), debugInfoEnd per code item */
+        private int[] items = new int[64];
+        private int size;
+        private int next;
+
+        PreparedCode(TableOfContents contents) throws IOException {
+            // same pessimistic bounds as WriterSizes
+            int codeSize = fourByteAlign((int) Math.ceil(contents.codes.byteCount * 1.25));
+            int debugInfoSize = fourByteAlign(contents.debugInfos.byteCount * 2);
+            scratch = new Dex(codeSize + debugInfoSize);
+            codeOut = scratch.appendSection(codeSize, "code");
+            debugInfoOut = scratch.appendSection(debugInfoSize, "debug info");
+        }
 
-        if (catchAllAddress != -1) {
-            codeOut.writeSleb128(-typeIndexes.length);
-        } else {
-            codeOut.writeSleb128(typeIndexes.length);
+        void transform(Dex in, IndexMap indexMap, boolean identityIndices,
+                SortableType[] types) {
+            CodeWriter writer = new CodeWriter(scratch, codeOut, debugInfoOut);
+            for (SortableType type : types) {
+                ClassDef classDef = type.getClassDef();
+                if (type.getIndexMap() != indexMap || classDef.getClassDataOffset() == 0) {
+                    continue;
+                }
+                ClassData classData = in.readClassData(classDef);
+                transform(writer, in, indexMap, identityIndices, classData.getDirectMethods());
+                transform(writer, in, indexMap, identityIndices, classData.getVirtualMethods());
+            }
+        }
+
+        private void transform(CodeWriter writer, Dex in, IndexMap indexMap,
+                boolean identityIndices, ClassData.Method[] methods) {
+            for (ClassData.Method method : methods) {
+                if (method.getCodeOffset() == 0) {
+                    continue;
+                }
+                codeOut.alignToFourBytesWithZeroFill();
+                int codeStart = codeOut.getPosition();
+                Code code = in.readCode(method);
+                int debugInfoStart = code.getDebugInfoOffset() != 0
+                        ? debugInfoOut.getPosition() : -1;
+                writer.transformCode(in, code, indexMap, identityIndices);
+
+                if (size + 4 > items.length) {
+                    items = Arrays.copyOf(items, items.length * 2);
+                }
+                items[size++] = codeStart;
+                items[size++] = codeOut.getPosition();
+                items[size++] = debugInfoStart;
+                items[size++] = debugInfoOut.getPosition();
+            }
         }
 
-        for (int i = 0; i < typeIndexes.length; i++) {
-            codeOut.writeUleb128(indexMap.adjustType(typeIndexes[i]));
-            codeOut.writeUleb128(addresses[i]);
+        /**
+         * Copies the next code item to {@code codeOut} and its debug info to
+         * {@code debugInfoOut}, pointing the code item at the copied debug info.
+         */
+        void copyNext(Dex dexOut, Dex.Section codeOut, Dex.Section debugInfoOut,
+                TableOfContents contentsOut) {
+            int codeStart = items[next++];
+            int codeEnd = items[next++];
+            int debugInfoStart = items[next++];
+            int debugInfoEnd = items[next++];
+
+            contentsOut.codes.size++;
+            int codeOutStart = codeOut.getPosition();
+            codeOut.write(scratch.open(codeStart).readByteArray(codeEnd - codeStart));
+            if (debugInfoStart != -1) {
+                contentsOut.debugInfos.size++;
+                dexOut.open(codeOutStart + DEBUG_INFO_OFFSET).writeInt(debugInfoOut.getPosition());
+                debugInfoOut.write(
+                        scratch.open(debugInfoStart).readByteArray(debugInfoEnd - debugInfoStart));
+            }
         }
 
-        if (catchAllAddress != -1) {
-            codeOut.writeUleb128(catchAllAddress);
+        private static int fourByteAlign(int position) {
+            return (position + 3) & ~3;
         }
     }
 
@@ -1185,7 +1650,7 @@ public final class DexMerger {
 
         Dex[] dexes = new Dex[args.length - 1];
         for (int i = 1; i < args.length; i++) {
-            dexes[i - 1] = new Dex(new File(args[i]));
+            dexes[i - 1] = Dex.openMapped(new File(args[i]));
         }
         Dex merged = new DexMerger(dexes, CollisionPolicy.KEEP_FIRST, new DxContext()).merge();
         merged.writeTo(new File(args[0]));
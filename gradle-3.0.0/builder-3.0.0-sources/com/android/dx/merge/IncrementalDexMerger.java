@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.merge;
+
+import com.android.dex.Dex;
+import com.android.dx.command.dexer.DxContext;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Updates a dex produced by an earlier merge instead of merging all of its inputs again.
+ * Classes that were removed or changed are dropped from the previous result, and the dexes
+ * holding the changed and added classes are merged in.
+ *
+ * <p>The previous result acts as one large input, so only the ID sections that gained entries
+ * are re-sorted against it. When none of its indices move, its code is copied without
+ * rewriting instructions. IDs and annotations only referenced by dropped classes stay in the
+ * result; a full merge of the original inputs removes them.
+ */
+public final class IncrementalDexMerger {
+    private final Dex previous;
+    private final Set<String> removedTypes;
+    private final Dex[] added;
+    private final DxContext context;
+    private int parallelism = 1;
+
+    private ForkJoinPool pool;
+
+    /**
+     * @param previous the dex written by the previous merge
+     * @param removedTypes type descriptors, like {@code Lcom/example/Foo;}, of the classes to
+     *     drop from {@code previous}. This must include every class in {@code added} that
+     *     {@code previous} already defines.
+     * @param added dexes of the changed and added classes
+     */
+    public IncrementalDexMerger(Dex previous, Set<String> removedTypes, Dex[] added,
+            DxContext context) {
+        this.previous = previous;
+        this.removedTypes = removedTypes;
+        this.added = added;
+        this.context = context;
+    }
+
+    /** @see DexMerger#setParallelism(int) */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /** @see DexMerger#setPool(ForkJoinPool) */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public Dex merge() throws IOException {
+        // always merge at least two dexes, DexMerger returns a single input as-is
+        Dex[] dexes = new Dex[Math.max(2, added.length + 1)];
+        dexes[0] = previous;
+        System.arraycopy(added, 0, dexes, 1, added.length);
+        for (int i = added.length + 1; i < dexes.length; i++) {
+            dexes[i] = new Dex(0);
+        }
+
+        DexMerger merger = new DexMerger(dexes, CollisionPolicy.FAIL, context);
+        merger.setParallelism(parallelism);
+        merger.setPool(pool);
+        merger.removeClasses(0, removedTypes);
+        return merger.merge();
+    }
+}
@@ -51,7 +51,6 @@ import com.android.dex.ProtoId;
 import com.android.dex.TableOfContents;
 import com.android.dex.TypeList;
 import com.android.dx.util.ByteArrayAnnotatedOutput;
-import java.util.HashMap;
 
 /**
  * Maps the index offsets from one dex file to those in another. For example, if
@@ -66,13 +65,13 @@ public final class IndexMap {
     public final short[] fieldIds;
     public final short[] methodIds;
     public final int[] callSiteIds;
-    public final HashMap<Integer, Integer> methodHandleIds;
-    private final HashMap<Integer, Integer> typeListOffsets;
-    private final HashMap<Integer, Integer> annotationOffsets;
-    private final HashMap<Integer, Integer> annotationSetOffsets;
-    private final HashMap<Integer, Integer> annotationSetRefListOffsets;
-    private final HashMap<Integer, Integer> annotationDirectoryOffsets;
-    private final HashMap<Integer, Integer> encodedArrayValueOffset;
+    final IntIntMap methodHandleIds;
+    private final IntIntMap typeListOffsets;
+    private final IntIntMap annotationOffsets;
+    private final IntIntMap annotationSetOffsets;
+    private final IntIntMap annotationSetRefListOffsets;
+    private final IntIntMap annotationDirectoryOffsets;
+    private final IntIntMap encodedArrayValueOffset;
 
     public IndexMap(Dex target, TableOfContents tableOfContents) {
         this.target = target;
@@ -82,13 +81,16 @@ public final class IndexMap {
         this.fieldIds = new short[tableOfContents.fieldIds.size];
         this.methodIds = new short[tableOfContents.methodIds.size];
         this.callSiteIds = new int[tableOfContents.callSiteIds.size];
-        this.methodHandleIds = new HashMap<Integer, Integer>();
-        this.typeListOffsets = new HashMap<Integer, Integer>();
-        this.annotationOffsets = new HashMap<Integer, Integer>();
-        this.annotationSetOffsets = new HashMap<Integer, Integer>();
-        this.annotationSetRefListOffsets = new HashMap<Integer, Integer>();
-        this.annotationDirectoryOffsets = new HashMap<Integer, Integer>();
-        this.encodedArrayValueOffset = new HashMap<Integer, Integer>();
+        // sized for the entries of each section, plus offset 0 where it is always mapped
+        this.methodHandleIds = new IntIntMap(tableOfContents.methodHandles.size);
+        this.typeListOffsets = new IntIntMap(tableOfContents.typeLists.size + 1);
+        this.annotationOffsets = new IntIntMap(tableOfContents.annotations.size);
+        this.annotationSetOffsets = new IntIntMap(tableOfContents.annotationSets.size + 1);
+        this.annotationSetRefListOffsets =
+                new IntIntMap(tableOfContents.annotationSetRefLists.size);
+        this.annotationDirectoryOffsets =
+                new IntIntMap(tableOfContents.annotationsDirectories.size + 1);
+        this.encodedArrayValueOffset = new IntIntMap(tableOfContents.encodedArrays.size + 1);
 
         /*
          * A type list, annotation set, annotation directory, or static value at
@@ -142,6 +144,44 @@ public final class IndexMap {
         encodedArrayValueOffset.put(oldOffset, newOffset);
     }
 
+    /**
+     * Returns true if every string, type, proto, field, method and call site index maps to
+     * itself, in which case instructions can be copied without rewriting them.
+     */
+    boolean hasIdentityIndices() {
+        for (int i = 0; i < stringIds.length; i++) {
+            if (stringIds[i] != i) {
+                return false;
+            }
+        }
+        for (int i = 0; i < typeIds.length; i++) {
+            if ((typeIds[i] & 0xffff) != i) {
+                return false;
+            }
+        }
+        for (int i = 0; i < protoIds.length; i++) {
+            if ((protoIds[i] & 0xffff) != i) {
+                return false;
+            }
+        }
+        for (int i = 0; i < fieldIds.length; i++) {
+            if ((fieldIds[i] & 0xffff) != i) {
+                return false;
+            }
+        }
+        for (int i = 0; i < methodIds.length; i++) {
+            if ((methodIds[i] & 0xffff) != i) {
+                return false;
+            }
+        }
+        for (int i = 0; i < callSiteIds.length; i++) {
+            if (callSiteIds[i] != i) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public int adjustString(int stringIndex) {
         return stringIndex == ClassDef.NO_INDEX ? ClassDef.NO_INDEX : stringIds[stringIndex];
     }
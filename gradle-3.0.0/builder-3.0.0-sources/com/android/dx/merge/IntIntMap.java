@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.merge;
+
+import java.util.Arrays;
+
+/**
+ * Maps non-negative ints to ints, like a {@code HashMap<Integer, Integer>} without boxing or
+ * per-entry objects. Keys and values live in one array, probed linearly.
+ */
+final class IntIntMap {
+    private static final int FREE = -1;
+
+    /** alternating keys and values; a slot is unused if its key is {@link #FREE} */
+    private int[] slots;
+    private int mask;
+    private int size;
+
+    /**
+     * @param expectedSize number of entries that fit without growing
+     */
+    IntIntMap(int expectedSize) {
+        // keep the load factor at or below 1/2
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize) * 2 - 1) << 1;
+        slots = new int[capacity * 2];
+        Arrays.fill(slots, FREE);
+        mask = capacity - 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void put(int key, int value) {
+        if (key < 0) {
+            throw new IllegalArgumentException("key < 0: " + key);
+        }
+        int slot = find(key);
+        if (slots[slot] == FREE) {
+            if (size * 2 >= mask + 1) {
+                grow();
+                slot = find(key);
+            }
+            slots[slot] = key;
+            size++;
+        }
+        slots[slot + 1] = value;
+    }
+
+    int get(int key) {
+        int slot = key < 0 ? -1 : find(key);
+        if (slot == -1 || slots[slot] == FREE) {
+            throw new IllegalArgumentException("no mapping for " + key);
+        }
+        return slots[slot + 1];
+    }
+
+    /** Returns the slot holding {@code key}, or the free slot where it belongs. */
+    private int find(int key) {
+        int i = mix(key) & mask;
+        while (true) {
+            int k = slots[i * 2];
+            if (k == key || k == FREE) {
+                return i * 2;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    private void grow() {
+        int[] old = slots;
+        int capacity = (mask + 1) * 2;
+        slots = new int[capacity * 2];
+        Arrays.fill(slots, FREE);
+        mask = capacity - 1;
+        for (int i = 0; i < old.length; i += 2) {
+            if (old[i] != FREE) {
+                int slot = find(old[i]);
+                slots[slot] = old[i];
+                slots[slot + 1] = old[i + 1];
+            }
+        }
+    }
+
+    /** offsets are mostly 4-byte aligned, spread them over all slots */
+    private static int mix(int key) {
+        int h = key * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
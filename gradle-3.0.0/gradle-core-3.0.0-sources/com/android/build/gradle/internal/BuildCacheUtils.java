@@ -20,11 +20,16 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
 import com.android.build.gradle.options.BooleanOption;
+import com.android.build.gradle.options.IntegerOption;
+import com.android.build.gradle.options.LongOption;
 import com.android.build.gradle.options.ProjectOptions;
 import com.android.build.gradle.options.StringOption;
 import com.android.builder.utils.FileCache;
 import com.android.prefs.AndroidLocation;
+import com.google.common.io.Files;
 import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import org.gradle.api.Project;
@@ -40,6 +45,9 @@ public final class BuildCacheUtils {
                     + "If you are unable to fix the issue,"
                     + " please file a bug at https://d.android.com/studio/report-bugs.html.";
 
+    /** How often the entries of a build cache are evicted, across all the builds using it. */
+    private static final long EVICTION_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(1);
+
     /**
      * Returns a {@link FileCache} instance representing the build cache if the build cache is
      * enabled, or null if it is disabled. If enabled, the build cache directory is set to a
@@ -51,7 +59,12 @@ public final class BuildCacheUtils {
     @Nullable
     public static FileCache createBuildCacheIfEnabled(
             @NonNull Project project, @NonNull ProjectOptions projectOptions) {
-        return createBuildCacheIfEnabled(project.getRootProject()::file, projectOptions);
+        FileCache buildCache =
+                createBuildCacheIfEnabled(project.getRootProject()::file, projectOptions);
+        if (buildCache != null) {
+            scheduleEvictionIfEnabled(buildCache, projectOptions);
+        }
+        return buildCache;
     }
 
     @Nullable
@@ -83,9 +96,86 @@ public final class BuildCacheUtils {
             return FileCache.getInstanceWithMultiProcessLocking(
                     buildCacheDirOverride != null
                             ? rootProjectFile.apply(buildCacheDirOverride)
-                            : defaultBuildCacheDirSupplier.get());
+                            : defaultBuildCacheDirSupplier.get(),
+                    projectOptions.get(BooleanOption.ENABLE_BUILD_CACHE_IN_PROCESS_INDEX));
         } else {
             return null;
         }
     }
+
+    /**
+     * Registers the eviction of the build cache's unused entries at the end of the build, if a
+     * maximum size or a maximum unused time is set for the build cache.
+     *
+     * <p>The eviction runs on a background thread after the build, at most once every {@link
+     * #EVICTION_INTERVAL_MILLIS} for each build cache directory across all builds, so that it does
+     * not slow down builds.
+     */
+    private static void scheduleEvictionIfEnabled(
+            @NonNull FileCache buildCache, @NonNull ProjectOptions projectOptions) {
+        Long maxSizeMb = projectOptions.get(LongOption.BUILD_CACHE_MAX_SIZE_MB);
+        Integer maxUnusedDays = projectOptions.get(IntegerOption.BUILD_CACHE_MAX_UNUSED_DAYS);
+        if (maxSizeMb == null && maxUnusedDays == null) {
+            return;
+        }
+        long maxSizeInBytes = maxSizeMb != null ? maxSizeMb * 1024 * 1024 : Long.MAX_VALUE;
+        long maxUnusedTimeMillis =
+                maxUnusedDays != null ? TimeUnit.DAYS.toMillis(maxUnusedDays) : Long.MAX_VALUE;
+
+        // All the projects of a build usually share the same build cache, so the action is
+        // registered once per build cache directory
+        BuildSessionImpl.getSingleton()
+                .executeOnceWhenBuildFinished(
+                        BuildCacheUtils.class.getName(),
+                        "evictBuildCacheEntries:" + buildCache.getCacheDirectory().getPath(),
+                        () ->
+                                startEvictionThread(
+                                        buildCache, maxSizeInBytes, maxUnusedTimeMillis));
+    }
+
+    private static void startEvictionThread(
+            @NonNull FileCache buildCache, long maxSizeInBytes, long maxUnusedTimeMillis) {
+        Thread thread =
+                new Thread(
+                        () -> evictIfDue(buildCache, maxSizeInBytes, maxUnusedTimeMillis),
+                        "build-cache-eviction");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Evicts the build cache's unused entries (see {@link FileCache#evict(long, long)}) unless it
+     * has been done within the last {@link #EVICTION_INTERVAL_MILLIS}. Failures are logged, since
+     * they do not affect the build.
+     */
+    @VisibleForTesting
+    static void evictIfDue(
+            @NonNull FileCache buildCache, long maxSizeInBytes, long maxUnusedTimeMillis) {
+        LoggerWrapper logger = LoggerWrapper.getLogger(BuildCacheUtils.class);
+        File cacheDirectory = buildCache.getCacheDirectory();
+        // The marker file is placed next to the cache directory since only FileCache may write
+        // inside it
+        File evictionMarker =
+                new File(cacheDirectory.getParentFile(), cacheDirectory.getName() + ".evicted");
+        if (System.currentTimeMillis() - evictionMarker.lastModified()
+                < EVICTION_INTERVAL_MILLIS) {
+            return;
+        }
+        try {
+            Files.createParentDirs(evictionMarker);
+            Files.touch(evictionMarker);
+            FileCache.EvictionResult result = buildCache.evict(maxSizeInBytes, maxUnusedTimeMillis);
+            logger.info(
+                    "Evicted %1$d entries (%2$d MB) from the build cache at %3$s, %4$d MB left",
+                    result.getEvictedEntryCount(),
+                    result.getEvictedSizeInBytes() / (1024 * 1024),
+                    cacheDirectory.getAbsolutePath(),
+                    result.getRemainingSizeInBytes() / (1024 * 1024));
+        } catch (IOException | RuntimeException e) {
+            logger.warning(
+                    "Unable to evict entries from the build cache at %1$s: %2$s",
+                    cacheDirectory.getAbsolutePath(),
+                    e);
+        }
+    }
 }
@@ -21,11 +21,19 @@ import com.android.annotations.VisibleForTesting;
 import com.android.build.gradle.api.AndroidBasePlugin;
 import com.android.build.gradle.options.BooleanOption;
 import com.android.build.gradle.options.ProjectOptions;
+import com.android.build.gradle.options.StringOption;
 import com.android.builder.Version;
+import com.android.builder.internal.aapt.QueuedResourceProcessor;
+import com.android.builder.model.AndroidProject;
+import com.android.builder.utils.FileHashMemo;
+import com.android.builder.utils.FileHasher;
+import com.android.builder.utils.FileHashers;
 import com.android.ide.common.util.JvmWideVariable;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Verify;
 import com.google.common.reflect.TypeToken;
+import java.io.File;
+import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -94,6 +102,8 @@ public final class PluginInitializer {
      *   <li>Checking that the same plugin version is applied within a build.
      *   <li>Checking that the plugin is loaded only once within a build (the plugin may be applied
      *       more than once but the plugin's classes must be loaded only once).
+     *   <li>Configuring how caches hash their input files.
+     *   <li>Configuring the work queue of the aapt processes.
      * </ol>
      *
      * <p>Here, a build refers to the entire Gradle build, which includes included builds in the
@@ -137,6 +147,50 @@ public final class PluginInitializer {
                 loadedPluginClass,
                 AndroidBasePlugin.class,
                 projectOptions.get(BooleanOption.ENABLE_BUILDSCRIPT_CLASSPATH_CHECK));
+
+        configureFileHashing(project, projectOptions);
+
+        QueuedResourceProcessor.setUseWorkStealingQueue(
+                projectOptions.get(BooleanOption.ENABLE_WORK_STEALING_AAPT_QUEUE));
+    }
+
+    /**
+     * Configures how the build cache and the pre-dex cache hash their input files (see {@link
+     * FileHashers}). If the file hash memo is enabled, it is stored in the root project's build
+     * directory and saved at the end of the build.
+     */
+    private static void configureFileHashing(
+            @NonNull Project project, @NonNull ProjectOptions projectOptions) {
+        String hashFunction = projectOptions.get(StringOption.FILE_HASH_FUNCTION);
+        FileHasher hasher = hashFunction != null ? FileHashers.forName(hashFunction) : null;
+
+        FileHashMemo memo = null;
+        if (projectOptions.get(BooleanOption.ENABLE_FILE_HASH_MEMO)) {
+            memo =
+                    FileHashMemo.getInstance(
+                            new File(
+                                    project.getRootProject().getBuildDir(),
+                                    AndroidProject.FD_INTERMEDIATES
+                                            + File.separator
+                                            + "file-hashes.bin"));
+            FileHashMemo memoToSave = memo;
+            BuildSessionImpl.getSingleton()
+                    .executeOnceWhenBuildFinished(
+                            PluginInitializer.class.getName(),
+                            "saveFileHashMemo",
+                            () -> {
+                                try {
+                                    memoToSave.save();
+                                } catch (IOException e) {
+                                    // The memo only saves time, the next build will hash the
+                                    // files again
+                                    project.getLogger()
+                                            .info("Unable to save the file hash memo", e);
+                                }
+                            });
+        }
+
+        FileHashers.configure(hasher, memo);
     }
 
     /** Verifies that the same plugin version is applied. */
@@ -195,6 +195,7 @@ import com.android.builder.core.VariantType;
 import com.android.builder.dexing.DexingType;
 import com.android.builder.model.DataBindingOptions;
 import com.android.builder.model.SyncIssue;
+import com.android.builder.packaging.JarMerger;
 import com.android.builder.profile.Recorder;
 import com.android.builder.testing.ConnectedDeviceProvider;
 import com.android.builder.testing.api.DeviceProvider;
@@ -2217,7 +2218,11 @@ public abstract class TaskManager {
                 // Create a transform to jar the inputs into a single jar. Merge the classes only,
                 // no need to package the resources since they are not used during the computation.
                 JarMergingTransform jarMergingTransform =
-                        new JarMergingTransform(TransformManager.SCOPE_FULL_PROJECT);
+                        new JarMergingTransform(
+                                TransformManager.SCOPE_FULL_PROJECT,
+                                projectOptions.get(BooleanOption.ENABLE_RAW_COPY_JAR_MERGING)
+                                        ? JarMerger.MergeMode.COPY_COMPRESSED
+                                        : JarMerger.MergeMode.RECOMPRESS);
                 transformManager
                         .addTransform(tasks, variantScope, jarMergingTransform)
                         .ifPresent(variantScope::addColdSwapBuildTask);
@@ -2997,7 +3002,10 @@ public abstract class TaskManager {
     @NonNull
     private Optional<AndroidTask<TransformTask>> createBuiltInShrinkerTransform(
             VariantScope scope, TaskFactory taskFactory) {
-        BuiltInShrinkerTransform transform = new BuiltInShrinkerTransform(scope);
+        BuiltInShrinkerTransform transform =
+                new BuiltInShrinkerTransform(
+                        scope,
+                        projectOptions.get(BooleanOption.ENABLE_INT_INDEXED_SHRINKER_GRAPH));
         applyProguardConfig(transform, scope);
 
         if (scope.getInstantRunBuildContext().isInInstantRunMode()) {
@@ -19,10 +19,14 @@ package com.android.build.gradle.internal.incremental;
 import com.android.annotations.NonNull;
 import com.android.annotations.VisibleForTesting;
 import com.android.utils.ILogger;
+import com.google.common.primitives.Ints;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import org.objectweb.asm.AnnotationVisitor;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.FieldVisitor;
@@ -33,6 +37,7 @@ import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.GeneratorAdapter;
 import org.objectweb.asm.commons.JSRInlinerAdapter;
 import org.objectweb.asm.commons.Method;
+import org.objectweb.asm.commons.TableSwitchGenerator;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.FieldNode;
 import org.objectweb.asm.tree.MethodNode;
@@ -51,14 +56,22 @@ import org.objectweb.asm.tree.MethodNode;
  */
 public class IncrementalChangeVisitor extends IncrementalVisitor {
 
-    public static final VisitorBuilder VISITOR_BUILDER = new IncrementalVisitor.VisitorBuilder() {
+    private static final class VisitorBuilder implements IncrementalVisitor.VisitorBuilder {
+
+        private final boolean intDispatch;
+
+        private VisitorBuilder(boolean intDispatch) {
+            this.intDispatch = intDispatch;
+        }
+
         @NonNull
         @Override
         public IncrementalVisitor build(@NonNull ClassNode classNode,
                 @NonNull List<ClassNode> parentNodes,
                 @NonNull ClassVisitor classVisitor,
                 @NonNull ILogger logger) {
-            return new IncrementalChangeVisitor(classNode, parentNodes, classVisitor, logger);
+            return new IncrementalChangeVisitor(
+                    classNode, parentNodes, classVisitor, logger, intDispatch);
         }
 
         @NonNull
@@ -73,7 +86,18 @@ public class IncrementalChangeVisitor extends IncrementalVisitor {
         public OutputType getOutputType() {
             return OutputType.OVERRIDE;
         }
-    };
+    }
+
+    public static final IncrementalVisitor.VisitorBuilder VISITOR_BUILDER =
+            new VisitorBuilder(false);
+
+    /**
+     * Builder for $override classes that also implement the integer id based dispatch (see {@link
+     * IntDispatch}). Must be used together with {@link
+     * IncrementalSupportVisitor#INT_DISPATCH_VISITOR_BUILDER}.
+     */
+    public static final IncrementalVisitor.VisitorBuilder INT_DISPATCH_VISITOR_BUILDER =
+            new VisitorBuilder(true);
 
     // todo : find a better way to specify logging and append to a log file.
     private static final boolean DEBUG = false;
@@ -83,6 +107,8 @@ public class IncrementalChangeVisitor extends IncrementalVisitor {
 
     private static final String METHOD_MANGLE_PREFIX = "static$";
 
+    private final boolean intDispatch;
+
     private MachineState state = MachineState.NORMAL;
     private boolean instantRunDisabled = false;
 
@@ -102,7 +128,17 @@ public class IncrementalChangeVisitor extends IncrementalVisitor {
             @NonNull List<ClassNode> parentNodes,
             @NonNull ClassVisitor classVisitor,
             @NonNull ILogger logger) {
+        this(classNode, parentNodes, classVisitor, logger, false);
+    }
+
+    private IncrementalChangeVisitor(
+            @NonNull ClassNode classNode,
+            @NonNull List<ClassNode> parentNodes,
+            @NonNull ClassVisitor classVisitor,
+            @NonNull ILogger logger,
+            boolean intDispatch) {
         super(classNode, parentNodes, classVisitor, logger);
+        this.intDispatch = intDispatch;
     }
 
     /**
@@ -118,7 +154,12 @@ public class IncrementalChangeVisitor extends IncrementalVisitor {
             String[] interfaces) {
         super.visit(version, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER,
                 name + OVERRIDE_SUFFIX, signature, "java/lang/Object",
-                new String[]{CHANGE_TYPE.getInternalName()});
+                intDispatch
+                        ? new String[] {
+                            CHANGE_TYPE.getInternalName(),
+                            IntDispatch.DISPATCH_TYPE.getInternalName()
+                        }
+                        : new String[] {CHANGE_TYPE.getInternalName()});
 
         if (DEBUG) {
             System.out.println(">>>>>>>> Processing " + name + "<<<<<<<<<<<<<");
@@ -924,6 +965,9 @@ public class IncrementalChangeVisitor extends IncrementalVisitor {
 
     @Override
     public void visitEnd() {
+        if (intDispatch) {
+            addIntDispatchMethods();
+        }
         addDispatchMethod();
     }
 
@@ -1039,6 +1083,121 @@ public class IncrementalChangeVisitor extends IncrementalVisitor {
         super.visitEnd();
     }
 
+    /**
+     * Adds the entry points of {@link IntDispatch#DISPATCH_TYPE}, which switch on the method id
+     * instead of the method name.
+     *
+     * <p>Pseudo code for {@code access$dispatch$raw(int, Object, long)}:
+     *
+     * <pre>
+     *   long access$dispatch$raw(int id, Object receiver, long arg0) {
+     *      switch (id) {
+     *        case 0:
+     *          return (long) firstMethod(($type) receiver, (int) arg0);
+     *        case 1:
+     *          return Double.doubleToRawLongBits(staticMethod(Double.longBitsToDouble(arg0)));
+     *        ...
+     *        default:
+     *          throw new $package/InstantReloadException(...);
+     *      }
+     *   }
+     * </pre>
+     *
+     * <p>Constructors are still dispatched by {@link #addDispatchMethod()}.
+     */
+    private void addIntDispatchMethods() {
+        Map<String, Integer> ids = IntDispatch.assignIds(classNode);
+        Map<Method, SortedMap<Integer, MethodNode>> methodsByEntryPoint = new HashMap<>();
+
+        // if we are disabled, do not dispatch anything, the entry points will throw an exception
+        // if invoked which should never happen.
+        if (!instantRunDisabled) {
+            //noinspection unchecked
+            for (MethodNode methodNode : (List<MethodNode>) classNode.methods) {
+                String key = methodNode.name + "." + methodNode.desc;
+                if (!ids.containsKey(key) || !isAccessCompatibleWithInstantRun(methodNode.access)) {
+                    continue;
+                }
+                methodsByEntryPoint
+                        .computeIfAbsent(
+                                IntDispatch.getEntryPoint(methodNode.desc), k -> new TreeMap<>())
+                        .put(ids.get(key), methodNode);
+            }
+        }
+
+        for (Method entryPoint : IntDispatch.getAllEntryPoints()) {
+            addIntDispatchMethod(
+                    entryPoint,
+                    methodsByEntryPoint.getOrDefault(entryPoint, Collections.emptySortedMap()));
+        }
+    }
+
+    private void addIntDispatchMethod(
+            @NonNull Method entryPoint, @NonNull SortedMap<Integer, MethodNode> methods) {
+        int access = Opcodes.ACC_PUBLIC;
+        MethodVisitor visitor =
+                super.visitMethod(
+                        access, entryPoint.getName(), entryPoint.getDescriptor(), null, null);
+        GeneratorAdapter mv = new GeneratorAdapter(access, entryPoint, visitor);
+        boolean isGeneric = IntDispatch.isGeneric(entryPoint);
+        mv.visitCode();
+
+        mv.loadArg(0);
+        mv.tableSwitch(
+                Ints.toArray(methods.keySet()),
+                new TableSwitchGenerator() {
+                    @Override
+                    public void generateCase(int key, Label end) {
+                        MethodNode methodNode = methods.get(key);
+                        String name = methodNode.name;
+                        boolean isStatic = (methodNode.access & Opcodes.ACC_STATIC) != 0;
+                        String newDesc = computeOverrideMethodDesc(methodNode.desc, isStatic);
+
+                        if (TRACING_ENABLED) {
+                            trace(mv, "M: " + name + " P:" + newDesc);
+                        }
+                        if (!isStatic) {
+                            mv.loadArg(1);
+                            mv.checkCast(Type.getObjectType(visitedClassName));
+                        }
+                        Type[] args = Type.getArgumentTypes(methodNode.desc);
+                        for (int i = 0; i < args.length; i++) {
+                            if (isGeneric) {
+                                mv.loadArg(2);
+                                mv.push(i);
+                                mv.arrayLoad(Type.getType(Object.class));
+                                ByteCodeUtils.unbox(mv, args[i]);
+                            } else {
+                                mv.loadArg(2 + i);
+                                IntDispatch.unpack(mv, args[i]);
+                            }
+                        }
+                        mv.visitMethodInsn(
+                                Opcodes.INVOKESTATIC,
+                                visitedClassName + OVERRIDE_SUFFIX,
+                                isStatic ? computeOverrideMethodName(name, methodNode.desc) : name,
+                                newDesc,
+                                false);
+                        Type ret = Type.getReturnType(methodNode.desc);
+                        if (ret.getSort() == Type.VOID) {
+                            mv.visitInsn(Opcodes.ACONST_NULL);
+                        } else if (isGeneric) {
+                            mv.box(ret);
+                        } else {
+                            IntDispatch.pack(mv, ret);
+                        }
+                        mv.returnValue();
+                    }
+
+                    @Override
+                    public void generateDefault() {
+                        IntDispatch.throwMissingMethod(mv, entryPoint, visitedClassName);
+                    }
+                });
+
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
 
     /**
      * Returns true if the passed class name is in the same package as the visited class.
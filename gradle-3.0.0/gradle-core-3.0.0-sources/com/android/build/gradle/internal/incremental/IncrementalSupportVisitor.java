@@ -19,6 +19,7 @@ package com.android.build.gradle.internal.incremental;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.utils.ILogger;
 import com.google.common.base.Objects;
 import java.util.ArrayList;
@@ -54,15 +55,24 @@ import org.objectweb.asm.tree.MethodNode;
  * and redirect if necessary.
  *
  * Redirection will be achieved by calling a
- * {@code IncrementalChange#access$dispatch(String, Object...)} method.
+ * {@code IncrementalChange#access$dispatch(String, Object...)} method, or one of the methods
+ * described in {@link IntDispatch} when built with {@link #INT_DISPATCH_VISITOR_BUILDER}.
  */
 public class IncrementalSupportVisitor extends IncrementalVisitor {
 
     private boolean disableRedirectionForClass = false;
 
+    /** Whether methods are redirected with {@link IntMethodRedirection}. */
+    private final boolean intDispatch;
+
+    @Nullable private final Map<String, Integer> methodIds;
+
     private static final class VisitorBuilder implements IncrementalVisitor.VisitorBuilder {
 
-        private VisitorBuilder() {
+        private final boolean intDispatch;
+
+        private VisitorBuilder(boolean intDispatch) {
+            this.intDispatch = intDispatch;
         }
 
         @NonNull
@@ -72,7 +82,8 @@ public class IncrementalSupportVisitor extends IncrementalVisitor {
                 @NonNull List<ClassNode> parentNodes,
                 @NonNull ClassVisitor classVisitor,
                 @NonNull ILogger logger) {
-            return new IncrementalSupportVisitor(classNode, parentNodes, classVisitor, logger);
+            return new IncrementalSupportVisitor(
+                    classNode, parentNodes, classVisitor, logger, intDispatch);
         }
 
         @Override
@@ -89,14 +100,34 @@ public class IncrementalSupportVisitor extends IncrementalVisitor {
     }
 
     @NonNull
-    public static final IncrementalVisitor.VisitorBuilder VISITOR_BUILDER = new VisitorBuilder();
+    public static final IncrementalVisitor.VisitorBuilder VISITOR_BUILDER =
+            new VisitorBuilder(false);
+
+    /**
+     * Builder for classes redirecting their methods using integer ids (see {@link IntDispatch}).
+     * Must be used together with {@link IncrementalChangeVisitor#INT_DISPATCH_VISITOR_BUILDER}.
+     */
+    @NonNull
+    public static final IncrementalVisitor.VisitorBuilder INT_DISPATCH_VISITOR_BUILDER =
+            new VisitorBuilder(true);
 
     public IncrementalSupportVisitor(
             @NonNull ClassNode classNode,
             @NonNull List<ClassNode> parentNodes,
             @NonNull ClassVisitor classVisitor,
             @NonNull ILogger logger) {
+        this(classNode, parentNodes, classVisitor, logger, false);
+    }
+
+    private IncrementalSupportVisitor(
+            @NonNull ClassNode classNode,
+            @NonNull List<ClassNode> parentNodes,
+            @NonNull ClassVisitor classVisitor,
+            @NonNull ILogger logger,
+            boolean intDispatch) {
         super(classNode, parentNodes, classVisitor, logger);
+        this.intDispatch = intDispatch;
+        this.methodIds = intDispatch ? IntDispatch.assignIds(classNode) : null;
     }
 
     /**
@@ -146,7 +177,8 @@ public class IncrementalSupportVisitor extends IncrementalVisitor {
     /**
      * Insert Constructor specific logic({@link ConstructorRedirection} and
      * {@link ConstructorBuilder}) for constructor redirecting or
-     * normal method redirecting ({@link MethodRedirection}) for other methods.
+     * normal method redirecting ({@link MethodRedirection} or {@link IntMethodRedirection}) for
+     * other methods.
      */
     @Override
     public MethodVisitor visitMethod(int access, String name, String desc, String signature,
@@ -194,6 +226,14 @@ public class IncrementalSupportVisitor extends IncrementalVisitor {
                         new LineNumberNode(constructor.lineForLoad, start));
                 }
                 mv.addRedirection(new ConstructorRedirection(start, constructor, args));
+            } else if (intDispatch) {
+                mv.addRedirection(
+                        new IntMethodRedirection(
+                                new LabelNode(mv.getStartLabel()),
+                                desc,
+                                checkNotNull(methodIds).get(name + "." + desc),
+                                isStatic,
+                                args));
             } else {
                 mv.addRedirection(new MethodRedirection(
                         new LabelNode(mv.getStartLabel()),
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.internal.incremental;
+
+import com.android.annotations.NonNull;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.GeneratorAdapter;
+import org.objectweb.asm.commons.Method;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Integer based alternative to the {@code access$dispatch(String, Object...)} trampoline.
+ *
+ * <p>Every method of an instrumented class gets an id, and redirected calls switch on the id with
+ * a {@code tableswitch} instead of switching on the hash code of the method signature. The
+ * receiver is passed separately and the arguments are passed in the parameters of an entry point
+ * chosen from the method descriptor, so no {@code Object[]} is allocated:
+ *
+ * <ul>
+ *   <li>Methods with at most {@link #MAX_SPECIALIZED_ARITY} parameters use an entry point where
+ *       every reference parameter is passed as an {@code Object} and every primitive parameter as
+ *       the raw bits in a {@code long}, so primitives are not boxed. Primitive return values are
+ *       passed back the same way.
+ *   <li>Other methods use {@code Object access$dispatch(int, Object, Object[])}.
+ * </ul>
+ *
+ * <p>Ids are assigned per entry point, by sorting the methods that use it by name and descriptor.
+ * This keeps every switch dense and gives the instrumented class and its $override class the same
+ * ids, as hot swapping is only possible when no methods were added or removed (see {@link
+ * InstantRunVerifier}). Whether a method is static does not affect its id.
+ *
+ * <p>The entry points are declared in the {@link #DISPATCH_TYPE} interface, which is not part of
+ * the Instant Run runtime and is generated into the application by {@link #generateInterface()}.
+ * $override classes implement it in addition to {@link IncrementalVisitor#CHANGE_TYPE}, which is
+ * still used for constructors.
+ */
+public final class IntDispatch {
+
+    public static final Type DISPATCH_TYPE =
+            Type.getObjectType(IncrementalVisitor.RUNTIME_PACKAGE + "/IncrementalDispatch");
+
+    /** Largest number of parameters (not counting the receiver) with a specialized entry point. */
+    static final int MAX_SPECIALIZED_ARITY = 3;
+
+    private static final Type OBJECT_TYPE = Type.getType(Object.class);
+    private static final Type OBJECT_ARRAY_TYPE = Type.getType(Object[].class);
+    private static final Type FLOAT_OBJECT_TYPE = Type.getType(Float.class);
+    private static final Type DOUBLE_OBJECT_TYPE = Type.getType(Double.class);
+    private static final Type INSTANT_RELOAD_EXCEPTION_TYPE =
+            Type.getObjectType(IncrementalVisitor.RUNTIME_PACKAGE + "/InstantReloadException");
+
+    private static final String ENTRY_NAME = "access$dispatch";
+    private static final String RAW_ENTRY_NAME = "access$dispatch$raw";
+
+    private static final Method GENERIC_ENTRY =
+            new Method(
+                    ENTRY_NAME,
+                    OBJECT_TYPE,
+                    new Type[] {Type.INT_TYPE, OBJECT_TYPE, OBJECT_ARRAY_TYPE});
+
+    private IntDispatch() {}
+
+    /**
+     * Returns the entry point used to dispatch calls to a method with the given descriptor.
+     *
+     * @see #isGeneric(Method)
+     */
+    @NonNull
+    static Method getEntryPoint(@NonNull String desc) {
+        Type[] params = Type.getArgumentTypes(desc);
+        if (params.length > MAX_SPECIALIZED_ARITY) {
+            return GENERIC_ENTRY;
+        }
+
+        Type[] slots = new Type[params.length + 2];
+        slots[0] = Type.INT_TYPE;
+        slots[1] = OBJECT_TYPE;
+        for (int i = 0; i < params.length; i++) {
+            slots[i + 2] = isReference(params[i]) ? OBJECT_TYPE : Type.LONG_TYPE;
+        }
+        Type ret = Type.getReturnType(desc);
+        return ret == Type.VOID_TYPE || isReference(ret)
+                ? new Method(ENTRY_NAME, OBJECT_TYPE, slots)
+                : new Method(RAW_ENTRY_NAME, Type.LONG_TYPE, slots);
+    }
+
+    /** Returns true if the given entry point takes its arguments in an {@code Object[]}. */
+    static boolean isGeneric(@NonNull Method entryPoint) {
+        return entryPoint.equals(GENERIC_ENTRY);
+    }
+
+    /** Returns all the entry points declared in {@link #DISPATCH_TYPE}. */
+    @NonNull
+    static List<Method> getAllEntryPoints() {
+        ImmutableList.Builder<Method> entryPoints = ImmutableList.builder();
+        entryPoints.add(GENERIC_ENTRY);
+        for (int arity = 0; arity <= MAX_SPECIALIZED_ARITY; arity++) {
+            for (int mask = 0; mask < 1 << arity; mask++) {
+                // Bit i set means that parameter i is a primitive.
+                StringBuilder params = new StringBuilder();
+                for (int i = 0; i < arity; i++) {
+                    params.append((mask & (1 << i)) != 0 ? "J" : "Ljava/lang/Object;");
+                }
+                entryPoints.add(getEntryPoint("(" + params + ")Ljava/lang/Object;"));
+                entryPoints.add(getEntryPoint("(" + params + ")J"));
+            }
+        }
+        return entryPoints.build();
+    }
+
+    /**
+     * Assigns ids to the methods of the given class, keyed by name and descriptor in the {@code
+     * name.desc} format. Constructors and the class initializer are not dispatched this way.
+     */
+    @NonNull
+    static Map<String, Integer> assignIds(@NonNull ClassNode classNode) {
+        TreeMap<String, String> sortedDescs = new TreeMap<>();
+        //noinspection unchecked ASM API
+        for (MethodNode method : (List<MethodNode>) classNode.methods) {
+            if (method.name.equals(ByteCodeUtils.CONSTRUCTOR)
+                    || method.name.equals(ByteCodeUtils.CLASS_INITIALIZER)) {
+                continue;
+            }
+            sortedDescs.put(method.name + "." + method.desc, method.desc);
+        }
+
+        Map<Method, Integer> nextIds = new HashMap<>();
+        ImmutableMap.Builder<String, Integer> ids = ImmutableMap.builder();
+        for (Map.Entry<String, String> entry : sortedDescs.entrySet()) {
+            Method entryPoint = getEntryPoint(entry.getValue());
+            int id = nextIds.getOrDefault(entryPoint, 0);
+            nextIds.put(entryPoint, id + 1);
+            ids.put(entry.getKey(), id);
+        }
+        return ids.build();
+    }
+
+    /**
+     * Converts the value of the given type on top of the stack to the type used for it by the
+     * specialized entry points: {@code Object} or raw bits in a {@code long}.
+     */
+    static void pack(@NonNull GeneratorAdapter mv, @NonNull Type type) {
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+            case Type.BYTE:
+            case Type.CHAR:
+            case Type.SHORT:
+            case Type.INT:
+                mv.cast(Type.INT_TYPE, Type.LONG_TYPE);
+                break;
+            case Type.FLOAT:
+                mv.invokeStatic(
+                        FLOAT_OBJECT_TYPE, Method.getMethod("int floatToRawIntBits(float)"));
+                mv.cast(Type.INT_TYPE, Type.LONG_TYPE);
+                break;
+            case Type.DOUBLE:
+                mv.invokeStatic(
+                        DOUBLE_OBJECT_TYPE, Method.getMethod("long doubleToRawLongBits(double)"));
+                break;
+            default:
+                // long values and references are passed as they are.
+                break;
+        }
+    }
+
+    /**
+     * Reverts {@link #pack(GeneratorAdapter, Type)}, leaving a value of the given type on top of
+     * the stack.
+     *
+     * <p>Narrow types are converted explicitly, since Dalvik does not accept an {@code int} in
+     * their place (see {@link ByteCodeUtils#unbox(GeneratorAdapter, Type)}).
+     */
+    static void unpack(@NonNull GeneratorAdapter mv, @NonNull Type type) {
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+                {
+                    Label isFalse = new Label();
+                    Label end = new Label();
+                    mv.push(0L);
+                    mv.visitInsn(Opcodes.LCMP);
+                    mv.visitJumpInsn(Opcodes.IFEQ, isFalse);
+                    mv.push(true);
+                    mv.goTo(end);
+                    mv.visitLabel(isFalse);
+                    mv.push(false);
+                    mv.visitLabel(end);
+                    break;
+                }
+            case Type.BYTE:
+            case Type.CHAR:
+            case Type.SHORT:
+                mv.cast(Type.LONG_TYPE, Type.INT_TYPE);
+                mv.cast(Type.INT_TYPE, type);
+                break;
+            case Type.INT:
+                mv.cast(Type.LONG_TYPE, Type.INT_TYPE);
+                break;
+            case Type.FLOAT:
+                mv.cast(Type.LONG_TYPE, Type.INT_TYPE);
+                mv.invokeStatic(FLOAT_OBJECT_TYPE, Method.getMethod("float intBitsToFloat(int)"));
+                break;
+            case Type.DOUBLE:
+                mv.invokeStatic(
+                        DOUBLE_OBJECT_TYPE, Method.getMethod("double longBitsToDouble(long)"));
+                break;
+            case Type.LONG:
+                break;
+            default:
+                if (!type.equals(OBJECT_TYPE)) {
+                    mv.checkCast(type);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Throws an exception reporting that no method has the id passed as the first argument of the
+     * given entry point.
+     */
+    static void throwMissingMethod(
+            @NonNull GeneratorAdapter mv,
+            @NonNull Method entryPoint,
+            @NonNull String visitedClassName) {
+        mv.newInstance(INSTANT_RELOAD_EXCEPTION_TYPE);
+        mv.dup();
+        mv.push("Int dispatch could not find id %s for %s in %s");
+        mv.push(3);
+        mv.newArray(OBJECT_TYPE);
+        mv.dup();
+        mv.push(0);
+        mv.loadArg(0);
+        mv.box(Type.INT_TYPE);
+        mv.arrayStore(OBJECT_TYPE);
+        mv.dup();
+        mv.push(1);
+        mv.push(entryPoint.toString());
+        mv.arrayStore(OBJECT_TYPE);
+        mv.dup();
+        mv.push(2);
+        mv.push(visitedClassName);
+        mv.arrayStore(OBJECT_TYPE);
+        mv.invokeStatic(
+                Type.getType(String.class),
+                Method.getMethod("String format(String, Object[])"));
+        mv.invokeConstructor(
+                INSTANT_RELOAD_EXCEPTION_TYPE, Method.getMethod("void <init> (String)"));
+        mv.throwException();
+    }
+
+    /**
+     * Generates the {@link #DISPATCH_TYPE} interface, which needs to be part of the application
+     * when the instrumented classes use this dispatch.
+     */
+    @NonNull
+    public static byte[] generateInterface() {
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(
+                Opcodes.V1_6,
+                Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT | Opcodes.ACC_INTERFACE,
+                DISPATCH_TYPE.getInternalName(),
+                null,
+                "java/lang/Object",
+                null);
+        for (Method entryPoint : getAllEntryPoints()) {
+            cw.visitMethod(
+                            Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT,
+                            entryPoint.getName(),
+                            entryPoint.getDescriptor(),
+                            null,
+                            null)
+                    .visitEnd();
+        }
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static boolean isReference(@NonNull Type type) {
+        return type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY;
+    }
+}
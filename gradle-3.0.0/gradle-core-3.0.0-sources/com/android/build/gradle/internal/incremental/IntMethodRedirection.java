@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.internal.incremental;
+
+import com.android.annotations.NonNull;
+import java.util.List;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.GeneratorAdapter;
+import org.objectweb.asm.commons.Method;
+import org.objectweb.asm.tree.LabelNode;
+
+/**
+ * Redirects a method using the integer id based dispatch described in {@link IntDispatch}.
+ *
+ * <p>For example, {@code int foo(String s, int i)} gets the following code inserted:
+ *
+ * <pre>
+ * if ($change != null) {
+ *   return (int) ((IncrementalDispatch) $change).access$dispatch$raw($id, this, s, (long) i);
+ * }
+ * </pre>
+ */
+public class IntMethodRedirection extends Redirection {
+
+    private final int id;
+
+    private final boolean isStatic;
+
+    @NonNull private final Method entryPoint;
+
+    /**
+     * @param types the parameter types, preceded by {@code Object} for the receiver of instance
+     *     methods
+     */
+    IntMethodRedirection(
+            @NonNull LabelNode label,
+            @NonNull String desc,
+            int id,
+            boolean isStatic,
+            @NonNull List<Type> types) {
+        super(label, types, Type.getReturnType(desc));
+        this.id = id;
+        this.isStatic = isStatic;
+        this.entryPoint = IntDispatch.getEntryPoint(desc);
+    }
+
+    @Override
+    protected void doRedirect(@NonNull GeneratorAdapter mv, int change) {
+        mv.loadLocal(change);
+        mv.checkCast(IntDispatch.DISPATCH_TYPE);
+        mv.push(id);
+
+        List<LocalVariable> variables = ByteCodeUtils.toLocalVariables(types);
+        if (isStatic) {
+            mv.visitInsn(Opcodes.ACONST_NULL);
+        } else {
+            mv.loadThis();
+            variables = variables.subList(1, variables.size());
+        }
+
+        if (IntDispatch.isGeneric(entryPoint)) {
+            ByteCodeUtils.newVariableArray(mv, variables);
+        } else {
+            for (LocalVariable variable : variables) {
+                mv.visitVarInsn(variable.type.getOpcode(Opcodes.ILOAD), variable.var);
+                IntDispatch.pack(mv, variable.type);
+            }
+        }
+
+        mv.invokeInterface(IntDispatch.DISPATCH_TYPE, entryPoint);
+    }
+
+    @Override
+    void convertResult(@NonNull GeneratorAdapter mv) {
+        if (IntDispatch.isGeneric(entryPoint)) {
+            super.convertResult(mv);
+        } else if (type == Type.VOID_TYPE) {
+            mv.pop();
+        } else {
+            IntDispatch.unpack(mv, type);
+        }
+    }
+}
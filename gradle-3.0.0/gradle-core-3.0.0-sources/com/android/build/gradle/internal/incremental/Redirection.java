@@ -76,11 +76,7 @@ public abstract class Redirection {
         doRedirect(mv, change);
 
         // Return
-        if (type == Type.VOID_TYPE) {
-            mv.pop();
-        } else {
-            ByteCodeUtils.unbox(mv, type);
-        }
+        convertResult(mv);
         mv.returnValue();
 
         // jump label for classes without any new implementation, just invoke the original
@@ -90,6 +86,18 @@ public abstract class Redirection {
 
     abstract void doRedirect(GeneratorAdapter mv, int change);
 
+    /**
+     * Converts the value left on the stack by {@link #doRedirect(GeneratorAdapter, int)} to the
+     * return type, or pops it for void methods.
+     */
+    void convertResult(GeneratorAdapter mv) {
+        if (type == Type.VOID_TYPE) {
+            mv.pop();
+        } else {
+            ByteCodeUtils.unbox(mv, type);
+        }
+    }
+
     public LabelNode getPosition() {
         return label;
     }
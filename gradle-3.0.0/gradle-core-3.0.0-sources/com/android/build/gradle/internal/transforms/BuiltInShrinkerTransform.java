@@ -16,7 +16,6 @@
 
 package com.android.build.gradle.internal.transforms;
 
-import static com.android.build.gradle.shrinker.AbstractShrinker.logTime;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.android.annotations.NonNull;
@@ -32,21 +31,24 @@ import com.android.build.api.transform.TransformOutputProvider;
 import com.android.build.gradle.internal.PostprocessingFeatures;
 import com.android.build.gradle.internal.pipeline.TransformManager;
 import com.android.build.gradle.internal.scope.VariantScope;
+import com.android.build.gradle.shrinker.AbstractShrinker;
 import com.android.build.gradle.shrinker.AbstractShrinker.CounterSet;
 import com.android.build.gradle.shrinker.DependencyType;
 import com.android.build.gradle.shrinker.FullRunShrinker;
 import com.android.build.gradle.shrinker.IncrementalShrinker;
+import com.android.build.gradle.shrinker.IntIndexedShrinkerGraph;
 import com.android.build.gradle.shrinker.JavaSerializationShrinkerGraph;
 import com.android.build.gradle.shrinker.ProguardConfig;
 import com.android.build.gradle.shrinker.ProguardParserKeepRules;
+import com.android.build.gradle.shrinker.ShrinkerGraph;
 import com.android.build.gradle.shrinker.ShrinkerLogger;
 import com.android.build.gradle.shrinker.parser.ProguardFlags;
 import com.android.build.gradle.shrinker.parser.UnsupportedFlagsHandler;
 import com.android.build.gradle.shrinker.tracing.Trace;
+import com.android.builder.profile.PhaseRecorder;
 import com.android.ide.common.internal.WaitableExecutor;
 import com.android.utils.Pair;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -58,6 +60,7 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
 import org.gradle.api.InvalidUserDataException;
 import org.gradle.api.logging.Logging;
 import org.gradle.tooling.BuildException;
@@ -78,9 +81,15 @@ public class BuiltInShrinkerTransform extends ProguardConfigurable {
     private final Set<File> platformJars;
     private final File incrementalDir;
     private final List<String> addtionalLines;
+    private final boolean useIntIndexedGraph;
 
-    public BuiltInShrinkerTransform(@NonNull VariantScope scope) {
+    /**
+     * @param useIntIndexedGraph whether to use {@link IntIndexedShrinkerGraph}, which uses less
+     *     memory and saves its state faster, instead of {@link JavaSerializationShrinkerGraph}
+     */
+    public BuiltInShrinkerTransform(@NonNull VariantScope scope, boolean useIntIndexedGraph) {
         super(scope);
+        this.useIntIndexedGraph = useIntIndexedGraph;
         this.platformJars = ImmutableSet.copyOf(
                 scope.getGlobalScope().getAndroidBuilder().getBootClasspath(true));
         this.incrementalDir = scope.getIncrementalDir(scope.getTaskName(NAME));
@@ -111,6 +120,14 @@ public class BuiltInShrinkerTransform extends ProguardConfigurable {
         return ImmutableList.of(incrementalDir);
     }
 
+    @NonNull
+    @Override
+    public Map<String, Object> getParameterInputs() {
+        // The graphs cannot read each other's state.
+        return ImmutableMap.of(
+                "shrinker-graph", useIntIndexedGraph ? "int-indexed" : "java-serialization");
+    }
+
     @Override
     public boolean isIncremental() {
         return true;
@@ -135,14 +152,34 @@ public class BuiltInShrinkerTransform extends ProguardConfigurable {
             @NonNull Collection<TransformInput> inputs,
             @NonNull Collection<TransformInput> referencedInputs,
             @NonNull TransformOutputProvider output) throws IOException {
+        if (useIntIndexedGraph) {
+            IntIndexedShrinkerGraph graph = IntIndexedShrinkerGraph.empty(incrementalDir);
+            fullRun(inputs, referencedInputs, output, graph, graph::getFullMemberName);
+        } else {
+            fullRun(
+                    inputs,
+                    referencedInputs,
+                    output,
+                    JavaSerializationShrinkerGraph.empty(incrementalDir),
+                    node -> node);
+        }
+    }
+
+    private <T> void fullRun(
+            @NonNull Collection<TransformInput> inputs,
+            @NonNull Collection<TransformInput> referencedInputs,
+            @NonNull TransformOutputProvider output,
+            @NonNull ShrinkerGraph<T> graph,
+            @NonNull Function<T, String> nodeNames)
+            throws IOException {
         ProguardFlags flags = getProguardFlags();
 
         ShrinkerLogger shrinkerLogger = new ShrinkerLogger(flags.getDontWarnSpecs(), logger);
 
-        FullRunShrinker<String> shrinker =
+        FullRunShrinker<T> shrinker =
                 new FullRunShrinker<>(
                         WaitableExecutor.useGlobalSharedThreadPool(),
-                        JavaSerializationShrinkerGraph.empty(incrementalDir),
+                        graph,
                         platformJars,
                         shrinkerLogger,
                         flags.getBytecodeVersion());
@@ -156,7 +193,7 @@ public class BuiltInShrinkerTransform extends ProguardConfigurable {
                     ProguardParserKeepRules.whyAreYouKeepingRules(flags, shrinkerLogger);
         }
 
-        FullRunShrinker<String>.Result result =
+        FullRunShrinker<T>.Result result =
                 shrinker.run(
                         inputs,
                         referencedInputs,
@@ -172,7 +209,7 @@ public class BuiltInShrinkerTransform extends ProguardConfigurable {
             System.out.println("Explaining why classes and class members are being kept...");
             System.out.println();
 
-            printWhyAreYouKeepingExplanation(result.traces, System.out);
+            printWhyAreYouKeepingExplanation(result.traces, nodeNames, System.out);
         }
 
         checkForWarnings(flags, shrinkerLogger);
@@ -181,10 +218,15 @@ public class BuiltInShrinkerTransform extends ProguardConfigurable {
     @VisibleForTesting
     static void printWhyAreYouKeepingExplanation(
             Map<String, Trace<String>> traces, PrintStream out) {
+        printWhyAreYouKeepingExplanation(traces, node -> node, out);
+    }
+
+    private static <T> void printWhyAreYouKeepingExplanation(
+            Map<T, Trace<T>> traces, Function<T, String> nodeNames, PrintStream out) {
         traces.forEach(
                 (node, trace) -> {
-                    for (Pair<String, DependencyType> pair : trace.toList()) {
-                        out.println(pair.getFirst());
+                    for (Pair<T, DependencyType> pair : trace.toList()) {
+                        out.println(nodeNames.apply(pair.getFirst()));
                         out.print("  ");
                         out.print(pair.getSecond());
                         out.print(" from ");
@@ -239,12 +281,16 @@ public class BuiltInShrinkerTransform extends ProguardConfigurable {
             @NonNull Collection<TransformInput> referencedInputs,
             @NonNull TransformOutputProvider output) throws IOException {
         try {
-            Stopwatch stopwatch = Stopwatch.createStarted();
-            JavaSerializationShrinkerGraph graph =
-                    JavaSerializationShrinkerGraph.readFromDir(
-                            incrementalDir,
-                            this.getClass().getClassLoader());
-            logTime("loading state", stopwatch);
+            PhaseRecorder phases = AbstractShrinker.startPhases();
+            ShrinkerGraph<?> graph;
+            if (useIntIndexedGraph) {
+                graph = IntIndexedShrinkerGraph.readFromDir(incrementalDir);
+            } else {
+                graph =
+                        JavaSerializationShrinkerGraph.readFromDir(
+                                incrementalDir, this.getClass().getClassLoader());
+            }
+            AbstractShrinker.endPhase(phases, "loading state", graph, false);
 
             ProguardFlags proguardFlags = getProguardFlags();
 
@@ -257,7 +303,7 @@ public class BuiltInShrinkerTransform extends ProguardConfigurable {
             ShrinkerLogger shrinkerLogger =
                     new ShrinkerLogger(proguardFlags.getDontWarnSpecs(), logger);
 
-            IncrementalShrinker<String> shrinker =
+            IncrementalShrinker<?> shrinker =
                     new IncrementalShrinker<>(
                             WaitableExecutor.useGlobalSharedThreadPool(),
                             graph,
@@ -16,6 +16,7 @@
 
 package com.android.build.gradle.internal.transforms;
 
+import com.android.SdkConstants;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
@@ -37,6 +38,8 @@ import com.android.build.gradle.internal.pipeline.TransformManager;
 import com.android.builder.core.ErrorReporter;
 import com.android.builder.dexing.DexMergerTool;
 import com.android.builder.dexing.DexingType;
+import com.android.builder.dexing.IncrementalDexArchiveMergerCallable;
+import com.android.dx.command.dexer.DxContext;
 import com.android.ide.common.blame.Message;
 import com.android.ide.common.blame.ParsingProcessOutputHandler;
 import com.android.ide.common.blame.parser.DexParser;
@@ -45,12 +48,14 @@ import com.android.ide.common.process.ProcessException;
 import com.android.ide.common.process.ProcessOutput;
 import com.android.ide.common.process.ProcessOutputHandler;
 import com.android.utils.FileUtils;
+import com.android.utils.PathUtils;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
@@ -59,6 +64,7 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -93,6 +99,10 @@ import org.gradle.api.file.FileCollection;
  * changed, we will re-merge only that dex archive. For Android L, due to previously mentioned dex
  * file number limit, we might merge all directory inputs and all non-external jar inputs in two
  * separate dex merger invocations (see {@link #shouldMergeInputsForNative(Collection, Collection)}.
+ *
+ * <p>When dx merged a changed directory input to a single DEX file, only its changed dex archive
+ * entries are merged into that file, instead of merging the whole directory again (see {@link
+ * IncrementalDexArchiveMergerCallable}).
  */
 public class DexMergerTransform extends Transform {
 
@@ -514,6 +524,10 @@ public class DexMergerTransform extends Transform {
                                 outputProvider,
                                 directoryInput.getName(),
                                 directoryInput.getScopes());
+                if (isIncremental && canMergeIncrementally(directoryInput, dexOutput)) {
+                    subTasks.add(submitForIncrementalMerging(output, dexOutput, directoryInput));
+                    continue;
+                }
                 FileUtils.cleanOutputDir(dexOutput);
                 subTasks.add(
                         submitForMerging(
@@ -557,6 +571,88 @@ public class DexMergerTransform extends Transform {
         return subTasks.build();
     }
 
+    /**
+     * If the DEX file previously merged from a directory input can be updated with only the changed
+     * dex archive entries. This is the case when dx merged the directory to a single classes.dex,
+     * and all changed files are dex archive entries.
+     */
+    private boolean canMergeIncrementally(
+            @NonNull DirectoryInput directoryInput, @NonNull File dexOutput) {
+        if (dexMerger != DexMergerTool.DX) {
+            return false;
+        }
+        File[] outputFiles = dexOutput.listFiles();
+        if (outputFiles == null
+                || outputFiles.length != 1
+                || !outputFiles[0].getName().equals(SdkConstants.FN_APK_CLASSES_DEX)) {
+            return false;
+        }
+        Path rootFolder = directoryInput.getFile().toPath();
+        for (File changedFile : directoryInput.getChangedFiles().keySet()) {
+            if (!changedFile.toPath().startsWith(rootFolder)
+                    || !changedFile.getName().endsWith(SdkConstants.DOT_DEX)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add a task that updates the DEX file merged from a directory input with its changed dex
+     * archive entries. If the result does not fit into a single DEX file, the whole directory input
+     * is merged again.
+     */
+    @NonNull
+    private ForkJoinTask<Void> submitForIncrementalMerging(
+            @NonNull ProcessOutput output,
+            @NonNull File dexOutputDir,
+            @NonNull DirectoryInput directoryInput) {
+        Path rootFolder = directoryInput.getFile().toPath();
+        Set<String> removedTypes = new HashSet<>();
+        List<Path> addedDexFiles = new ArrayList<>();
+        for (Map.Entry<File, Status> entry : directoryInput.getChangedFiles().entrySet()) {
+            Path dexFile = entry.getKey().toPath();
+            Status status = entry.getValue();
+            if (status == Status.CHANGED || status == Status.REMOVED) {
+                String relativePath =
+                        PathUtils.toSystemIndependentPath(rootFolder.relativize(dexFile));
+                removedTypes.add(IncrementalDexArchiveMergerCallable.toTypeDescriptor(relativePath));
+            }
+            if (status == Status.CHANGED || status == Status.ADDED) {
+                addedDexFiles.add(dexFile);
+            }
+        }
+        // sort paths so we produce deterministic output
+        addedDexFiles.sort(Ordering.natural());
+
+        DxContext dxContext = new DxContext(output.getStandardOutput(), output.getErrorOutput());
+        IncrementalDexArchiveMergerCallable incremental =
+                new IncrementalDexArchiveMergerCallable(
+                        new File(dexOutputDir, SdkConstants.FN_APK_CLASSES_DEX).toPath(),
+                        removedTypes,
+                        addedDexFiles,
+                        dxContext,
+                        forkJoinPool);
+        return forkJoinPool.submit(
+                () -> {
+                    if (!incremental.call()) {
+                        FileUtils.cleanOutputDir(dexOutputDir);
+                        new DexMergerTransformCallable(
+                                        dexingType,
+                                        output,
+                                        dexOutputDir,
+                                        ImmutableList.of(rootFolder),
+                                        null,
+                                        forkJoinPool,
+                                        dexMerger,
+                                        minSdkVersion,
+                                        isDebuggable)
+                                .call();
+                    }
+                    return null;
+                });
+    }
+
     /**
      * Add a merging task to the queue of tasks.
      *
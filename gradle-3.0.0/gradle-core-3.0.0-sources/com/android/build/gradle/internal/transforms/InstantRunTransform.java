@@ -38,12 +38,14 @@ import com.android.build.gradle.internal.LoggerWrapper;
 import com.android.build.gradle.internal.incremental.IncrementalChangeVisitor;
 import com.android.build.gradle.internal.incremental.IncrementalSupportVisitor;
 import com.android.build.gradle.internal.incremental.IncrementalVisitor;
+import com.android.build.gradle.internal.incremental.IntDispatch;
 import com.android.build.gradle.internal.incremental.InstantRunBuildContext;
 import com.android.build.gradle.internal.incremental.InstantRunBuildMode;
 import com.android.build.gradle.internal.incremental.InstantRunVerifierStatus;
 import com.android.build.gradle.internal.pipeline.ExtendedContentType;
 import com.android.build.gradle.internal.pipeline.TransformManager;
 import com.android.build.gradle.internal.scope.InstantRunVariantScope;
+import com.android.build.gradle.options.BooleanOption;
 import com.android.build.gradle.options.DeploymentDevice;
 import com.android.ide.common.internal.WaitableExecutor;
 import com.android.sdklib.AndroidVersion;
@@ -86,6 +88,9 @@ public class InstantRunTransform extends Transform {
     private final InstantRunVariantScope transformScope;
     private final AndroidVersion targetPlatformApi;
     private final WaitableExecutor executor;
+    private final boolean intDispatch;
+    @NonNull private final IncrementalVisitor.VisitorBuilder supportVisitorBuilder;
+    @NonNull private final IncrementalVisitor.VisitorBuilder changeVisitorBuilder;
 
     public InstantRunTransform(WaitableExecutor executor, InstantRunVariantScope transformScope) {
         this.transformScope = transformScope;
@@ -93,6 +98,19 @@ public class InstantRunTransform extends Transform {
         this.targetPlatformApi =
                 DeploymentDevice.getDeploymentDeviceAndroidVersion(
                         transformScope.getGlobalScope().getProjectOptions());
+        this.intDispatch =
+                transformScope
+                        .getGlobalScope()
+                        .getProjectOptions()
+                        .get(BooleanOption.ENABLE_INSTANT_RUN_INT_DISPATCH);
+        this.supportVisitorBuilder =
+                intDispatch
+                        ? IncrementalSupportVisitor.INT_DISPATCH_VISITOR_BUILDER
+                        : IncrementalSupportVisitor.VISITOR_BUILDER;
+        this.changeVisitorBuilder =
+                intDispatch
+                        ? IncrementalChangeVisitor.INT_DISPATCH_VISITOR_BUILDER
+                        : IncrementalChangeVisitor.VISITOR_BUILDER;
     }
 
     @NonNull
@@ -137,7 +155,8 @@ public class InstantRunTransform extends Transform {
     @Override
     public Map<String, Object> getParameterInputs() {
         // Force the instant run transform to re-run when the dex patching policy changes,
-        // as the slicer will re-run.
+        // as the slicer will re-run. The classes.2 files also need to be regenerated when the
+        // dispatch changes, as they must match the $override classes.
         return transformScope.getInstantRunBuildContext().isInInstantRunMode()
                 ? ImmutableMap.of(
                         "dex patching policy",
@@ -145,7 +164,9 @@ public class InstantRunTransform extends Transform {
                                 .getInstantRunBuildContext()
                                 .getPatchingPolicy()
                                 .getDexPatchingPolicy()
-                                .toString())
+                                .toString(),
+                        "int dispatch",
+                        intDispatch)
                 : ImmutableMap.of();
 
     }
@@ -231,9 +252,9 @@ public class InstantRunTransform extends Transform {
                             case REMOVED:
                                 // remove the classes.2 and classes.3 files.
                                 deleteOutputFile(
-                                        IncrementalSupportVisitor.VISITOR_BUILDER,
+                                        supportVisitorBuilder,
                                         inputDir, inputFile, classesTwoOutput);
-                                deleteOutputFile(IncrementalChangeVisitor.VISITOR_BUILDER,
+                                deleteOutputFile(changeVisitorBuilder,
                                         inputDir, inputFile, classesThreeOutput);
                                 break;
                             case CHANGED:
@@ -320,6 +341,10 @@ public class InstantRunTransform extends Transform {
             FileUtils.cleanOutputDir(classesThreeOutput);
         }
 
+        if (intDispatch) {
+            writeDispatchInterface(classesTwoOutput);
+        }
+
         wrapUpOutputs(classesTwoOutput, classesThreeOutput);
     }
 
@@ -409,7 +434,7 @@ public class InstantRunTransform extends Transform {
                     inputDir,
                     inputFile,
                     outputDir,
-                    IncrementalSupportVisitor.VISITOR_BUILDER,
+                    supportVisitorBuilder,
                     LOGGER);
         }
         return null;
@@ -452,7 +477,7 @@ public class InstantRunTransform extends Transform {
                         inputDir,
                         inputFile,
                         outputDir,
-                        IncrementalChangeVisitor.VISITOR_BUILDER,
+                        changeVisitorBuilder,
                         LOGGER);
 
         // if the visitor returned null, that means the class cannot be hot swapped or more likely
@@ -538,6 +563,24 @@ public class InstantRunTransform extends Transform {
         }
     }
 
+    /**
+     * Adds the interface implemented by the $override classes when using {@link IntDispatch},
+     * which is not part of the Instant Run runtime library, to the classes.2 output.
+     *
+     * <p>The file is only written when missing so it does not show up as changed in incremental
+     * builds.
+     */
+    private static void writeDispatchInterface(@NonNull File outputDir) throws IOException {
+        File outputFile =
+                new File(
+                        outputDir,
+                        IntDispatch.DISPATCH_TYPE.getInternalName() + SdkConstants.DOT_CLASS);
+        if (!outputFile.isFile()) {
+            Files.createParentDirs(outputFile);
+            Files.write(IntDispatch.generateInterface(), outputFile);
+        }
+    }
+
     private static class NonDelegatingUrlClassloader extends URLClassLoader {
 
         public NonDelegatingUrlClassloader(@NonNull List<URL> urls) {
@@ -34,9 +34,11 @@ import com.android.build.gradle.internal.pipeline.TransformManager;
 import com.android.builder.packaging.JarMerger;
 import com.android.builder.packaging.ZipEntryFilter;
 import com.android.utils.FileUtils;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import java.io.File;
 import java.io.IOException;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -50,8 +52,16 @@ public class JarMergingTransform extends Transform {
     @NonNull
     private final ImmutableSet<Scope> scopes;
 
+    @NonNull private final JarMerger.MergeMode mergeMode;
+
     public JarMergingTransform(@NonNull Set<Scope> scopes) {
+        this(scopes, JarMerger.MergeMode.RECOMPRESS);
+    }
+
+    public JarMergingTransform(
+            @NonNull Set<Scope> scopes, @NonNull JarMerger.MergeMode mergeMode) {
         this.scopes = ImmutableSet.copyOf(scopes);
+        this.mergeMode = mergeMode;
     }
 
     @NonNull
@@ -72,6 +82,12 @@ public class JarMergingTransform extends Transform {
         return scopes;
     }
 
+    @NonNull
+    @Override
+    public Map<String, Object> getParameterInputs() {
+        return ImmutableMap.of("merge-mode", mergeMode.name());
+    }
+
     @Override
     public boolean isIncremental() {
         return false;
@@ -91,7 +107,8 @@ public class JarMergingTransform extends Transform {
         FileUtils.mkdirs(jarFile.getParentFile());
         deleteIfExists(jarFile);
 
-        try (JarMerger jarMerger = new JarMerger(jarFile.toPath(), ZipEntryFilter.CLASSES_ONLY)) {
+        try (JarMerger jarMerger =
+                new JarMerger(jarFile.toPath(), ZipEntryFilter.CLASSES_ONLY, mergeMode)) {
             for (TransformInput input : invocation.getInputs()) {
                 for (JarInput jarInput : input.getJarInputs()) {
                     jarMerger.addJar(jarInput.getFile().toPath());
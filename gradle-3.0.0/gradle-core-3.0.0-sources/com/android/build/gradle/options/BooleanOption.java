@@ -24,6 +24,12 @@ public enum BooleanOption implements Option<Boolean> {
     ENABLE_IN_PROCESS_AAPT2("android.enableAapt2jni", false),
     ENABLE_DAEMON_MODE_AAPT2("android.enableAapt2DaemonMode", true),
     ENABLE_BUILD_CACHE("android.enableBuildCache", true),
+    ENABLE_BUILD_CACHE_IN_PROCESS_INDEX("android.enableBuildCacheInProcessIndex", false),
+    ENABLE_FILE_HASH_MEMO("android.enableFileHashMemo", false),
+    ENABLE_WORK_STEALING_AAPT_QUEUE("android.enableWorkStealingAaptQueue", false),
+    ENABLE_RAW_COPY_JAR_MERGING("android.enableRawCopyJarMerging", false),
+    ENABLE_INT_INDEXED_SHRINKER_GRAPH("android.enableIntIndexedShrinkerGraph", false),
+    ENABLE_INSTANT_RUN_INT_DISPATCH("android.enableInstantRunIntDispatch", false),
     ENABLE_PROFILE_JSON("android.enableProfileJson", true),
     ENABLE_SDK_DOWNLOAD("android.builder.sdkDownload", true),
     ENABLE_TEST_SHARDING("android.androidTest.shardBetweenDevices"),
@@ -24,6 +24,8 @@ public enum IntegerOption implements Option<Integer> {
     ANDROID_TEST_SHARD_COUNT("android.androidTest.numShards"),
     ANDROID_SDK_CHANNEL("android.sdk.channel"),
     THREAD_POOL_SIZE("android.threadPoolSize"),
+    /** Number of days after which unused build cache entries are evicted. */
+    BUILD_CACHE_MAX_UNUSED_DAYS("android.buildCacheMaxUnusedDays"),
     /**
      * Returns the level of model-only mode.
      *
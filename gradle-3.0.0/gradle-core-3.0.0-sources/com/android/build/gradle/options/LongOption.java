@@ -21,6 +21,8 @@ import com.android.annotations.Nullable;
 
 public enum LongOption implements Option<Long> {
     DEPRECATED_NDK_COMPILE_LEASE("android.deprecatedNdkCompileLease"),
+    /** Size in megabytes that the build cache is trimmed to after builds. */
+    BUILD_CACHE_MAX_SIZE_MB("android.buildCacheMaxSizeMb"),
     ;
 
     @NonNull private final String propertyName;
@@ -30,9 +30,10 @@ import com.android.build.api.transform.TransformOutputProvider;
 import com.android.build.gradle.shrinker.parser.BytecodeVersion;
 import com.android.build.gradle.shrinker.tracing.Trace;
 import com.android.build.gradle.shrinker.tracing.Tracer;
+import com.android.builder.profile.PhaseRecorder;
 import com.android.ide.common.internal.WaitableExecutor;
 import com.android.utils.FileUtils;
-import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
@@ -63,6 +64,9 @@ public abstract class AbstractShrinker<T> {
     private static final boolean IGNORE_PACKAGE_NAME =
             Boolean.getBoolean("android.newShrinker.ignorePackageName");
 
+    /** If set, phases of shrinker runs are printed to stdout. */
+    private static final String PROFILE_PROPERTY = "android.newShrinker.profile";
+
     protected final WaitableExecutor mExecutor;
 
     protected final ShrinkerGraph<T> mGraph;
@@ -380,11 +384,32 @@ public abstract class AbstractShrinker<T> {
         LEGACY_MULTIDEX
     }
 
-    public static void logTime(String section, Stopwatch stopwatch) {
-        if (System.getProperty("android.newShrinker.profile") != null) {
-            System.out.println(section + ": " + stopwatch);
-            stopwatch.reset();
-            stopwatch.start();
+    /** Starts recording the phases of a shrinker run, see {@link #endPhase}. */
+    @NonNull
+    public static PhaseRecorder startPhases() {
+        return PhaseRecorder.start("shrinker", PROFILE_PROPERTY);
+    }
+
+    /**
+     * Ends the current phase of a shrinker run and records the size of the graph.
+     *
+     * <p>Counting edges may require reading them from disk, so it should be avoided for phases that
+     * run before the edges are needed.
+     */
+    public static void endPhase(
+            @NonNull PhaseRecorder phases,
+            @NonNull String name,
+            @NonNull ShrinkerGraph<?> graph,
+            boolean countEdges) {
+        if (!phases.isEnabled()) {
+            return;
+        }
+
+        ImmutableMap.Builder<String, Long> counters = ImmutableMap.builder();
+        counters.put("nodes", (long) graph.getNodeCount());
+        if (countEdges) {
+            counters.put("edges", (long) graph.getEdgeCount());
         }
+        phases.endPhase(name, counters.build());
     }
 }
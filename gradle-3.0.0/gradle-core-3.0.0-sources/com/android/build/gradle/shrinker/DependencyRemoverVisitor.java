@@ -16,6 +16,9 @@
 
 package com.android.build.gradle.shrinker;
 
+import com.google.common.collect.ImmutableSet;
+import java.util.Map;
+import java.util.Set;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
@@ -23,16 +26,23 @@ import org.objectweb.asm.Opcodes;
 /**
  * A {@link ClassVisitor} that removes dependencies created by code references of the given class.
  * They will be re-added by another run of the {@link DependencyFinderVisitor}.
+ *
+ * <p>The dependencies every method had before they were removed are recorded, so that counters can
+ * be updated for the edges that were actually removed or added.
  */
 public class DependencyRemoverVisitor<T> extends ClassVisitor {
 
     private final ShrinkerGraph<T> mGraph;
 
+    private final Map<T, Set<Dependency<T>>> mOldDependencies;
+
     private String mClassName;
 
-    public DependencyRemoverVisitor(ShrinkerGraph<T> graph, ClassVisitor cv) {
+    public DependencyRemoverVisitor(
+            ShrinkerGraph<T> graph, Map<T, Set<Dependency<T>>> oldDependencies, ClassVisitor cv) {
         super(Opcodes.ASM5, cv);
         mGraph = graph;
+        mOldDependencies = oldDependencies;
     }
 
     @Override
@@ -50,7 +60,10 @@ public class DependencyRemoverVisitor<T> extends ClassVisitor {
     @Override
     public MethodVisitor visitMethod(
             int access, String name, String desc, String signature, String[] exceptions) {
-        mGraph.removeAllCodeDependencies(mGraph.getMemberReference(mClassName, name, desc));
+        T method = mGraph.getMemberReference(mClassName, name, desc);
+        // Copy the dependencies, since the graph may return a view.
+        mOldDependencies.put(method, ImmutableSet.copyOf(mGraph.getDependencies(method)));
+        mGraph.removeAllCodeDependencies(method);
         return super.visitMethod(access, name, desc, signature, exceptions);
     }
 }
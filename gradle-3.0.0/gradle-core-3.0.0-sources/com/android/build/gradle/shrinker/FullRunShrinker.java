@@ -28,8 +28,8 @@ import com.android.build.gradle.shrinker.tracing.NoOpTracer;
 import com.android.build.gradle.shrinker.tracing.RealTracer;
 import com.android.build.gradle.shrinker.tracing.Trace;
 import com.android.build.gradle.shrinker.tracing.Tracer;
+import com.android.builder.profile.PhaseRecorder;
 import com.android.ide.common.internal.WaitableExecutor;
-import com.google.common.base.Stopwatch;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Sets;
@@ -103,20 +103,19 @@ public class FullRunShrinker<T> extends AbstractShrinker<T> {
             boolean saveState)
             throws IOException {
         output.deleteAll();
-        Stopwatch stopwatch = Stopwatch.createStarted();
+        PhaseRecorder phases = startPhases();
 
-        buildGraph(inputs, referencedClasses);
-        logTime("Build graph", stopwatch);
+        buildGraph(inputs, referencedClasses, phases);
 
         Tracer<T> tracer = setCounters(keepRules, whyAreYouKeepingRules);
-        logTime("Set counters", stopwatch);
+        endPhase(phases, "Set counters", mGraph, false);
 
         writeOutput(inputs, output);
-        logTime("Write output", stopwatch);
+        endPhase(phases, "Write output", mGraph, false);
 
         if (saveState) {
             mGraph.saveState();
-            logTime("Saving state", stopwatch);
+            endPhase(phases, "Saving state", mGraph, true);
         }
 
         return new Result(mGraph, tracer.getRecordedTraces());
@@ -128,9 +127,9 @@ public class FullRunShrinker<T> extends AbstractShrinker<T> {
      */
     private void buildGraph(
             @NonNull Iterable<TransformInput> programInputs,
-            @NonNull Iterable<TransformInput> libraryInputs)
+            @NonNull Iterable<TransformInput> libraryInputs,
+            @NonNull PhaseRecorder phases)
             throws IOException {
-        Stopwatch stopwatch = Stopwatch.createStarted();
         final PostProcessingData<T> postProcessingData = new PostProcessingData<>();
 
         readPlatformJars();
@@ -172,16 +171,17 @@ public class FullRunShrinker<T> extends AbstractShrinker<T> {
             }
         }
         waitForAllTasks();
-        logTime("Read input", stopwatch);
+        endPhase(phases, "Read input", mGraph, false);
 
         handleOverrides(postProcessingData.getVirtualMethods());
         handleMultipleInheritance(postProcessingData.getMultipleInheritance());
         handleInterfaceInheritance(postProcessingData.getInterfaceInheritance());
         resolveReferences(postProcessingData.getUnresolvedReferences());
         waitForAllTasks();
-        logTime("Finish graph", stopwatch);
+        endPhase(phases, "Finish graph", mGraph, false);
 
         mGraph.checkDependencies(mShrinkerLogger);
+        endPhase(phases, "Check dependencies", mGraph, true);
     }
 
     private void handleInterfaceInheritance(@NonNull Set<T> interfaceInheritance) {
@@ -71,8 +71,8 @@ class IncrementalRunVisitor<T> extends DependencyFinderVisitor<T> {
         checkInterfaces(klass, interfaces);
         checkModifiers(klass, access);
 
-        mMethods = mGraph.getMethods(klass);
-        mFields = mGraph.getFields(klass);
+        mMethods = Sets.newHashSet(mGraph.getMethods(klass));
+        mFields = Sets.newHashSet(mGraph.getFields(klass));
         mAnnotations = Sets.newHashSet(mGraph.getAnnotations(klass));
         mModifiedClasses.add(klass);
         super.visit(version, access, name, signature, superName, interfaces);
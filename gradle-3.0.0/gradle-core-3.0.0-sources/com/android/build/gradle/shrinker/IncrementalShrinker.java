@@ -27,16 +27,21 @@ import com.android.build.api.transform.TransformInput;
 import com.android.build.api.transform.TransformOutputProvider;
 import com.android.build.gradle.shrinker.parser.BytecodeVersion;
 import com.android.build.gradle.shrinker.tracing.NoOpTracer;
+import com.android.builder.profile.PhaseRecorder;
 import com.android.ide.common.internal.WaitableExecutor;
 import com.google.common.base.Objects;
-import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
@@ -74,11 +79,14 @@ public class IncrementalShrinker<T> extends AbstractShrinker<T> {
      * methods has been modified).
      *
      * <p>The general idea is this: for every method in modified classes, remove all outgoing "code
-     * reference" edges, add them again based on the current code and then set the counters again
-     * (traverse the graph) using the new set of edges.
+     * reference" edges, add them again based on the current code and then update the counters for
+     * the edges that were actually removed or added (see {@link CounterUpdate}).
      *
-     * <p>The counters are re-calculated every time from scratch (starting from known entry points
-     * from the config file) to avoid cycles being left in the output.
+     * <p>If the update cannot be done cheaply, the counters are re-calculated from scratch
+     * (starting from known entry points from the config file) instead. In practice only edits that
+     * add references, or that remove the last reference to code which then becomes unreachable,
+     * are updated in place: removing a reference to code that is still reachable from elsewhere
+     * usually falls back to a full recount.
      *
      * @throws IncrementalRunImpossibleException If incremental shrinking is impossible and a full
      *     run should be done instead.
@@ -87,34 +95,37 @@ public class IncrementalShrinker<T> extends AbstractShrinker<T> {
             @NonNull Iterable<TransformInput> inputs, @NonNull TransformOutputProvider output)
             throws IOException, IncrementalRunImpossibleException {
         Set<T> modifiedClasses = Sets.newConcurrentHashSet();
+        Map<T, Set<Dependency<T>>> oldDependencies = Maps.newConcurrentMap();
         Set<PostProcessingData.UnresolvedReference<T>> unresolvedReferences =
                 Sets.newConcurrentHashSet();
 
-        Stopwatch stopwatch = Stopwatch.createStarted();
+        PhaseRecorder phases = startPhases();
 
         Map<T, State<T>> oldState = saveState();
-        logTime("save state", stopwatch);
+        endPhase(phases, "snapshot old state", mGraph, false);
 
-        clearCounters();
-        logTime("clear counters", stopwatch);
-
-        processInputs(inputs, modifiedClasses, unresolvedReferences);
-        logTime("process inputs", stopwatch);
+        processInputs(inputs, modifiedClasses, oldDependencies, unresolvedReferences);
+        endPhase(phases, "process inputs", mGraph, false);
 
         finishGraph(unresolvedReferences);
-        logTime("finish graph", stopwatch);
-
-        setCounters(CounterSet.SHRINK, new NoOpTracer<>());
-        logTime("set counters", stopwatch);
+        endPhase(phases, "finish graph", mGraph, true);
+
+        if (new CounterUpdate<>(mGraph, CounterSet.SHRINK).apply(oldDependencies)) {
+            endPhase(phases, "update counters", mGraph, false);
+        } else {
+            clearCounters();
+            setCounters(CounterSet.SHRINK, new NoOpTracer<>());
+            endPhase(phases, "set counters", mGraph, false);
+        }
 
         Changes<T> changes = calculateChanges(inputs, output, oldState, modifiedClasses);
-        logTime("choose classes", stopwatch);
+        endPhase(phases, "choose classes", mGraph, false);
 
         updateClassFiles(changes.classesToWrite, changes.classFilesToDelete, inputs, output);
-        logTime("update class files", stopwatch);
+        endPhase(phases, "update class files", mGraph, false);
 
         mGraph.saveState();
-        logTime("save state", stopwatch);
+        endPhase(phases, "save state", mGraph, false);
     }
 
     /**
@@ -241,6 +252,7 @@ public class IncrementalShrinker<T> extends AbstractShrinker<T> {
     private void processInputs(
             @NonNull Iterable<TransformInput> inputs,
             @NonNull final Collection<T> modifiedClasses,
+            @NonNull final Map<T, Set<Dependency<T>>> oldDependencies,
             @NonNull
                     final Collection<PostProcessingData.UnresolvedReference<T>>
                             unresolvedReferences)
@@ -280,7 +292,8 @@ public class IncrementalShrinker<T> extends AbstractShrinker<T> {
                                         processChangedClassFile(
                                                 changedFile.getKey(),
                                                 unresolvedReferences,
-                                                modifiedClasses);
+                                                modifiedClasses,
+                                                oldDependencies);
                                         break;
                                     case NOTCHANGED:
                                         break;
@@ -310,14 +323,16 @@ public class IncrementalShrinker<T> extends AbstractShrinker<T> {
     private void processChangedClassFile(
             @NonNull File file,
             @NonNull Collection<PostProcessingData.UnresolvedReference<T>> unresolvedReferences,
-            @NonNull Collection<T> modifiedClasses)
+            @NonNull Collection<T> modifiedClasses,
+            @NonNull Map<T, Set<Dependency<T>>> oldDependencies)
             throws IncrementalRunImpossibleException {
         try {
             ClassReader classReader = new ClassReader(Files.toByteArray(file));
             IncrementalRunVisitor<T> visitor =
                     new IncrementalRunVisitor<>(mGraph, modifiedClasses, unresolvedReferences);
 
-            DependencyRemoverVisitor<T> remover = new DependencyRemoverVisitor<>(mGraph, visitor);
+            DependencyRemoverVisitor<T> remover =
+                    new DependencyRemoverVisitor<>(mGraph, oldDependencies, visitor);
 
             classReader.accept(remover, 0);
         } catch (IncrementalRunImpossibleException e) {
@@ -394,4 +409,207 @@ public class IncrementalShrinker<T> extends AbstractShrinker<T> {
             this.classFilesToDelete = classFilesToDelete;
         }
     }
+
+    /**
+     * Updates counters for the code references that were removed from or added to modified
+     * methods, without walking the whole graph.
+     *
+     * <p>Every counter holds the number of edges of its type coming from reachable nodes (plus one
+     * for a root), so the counters work as reference counts. Removing an edge from a reachable
+     * node decrements the counter on its target and, if this made the target unreachable,
+     * removes the edges of the target in turn. Adding an edge is the same as in a full run.
+     *
+     * <p>Reference counts alone miss nodes that are only reachable from each other, i.e. cycles
+     * that lost their connection to the roots. Nodes that lost an incoming edge but are still
+     * reachable may be part of such a cycle. These are checked by trial deletion: the edges
+     * between all reachable nodes reachable from them are removed, and added back only from the
+     * nodes that are still reachable afterwards, i.e. are reachable from outside.
+     *
+     * <p>The update gives up once it visited {@link #MAX_VISITED_EDGES} edges, since walking a big
+     * part of the graph on one thread is slower than computing all counters from scratch. The
+     * counters are then left in an inconsistent state, and need to be computed from scratch.
+     *
+     * <p>Checking the suspects visits every edge reachable from them, and most code of an app is
+     * reachable from most of its methods, so removing a reference to a node that stays reachable
+     * typically exceeds the budget. Only adding references, and removing references whose
+     * targets become unreachable without leaving suspects behind, is reliably cheap.
+     */
+    private static final class CounterUpdate<T> {
+        /** Number of edges to visit, above which a full traversal is likely faster. */
+        private static final int MAX_VISITED_EDGES = 50_000;
+
+        @NonNull private final ShrinkerGraph<T> mGraph;
+
+        @NonNull private final CounterSet mCounterSet;
+
+        /**
+         * Dependencies counted for the modified methods, which differ from the ones in the graph
+         * while the update is in progress.
+         */
+        @NonNull private final Map<T, Set<Dependency<T>>> mCountedDependencies = new HashMap<>();
+
+        /** Nodes that lost an incoming edge but are still reachable. */
+        @NonNull private final Set<T> mSuspects = new LinkedHashSet<>();
+
+        private int mRemainingEdges = MAX_VISITED_EDGES;
+
+        CounterUpdate(@NonNull ShrinkerGraph<T> graph, @NonNull CounterSet counterSet) {
+            mGraph = graph;
+            mCounterSet = counterSet;
+        }
+
+        /**
+         * Updates the counters.
+         *
+         * @param oldDependencies dependencies of the modified methods before they were modified
+         * @return false if the counters could not be updated and need to be computed from scratch
+         */
+        boolean apply(@NonNull Map<T, Set<Dependency<T>>> oldDependencies) {
+            Map<T, Set<Dependency<T>>> newDependencies = new HashMap<>();
+            for (Map.Entry<T, Set<Dependency<T>>> entry : oldDependencies.entrySet()) {
+                mCountedDependencies.put(entry.getKey(), new HashSet<>(entry.getValue()));
+                newDependencies.put(
+                        entry.getKey(), ImmutableSet.copyOf(mGraph.getDependencies(entry.getKey())));
+            }
+
+            for (Map.Entry<T, Set<Dependency<T>>> entry : oldDependencies.entrySet()) {
+                T method = entry.getKey();
+                for (Dependency<T> dependency :
+                        Sets.difference(entry.getValue(), newDependencies.get(method))) {
+                    mCountedDependencies.get(method).remove(dependency);
+                    if (mGraph.isReachable(method, mCounterSet) && !decrement(dependency)) {
+                        return false;
+                    }
+                }
+            }
+            for (Map.Entry<T, Set<Dependency<T>>> entry : newDependencies.entrySet()) {
+                T method = entry.getKey();
+                for (Dependency<T> dependency :
+                        Sets.difference(entry.getValue(), oldDependencies.get(method))) {
+                    mCountedDependencies.get(method).add(dependency);
+                    if (mGraph.isReachable(method, mCounterSet) && !increment(dependency)) {
+                        return false;
+                    }
+                }
+            }
+
+            mSuspects.removeIf(node -> !mGraph.isReachable(node, mCounterSet));
+            return mSuspects.isEmpty() || removeUnreachableCycles();
+        }
+
+        private boolean decrement(@NonNull Dependency<T> edge) {
+            Deque<Dependency<T>> queue = new ArrayDeque<>();
+            queue.add(edge);
+            while (!queue.isEmpty()) {
+                Dependency<T> dependency = queue.remove();
+                if (mGraph.decrementAndCheck(dependency.target, dependency.type, mCounterSet)) {
+                    Set<Dependency<T>> dependencies = getDependencies(dependency.target);
+                    if (dependencies == null) {
+                        return false;
+                    }
+                    queue.addAll(dependencies);
+                } else if (mGraph.isReachable(dependency.target, mCounterSet)) {
+                    mSuspects.add(dependency.target);
+                }
+            }
+            return true;
+        }
+
+        private boolean increment(@NonNull Dependency<T> edge) {
+            Deque<Dependency<T>> queue = new ArrayDeque<>();
+            queue.add(edge);
+            while (!queue.isEmpty()) {
+                Dependency<T> dependency = queue.remove();
+                if (mGraph.incrementAndCheck(dependency.target, dependency.type, mCounterSet)) {
+                    Set<Dependency<T>> dependencies = getDependencies(dependency.target);
+                    if (dependencies == null) {
+                        return false;
+                    }
+                    queue.addAll(dependencies);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Finds the nodes downstream of the suspects that are not reachable from the roots anymore,
+         * and updates their counters, see {@link CounterUpdate}.
+         */
+        private boolean removeUnreachableCycles() {
+            // Roots stay reachable, so nodes reachable from them don't need to be checked.
+            Set<T> roots = mGraph.getRoots(mCounterSet).keySet();
+            mSuspects.removeAll(roots);
+            Set<T> subgraph = new HashSet<>(mSuspects);
+            Deque<T> stack = new ArrayDeque<>(mSuspects);
+            while (!stack.isEmpty()) {
+                Set<Dependency<T>> dependencies = getDependencies(stack.pop());
+                if (dependencies == null) {
+                    return false;
+                }
+                for (Dependency<T> dependency : dependencies) {
+                    if (mGraph.isReachable(dependency.target, mCounterSet)
+                            && !roots.contains(dependency.target)
+                            && subgraph.add(dependency.target)) {
+                        stack.push(dependency.target);
+                    }
+                }
+            }
+
+            // The edges within the subgraph were all visited once already, so the budget is not
+            // checked anymore.
+            for (T node : subgraph) {
+                for (Dependency<T> dependency : getCountedDependencies(node)) {
+                    if (subgraph.contains(dependency.target)) {
+                        mGraph.decrementAndCheck(dependency.target, dependency.type, mCounterSet);
+                    }
+                }
+            }
+
+            for (T node : subgraph) {
+                if (mGraph.isReachable(node, mCounterSet)) {
+                    stack.push(node);
+                }
+            }
+            while (!stack.isEmpty()) {
+                for (Dependency<T> dependency : getCountedDependencies(stack.pop())) {
+                    if (subgraph.contains(dependency.target)
+                            && mGraph.incrementAndCheck(
+                                    dependency.target, dependency.type, mCounterSet)) {
+                        stack.push(dependency.target);
+                    }
+                }
+            }
+
+            // Nodes that were not reached again are garbage. Their edges to nodes outside of the
+            // subgraph, which are roots or unreachable, are still counted.
+            for (T node : subgraph) {
+                if (!mGraph.isReachable(node, mCounterSet)) {
+                    for (Dependency<T> dependency : getCountedDependencies(node)) {
+                        if (!subgraph.contains(dependency.target)) {
+                            mGraph.decrementAndCheck(
+                                    dependency.target, dependency.type, mCounterSet);
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns the counted dependencies of the given node, or null if visiting them would
+         * exceed the budget.
+         */
+        @Nullable
+        private Set<Dependency<T>> getDependencies(@NonNull T node) {
+            Set<Dependency<T>> dependencies = getCountedDependencies(node);
+            mRemainingEdges -= dependencies.size();
+            return mRemainingEdges >= 0 ? dependencies : null;
+        }
+
+        @NonNull
+        private Set<Dependency<T>> getCountedDependencies(@NonNull T node) {
+            Set<Dependency<T>> dependencies = mCountedDependencies.get(node);
+            return dependencies != null ? dependencies : mGraph.getDependencies(node);
+        }
+    }
 }
@@ -0,0 +1,1948 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.shrinker;
+
+import static com.android.build.gradle.shrinker.AbstractShrinker.isSdkPackage;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.build.gradle.shrinker.AbstractShrinker.CounterSet;
+import com.android.build.gradle.shrinker.IncrementalShrinker.IncrementalRunImpossibleException;
+import com.android.ide.common.internal.WaitableExecutor;
+import com.android.utils.FileUtils;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * {@link ShrinkerGraph} implementation that identifies nodes by consecutive ints.
+ *
+ * <p>The name of every node is stored once, in a symbol table that maps it to the node's id. All
+ * other data is kept in arrays indexed by id, which are allocated in fixed-size pages so that they
+ * never have to be copied (and threads reading them never see a stale copy) as the graph grows.
+ * Class nodes additionally point to the ids of their methods and fields, so these can be returned
+ * without copying or filtering.
+ *
+ * <p>Edges are first appended to per-page buffers, and merged into a compressed sparse row (CSR)
+ * table when they are first read: one array of offsets by source node, and arrays of targets and
+ * edge types ordered by source. Duplicate edges are dropped when merging. Counters are kept in
+ * {@link AtomicIntegerArray}s, so they can be updated concurrently without locking.
+ *
+ * <p>The state is saved as a set of section files (see {@link Section}) and a manifest that lists
+ * them. Only the sections that changed since the state was loaded are written again. When the
+ * state is loaded, the section files are memory-mapped: node names are decoded when they are
+ * first needed, the edge table is used in place, and other sections are decoded when they are
+ * first accessed. See {@link #saveState()} for the format.
+ */
+public class IntIndexedShrinkerGraph implements ShrinkerGraph<Integer> {
+
+    private static final int PAGE_SHIFT = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    /** Id used for "no node", e.g. for the superclass of {@code java/lang/Object}. */
+    private static final int NO_NODE = -1;
+
+    /** The node is a method or field. */
+    private static final byte FLAG_MEMBER = 1;
+    /** The node is a method. */
+    private static final byte FLAG_METHOD = 2;
+    /** The class or member has been added to the graph, not only referenced by name. */
+    private static final byte FLAG_ADDED = 4;
+
+    /** Edge type stored for edges that have been removed from the CSR table. */
+    private static final byte REMOVED_EDGE = -1;
+
+    private static final DependencyType[] DEPENDENCY_TYPES = DependencyType.values();
+
+    /** Magic number at the start of the manifest and of every section file ("SHRG"). */
+    private static final int MAGIC = 0x53485247;
+
+    /**
+     * Version of the saved state. Needs to be incremented whenever the format of a section
+     * changes, including when {@link DependencyType} constants are added or reordered, since edge
+     * and root types are saved as ordinals.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    private static final String STATE_DIR_NAME = "shrinker-graph";
+    private static final String MANIFEST_FILE_NAME = "manifest.bin";
+
+    @NonNull private final File mStateDir;
+
+    @NonNull private final ConcurrentMap<String, Integer> mSymbols = new ConcurrentHashMap<>();
+
+    @NonNull private final AtomicInteger mNextId = new AtomicInteger();
+
+    @NonNull private final Object mPageLock = new Object();
+
+    @NonNull private volatile Page[] mPages = new Page[16];
+
+    @NonNull private final Object mEdgeLock = new Object();
+
+    @NonNull private volatile EdgeTable mEdges = EdgeTable.empty();
+
+    private volatile boolean mHasPendingEdges;
+
+    @NonNull private volatile Counters mShrinkCounters = new Counters();
+
+    @NonNull private volatile Counters mMultidexCounters = new Counters();
+
+    @NonNull
+    private final ConcurrentMap<Integer, DependencyType> mShrinkRoots = new ConcurrentHashMap<>();
+
+    @NonNull
+    private final ConcurrentMap<Integer, DependencyType> mMultidexRoots =
+            new ConcurrentHashMap<>();
+
+    /** Names of the nodes read from the saved state, null for a new graph. */
+    @Nullable private SavedNames mSavedNames;
+
+    @NonNull private final Object mSectionLock = new Object();
+
+    /** Bit set of the {@link Section}s that are loaded, i.e. not only mapped. */
+    private volatile int mLoadedSections = Section.ALL;
+
+    /** Mapped contents of the sections that have not been loaded yet. */
+    @NonNull private final Map<Section, ByteBuffer> mUnloadedSections = new EnumMap<>(Section.class);
+
+    /** Bit set of the {@link Section}s that changed since the state was loaded or saved. */
+    @NonNull private final AtomicInteger mDirtySections = new AtomicInteger(Section.ALL);
+
+    /** Files of the sections in the saved state. */
+    @NonNull private final Map<Section, String> mSectionFiles = new EnumMap<>(Section.class);
+
+    private long mGeneration;
+
+    private IntIndexedShrinkerGraph(@NonNull File stateDir) {
+        mStateDir = checkNotNull(stateDir);
+    }
+
+    public static IntIndexedShrinkerGraph empty(@NonNull File stateDir) {
+        return new IntIndexedShrinkerGraph(stateDir);
+    }
+
+    /**
+     * Constructs a graph from the state saved in the given directory by {@link #saveState()}.
+     *
+     * @throws IncrementalRunImpossibleException if there is no saved state, or it was saved in a
+     *     different format
+     */
+    @NonNull
+    public static IntIndexedShrinkerGraph readFromDir(@NonNull File stateDir) throws IOException {
+        File dir = new File(stateDir, STATE_DIR_NAME);
+        File manifest = new File(dir, MANIFEST_FILE_NAME);
+        if (!manifest.isFile()) {
+            throw new IncrementalRunImpossibleException("No saved state in " + dir);
+        }
+
+        IntIndexedShrinkerGraph graph = new IntIndexedShrinkerGraph(stateDir);
+        try (DataInputStream input =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(manifest)))) {
+            checkHeader(input.readInt(), input.readInt(), manifest);
+            graph.mGeneration = input.readLong();
+            int sectionCount = input.readInt();
+            for (int i = 0; i < sectionCount; i++) {
+                Section section = Section.forId(input.readInt());
+                String fileName = input.readUTF();
+                long length = input.readLong();
+                graph.mUnloadedSections.put(
+                        section, mapSection(new File(dir, fileName), section, length));
+                graph.mSectionFiles.put(section, fileName);
+            }
+        }
+        if (graph.mSectionFiles.size() != Section.values().length) {
+            throw new IncrementalRunImpossibleException("Incomplete saved state in " + dir);
+        }
+
+        graph.mLoadedSections = 0;
+        graph.mDirtySections.set(0);
+        // Every other section refers to nodes, so this one is needed right away.
+        graph.ensureLoaded(Section.NODES);
+        return graph;
+    }
+
+    /**
+     * Returns the number of nodes (classes and members) in the graph, including the ones that are
+     * only referenced by name.
+     */
+    @Override
+    public int getNodeCount() {
+        return mNextId.get();
+    }
+
+    @Override
+    public int getEdgeCount() {
+        return getEdges().size();
+    }
+
+    @Nullable
+    @Override
+    public File getSourceFile(@NonNull Integer klass) {
+        ClassData classData = getClassData(klass);
+        return classData != null ? classData.sourceFile : null;
+    }
+
+    @NonNull
+    @Override
+    public Iterable<Integer> getAllProgramClasses() {
+        List<Integer> classes = Lists.newArrayList();
+        int nodeCount = getNodeCount();
+        for (int node = 0; node < nodeCount; node++) {
+            if (isAdded(node) && !isMember(node) && getSourceFile(node) != null) {
+                classes.add(node);
+            }
+        }
+        return classes;
+    }
+
+    @NonNull
+    @Override
+    public Set<Integer> getReachableClasses(@NonNull CounterSet counterSet) {
+        Counters counters = getCounters(counterSet);
+        Set<Integer> classesToKeep = Sets.newHashSet();
+        int nodeCount = getNodeCount();
+        for (int node = 0; node < nodeCount; node++) {
+            if (isAdded(node)
+                    && !isMember(node)
+                    && getSourceFile(node) != null
+                    && counters.isReachable(node)) {
+                classesToKeep.add(node);
+            }
+        }
+        return classesToKeep;
+    }
+
+    @NonNull
+    @Override
+    public Set<String> getReachableMembersLocalNames(
+            @NonNull Integer klass, @NonNull CounterSet counterSet) {
+        Counters counters = getCounters(counterSet);
+        Set<String> memberIds = Sets.newHashSet();
+        ClassData classData = getClassData(klass);
+        if (classData != null) {
+            for (IdList members : new IdList[] {classData.methods, classData.fields}) {
+                int size = members.size;
+                int[] ids = members.ids;
+                for (int i = 0; i < size; i++) {
+                    if (counters.isReachable(ids[i])) {
+                        memberIds.add(getMemberId(getName(ids[i])));
+                    }
+                }
+            }
+        }
+        return memberIds;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The returned set is a read-only view of the graph.
+     */
+    @NonNull
+    @Override
+    public Set<Dependency<Integer>> getDependencies(@NonNull Integer node) {
+        EdgeTable edges = getEdges();
+        if (node >= edges.getNodeCount()) {
+            return ImmutableSet.of();
+        }
+        return new DependencySet(edges, edges.offsets.get(node), edges.offsets.get(node + 1));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The returned set is a read-only view of the graph.
+     */
+    @NonNull
+    @Override
+    public Set<Integer> getMethods(@NonNull Integer klass) {
+        ClassData classData = getClassData(klass);
+        return classData != null
+                ? new MemberSet(klass, classData.methods, true)
+                : ImmutableSet.of();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The returned set is a read-only view of the graph.
+     */
+    @NonNull
+    @Override
+    public Set<Integer> getFields(@NonNull Integer klass) {
+        ClassData classData = getClassData(klass);
+        return classData != null
+                ? new MemberSet(klass, classData.fields, false)
+                : ImmutableSet.of();
+    }
+
+    @NonNull
+    @Override
+    public Integer addClass(
+            @NonNull String name,
+            @Nullable String superName,
+            @Nullable String[] interfaces,
+            int modifiers,
+            @Nullable File classFile) {
+        ensureLoaded(Section.CLASSES);
+        int klass = getClassReference(name);
+        int superclass = superName != null ? getClassReference(superName) : NO_NODE;
+        int[] interfaceIds;
+        if (interfaces == null) {
+            interfaceIds = new int[0];
+        } else {
+            interfaceIds = new int[interfaces.length];
+            for (int i = 0; i < interfaces.length; i++) {
+                interfaceIds[i] = getClassReference(interfaces[i]);
+            }
+        }
+
+        Page page = getPage(klass);
+        int index = klass & PAGE_MASK;
+        synchronized (page) {
+            ClassData classData = page.getOrCreateClassData(index);
+            classData.sourceFile = classFile;
+            classData.superclass = superclass;
+            classData.interfaces = interfaceIds;
+            page.modifiers[index] = modifiers;
+            page.flags[index] |= FLAG_ADDED;
+        }
+        markDirty(Section.NODES);
+        markDirty(Section.CLASSES);
+        return klass;
+    }
+
+    @NonNull
+    @Override
+    public Integer addMember(
+            @NonNull Integer owner, @NonNull String name, @NonNull String desc, int modifiers) {
+        ensureLoaded(Section.CLASSES);
+        int member = getMemberReference(getName(owner), name, desc);
+
+        Page page = getPage(member);
+        int index = member & PAGE_MASK;
+        boolean added;
+        synchronized (page) {
+            page.modifiers[index] = modifiers;
+            added = (page.flags[index] & FLAG_ADDED) != 0;
+            page.flags[index] |= FLAG_ADDED;
+        }
+        markDirty(Section.NODES);
+
+        if (!added) {
+            Page ownerPage = getPage(owner);
+            ClassData classData;
+            synchronized (ownerPage) {
+                classData = ownerPage.getOrCreateClassData(owner & PAGE_MASK);
+            }
+            (isMethod(member) ? classData.methods : classData.fields).add(member);
+            markDirty(Section.CLASSES);
+        }
+        return member;
+    }
+
+    @NonNull
+    @Override
+    public Integer getOwnerClass(@NonNull Integer member) {
+        return getPage(member).owners[member & PAGE_MASK];
+    }
+
+    @NonNull
+    @Override
+    public Integer getClassReference(@NonNull String className) {
+        checkNotNull(className);
+        return getOrCreateNode(className, NO_NODE, (byte) 0);
+    }
+
+    @NonNull
+    @Override
+    public Integer getMemberReference(
+            @NonNull String className, @NonNull String memberName, @NonNull String desc) {
+        int owner = getClassReference(className);
+        byte flags = desc.startsWith("(") ? (byte) (FLAG_MEMBER | FLAG_METHOD) : FLAG_MEMBER;
+        return getOrCreateNode(className + "." + memberName + ":" + desc, owner, flags);
+    }
+
+    @Override
+    public boolean incrementAndCheck(
+            @NonNull Integer node,
+            @NonNull DependencyType dependencyType,
+            @NonNull CounterSet counterSet) {
+        Counters counters = getCounters(counterSet);
+        markDirty(Section.counters(counterSet));
+        return counters.incrementAndCheck(node, dependencyType);
+    }
+
+    @Override
+    public boolean decrementAndCheck(
+            @NonNull Integer node,
+            @NonNull DependencyType dependencyType,
+            @NonNull CounterSet counterSet) {
+        Counters counters = getCounters(counterSet);
+        markDirty(Section.counters(counterSet));
+        return counters.decrementAndCheck(node, dependencyType);
+    }
+
+    @Override
+    public void addDependency(
+            @NonNull Integer source, @NonNull Integer target, @NonNull DependencyType type) {
+        Page page = getPage(source);
+        synchronized (page) {
+            page.addPendingEdge(source, target, type);
+        }
+        mHasPendingEdges = true;
+        markDirty(Section.EDGES);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The state is stored in a {@code shrinker-graph} subdirectory of the state directory. It
+     * consists of one file per {@link Section}, and a {@code manifest.bin} file that lists them.
+     * All numbers are big-endian. The manifest contains:
+     *
+     * <ul>
+     *   <li>the {@link #MAGIC} number and {@link #FORMAT_VERSION} (ints),
+     *   <li>the generation of the state (long), which is incremented every time it is saved,
+     *   <li>the number of sections (int), and for every section its id (int), file name (in the
+     *       format of {@link DataOutputStream#writeUTF}) and file length (long).
+     * </ul>
+     *
+     * <p>Every section file starts with the magic number, format version and section id (ints),
+     * followed by the contents described in {@link Section}. Files of sections that changed are
+     * written under new names, and the manifest is then replaced atomically, so a build that
+     * fails while saving the state leaves the previous state intact.
+     */
+    @Override
+    public void saveState() throws IOException {
+        File dir = new File(mStateDir, STATE_DIR_NAME);
+        File manifest = new File(dir, MANIFEST_FILE_NAME);
+        if (mSectionFiles.isEmpty()) {
+            // Section files of an unrelated state may be overwritten below.
+            FileUtils.deleteIfExists(manifest);
+        }
+        FileUtils.mkdirs(dir);
+
+        // Merge pending edges first, this may load the edge table.
+        getEdges();
+        long generation = mGeneration + 1;
+        int dirtySections = mDirtySections.getAndSet(0);
+        Map<Section, String> sectionFiles = new EnumMap<>(mSectionFiles);
+        for (Section section : Section.values()) {
+            String fileName = sectionFiles.get(section);
+            if ((dirtySections & section.bit()) == 0
+                    && fileName != null
+                    && new File(dir, fileName).isFile()) {
+                continue;
+            }
+            fileName = section.name().toLowerCase(Locale.US) + "-" + generation + ".bin";
+            writeSection(new File(dir, fileName), section);
+            sectionFiles.put(section, fileName);
+        }
+
+        File tempManifest = new File(dir, MANIFEST_FILE_NAME + ".tmp");
+        try (DataOutputStream output =
+                new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(tempManifest)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeLong(generation);
+            output.writeInt(sectionFiles.size());
+            for (Map.Entry<Section, String> entry : sectionFiles.entrySet()) {
+                output.writeInt(entry.getKey().id);
+                output.writeUTF(entry.getValue());
+                output.writeLong(new File(dir, entry.getValue()).length());
+            }
+        }
+        Files.move(
+                tempManifest.toPath(),
+                manifest.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        mSectionFiles.clear();
+        mSectionFiles.putAll(sectionFiles);
+        mGeneration = generation;
+
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.getName().equals(MANIFEST_FILE_NAME)
+                        && !sectionFiles.containsValue(file.getName())) {
+                    // This fails on Windows while the file is still mapped, in which case it is
+                    // deleted after a later run.
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean isReachable(@NonNull Integer node, @NonNull CounterSet counterSet) {
+        return getCounters(counterSet).isReachable(node);
+    }
+
+    @Override
+    public void removeAllCodeDependencies(@NonNull Integer node) {
+        synchronized (mEdgeLock) {
+            EdgeTable edges = getEdges();
+            if (node >= edges.getNodeCount()) {
+                return;
+            }
+            for (int i = edges.offsets.get(node); i < edges.offsets.get(node + 1); i++) {
+                byte type = edges.getType(i);
+                if (type == DependencyType.REQUIRED_CODE_REFERENCE.ordinal()
+                        || type == DependencyType.REQUIRED_CODE_REFERENCE_REFLECTION.ordinal()) {
+                    edges.remove(i);
+                    markDirty(Section.EDGES);
+                }
+            }
+        }
+    }
+
+    @Nullable
+    @Override
+    public Integer getSuperclass(@NonNull Integer klass) throws ClassLookupException {
+        ClassData classData = getAddedClassData(klass);
+        if (classData.superclass == NO_NODE) {
+            return null;
+        }
+        if (!isClassKnown(classData.superclass)) {
+            throw new ClassLookupException(getName(classData.superclass));
+        }
+        return classData.superclass;
+    }
+
+    @Nullable
+    @Override
+    public Integer findMatchingMethod(@NonNull Integer klass, @NonNull Integer method) {
+        // Common case:
+        if (isAddedMember(klass, method)) {
+            return method;
+        }
+
+        int matchingMethod = findNode(getName(klass) + "." + getMemberId(getName(method)));
+        if (matchingMethod != NO_NODE && isAddedMember(klass, matchingMethod)) {
+            return matchingMethod;
+        } else {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isProgramClass(@NonNull Integer klass) {
+        return getSourceFile(klass) != null && isAdded(klass) && !isSdkPackage(getName(klass));
+    }
+
+    @NonNull
+    @Override
+    public Integer[] getInterfaces(Integer klass) throws ClassLookupException {
+        int[] interfaceIds = getAddedClassData(klass).interfaces;
+        Integer[] interfaces = new Integer[interfaceIds.length];
+        for (int i = 0; i < interfaceIds.length; i++) {
+            interfaces[i] = interfaceIds[i];
+        }
+        return interfaces;
+    }
+
+    @NonNull
+    @Override
+    public String getClassName(@NonNull Integer klass) {
+        return getName(klass);
+    }
+
+    @Override
+    public String getMemberName(@NonNull Integer member) {
+        String name = getName(member);
+        return name.substring(name.indexOf('.') + 1, name.indexOf(':'));
+    }
+
+    @Override
+    public String getFullMemberName(@NonNull Integer member) {
+        return getName(member);
+    }
+
+    @Override
+    public String getMemberDescriptor(@NonNull Integer member) {
+        String name = getName(member);
+        return name.substring(name.indexOf(':') + 1);
+    }
+
+    @Override
+    public int getModifiers(@NonNull Integer node) {
+        return getPage(node).modifiers[node & PAGE_MASK];
+    }
+
+    @Override
+    public void addAnnotation(@NonNull Integer node, @NonNull String annotationName) {
+        Preconditions.checkArgument(!annotationName.endsWith(";"));
+        ensureLoaded(Section.ANNOTATIONS);
+        int annotation = getClassReference(annotationName);
+        Page page = getPage(node);
+        int index = node & PAGE_MASK;
+        synchronized (page) {
+            page.annotations[index] = appendIfAbsent(page.annotations[index], annotation);
+        }
+        markDirty(Section.ANNOTATIONS);
+    }
+
+    @NonNull
+    @Override
+    public Iterable<String> getAnnotations(@NonNull Integer node) {
+        ensureLoaded(Section.ANNOTATIONS);
+        int[] annotations = getPage(node).annotations[node & PAGE_MASK];
+        if (annotations == null) {
+            return ImmutableList.of();
+        }
+        List<String> names = Lists.newArrayListWithCapacity(annotations.length);
+        for (int annotation : annotations) {
+            names.add(getName(annotation));
+        }
+        return names;
+    }
+
+    @Override
+    public void addRoots(
+            @NonNull Map<Integer, DependencyType> symbolsToKeep, @NonNull CounterSet counterSet) {
+        getRoots0(counterSet).putAll(symbolsToKeep);
+        markDirty(Section.roots(counterSet));
+    }
+
+    @NonNull
+    @Override
+    public Map<Integer, DependencyType> getRoots(@NonNull CounterSet counterSet) {
+        return ImmutableMap.copyOf(getRoots0(counterSet));
+    }
+
+    @Override
+    public void clearCounters(@NonNull WaitableExecutor executor) {
+        synchronized (mSectionLock) {
+            mShrinkCounters = new Counters();
+            mMultidexCounters = new Counters();
+            // There is no need to read the saved counters anymore.
+            for (CounterSet counterSet : CounterSet.values()) {
+                mUnloadedSections.remove(Section.counters(counterSet));
+                mLoadedSections |= Section.counters(counterSet).bit();
+                markDirty(Section.counters(counterSet));
+            }
+        }
+    }
+
+    @Override
+    public boolean isClassKnown(@NonNull Integer klass) {
+        return isAdded(klass) && !isMember(klass);
+    }
+
+    @Override
+    public void checkDependencies(ShrinkerLogger shrinkerLogger) {
+        synchronized (mEdgeLock) {
+            EdgeTable edges = getEdges();
+            for (int source = 0; source < edges.getNodeCount(); source++) {
+                int end = edges.offsets.get(source + 1);
+                for (int i = edges.offsets.get(source); i < end; i++) {
+                    byte type = edges.getType(i);
+                    if (type == REMOVED_EDGE) {
+                        continue;
+                    }
+                    int target = edges.targets.get(i);
+                    if (!isMember(target)) {
+                        if (!isAdded(target)) {
+                            // We don't warn about by-name references in strings.
+                            if (type
+                                    != DependencyType.REQUIRED_CODE_REFERENCE_REFLECTION
+                                            .ordinal()) {
+                                shrinkerLogger.invalidClassReference(
+                                        getName(source), getName(target));
+                                edges.remove(i);
+                                markDirty(Section.EDGES);
+                            }
+                        }
+                    } else {
+                        if (!isAdded(target)) {
+                            shrinkerLogger.invalidMemberReference(
+                                    getName(source), getName(target));
+                            edges.remove(i);
+                            markDirty(Section.EDGES);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void addTypeFromGenericSignature(@NonNull Integer klass, @NonNull Integer type) {
+        ensureLoaded(Section.CLASSES);
+        Page page = getPage(klass);
+        synchronized (page) {
+            ClassData classData = page.getOrCreateClassData(klass & PAGE_MASK);
+            classData.typesFromSignatures = appendIfAbsent(classData.typesFromSignatures, type);
+        }
+        markDirty(Section.CLASSES);
+    }
+
+    @NonNull
+    @Override
+    public Set<Integer> getTypesFromGenericSignatures(@NonNull Integer klass) {
+        ClassData classData = getClassData(klass);
+        if (classData == null || classData.typesFromSignatures == null) {
+            return ImmutableSet.of();
+        }
+        int[] types = classData.typesFromSignatures;
+        return new IdSet(types, types.length);
+    }
+
+    /** Returns the id of the node with the given name, creating the node if necessary. */
+    private int getOrCreateNode(@NonNull String name, int owner, byte flags) {
+        Integer node = mSymbols.get(name);
+        if (node != null) {
+            return node;
+        }
+        return mSymbols.computeIfAbsent(
+                name,
+                key -> {
+                    int savedNode = findSavedNode(key);
+                    if (savedNode != NO_NODE) {
+                        return savedNode;
+                    }
+                    int id = mNextId.getAndIncrement();
+                    Page page = getOrCreatePage(id >> PAGE_SHIFT);
+                    int index = id & PAGE_MASK;
+                    synchronized (page) {
+                        page.names[index] = key;
+                        page.owners[index] = owner;
+                        page.flags[index] = flags;
+                    }
+                    markDirty(Section.NODES);
+                    return id;
+                });
+    }
+
+    /** Returns the id of the node with the given name, or {@link #NO_NODE} if there is none. */
+    private int findNode(@NonNull String name) {
+        Integer node = mSymbols.get(name);
+        if (node != null) {
+            return node;
+        }
+        int savedNode = findSavedNode(name);
+        if (savedNode != NO_NODE) {
+            mSymbols.putIfAbsent(name, savedNode);
+        }
+        return savedNode;
+    }
+
+    /** Looks up the given name in the index of the saved state, without decoding other names. */
+    private int findSavedNode(@NonNull String name) {
+        SavedNames savedNames = mSavedNames;
+        if (savedNames == null) {
+            return NO_NODE;
+        }
+        int hash = name.hashCode();
+        int mask = savedNames.index.limit() - 1;
+        for (int slot = SavedNames.spread(hash) & mask; ; slot = (slot + 1) & mask) {
+            int entry = savedNames.index.get(slot);
+            if (entry == 0) {
+                return NO_NODE;
+            }
+            int node = entry - 1;
+            if (savedNames.hashes.get(node) == hash && getName(node).equals(name)) {
+                return node;
+            }
+        }
+    }
+
+    @NonNull
+    private Page getPage(int node) {
+        return mPages[node >> PAGE_SHIFT];
+    }
+
+    @NonNull
+    private Page getOrCreatePage(int pageIndex) {
+        Page[] pages = mPages;
+        if (pageIndex < pages.length && pages[pageIndex] != null) {
+            return pages[pageIndex];
+        }
+        synchronized (mPageLock) {
+            pages = mPages;
+            if (pageIndex >= pages.length) {
+                pages = Arrays.copyOf(pages, Math.max(pages.length * 2, pageIndex + 1));
+            }
+            if (pages[pageIndex] == null) {
+                pages[pageIndex] = new Page();
+            }
+            mPages = pages;
+            return pages[pageIndex];
+        }
+    }
+
+    @NonNull
+    private String getName(int node) {
+        Page page = getPage(node);
+        int index = node & PAGE_MASK;
+        String name = page.names[index];
+        if (name == null && mSavedNames != null) {
+            // Racing threads decode the same name, which is harmless.
+            name = mSavedNames.get(node);
+            page.names[index] = name;
+        }
+        return name;
+    }
+
+    private byte getFlags(int node) {
+        // Ids are allocated before their page, so nodes that are still being created may not
+        // have one yet.
+        Page[] pages = mPages;
+        int pageIndex = node >> PAGE_SHIFT;
+        if (pageIndex >= pages.length || pages[pageIndex] == null) {
+            return 0;
+        }
+        return pages[pageIndex].flags[node & PAGE_MASK];
+    }
+
+    private boolean isAdded(int node) {
+        return (getFlags(node) & FLAG_ADDED) != 0;
+    }
+
+    private boolean isMember(int node) {
+        return (getFlags(node) & FLAG_MEMBER) != 0;
+    }
+
+    private boolean isMethod(int node) {
+        return (getFlags(node) & FLAG_METHOD) != 0;
+    }
+
+    /** Checks if the given node is a member of the given class that was added to the graph. */
+    private boolean isAddedMember(int klass, int node) {
+        return isMember(node) && isAdded(node) && getPage(node).owners[node & PAGE_MASK] == klass;
+    }
+
+    @Nullable
+    private ClassData getClassData(int klass) {
+        ensureLoaded(Section.CLASSES);
+        return getPage(klass).classData[klass & PAGE_MASK];
+    }
+
+    @NonNull
+    private ClassData getAddedClassData(int klass) throws ClassLookupException {
+        ClassData classData = getClassData(klass);
+        if (classData == null || !isClassKnown(klass)) {
+            throw new ClassLookupException(getName(klass));
+        }
+        return classData;
+    }
+
+    /** Returns the CSR edge table, first merging in any edges added since it was last built. */
+    @NonNull
+    private EdgeTable getEdges() {
+        ensureLoaded(Section.EDGES);
+        if (mHasPendingEdges) {
+            synchronized (mEdgeLock) {
+                if (mHasPendingEdges) {
+                    // Edges added while merging will set the flag again.
+                    mHasPendingEdges = false;
+                    mEdges = mEdges.merge(drainPendingEdges(), getNodeCount());
+                }
+            }
+        }
+        return mEdges;
+    }
+
+    /** Takes the pending edges of all pages, as (source, target, type) triples. */
+    @NonNull
+    private EdgeBuffer drainPendingEdges() {
+        EdgeBuffer pendingEdges = new EdgeBuffer();
+        for (Page page : mPages) {
+            if (page == null) {
+                continue;
+            }
+            synchronized (page) {
+                pendingEdges.addAll(page.pendingEdges);
+                page.pendingEdges = new EdgeBuffer();
+            }
+        }
+        return pendingEdges;
+    }
+
+    @NonNull
+    private Counters getCounters(@NonNull CounterSet counterSet) {
+        ensureLoaded(Section.counters(counterSet));
+        if (counterSet == CounterSet.SHRINK) {
+            return mShrinkCounters;
+        } else {
+            return mMultidexCounters;
+        }
+    }
+
+    @NonNull
+    private ConcurrentMap<Integer, DependencyType> getRoots0(@NonNull CounterSet counterSet) {
+        ensureLoaded(Section.roots(counterSet));
+        if (counterSet == CounterSet.SHRINK) {
+            return mShrinkRoots;
+        } else {
+            return mMultidexRoots;
+        }
+    }
+
+    private void markDirty(@NonNull Section section) {
+        int bit = section.bit();
+        if ((mDirtySections.get() & bit) == 0) {
+            mDirtySections.getAndAccumulate(bit, (sections, added) -> sections | added);
+        }
+    }
+
+    /**
+     * Decodes the given section of the saved state, if it has not been loaded yet. Must not be
+     * called while holding the lock of a page.
+     */
+    private void ensureLoaded(@NonNull Section section) {
+        if ((mLoadedSections & section.bit()) != 0) {
+            return;
+        }
+        synchronized (mSectionLock) {
+            if ((mLoadedSections & section.bit()) != 0) {
+                return;
+            }
+            ByteBuffer buffer = mUnloadedSections.remove(section);
+            if (buffer != null) {
+                try {
+                    readSection(section, buffer);
+                } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                    throw new IncrementalRunImpossibleException(e);
+                }
+            }
+            mLoadedSections |= section.bit();
+        }
+    }
+
+    private void readSection(@NonNull Section section, @NonNull ByteBuffer buffer) {
+        switch (section) {
+            case NODES:
+                readNodes(buffer);
+                break;
+            case CLASSES:
+                readClasses(buffer);
+                break;
+            case ANNOTATIONS:
+                for (int count = buffer.getInt(); count > 0; count--) {
+                    int node = buffer.getInt();
+                    getPage(node).annotations[node & PAGE_MASK] = readIds(buffer);
+                }
+                break;
+            case EDGES:
+                int nodeCount = buffer.getInt();
+                int edgeCount = buffer.getInt();
+                mEdges =
+                        new EdgeTable(
+                                intSlice(buffer, nodeCount + 1),
+                                intSlice(buffer, edgeCount),
+                                byteSlice(buffer, edgeCount));
+                break;
+            case SHRINK_COUNTERS:
+                mShrinkCounters = Counters.read(buffer);
+                break;
+            case MULTIDEX_COUNTERS:
+                mMultidexCounters = Counters.read(buffer);
+                break;
+            case SHRINK_ROOTS:
+                readRoots(buffer, mShrinkRoots);
+                break;
+            case MULTIDEX_ROOTS:
+                readRoots(buffer, mMultidexRoots);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown section " + section);
+        }
+    }
+
+    private void writeSection(@NonNull File file, @NonNull Section section) throws IOException {
+        ensureLoaded(section);
+        try (DataOutputStream output =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeInt(section.id);
+            switch (section) {
+                case NODES:
+                    writeNodes(output);
+                    break;
+                case CLASSES:
+                    writeClasses(output);
+                    break;
+                case ANNOTATIONS:
+                    writeAnnotations(output);
+                    break;
+                case EDGES:
+                    writeEdges(output);
+                    break;
+                case SHRINK_COUNTERS:
+                    mShrinkCounters.write(output);
+                    break;
+                case MULTIDEX_COUNTERS:
+                    mMultidexCounters.write(output);
+                    break;
+                case SHRINK_ROOTS:
+                    writeRoots(output, mShrinkRoots);
+                    break;
+                case MULTIDEX_ROOTS:
+                    writeRoots(output, mMultidexRoots);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown section " + section);
+            }
+        }
+    }
+
+    private void writeNodes(@NonNull DataOutputStream output) throws IOException {
+        int nodeCount = getNodeCount();
+        int[] hashes = new int[nodeCount];
+        int[] nameOffsets = new int[nodeCount + 1];
+        ByteArrayOutputStream nameBytes = new ByteArrayOutputStream();
+        for (int node = 0; node < nodeCount; node++) {
+            String name = getName(node);
+            hashes[node] = name.hashCode();
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            nameBytes.write(bytes, 0, bytes.length);
+            nameOffsets[node + 1] = nameBytes.size();
+        }
+        int[] index = SavedNames.buildIndex(hashes);
+
+        output.writeInt(nodeCount);
+        output.writeInt(index.length);
+        for (int node = 0; node < nodeCount; node++) {
+            output.writeInt(getPage(node).owners[node & PAGE_MASK]);
+        }
+        for (int node = 0; node < nodeCount; node++) {
+            output.writeInt(getPage(node).modifiers[node & PAGE_MASK]);
+        }
+        writeInts(output, hashes);
+        writeInts(output, nameOffsets);
+        writeInts(output, index);
+        for (int node = 0; node < nodeCount; node++) {
+            output.writeByte(getFlags(node));
+        }
+        nameBytes.writeTo(output);
+    }
+
+    private void readNodes(@NonNull ByteBuffer buffer) {
+        int nodeCount = buffer.getInt();
+        int indexSize = buffer.getInt();
+        for (int start = 0; start < nodeCount; start += PAGE_SIZE) {
+            getOrCreatePage(start >> PAGE_SHIFT);
+        }
+        mNextId.set(nodeCount);
+
+        IntBuffer owners = intSlice(buffer, nodeCount);
+        IntBuffer modifiers = intSlice(buffer, nodeCount);
+        IntBuffer hashes = intSlice(buffer, nodeCount);
+        IntBuffer nameOffsets = intSlice(buffer, nodeCount + 1);
+        IntBuffer index = intSlice(buffer, indexSize);
+        ByteBuffer flags = byteSlice(buffer, nodeCount);
+        for (int start = 0; start < nodeCount; start += PAGE_SIZE) {
+            Page page = getPage(start);
+            int length = Math.min(PAGE_SIZE, nodeCount - start);
+            owners.get(page.owners, 0, length);
+            modifiers.get(page.modifiers, 0, length);
+            flags.get(page.flags, 0, length);
+        }
+        mSavedNames = new SavedNames(hashes, nameOffsets, index, buffer.slice());
+    }
+
+    private void writeClasses(@NonNull DataOutputStream output) throws IOException {
+        List<Integer> classes = Lists.newArrayList();
+        int nodeCount = getNodeCount();
+        for (int node = 0; node < nodeCount; node++) {
+            if (getPage(node).classData[node & PAGE_MASK] != null) {
+                classes.add(node);
+            }
+        }
+
+        output.writeInt(classes.size());
+        for (int klass : classes) {
+            ClassData classData = getPage(klass).classData[klass & PAGE_MASK];
+            output.writeInt(klass);
+            if (classData.sourceFile != null) {
+                writeString(output, classData.sourceFile.getPath());
+            } else {
+                output.writeInt(-1);
+            }
+            output.writeInt(classData.superclass);
+            writeIds(output, classData.interfaces, classData.interfaces.length);
+            int methodCount = classData.methods.size;
+            writeIds(output, classData.methods.ids, methodCount);
+            int fieldCount = classData.fields.size;
+            writeIds(output, classData.fields.ids, fieldCount);
+            if (classData.typesFromSignatures != null) {
+                int[] types = classData.typesFromSignatures;
+                writeIds(output, types, types.length);
+            } else {
+                output.writeInt(-1);
+            }
+        }
+    }
+
+    private void readClasses(@NonNull ByteBuffer buffer) {
+        for (int count = buffer.getInt(); count > 0; count--) {
+            int klass = buffer.getInt();
+            ClassData classData = new ClassData();
+            String sourceFile = readString(buffer);
+            classData.sourceFile = sourceFile != null ? new File(sourceFile) : null;
+            classData.superclass = buffer.getInt();
+            classData.interfaces = checkNotNull(readIds(buffer));
+            classData.methods.setIds(checkNotNull(readIds(buffer)));
+            classData.fields.setIds(checkNotNull(readIds(buffer)));
+            classData.typesFromSignatures = readIds(buffer);
+            getPage(klass).classData[klass & PAGE_MASK] = classData;
+        }
+    }
+
+    private void writeAnnotations(@NonNull DataOutputStream output) throws IOException {
+        List<Integer> annotatedNodes = Lists.newArrayList();
+        int nodeCount = getNodeCount();
+        for (int node = 0; node < nodeCount; node++) {
+            if (getPage(node).annotations[node & PAGE_MASK] != null) {
+                annotatedNodes.add(node);
+            }
+        }
+
+        output.writeInt(annotatedNodes.size());
+        for (int node : annotatedNodes) {
+            int[] annotations = getPage(node).annotations[node & PAGE_MASK];
+            output.writeInt(node);
+            writeIds(output, annotations, annotations.length);
+        }
+    }
+
+    private void writeEdges(@NonNull DataOutputStream output) throws IOException {
+        EdgeTable edges = getEdges();
+        int nodeCount = edges.getNodeCount();
+        int edgeCount = edges.size();
+        output.writeInt(nodeCount);
+        output.writeInt(edgeCount);
+
+        // Removed edges are left out.
+        int offset = 0;
+        output.writeInt(offset);
+        for (int source = 0; source < nodeCount; source++) {
+            for (int i = edges.offsets.get(source); i < edges.offsets.get(source + 1); i++) {
+                if (edges.getType(i) != REMOVED_EDGE) {
+                    offset++;
+                }
+            }
+            output.writeInt(offset);
+        }
+        int totalCount = edges.offsets.get(nodeCount);
+        for (int i = 0; i < totalCount; i++) {
+            if (edges.getType(i) != REMOVED_EDGE) {
+                output.writeInt(edges.targets.get(i));
+            }
+        }
+        for (int i = 0; i < totalCount; i++) {
+            if (edges.getType(i) != REMOVED_EDGE) {
+                output.writeByte(edges.getType(i));
+            }
+        }
+    }
+
+    private static void writeRoots(
+            @NonNull DataOutputStream output, @NonNull Map<Integer, DependencyType> roots)
+            throws IOException {
+        Map<Integer, DependencyType> snapshot = ImmutableMap.copyOf(roots);
+        output.writeInt(snapshot.size());
+        for (Map.Entry<Integer, DependencyType> root : snapshot.entrySet()) {
+            output.writeInt(root.getKey());
+            output.writeByte(root.getValue().ordinal());
+        }
+    }
+
+    private static void readRoots(
+            @NonNull ByteBuffer buffer, @NonNull Map<Integer, DependencyType> roots) {
+        for (int count = buffer.getInt(); count > 0; count--) {
+            int node = buffer.getInt();
+            roots.put(node, DEPENDENCY_TYPES[buffer.get()]);
+        }
+    }
+
+    /**
+     * Maps the given section file and checks its header.
+     *
+     * @return the contents of the section, after the header
+     */
+    @NonNull
+    private static ByteBuffer mapSection(@NonNull File file, @NonNull Section section, long length)
+            throws IOException {
+        if (file.length() != length) {
+            throw new IncrementalRunImpossibleException("Unexpected length of " + file);
+        }
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+        try {
+            checkHeader(buffer.getInt(), buffer.getInt(), file);
+            if (buffer.getInt() != section.id) {
+                throw new IncrementalRunImpossibleException("Unexpected contents of " + file);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IncrementalRunImpossibleException(e);
+        }
+        return buffer.slice();
+    }
+
+    private static void checkHeader(int magic, int formatVersion, @NonNull File file) {
+        if (magic != MAGIC) {
+            throw new IncrementalRunImpossibleException("Unexpected contents of " + file);
+        }
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IncrementalRunImpossibleException(
+                    String.format(
+                            "%s was saved in format %d, expected %d",
+                            file, formatVersion, FORMAT_VERSION));
+        }
+    }
+
+    /** Returns the next {@code count} ints of the buffer, without copying them. */
+    @NonNull
+    private static IntBuffer intSlice(@NonNull ByteBuffer buffer, int count) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(count * 4);
+        buffer.position(buffer.position() + count * 4);
+        return slice.asIntBuffer();
+    }
+
+    /** Returns the next {@code count} bytes of the buffer, without copying them. */
+    @NonNull
+    private static ByteBuffer byteSlice(@NonNull ByteBuffer buffer, int count) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(count);
+        buffer.position(buffer.position() + count);
+        return slice;
+    }
+
+    private static void writeInts(@NonNull DataOutputStream output, @NonNull int[] values)
+            throws IOException {
+        for (int value : values) {
+            output.writeInt(value);
+        }
+    }
+
+    private static void writeIds(@NonNull DataOutputStream output, @NonNull int[] ids, int size)
+            throws IOException {
+        output.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            output.writeInt(ids[i]);
+        }
+    }
+
+    /** Reads ids written by {@link #writeIds}, or null if a negative count was written instead. */
+    @Nullable
+    private static int[] readIds(@NonNull ByteBuffer buffer) {
+        int size = buffer.getInt();
+        if (size < 0) {
+            return null;
+        }
+        int[] ids = new int[size];
+        buffer.asIntBuffer().get(ids);
+        buffer.position(buffer.position() + size * 4);
+        return ids;
+    }
+
+    private static void writeString(@NonNull DataOutputStream output, @NonNull String string)
+            throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    /** Reads a string written by {@link #writeString}, or null if -1 was written instead. */
+    @Nullable
+    private static String readString(@NonNull ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @NonNull
+    private static String getMemberId(@NonNull String member) {
+        return member.substring(member.indexOf('.') + 1);
+    }
+
+    @NonNull
+    private static int[] appendIfAbsent(@Nullable int[] ids, int id) {
+        if (ids == null) {
+            return new int[] {id};
+        }
+        for (int existing : ids) {
+            if (existing == id) {
+                return ids;
+            }
+        }
+        int[] result = Arrays.copyOf(ids, ids.length + 1);
+        result[ids.length] = id;
+        return result;
+    }
+
+    /**
+     * Sections of the saved state. Every section is stored in its own file, and written again only
+     * if it changed. The contents of every section are:
+     *
+     * <ul>
+     *   <li>{@link #NODES}: node count and index size (ints), then the owners, modifiers, name
+     *       hash codes, name offsets (one more than the node count) and name index (all ints),
+     *       then the flags of every node (bytes), then the UTF-8 encoded names. The name index is
+     *       an open-addressing hash table of node ids plus one, see {@link SavedNames}.
+     *   <li>{@link #CLASSES}: class count (int), then for every class its id, source file (as
+     *       UTF-8 byte count and bytes, -1 for library classes), superclass, and the counts and
+     *       ids of its interfaces, methods, fields and types from generic signatures (-1 if
+     *       there are none).
+     *   <li>{@link #ANNOTATIONS}: count of annotated nodes (int), then the node id, count of
+     *       annotations and ids of the annotation classes for every one of them.
+     *   <li>{@link #EDGES}: node count and edge count (ints), then the edge table: offsets,
+     *       targets (ints) and {@link DependencyType} ordinals (bytes).
+     *   <li>{@link #SHRINK_COUNTERS}, {@link #MULTIDEX_COUNTERS}: count of nodes with non-zero
+     *       counters (int), then the node id and counters (ints) of every one of them.
+     *   <li>{@link #SHRINK_ROOTS}, {@link #MULTIDEX_ROOTS}: root count (int), then the node id
+     *       (int) and {@link DependencyType} ordinal (byte) of every root.
+     * </ul>
+     */
+    private enum Section {
+        NODES(1),
+        CLASSES(2),
+        ANNOTATIONS(3),
+        EDGES(4),
+        SHRINK_COUNTERS(5),
+        MULTIDEX_COUNTERS(6),
+        SHRINK_ROOTS(7),
+        MULTIDEX_ROOTS(8);
+
+        static final int ALL = (1 << values().length) - 1;
+
+        /** Id of the section in saved state, which does not depend on the order of constants. */
+        final int id;
+
+        Section(int id) {
+            this.id = id;
+        }
+
+        int bit() {
+            return 1 << ordinal();
+        }
+
+        @NonNull
+        static Section forId(int id) {
+            for (Section section : values()) {
+                if (section.id == id) {
+                    return section;
+                }
+            }
+            throw new IncrementalRunImpossibleException("Unknown section " + id);
+        }
+
+        @NonNull
+        static Section counters(@NonNull CounterSet counterSet) {
+            return counterSet == CounterSet.SHRINK ? SHRINK_COUNTERS : MULTIDEX_COUNTERS;
+        }
+
+        @NonNull
+        static Section roots(@NonNull CounterSet counterSet) {
+            return counterSet == CounterSet.SHRINK ? SHRINK_ROOTS : MULTIDEX_ROOTS;
+        }
+    }
+
+    /** Data of {@link #PAGE_SIZE} consecutive nodes. Mutated while holding the page's lock. */
+    private static final class Page {
+        /** Names of the nodes, null for saved nodes whose names were not decoded yet. */
+        @NonNull final String[] names = new String[PAGE_SIZE];
+
+        /** Owner class of every member node, {@link #NO_NODE} for classes. */
+        @NonNull final int[] owners = new int[PAGE_SIZE];
+
+        @NonNull final int[] modifiers = new int[PAGE_SIZE];
+
+        @NonNull final byte[] flags = new byte[PAGE_SIZE];
+
+        /** Data specific to class nodes, null for members. */
+        @NonNull final ClassData[] classData = new ClassData[PAGE_SIZE];
+
+        /** Ids of the annotation classes of every node, null for nodes without annotations. */
+        @NonNull final int[][] annotations = new int[PAGE_SIZE][];
+
+        /** Edges from nodes of this page that were not merged into the edge table yet. */
+        @NonNull EdgeBuffer pendingEdges = new EdgeBuffer();
+
+        @NonNull
+        ClassData getOrCreateClassData(int index) {
+            if (classData[index] == null) {
+                classData[index] = new ClassData();
+            }
+            return classData[index];
+        }
+
+        void addPendingEdge(int source, int target, @NonNull DependencyType type) {
+            pendingEdges.add(source);
+            pendingEdges.add(target);
+            pendingEdges.add(type.ordinal());
+        }
+    }
+
+    /** Data specific to class nodes. */
+    private static final class ClassData {
+        @Nullable File sourceFile;
+
+        int superclass = NO_NODE;
+
+        @NonNull int[] interfaces = new int[0];
+
+        @NonNull final IdList methods = new IdList();
+
+        @NonNull final IdList fields = new IdList();
+
+        @Nullable int[] typesFromSignatures;
+    }
+
+    /**
+     * Append-only list of node ids. Readers that read {@link #size} before {@link #ids} see a
+     * consistent snapshot without locking.
+     */
+    private static final class IdList {
+        @NonNull volatile int[] ids = new int[4];
+
+        volatile int size;
+
+        synchronized void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, Math.max(4, size * 2));
+            }
+            ids[size] = id;
+            size++;
+        }
+
+        synchronized void setIds(@NonNull int[] ids) {
+            this.ids = ids;
+            this.size = ids.length;
+        }
+    }
+
+    /** Growable buffer of ints, used to collect edges before they are merged. */
+    private static final class EdgeBuffer {
+        @NonNull int[] values = new int[0];
+
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, Math.max(16, size * 2));
+            }
+            values[size++] = value;
+        }
+
+        void addAll(@NonNull EdgeBuffer other) {
+            if (size + other.size > values.length) {
+                values = Arrays.copyOf(values, Math.max(size + other.size, size * 2));
+            }
+            System.arraycopy(other.values, 0, values, size, other.size);
+            size += other.size;
+        }
+    }
+
+    /**
+     * Names of the nodes of the saved state, decoded from the mapped {@link Section#NODES} file
+     * when they are needed.
+     *
+     * <p>Names are found by their {@link String#hashCode()} (which is specified, so it is the same
+     * in every JVM) in {@link #index}, an open-addressing hash table with linear probing whose
+     * size is a power of two. Every slot contains a node id plus one, or 0 if it is empty.
+     */
+    private static final class SavedNames {
+        @NonNull final IntBuffer hashes;
+
+        @NonNull final IntBuffer offsets;
+
+        @NonNull final IntBuffer index;
+
+        @NonNull final ByteBuffer bytes;
+
+        SavedNames(
+                @NonNull IntBuffer hashes,
+                @NonNull IntBuffer offsets,
+                @NonNull IntBuffer index,
+                @NonNull ByteBuffer bytes) {
+            this.hashes = hashes;
+            this.offsets = offsets;
+            this.index = index;
+            this.bytes = bytes;
+        }
+
+        @NonNull
+        String get(int node) {
+            int start = offsets.get(node);
+            byte[] name = new byte[offsets.get(node + 1) - start];
+            ByteBuffer source = bytes.duplicate();
+            source.position(start);
+            source.get(name);
+            return new String(name, StandardCharsets.UTF_8);
+        }
+
+        static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+
+        /** Builds the index of nodes with the given name hash codes. */
+        @NonNull
+        static int[] buildIndex(@NonNull int[] hashes) {
+            int size = Integer.highestOneBit(Math.max(2, hashes.length * 2 - 1)) << 1;
+            int mask = size - 1;
+            int[] index = new int[size];
+            for (int node = 0; node < hashes.length; node++) {
+                int slot = spread(hashes[node]) & mask;
+                while (index[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                index[slot] = node + 1;
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Edges in compressed sparse row format: the edges from node {@code n} are at indexes {@code
+     * offsets[n]} (inclusive) to {@code offsets[n + 1]} (exclusive) of {@link #targets} and {@link
+     * #types}, sorted by target and type. Removed edges have the type {@link #REMOVED_EDGE}.
+     *
+     * <p>The buffers may be mapped from the saved state. The types are then copied before the
+     * first edge is removed.
+     */
+    private static final class EdgeTable {
+        @NonNull final IntBuffer offsets;
+
+        @NonNull final IntBuffer targets;
+
+        @NonNull private volatile ByteBuffer types;
+
+        EdgeTable(@NonNull IntBuffer offsets, @NonNull IntBuffer targets, @NonNull ByteBuffer types) {
+            this.offsets = offsets;
+            this.targets = targets;
+            this.types = types;
+        }
+
+        @NonNull
+        static EdgeTable empty() {
+            return new EdgeTable(
+                    IntBuffer.wrap(new int[1]),
+                    IntBuffer.wrap(new int[0]),
+                    ByteBuffer.wrap(new byte[0]));
+        }
+
+        /** Returns the number of source nodes this table has (possibly empty) rows for. */
+        int getNodeCount() {
+            return offsets.limit() - 1;
+        }
+
+        byte getType(int edge) {
+            return types.get(edge);
+        }
+
+        /** Marks the given edge as removed. Must be called while holding the edge lock. */
+        void remove(int edge) {
+            if (types.isReadOnly()) {
+                ByteBuffer source = types.duplicate();
+                source.clear();
+                ByteBuffer copy = ByteBuffer.allocate(source.remaining());
+                copy.put(source);
+                types = copy;
+            }
+            types.put(edge, REMOVED_EDGE);
+        }
+
+        int size() {
+            int size = 0;
+            for (int i = 0; i < types.limit(); i++) {
+                if (types.get(i) != REMOVED_EDGE) {
+                    size++;
+                }
+            }
+            return size;
+        }
+
+        /**
+         * Returns a new table with the edges of this table and the given (source, target, type)
+         * triples, without removed and duplicate edges.
+         */
+        @NonNull
+        EdgeTable merge(@NonNull EdgeBuffer newEdges, int nodeCount) {
+            int[] newOffsets = new int[nodeCount + 1];
+            for (int source = 0; source < getNodeCount(); source++) {
+                for (int i = offsets.get(source); i < offsets.get(source + 1); i++) {
+                    if (getType(i) != REMOVED_EDGE) {
+                        newOffsets[source + 1]++;
+                    }
+                }
+            }
+            for (int i = 0; i < newEdges.size; i += 3) {
+                newOffsets[newEdges.values[i] + 1]++;
+            }
+            for (int source = 0; source < nodeCount; source++) {
+                newOffsets[source + 1] += newOffsets[source];
+            }
+
+            // Sort every row by (target, type), so that duplicates are next to each other.
+            long[] edges = new long[newOffsets[nodeCount]];
+            int[] next = Arrays.copyOf(newOffsets, nodeCount);
+            for (int source = 0; source < getNodeCount(); source++) {
+                for (int i = offsets.get(source); i < offsets.get(source + 1); i++) {
+                    if (getType(i) != REMOVED_EDGE) {
+                        edges[next[source]++] = pack(targets.get(i), getType(i));
+                    }
+                }
+            }
+            for (int i = 0; i < newEdges.size; i += 3) {
+                edges[next[newEdges.values[i]]++] =
+                        pack(newEdges.values[i + 1], newEdges.values[i + 2]);
+            }
+
+            int[] newTargets = new int[edges.length];
+            byte[] newTypes = new byte[edges.length];
+            int count = 0;
+            for (int source = 0; source < nodeCount; source++) {
+                int start = newOffsets[source];
+                int end = newOffsets[source + 1];
+                newOffsets[source] = count;
+                Arrays.sort(edges, start, end);
+                for (int i = start; i < end; i++) {
+                    if (i == start || edges[i] != edges[i - 1]) {
+                        newTargets[count] = (int) (edges[i] >>> 8);
+                        newTypes[count] = (byte) edges[i];
+                        count++;
+                    }
+                }
+            }
+            newOffsets[nodeCount] = count;
+
+            return new EdgeTable(
+                    IntBuffer.wrap(newOffsets),
+                    IntBuffer.wrap(Arrays.copyOf(newTargets, count)),
+                    ByteBuffer.wrap(Arrays.copyOf(newTypes, count)));
+        }
+
+        private static long pack(int target, int type) {
+            return ((long) target << 8) | type;
+        }
+    }
+
+    /**
+     * Reachability counters of all nodes, {@link #SLOTS} per node, allocated in pages of {@link
+     * #PAGE_SIZE} nodes.
+     */
+    private static final class Counters {
+        private static final int REQUIRED = 0;
+        private static final int IF_CLASS_KEPT = 1;
+        private static final int CLASS_IS_KEPT = 2;
+        private static final int SUPERINTERFACE_KEPT = 3;
+        private static final int INTERFACE_IMPLEMENTED = 4;
+        /**
+         * Set to 1 by the thread whose increment made the node reachable, and back to 0 by the
+         * thread whose decrement made it unreachable.
+         */
+        private static final int REACHED = 5;
+        private static final int SLOTS = 6;
+
+        @NonNull private volatile AtomicIntegerArray[] mPages = new AtomicIntegerArray[0];
+
+        boolean incrementAndCheck(int node, @NonNull DependencyType type) {
+            AtomicIntegerArray page = getOrCreatePage(node >> PAGE_SHIFT);
+            int base = (node & PAGE_MASK) * SLOTS;
+            if (page.getAndIncrement(base + getCounter(type)) != 0) {
+                // Only the first increment of a counter can make the node reachable.
+                return false;
+            }
+            // Concurrent increments of different counters may all see the node as reachable,
+            // only one of them reports it.
+            return isReachable(page, base) && page.compareAndSet(base + REACHED, 0, 1);
+        }
+
+        boolean decrementAndCheck(int node, @NonNull DependencyType type) {
+            AtomicIntegerArray page = getOrCreatePage(node >> PAGE_SHIFT);
+            int base = (node & PAGE_MASK) * SLOTS;
+            if (page.decrementAndGet(base + getCounter(type)) != 0) {
+                // Only the last decrement of a counter can make the node unreachable.
+                return false;
+            }
+            return !isReachable(page, base) && page.compareAndSet(base + REACHED, 1, 0);
+        }
+
+        boolean isReachable(int node) {
+            AtomicIntegerArray[] pages = mPages;
+            int pageIndex = node >> PAGE_SHIFT;
+            return pageIndex < pages.length
+                    && pages[pageIndex] != null
+                    && pages[pageIndex].get((node & PAGE_MASK) * SLOTS + REACHED) != 0;
+        }
+
+        /** Checks if the counters of the node at the given offset of the page make it reachable. */
+        private static boolean isReachable(@NonNull AtomicIntegerArray page, int base) {
+            return page.get(base + REQUIRED) > 0
+                    || (page.get(base + IF_CLASS_KEPT) > 0 && page.get(base + CLASS_IS_KEPT) > 0)
+                    || (page.get(base + SUPERINTERFACE_KEPT) > 0
+                            && page.get(base + INTERFACE_IMPLEMENTED) > 0);
+        }
+
+        void write(@NonNull DataOutputStream output) throws IOException {
+            AtomicIntegerArray[] pages = mPages;
+            List<Integer> nodes = Lists.newArrayList();
+            for (int pageIndex = 0; pageIndex < pages.length; pageIndex++) {
+                if (pages[pageIndex] == null) {
+                    continue;
+                }
+                for (int index = 0; index < PAGE_SIZE; index++) {
+                    for (int slot = 0; slot < SLOTS; slot++) {
+                        if (pages[pageIndex].get(index * SLOTS + slot) != 0) {
+                            nodes.add((pageIndex << PAGE_SHIFT) | index);
+                            break;
+                        }
+                    }
+                }
+            }
+
+            output.writeInt(nodes.size());
+            for (int node : nodes) {
+                AtomicIntegerArray page = pages[node >> PAGE_SHIFT];
+                output.writeInt(node);
+                for (int slot = 0; slot < SLOTS; slot++) {
+                    output.writeInt(page.get((node & PAGE_MASK) * SLOTS + slot));
+                }
+            }
+        }
+
+        @NonNull
+        static Counters read(@NonNull ByteBuffer buffer) {
+            Counters counters = new Counters();
+            for (int count = buffer.getInt(); count > 0; count--) {
+                int node = buffer.getInt();
+                AtomicIntegerArray page = counters.getOrCreatePage(node >> PAGE_SHIFT);
+                for (int slot = 0; slot < SLOTS; slot++) {
+                    page.set((node & PAGE_MASK) * SLOTS + slot, buffer.getInt());
+                }
+            }
+            return counters;
+        }
+
+        @NonNull
+        private AtomicIntegerArray getOrCreatePage(int pageIndex) {
+            AtomicIntegerArray[] pages = mPages;
+            if (pageIndex < pages.length && pages[pageIndex] != null) {
+                return pages[pageIndex];
+            }
+            synchronized (this) {
+                pages = mPages;
+                if (pageIndex >= pages.length) {
+                    pages = Arrays.copyOf(pages, Math.max(pages.length * 2, pageIndex + 1));
+                }
+                if (pages[pageIndex] == null) {
+                    pages[pageIndex] = new AtomicIntegerArray(PAGE_SIZE * SLOTS);
+                }
+                mPages = pages;
+                return pages[pageIndex];
+            }
+        }
+
+        private static int getCounter(@NonNull DependencyType type) {
+            switch (type) {
+                case REQUIRED_CLASS_STRUCTURE:
+                case REQUIRED_CODE_REFERENCE:
+                case REQUIRED_CODE_REFERENCE_REFLECTION:
+                case REQUIRED_KEEP_RULES:
+                    return REQUIRED;
+                case IF_CLASS_KEPT:
+                    return IF_CLASS_KEPT;
+                case CLASS_IS_KEPT:
+                    return CLASS_IS_KEPT;
+                case SUPERINTERFACE_KEPT:
+                    return SUPERINTERFACE_KEPT;
+                case INTERFACE_IMPLEMENTED:
+                    return INTERFACE_IMPLEMENTED;
+                default:
+                    throw new IllegalArgumentException("Unknown dependency type.");
+            }
+        }
+    }
+
+    /** Read-only set of the first {@code size} ids of an array. */
+    private static class IdSet extends AbstractSet<Integer> {
+        @NonNull private final int[] ids;
+
+        private final int size;
+
+        IdSet(@NonNull int[] ids, int size) {
+            this.ids = ids;
+            this.size = size;
+        }
+
+        @NonNull
+        @Override
+        public Iterator<Integer> iterator() {
+            return new Iterator<Integer>() {
+                private int next = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return next < size;
+                }
+
+                @Override
+                public Integer next() {
+                    if (next >= size) {
+                        throw new NoSuchElementException();
+                    }
+                    return ids[next++];
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    /** Read-only set of the methods or fields of a class, which checks membership by owner. */
+    private final class MemberSet extends IdSet {
+        private final int klass;
+
+        private final boolean methods;
+
+        MemberSet(int klass, @NonNull IdList members, boolean methods) {
+            // Read the size first, the array is at least as recent.
+            this(klass, members.size, members, methods);
+        }
+
+        private MemberSet(int klass, int size, @NonNull IdList members, boolean methods) {
+            super(members.ids, size);
+            this.klass = klass;
+            this.methods = methods;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Integer)) {
+                return false;
+            }
+            int node = (Integer) o;
+            return node >= 0
+                    && node < getNodeCount()
+                    && isAddedMember(klass, node)
+                    && isMethod(node) == methods;
+        }
+    }
+
+    /** Read-only view of the edges from one node. */
+    private static final class DependencySet extends AbstractSet<Dependency<Integer>> {
+        @NonNull private final EdgeTable edges;
+
+        private final int start;
+
+        private final int end;
+
+        DependencySet(@NonNull EdgeTable edges, int start, int end) {
+            this.edges = edges;
+            this.start = start;
+            this.end = end;
+        }
+
+        @NonNull
+        @Override
+        public Iterator<Dependency<Integer>> iterator() {
+            return new Iterator<Dependency<Integer>>() {
+                private int next = skipRemoved(start);
+
+                @Override
+                public boolean hasNext() {
+                    return next < end;
+                }
+
+                @Override
+                public Dependency<Integer> next() {
+                    if (next >= end) {
+                        throw new NoSuchElementException();
+                    }
+                    Dependency<Integer> dependency =
+                            new Dependency<>(
+                                    edges.targets.get(next),
+                                    DEPENDENCY_TYPES[edges.getType(next)]);
+                    next = skipRemoved(next + 1);
+                    return dependency;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            int size = 0;
+            for (int i = start; i < end; i++) {
+                if (edges.getType(i) != REMOVED_EDGE) {
+                    size++;
+                }
+            }
+            return size;
+        }
+
+        private int skipRemoved(int index) {
+            while (index < end && edges.getType(index) == REMOVED_EDGE) {
+                index++;
+            }
+            return index;
+        }
+    }
+}
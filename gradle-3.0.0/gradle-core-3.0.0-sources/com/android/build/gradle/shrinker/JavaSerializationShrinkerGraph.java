@@ -212,6 +212,16 @@ public class JavaSerializationShrinkerGraph implements ShrinkerGraph<String> {
         }
     }
 
+    @Override
+    public boolean decrementAndCheck(
+            @NonNull String node, @NonNull DependencyType type, @NonNull CounterSet counterSet) {
+        try {
+            return getCounters(counterSet).mReferenceCounters.get(node).decrementAndCheck(type);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Override
     public void saveState() throws IOException {
         File stateFile = getStateFile(mStateDir);
@@ -349,6 +359,16 @@ public class JavaSerializationShrinkerGraph implements ShrinkerGraph<String> {
         return mTypesFromSignatures.get(klass);
     }
 
+    @Override
+    public int getNodeCount() {
+        return mModifiers.size();
+    }
+
+    @Override
+    public int getEdgeCount() {
+        return mDependencies.size();
+    }
+
     @NonNull
     @Override
     public Set<String> getReachableClasses(@NonNull CounterSet counterSet) {
@@ -571,30 +591,41 @@ public class JavaSerializationShrinkerGraph implements ShrinkerGraph<String> {
 
         synchronized boolean incrementAndCheck(DependencyType type) {
             boolean before = isReachable();
+            add(type, 1);
+            boolean after = isReachable();
+            return before != after;
+        }
+
+        synchronized boolean decrementAndCheck(DependencyType type) {
+            boolean before = isReachable();
+            add(type, -1);
+            boolean after = isReachable();
+            return before != after;
+        }
+
+        private void add(DependencyType type, int delta) {
             switch (type) {
                 case REQUIRED_CLASS_STRUCTURE:
                 case REQUIRED_CODE_REFERENCE:
                 case REQUIRED_CODE_REFERENCE_REFLECTION:
                 case REQUIRED_KEEP_RULES:
-                    required++;
+                    required += delta;
                     break;
                 case IF_CLASS_KEPT:
-                    ifClassKept++;
+                    ifClassKept += delta;
                     break;
                 case CLASS_IS_KEPT:
-                    classIsKept++;
+                    classIsKept += delta;
                     break;
                 case SUPERINTERFACE_KEPT:
-                    superInterfaceKept++;
+                    superInterfaceKept += delta;
                     break;
                 case INTERFACE_IMPLEMENTED:
-                    interfaceImplemented++;
+                    interfaceImplemented += delta;
                     break;
                 default:
                     throw new IllegalArgumentException("Unknown dependency type.");
             }
-            boolean after = isReachable();
-            return before != after;
         }
 
         synchronized boolean isReachable() {
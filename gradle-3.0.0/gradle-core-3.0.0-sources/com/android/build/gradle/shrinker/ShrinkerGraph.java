@@ -66,15 +66,18 @@ public interface ShrinkerGraph<T> {
     @NonNull
     Set<String> getReachableMembersLocalNames(@NonNull T klass, @NonNull CounterSet counterSet);
 
-    /** Returns all dependencies of the given node, i.e. outgoing graph edges. */
+    /**
+     * Returns all dependencies of the given node, i.e. outgoing graph edges. The returned set may
+     * be a read-only view of the graph.
+     */
     @NonNull
     Set<Dependency<T>> getDependencies(@NonNull T node);
 
-    /** Returns all methods of the given class. */
+    /** Returns all methods of the given class. The returned set may be a read-only view. */
     @NonNull
     Set<T> getMethods(@NonNull T klass);
 
-    /** Returns all fields of the given class. */
+    /** Returns all fields of the given class. The returned set may be a read-only view. */
     @NonNull
     Set<T> getFields(@NonNull T klass);
 
@@ -155,6 +158,21 @@ public interface ShrinkerGraph<T> {
             @NonNull DependencyType dependencyType,
             @NonNull CounterSet counterSet);
 
+    /**
+     * Decrements the counter of the given type ({@link DependencyType}) and checks if this
+     * operation made the node unreachable, atomically. Reverts one call to {@link
+     * #incrementAndCheck}.
+     *
+     * @param node graph node
+     * @param dependencyType type of counter
+     * @param counterSet the {@link CounterSet} to use
+     * @return true if this operation made the node unreachable, false otherwise
+     */
+    boolean decrementAndCheck(
+            @NonNull T node,
+            @NonNull DependencyType dependencyType,
+            @NonNull CounterSet counterSet);
+
     /**
      * Adds a new dependency (edge) to the graph.
      *
@@ -288,4 +306,10 @@ public interface ShrinkerGraph<T> {
     /** Gets all types referenced from generic signatures of a given class. */
     @NonNull
     Set<T> getTypesFromGenericSignatures(@NonNull T klass);
+
+    /** Returns the number of nodes in the graph, for diagnostics. */
+    int getNodeCount();
+
+    /** Returns the number of edges in the graph, for diagnostics. May take linear time. */
+    int getEdgeCount();
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.fd.client;
+
+import static com.android.tools.fd.common.ProtocolConstants.PATCH_CHUNK_DEFLATED;
+import static com.android.tools.fd.common.ProtocolConstants.PATCH_CHUNK_SIZE;
+
+import com.android.tools.fd.runtime.ApplicationPatch;
+import com.google.common.io.ByteStreams;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes patches for {@link com.android.tools.fd.common.ProtocolConstants#MESSAGE_PATCHES_CHUNKED},
+ * the counterpart of {@link com.android.tools.fd.runtime.ChunkedPatchReader}. Each patch is read
+ * from its source one chunk at a time, starting at the offset the app asks for.
+ */
+public class ChunkedPatchWriter {
+
+    /** The content of a patch, which can be read again when a transfer is resumed. */
+    public interface Source {
+        String getPath();
+
+        int getLength() throws IOException;
+
+        InputStream open() throws IOException;
+    }
+
+    private final boolean mDeflate;
+
+    private long mBytesSent;
+
+    /**
+     * @param deflate whether to try deflating chunks; a chunk is only sent deflated if that
+     *     makes it smaller
+     */
+    public ChunkedPatchWriter(boolean deflate) {
+        mDeflate = deflate;
+    }
+
+    /** Returns the number of chunk payload bytes written so far. */
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    public void write(
+            DataInputStream input,
+            DataOutputStream output,
+            long transferId,
+            List<? extends Source> changes) throws IOException {
+        output.writeLong(transferId);
+        output.writeInt(changes.size());
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            CRC32 crc = new CRC32();
+            byte[] raw = new byte[PATCH_CHUNK_SIZE];
+            byte[] deflated = new byte[PATCH_CHUNK_SIZE];
+            for (Source change : changes) {
+                int length = change.getLength();
+                output.writeUTF(change.getPath());
+                output.writeInt(length);
+                output.flush();
+
+                int offset = input.readInt();
+                if (offset < 0 || offset > length) {
+                    throw new IOException("Invalid resume offset " + offset + " for "
+                            + change.getPath());
+                }
+                if (offset == length) {
+                    continue;
+                }
+
+                try (InputStream in = change.open()) {
+                    ByteStreams.skipFully(in, offset);
+                    while (offset < length) {
+                        int rawLength = Math.min(PATCH_CHUNK_SIZE, length - offset);
+                        ByteStreams.readFully(in, raw, 0, rawLength);
+                        crc.reset();
+                        crc.update(raw, 0, rawLength);
+
+                        int deflatedLength = mDeflate
+                                ? deflate(deflater, raw, rawLength, deflated) : -1;
+                        if (deflatedLength >= 0) {
+                            output.writeByte(PATCH_CHUNK_DEFLATED);
+                            output.writeInt(rawLength);
+                            output.writeInt(deflatedLength);
+                            output.writeInt((int) crc.getValue());
+                            output.write(deflated, 0, deflatedLength);
+                            mBytesSent += deflatedLength;
+                        } else {
+                            output.writeByte(0);
+                            output.writeInt(rawLength);
+                            output.writeInt(rawLength);
+                            output.writeInt((int) crc.getValue());
+                            output.write(raw, 0, rawLength);
+                            mBytesSent += rawLength;
+                        }
+                        offset += rawLength;
+                    }
+                }
+            }
+            output.flush();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** Returns the deflated length, or -1 if deflating doesn't make the chunk smaller. */
+    private static int deflate(Deflater deflater, byte[] raw, int rawLength, byte[] out) {
+        deflater.reset();
+        deflater.setInput(raw, 0, rawLength);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished() && length < rawLength) {
+            length += deflater.deflate(out, length, rawLength - length);
+        }
+        return deflater.finished() && length < rawLength ? length : -1;
+    }
+
+    /** Returns a source for a patch, which may be in memory or spooled to a file. */
+    public static Source of(final ApplicationPatch patch) {
+        return new Source() {
+            @Override
+            public String getPath() {
+                return patch.getPath();
+            }
+
+            @Override
+            public int getLength() throws IOException {
+                long length = patch.getLength();
+                if (length > Integer.MAX_VALUE) {
+                    throw new IOException("Patch too large to push: " + patch);
+                }
+                return (int) length;
+            }
+
+            @Override
+            public InputStream open() throws IOException {
+                return patch.openStream();
+            }
+        };
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.fd.client;
+
+import static com.android.tools.fd.runtime.DeltaPatch.OP_COPY;
+import static com.android.tools.fd.runtime.DeltaPatch.OP_DATA;
+import static com.android.tools.fd.runtime.DeltaPatch.OP_END;
+
+import com.android.tools.fd.runtime.BlockSignatures;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.List;
+
+/**
+ * Computes a {@link com.android.tools.fd.runtime.DeltaPatch} for a file from the block
+ * signatures of the app's copy of it. Like rsync, it slides a window over the new file and
+ * looks up its rolling checksum among the app's blocks; only bytes not covered by a matching
+ * block are sent.
+ */
+public class DeltaPatchWriter {
+    private final BlockSignatures mBase;
+    private final byte[] mTarget;
+    private final ListMultimap<Integer, Integer> mBlocksByWeakChecksum;
+    private final MessageDigest mDigest = BlockSignatures.createDigest();
+
+    private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+    private final DataOutputStream mOutput = new DataOutputStream(mBytes);
+    private int mCopyFirst;
+    private int mCopyCount;
+
+    private DeltaPatchWriter(BlockSignatures base, byte[] target) {
+        mBase = base;
+        mTarget = target;
+        mBlocksByWeakChecksum = ArrayListMultimap.create(base.getBlockCount(), 1);
+        for (int i = 0; i < base.getBlockCount(); i++) {
+            mBlocksByWeakChecksum.put(base.getWeakChecksum(i), i);
+        }
+    }
+
+    /**
+     * Returns a delta which rebuilds {@code target} from the file the signatures describe, or
+     * null if the delta wouldn't be smaller than the file itself.
+     */
+    public static byte[] createDelta(BlockSignatures base, byte[] target) throws IOException {
+        if (base.getBlockCount() == 0) {
+            return null;
+        }
+        byte[] delta = new DeltaPatchWriter(base, target).write();
+        return delta.length < target.length ? delta : null;
+    }
+
+    private byte[] write() throws IOException {
+        mOutput.writeInt(mBase.getBlockSize());
+        mOutput.writeInt(mTarget.length);
+        mOutput.write(BlockSignatures.createDigest().digest(mTarget));
+
+        int blockSize = mBase.getBlockSize();
+        int length = mTarget.length;
+        int literalStart = 0;
+        int position = 0;
+        int weak = length >= blockSize ? BlockSignatures.weakChecksum(mTarget, 0, blockSize) : 0;
+        while (position + blockSize <= length) {
+            int block = findBlock(weak, position, blockSize);
+            if (block >= 0) {
+                writeData(literalStart, position);
+                writeCopy(block);
+                position += blockSize;
+                literalStart = position;
+                if (position + blockSize <= length) {
+                    weak = BlockSignatures.weakChecksum(mTarget, position, blockSize);
+                }
+            } else {
+                if (position + blockSize < length) {
+                    weak = BlockSignatures.roll(weak, mTarget[position],
+                            mTarget[position + blockSize], blockSize);
+                }
+                position++;
+            }
+        }
+
+        // The app's last block is usually shorter; it can only match the end of the file
+        int lastBlock = mBase.getBlockCount() - 1;
+        int lastLength = mBase.getBlockLength(lastBlock);
+        if (lastLength < blockSize && length - lastLength >= literalStart
+                && mBase.getWeakChecksum(lastBlock) == BlockSignatures.weakChecksum(
+                        mTarget, length - lastLength, lastLength)
+                && mBase.getStrongChecksum(lastBlock) == BlockSignatures.strongChecksum(
+                        mDigest, mTarget, length - lastLength, lastLength)) {
+            writeData(literalStart, length - lastLength);
+            writeCopy(lastBlock);
+            literalStart = length;
+        }
+        writeData(literalStart, length);
+        flushCopy();
+        mOutput.writeByte(OP_END);
+        mOutput.flush();
+        return mBytes.toByteArray();
+    }
+
+    /**
+     * Returns a block of the app's copy with the content of the window at {@code position},
+     * preferring the one that continues the current copy, or -1 if there is none.
+     */
+    private int findBlock(int weak, int position, int blockSize) {
+        List<Integer> candidates = mBlocksByWeakChecksum.get(weak);
+        if (candidates.isEmpty()) {
+            return -1;
+        }
+        long strong = BlockSignatures.strongChecksum(mDigest, mTarget, position, blockSize);
+        int found = -1;
+        for (int block : candidates) {
+            if (mBase.getBlockLength(block) == blockSize
+                    && mBase.getStrongChecksum(block) == strong) {
+                if (mCopyCount > 0 && block == mCopyFirst + mCopyCount) {
+                    return block;
+                }
+                if (found == -1) {
+                    found = block;
+                }
+            }
+        }
+        return found;
+    }
+
+    private void writeCopy(int block) throws IOException {
+        if (mCopyCount > 0 && block == mCopyFirst + mCopyCount) {
+            mCopyCount++;
+            return;
+        }
+        flushCopy();
+        mCopyFirst = block;
+        mCopyCount = 1;
+    }
+
+    private void flushCopy() throws IOException {
+        if (mCopyCount > 0) {
+            mOutput.writeByte(OP_COPY);
+            mOutput.writeInt(mCopyFirst);
+            mOutput.writeInt(mCopyCount);
+            mCopyCount = 0;
+        }
+    }
+
+    private void writeData(int start, int end) throws IOException {
+        if (end > start) {
+            flushCopy();
+            mOutput.writeByte(OP_DATA);
+            mOutput.writeInt(end - start);
+            mOutput.write(mTarget, start, end - start);
+        }
+    }
+}
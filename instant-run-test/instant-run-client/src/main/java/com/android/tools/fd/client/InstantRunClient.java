@@ -20,6 +20,7 @@ package com.android.tools.fd.client;
 
 import com.android.ddmlib.*;
 import com.android.tools.fd.runtime.ApplicationPatch;
+import com.android.tools.fd.runtime.BlockSignatures;
 import com.android.tools.fd.runtime.Paths;
 import com.android.utils.ILogger;
 import com.android.utils.NullLogger;
@@ -28,14 +29,18 @@ import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 import static com.android.tools.fd.client.InstantRunArtifactType.DEX;
 import static com.android.tools.fd.client.InstantRunArtifactType.SPLIT;
@@ -48,6 +53,14 @@ public class InstantRunClient {
     // Note: just a random number, hopefully it is a free/available port on the host
     private static final int DEFAULT_LOCAL_PORT = 46622;
 
+    /** How many connections a patch transfer may use before giving up */
+    private static final int MAX_PUSH_ATTEMPTS = 3;
+
+    private static final Random sTransferIds = new Random();
+
+    /** Smallest patch for which the app is asked for block signatures to send a delta */
+    private static final int MIN_DELTA_PATCH_LENGTH = PATCH_CHUNK_SIZE;
+
 
     private final String mPackageName;
 
@@ -204,17 +217,14 @@ public class InstantRunClient {
         boolean needRestart;
 
         if (appRunning) {
-            List<ApplicationPatch> changes = new ArrayList<>(files.size());
             for (FileTransfer file : files) {
-                try {
-                    changes.add(file.getPatch());
-                }
-                catch (IOException e) {
+                if (!file.source.isFile() || !file.source.canRead()) {
                     throw new InstantRunPushFailedException("Could not read file " + file);
                 }
             }
-            updateMode = pushPatches(device, buildInfo.getTimeStamp(), changes,
-                                     updateMode, isRestartActivity, isShowToastEnabled);
+            // the files are streamed to the device, they are not read into memory up front
+            updateMode = pushPatchSources(device, buildInfo.getTimeStamp(), files,
+                                          updateMode, isRestartActivity, isShowToastEnabled);
 
             needRestart = false;
             if (!appInForeground || !buildInfo.canHotswap()) {
@@ -241,6 +251,24 @@ public class InstantRunClient {
              UpdateMode updateMode,
             final boolean isRestartActivity,
             final boolean isShowToastEnabled) throws IOException {
+        List<ChunkedPatchWriter.Source> sources = new ArrayList<>(changes.size());
+        for (ApplicationPatch change : changes) {
+            sources.add(ChunkedPatchWriter.of(change));
+        }
+        return pushPatchSources(device, buildId, sources, updateMode, isRestartActivity,
+                isShowToastEnabled);
+    }
+
+    /**
+     * Sends the patches with {@code MESSAGE_PATCHES_CHUNKED}. Large resource and dex patches
+     * are sent as deltas against the app's copy when that is smaller, see {@link #createDeltas}.
+     */
+    private UpdateMode pushPatchSources( IDevice device,
+             final String buildId,
+             final List<? extends ChunkedPatchWriter.Source> changes,
+             UpdateMode updateMode,
+            final boolean isRestartActivity,
+            final boolean isShowToastEnabled) throws IOException {
         if (changes.isEmpty() || updateMode == UpdateMode.NO_CHANGES) {
             // Sync the build id to the device; Gradle might rev the build id
             // even when there are no changes, and we need to make sure that the
@@ -256,37 +284,151 @@ public class InstantRunClient {
             updateMode = updateMode.combine(UpdateMode.WARM_SWAP);
         }
 
-        final UpdateMode updateMode1 = updateMode;
-        mAppService.talkToService(device, new Communicator<Boolean>() {
-            @Override
-            public Boolean communicate( DataInputStream input,
-                     DataOutputStream output) throws IOException {
-                output.writeInt(MESSAGE_PATCHES);
-                writeToken(output);
-                ApplicationPatchUtil.write(output, changes, updateMode1);
+        List<ChunkedPatchWriter.Source> deltas = createDeltas(device, changes);
+        if (deltas == null || !sendPatches(device, deltas, updateMode, isShowToastEnabled)) {
+            if (deltas != null) {
+                mLogger.warning("App could not apply the delta patches, sending whole files");
+            }
+            sendPatches(device, changes, updateMode, isShowToastEnabled);
+        }
 
-                // Let the app know whether it should show toasts
-                output.writeBoolean(isShowToastEnabled);
+        transferLocalIdToDeviceId(device, buildId);
 
-                // Finally read a boolean back from the other side; this has the net effect of
-                // waiting until applying/verifying code on the other side is done. (It doesn't
-                // count the actual restart time, but for activity restarts it's typically instant,
-                // and for cold starts we have no easy way to handle it (the process will die and a
-                // new process come up; to measure that we'll need to work a lot harder.)
-                input.readBoolean();
+        return updateMode;
+    }
 
-                return false;
+    /**
+     * Sends patches with {@code MESSAGE_PATCHES_CHUNKED}. If the connection drops before all
+     * patch data has been sent, it reconnects and resumes the transfer where the app left off.
+     *
+     * @return whether the app applied the patches
+     */
+    private boolean sendPatches( IDevice device,
+             final List<? extends ChunkedPatchWriter.Source> changes,
+             final UpdateMode updateMode,
+            final boolean isShowToastEnabled) throws IOException {
+        final long transferId = newTransferId();
+        final ChunkedPatchWriter writer = new ChunkedPatchWriter(true);
+        final boolean[] patchesSent = new boolean[1];
+        for (int attempt = 1; ; attempt++) {
+            try {
+                boolean applied = mAppService.talkToService(device, new Communicator<Boolean>() {
+                    @Override
+                    public Boolean communicate( DataInputStream input,
+                             DataOutputStream output) throws IOException {
+                        output.writeInt(MESSAGE_PATCHES_CHUNKED);
+                        writeToken(output);
+                        writer.write(input, output, transferId, changes);
+                        patchesSent[0] = true;
+                        output.writeInt(updateMode.getId());
+
+                        // Let the app know whether it should show toasts
+                        output.writeBoolean(isShowToastEnabled);
+
+                        // Finally read a boolean back from the other side; this has the net
+                        // effect of waiting until applying/verifying code on the other side is
+                        // done. (It doesn't count the actual restart time, but for activity
+                        // restarts it's typically instant, and for cold starts we have no easy
+                        // way to handle it (the process will die and a new process come up; to
+                        // measure that we'll need to work a lot harder.) It is false if the
+                        // app could not apply a delta patch.
+                        return input.readBoolean();
+                    }
+
+                    @Override
+                    int getTimeout() {
+                        return 8000; // allow up to 8 seconds for resource push
+                    }
+                });
+                mLogger.info("Sent %d bytes of patch data", writer.getBytesSent());
+                return applied;
+            } catch (IOException e) {
+                // once all patch data is sent the app may already be applying it, don't send
+                // it twice
+                if (patchesSent[0] || attempt >= MAX_PUSH_ATTEMPTS) {
+                    throw e;
+                }
+                mLogger.warning("Patch transfer interrupted (%s), resuming", e);
             }
+        }
+    }
 
-            @Override
-            int getTimeout() {
-                return 8000; // allow up to 8 seconds for resource push
+    /**
+     * Asks the app for the block signatures of its copies of the resource file and reload dex,
+     * and replaces the patches for those with deltas where that is smaller. Most resource
+     * swaps only change a few kilobytes of a resource file which is megabytes large.
+     *
+     * @return the patches to send, or null if no patch could be sent as a delta
+     */
+    private List<ChunkedPatchWriter.Source> createDeltas( IDevice device,
+             List<? extends ChunkedPatchWriter.Source> changes) {
+        final List<ChunkedPatchWriter.Source> candidates = new ArrayList<>();
+        for (ChunkedPatchWriter.Source change : changes) {
+            String path = change.getPath();
+            try {
+                if ((path.equals(Paths.RESOURCE_FILE_NAME)
+                        || path.equals(Paths.RELOAD_DEX_FILE_NAME))
+                        && change.getLength() >= MIN_DELTA_PATCH_LENGTH) {
+                    candidates.add(change);
+                }
+            } catch (IOException e) {
+                return null;
             }
-        });
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
 
-        transferLocalIdToDeviceId(device, buildId);
+        List<byte[]> signatures;
+        try {
+            signatures = mAppService.talkToService(device, new Communicator<List<byte[]>>() {
+                @Override
+                public List<byte[]> communicate( DataInputStream input,
+                         DataOutputStream output) throws IOException {
+                    List<byte[]> result = new ArrayList<>(candidates.size());
+                    for (ChunkedPatchWriter.Source candidate : candidates) {
+                        output.writeInt(MESSAGE_PATH_CHECKSUM);
+                        output.writeUTF(candidate.getPath());
+                        byte[] bytes = new byte[input.readInt()];
+                        input.readFully(bytes);
+                        result.add(bytes);
+                    }
+                    return result;
+                }
+            });
+        } catch (IOException e) {
+            mLogger.warning("Could not get block signatures from the app: %s", e);
+            return null;
+        }
 
-        return updateMode;
+        List<ChunkedPatchWriter.Source> sources = new ArrayList<>(changes);
+        boolean hasDelta = false;
+        for (int i = 0; i < candidates.size(); i++) {
+            ChunkedPatchWriter.Source candidate = candidates.get(i);
+            if (signatures.get(i).length == 0) {
+                continue;
+            }
+            try {
+                BlockSignatures base = BlockSignatures.parse(signatures.get(i));
+                byte[] target;
+                try (InputStream in = candidate.open()) {
+                    target = new byte[candidate.getLength()];
+                    ByteStreams.readFully(in, target);
+                }
+                byte[] delta = DeltaPatchWriter.createDelta(base, target);
+                if (delta == null) {
+                    continue;
+                }
+                mLogger.info("Sending %s as a %d byte delta of %d bytes",
+                        candidate.getPath(), delta.length, target.length);
+                sources.set(sources.indexOf(candidate), ChunkedPatchWriter.of(new ApplicationPatch(
+                        candidate.getPath() + Paths.DELTA_PATCH_SUFFIX, delta)));
+                hasDelta = true;
+            } catch (IOException e) {
+                mLogger.warning("Could not compute a delta for %s: %s", candidate.getPath(), e);
+            }
+        }
+        return hasDelta ? sources : null;
     }
 
     /**
@@ -352,6 +494,14 @@ public class InstantRunClient {
         return null;
     }
 
+    private static long newTransferId() {
+        long transferId;
+        do {
+            transferId = sTransferIds.nextLong();
+        } while (transferId == 0);
+        return transferId;
+    }
+
     private void writeToken( DataOutputStream output) throws IOException {
         output.writeLong(mToken);
     }
@@ -373,7 +523,7 @@ public class InstantRunClient {
      * File to be transferred to the device. For use with
      * {@link #pushPatches(IDevice, InstantRunBuildInfo, UpdateMode, boolean, boolean)}
      */
-    public static class FileTransfer {
+    public static class FileTransfer implements ChunkedPatchWriter.Source {
         public final int mode;
         public final File source;
         public final String name;
@@ -396,21 +546,35 @@ public class InstantRunClient {
 
 
         public ApplicationPatch getPatch() throws IOException {
-            byte[] bytes = Files.toByteArray(source);
-            String path;
+            return new ApplicationPatch(getPath(), Files.toByteArray(source));
+        }
+
+        @Override
+        public String getPath() {
             // These path names are specially handled on the client side
             // (e.g. it interprets "classes.dex" as meaning create a new
             // unique class file in the class folder.
             switch (mode) {
                 case TRANSFER_MODE_HOTSWAP:
                 case TRANSFER_MODE_RESOURCES:
-                    path = name;
-                    break;
+                    return name;
                 default:
                     throw new IllegalArgumentException(Integer.toString(mode));
             }
+        }
 
-            return new ApplicationPatch(path, bytes);
+        @Override
+        public int getLength() throws IOException {
+            long length = source.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("File too large to push: " + source);
+            }
+            return (int) length;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            return new FileInputStream(source);
         }
 
         @Override
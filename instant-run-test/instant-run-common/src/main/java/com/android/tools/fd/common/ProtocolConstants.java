@@ -27,9 +27,10 @@ public interface ProtocolConstants {
     long PROTOCOL_IDENTIFIER = 0x35107124L;
 
     /**
-     * Version of the protocol
+     * Version of the protocol. Version 5 added {@link #MESSAGE_PATCHES_CHUNKED}, version 6
+     * replies to {@link #MESSAGE_PATH_CHECKSUM} with block signatures.
      */
-    int PROTOCOL_VERSION = 4;
+    int PROTOCOL_VERSION = 6;
 
     /**
      * Message: sending patches
@@ -58,8 +59,10 @@ public interface ProtocolConstants {
      * a small delta on top of a (typically resource ) file instead of resending the whole
      * file over again.)
      * <p>
-     * <b>Currently disabled.</b>. Tied to using extracted resource
-     * directories (controlled by FileManager#USE_EXTRACTED_RESOURCES).
+     * For the resource file and reload dex files the reply is the file's
+     * {@link com.android.tools.fd.runtime.BlockSignatures}, and the client can send a
+     * {@link com.android.tools.fd.runtime.DeltaPatch} of the new version. With extracted
+     * resource directories (controlled by FileManager#USE_EXTRACTED_RESOURCES) it is an MD5.
      */
     int MESSAGE_PATH_CHECKSUM = 4;
 
@@ -88,6 +91,24 @@ public interface ProtocolConstants {
      */
     int MESSAGE_SHELL_COMMAND = 9;
 
+    /**
+     * Message: sending patches in checksummed, optionally deflated chunks. The app tells the
+     * client how much of each patch it already has, so a transfer that was interrupted (for
+     * example by a dropped adb forward) can be resumed on a new connection with the same
+     * transfer id.
+     */
+    int MESSAGE_PATCHES_CHUNKED = 10;
+
+    /**
+     * Maximum number of uncompressed bytes in a {@link #MESSAGE_PATCHES_CHUNKED} chunk
+     */
+    int PATCH_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Chunk flag: the chunk payload is deflated
+     */
+    int PATCH_CHUNK_DEFLATED = 1;
+
     /**
      * No updates
      */
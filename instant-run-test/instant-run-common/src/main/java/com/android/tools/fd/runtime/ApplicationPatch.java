@@ -20,8 +20,14 @@ import static com.android.tools.fd.common.Log.logging;
 
 
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
@@ -31,19 +37,35 @@ import java.util.logging.Level;
 // read protocol on the Android app size, but keeping it all together and
 // in sync right now.
 public class ApplicationPatch {
+    /** Size of the buffer used to copy patches between streams and spool files */
+    static final int SPOOL_BUFFER_SIZE = 64 * 1024;
+
      public final String path;
      public final byte[] data;
+    /** The file the patch data was spooled to, if it isn't held in {@link #data} */
+     public final File file;
 
     public ApplicationPatch( String path,  byte[] data) {
         this.path = path;
         this.data = data;
+        this.file = null;
+    }
+
+    /**
+     * Creates a patch whose data has been spooled to a file rather than held in memory. The
+     * app moves the file into place when it applies the patch.
+     */
+    public ApplicationPatch( String path,  File file) {
+        this.path = path;
+        this.data = null;
+        this.file = file;
     }
 
     @Override
     public String toString() {
         return "ApplicationPatch{" +
                 "path='" + path + '\'' +
-                ", data.length='" + data.length + '\'' +
+                (file != null ? ", file='" + file + '\'' : ", data.length='" + data.length + '\'') +
                 '}';
     }
 
@@ -68,13 +90,107 @@ public class ApplicationPatch {
         return changes;
     }
 
+    /**
+     * Like {@link #read(DataInputStream)}, but copies each patch into a new file in the given
+     * folder through a fixed size buffer, so large resource patches never need to fit on the
+     * heap.
+     */
+    public static List<ApplicationPatch> read( DataInputStream input,  File spoolFolder)
+            throws IOException {
+        int changeCount = input.readInt();
+
+        if (logging != null && logging.isLoggable(Level.FINE)) {
+            logging.log(Level.FINE, "Receiving " + changeCount + " changes into " + spoolFolder);
+        }
+
+        List<ApplicationPatch> changes = new ArrayList<ApplicationPatch>(changeCount);
+        byte[] buffer = new byte[SPOOL_BUFFER_SIZE];
+        try {
+            for (int i = 0; i < changeCount; i++) {
+                String path = input.readUTF();
+                int size = input.readInt();
+                if (size < 0) {
+                    throw new IOException("Invalid length " + size + " for " + path);
+                }
+                File file = createSpoolFile(spoolFolder);
+                changes.add(new ApplicationPatch(path, file));
+                OutputStream output = new FileOutputStream(file);
+                try {
+                    while (size > 0) {
+                        int count = Math.min(size, buffer.length);
+                        input.readFully(buffer, 0, count);
+                        output.write(buffer, 0, count);
+                        size -= count;
+                    }
+                } finally {
+                    output.close();
+                }
+            }
+        } catch (IOException e) {
+            delete(changes);
+            throw e;
+        }
+
+        return changes;
+    }
+
+    /** Creates a new empty file in the spool folder */
+    public static File createSpoolFile( File spoolFolder) throws IOException {
+        if (!spoolFolder.isDirectory() && !spoolFolder.mkdirs()) {
+            throw new IOException("Cannot create spool folder " + spoolFolder);
+        }
+        return File.createTempFile("patch", ".tmp", spoolFolder);
+    }
+
+    /** Deletes the spool files of the given patches */
+    public static void delete( List<ApplicationPatch> changes) {
+        for (ApplicationPatch change : changes) {
+            if (change.file != null) {
+                //noinspection ResultOfMethodCallIgnored
+                change.file.delete();
+            }
+        }
+    }
+
 
     public String getPath() {
         return path;
     }
 
 
+    /**
+     * Returns the patch data. For a spooled patch this reads the whole file, prefer
+     * {@link #getFile()} or {@link #openStream()}.
+     */
     public byte[] getBytes() {
-        return data;
+        if (file == null) {
+            return data;
+        }
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            DataInputStream input = new DataInputStream(new FileInputStream(file));
+            try {
+                input.readFully(bytes);
+            } finally {
+                input.close();
+            }
+            return bytes;
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read spooled patch " + file, e);
+        }
+    }
+
+    /** Returns the file holding the patch data, or null if it is held in memory */
+    public File getFile() {
+        return file;
+    }
+
+    /** Returns the length of the patch data */
+    public long getLength() {
+        return file != null ? file.length() : data.length;
+    }
+
+    public InputStream openStream() throws IOException {
+        return file != null ? new FileInputStream(file) : new ByteArrayInputStream(data);
     }
 }
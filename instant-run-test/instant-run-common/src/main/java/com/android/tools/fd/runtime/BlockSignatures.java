@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.fd.runtime;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Rsync style signatures of a file the app already has: a weak rolling checksum and a strong
+ * checksum for each fixed size block. The app returns these for
+ * {@link com.android.tools.fd.common.ProtocolConstants#MESSAGE_PATH_CHECKSUM}, and the client
+ * uses them to find the blocks it doesn't need to send again (see {@link DeltaPatch}).
+ * <p>
+ * Serialized form: int blockSize, int length, then an int weak and a long strong checksum
+ * for each block. The last block is shorter if the length isn't a multiple of the block size.
+ */
+public class BlockSignatures {
+    private static final int MIN_BLOCK_SIZE = 512;
+    private static final int MAX_BLOCK_SIZE = 16 * 1024;
+
+    private final int blockSize;
+    private final int length;
+    private final int[] weak;
+    private final long[] strong;
+
+    private BlockSignatures(int blockSize, int length, int[] weak, long[] strong) {
+        this.blockSize = blockSize;
+        this.length = length;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /** Returns the length of the file the signatures were computed for */
+    public int getLength() {
+        return length;
+    }
+
+    public int getBlockCount() {
+        return weak.length;
+    }
+
+    /** Returns the length of the given block, which is the block size except for the last one */
+    public int getBlockLength(int block) {
+        return Math.min(blockSize, length - block * blockSize);
+    }
+
+    public int getWeakChecksum(int block) {
+        return weak[block];
+    }
+
+    public long getStrongChecksum(int block) {
+        return strong[block];
+    }
+
+    /**
+     * Picks a block size of about the square root of the length, which balances the size of
+     * the signatures against the amount of unchanged data resent around each edit.
+     */
+    static int getBlockSizeFor(int length) {
+        int size = ((int) Math.sqrt(length) + 63) & ~63;
+        return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    /** Computes the signatures of {@code length} bytes read from the given stream */
+    public static BlockSignatures compute(InputStream input, int length) throws IOException {
+        int blockSize = getBlockSizeFor(length);
+        int blockCount = (int) (((long) length + blockSize - 1) / blockSize);
+        int[] weak = new int[blockCount];
+        long[] strong = new long[blockCount];
+
+        MessageDigest digest = createDigest();
+        DataInputStream data = new DataInputStream(input);
+        byte[] block = new byte[blockSize];
+        for (int i = 0; i < blockCount; i++) {
+            int blockLength = Math.min(blockSize, length - i * blockSize);
+            data.readFully(block, 0, blockLength);
+            weak[i] = weakChecksum(block, 0, blockLength);
+            strong[i] = strongChecksum(digest, block, 0, blockLength);
+        }
+        return new BlockSignatures(blockSize, length, weak, strong);
+    }
+
+    public byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 + weak.length * 12);
+        DataOutputStream output = new DataOutputStream(bytes);
+        try {
+            output.writeInt(blockSize);
+            output.writeInt(length);
+            for (int i = 0; i < weak.length; i++) {
+                output.writeInt(weak[i]);
+                output.writeLong(strong[i]);
+            }
+        } catch (IOException e) {
+            // Can't happen writing to memory
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static BlockSignatures parse(byte[] bytes) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+        int blockSize = input.readInt();
+        int length = input.readInt();
+        if (blockSize <= 0 || length < 0) {
+            throw new IOException("Invalid block signatures");
+        }
+        int blockCount = (int) (((long) length + blockSize - 1) / blockSize);
+        if (bytes.length != 8 + blockCount * 12L) {
+            throw new IOException("Invalid block signatures");
+        }
+        int[] weak = new int[blockCount];
+        long[] strong = new long[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            weak[i] = input.readInt();
+            strong[i] = input.readLong();
+        }
+        return new BlockSignatures(blockSize, length, weak, strong);
+    }
+
+    /**
+     * The rsync weak checksum: the low 16 bits hold the sum of the bytes, the high 16 bits
+     * the sum of the running sums.
+     */
+    public static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            a += data[i] & 0xff;
+            b += a;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    /**
+     * Slides a {@link #weakChecksum} over a window of {@code length} bytes one byte forward,
+     * dropping {@code out} and adding {@code in}.
+     */
+    public static int roll(int checksum, byte out, byte in, int length) {
+        int a = (checksum & 0xffff) - (out & 0xff) + (in & 0xff);
+        int b = (checksum >>> 16) - length * (out & 0xff) + a;
+        return (a & 0xffff) | (b << 16);
+    }
+
+    /** Returns the first 8 bytes of the MD5 of the given range */
+    public static long strongChecksum(MessageDigest digest, byte[] data, int offset, int length) {
+        digest.reset();
+        digest.update(data, offset, length);
+        byte[] hash = digest.digest();
+        long checksum = 0;
+        for (int i = 0; i < 8; i++) {
+            checksum = (checksum << 8) | (hash[i] & 0xff);
+        }
+        return checksum;
+    }
+
+    public static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java and Android runtime has MD5
+            throw new RuntimeException(e);
+        }
+    }
+}
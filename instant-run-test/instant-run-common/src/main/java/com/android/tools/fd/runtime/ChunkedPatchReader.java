@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.fd.runtime;
+
+import static com.android.tools.fd.common.Log.logging;
+import static com.android.tools.fd.common.ProtocolConstants.PATCH_CHUNK_DEFLATED;
+import static com.android.tools.fd.common.ProtocolConstants.PATCH_CHUNK_SIZE;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads patches sent with {@link com.android.tools.fd.common.ProtocolConstants#MESSAGE_PATCHES_CHUNKED}.
+ * <p>
+ * Wire format, after the message id and token:
+ * <pre>
+ *   client: long transferId, int patchCount
+ *   for each patch:
+ *     client: UTF path, int length
+ *     app:    int offset (bytes of this patch the app already has)
+ *     client: chunks covering [offset, length), each
+ *             byte flags, int rawLength, int storedLength, int crc32 of the raw bytes,
+ *             storedLength payload bytes
+ * </pre>
+ * The bytes received for the most recent transfer are kept until it completes, so that a
+ * client which lost its connection can reconnect with the same transfer id and only send
+ * what is missing. A chunk with a bad checksum is dropped and fails the connection; the
+ * client resends it when it resumes.
+ * <p>
+ * Given a spool folder, patches are written to files in it chunk by chunk rather than held
+ * in memory, and the returned patches refer to those files.
+ */
+public class ChunkedPatchReader {
+
+    private static long pendingTransferId;
+    private static final Map<String, PatchBuffer> pendingPatches =
+            new HashMap<String, PatchBuffer>();
+
+    // Only needed on the Android side
+
+    public static List<ApplicationPatch> read(DataInputStream input, DataOutputStream output)
+            throws IOException {
+        return read(input, output, null);
+    }
+
+    /**
+     * Reads patches, spooling them to files in {@code spoolFolder}, or into memory if it is
+     * null.
+     */
+    public static List<ApplicationPatch> read(DataInputStream input, DataOutputStream output,
+            File spoolFolder) throws IOException {
+        long transferId = input.readLong();
+        int changeCount = input.readInt();
+
+        synchronized (pendingPatches) {
+            if (transferId != pendingTransferId) {
+                discardPendingPatches();
+                pendingTransferId = transferId;
+            }
+        }
+
+        if (logging != null && logging.isLoggable(Level.FINE)) {
+            logging.log(Level.FINE, "Receiving " + changeCount + " chunked changes");
+        }
+
+        List<ApplicationPatch> changes = new ArrayList<ApplicationPatch>(changeCount);
+        Inflater inflater = new Inflater();
+        try {
+            CRC32 crc = new CRC32();
+            byte[] stored = new byte[PATCH_CHUNK_SIZE];
+            byte[] chunk = new byte[PATCH_CHUNK_SIZE];
+            for (int i = 0; i < changeCount; i++) {
+                String path = input.readUTF();
+                int length = input.readInt();
+                if (length < 0) {
+                    throw new IOException("Invalid length " + length + " for " + path);
+                }
+
+                PatchBuffer buffer;
+                synchronized (pendingPatches) {
+                    buffer = pendingPatches.get(path);
+                    if (buffer == null || buffer.length != length
+                            || !buffer.isIn(spoolFolder)) {
+                        if (buffer != null) {
+                            buffer.discard();
+                        }
+                        buffer = spoolFolder != null
+                                ? new FileBuffer(length, spoolFolder)
+                                : new MemoryBuffer(length);
+                        pendingPatches.put(path, buffer);
+                    }
+                }
+                if (buffer.received > 0 && logging != null
+                        && logging.isLoggable(Level.FINE)) {
+                    logging.log(Level.FINE, "Resuming " + path + " at " + buffer.received
+                            + " of " + length + " bytes");
+                }
+                output.writeInt(buffer.received);
+                output.flush();
+
+                buffer.open();
+                try {
+                    receive(input, path, buffer, inflater, crc, stored, chunk);
+                } finally {
+                    buffer.close();
+                }
+                changes.add(buffer.toPatch(path));
+            }
+        } finally {
+            inflater.end();
+        }
+
+        synchronized (pendingPatches) {
+            if (transferId == pendingTransferId) {
+                pendingPatches.clear();
+                pendingTransferId = 0;
+            }
+        }
+        return changes;
+    }
+
+    /** Reads the chunks for the rest of a patch and verifies their checksums */
+    private static void receive(DataInputStream input, String path, PatchBuffer buffer,
+            Inflater inflater, CRC32 crc, byte[] stored, byte[] chunk) throws IOException {
+        int length = buffer.length;
+        while (buffer.received < length) {
+            int flags = input.readByte();
+            int rawLength = input.readInt();
+            int storedLength = input.readInt();
+            int checksum = input.readInt();
+            if (rawLength <= 0 || rawLength > PATCH_CHUNK_SIZE
+                    || rawLength > length - buffer.received
+                    || storedLength < 0 || storedLength > PATCH_CHUNK_SIZE) {
+                throw new IOException("Invalid chunk of " + path + " at "
+                        + buffer.received);
+            }
+
+            if ((flags & PATCH_CHUNK_DEFLATED) != 0) {
+                input.readFully(stored, 0, storedLength);
+                inflate(inflater, stored, storedLength, chunk, 0, rawLength);
+            } else if (storedLength == rawLength) {
+                input.readFully(chunk, 0, rawLength);
+            } else {
+                throw new IOException("Invalid chunk of " + path + " at "
+                        + buffer.received);
+            }
+
+            crc.reset();
+            crc.update(chunk, 0, rawLength);
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("Checksum mismatch in " + path + " at "
+                        + buffer.received);
+            }
+            buffer.write(chunk, rawLength);
+            buffer.received += rawLength;
+        }
+    }
+
+    /** Drops the data received for an abandoned transfer; must hold the pending patches lock */
+    private static void discardPendingPatches() {
+        for (PatchBuffer buffer : pendingPatches.values()) {
+            buffer.discard();
+        }
+        pendingPatches.clear();
+    }
+
+    private static void inflate(Inflater inflater, byte[] stored, int storedLength,
+            byte[] out, int offset, int rawLength) throws IOException {
+        inflater.reset();
+        inflater.setInput(stored, 0, storedLength);
+        try {
+            int inflated = 0;
+            while (inflated < rawLength && !inflater.finished()) {
+                int n = inflater.inflate(out, offset + inflated, rawLength - inflated);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += n;
+            }
+            if (inflated != rawLength || !inflater.finished()) {
+                throw new IOException("Chunk does not inflate to " + rawLength + " bytes");
+            }
+        } catch (DataFormatException e) {
+            IOException exception = new IOException("Corrupt deflated chunk");
+            exception.initCause(e);
+            throw exception;
+        }
+    }
+
+    private abstract static class PatchBuffer {
+        final int length;
+        final File spoolFolder;
+        int received;
+
+        PatchBuffer(int length, File spoolFolder) {
+            this.length = length;
+            this.spoolFolder = spoolFolder;
+        }
+
+        boolean isIn(File folder) {
+            return folder == null ? spoolFolder == null : folder.equals(spoolFolder);
+        }
+
+        void open() throws IOException {
+        }
+
+        /** Appends verified data at {@link #received} */
+        abstract void write(byte[] chunk, int count) throws IOException;
+
+        void close() throws IOException {
+        }
+
+        abstract ApplicationPatch toPatch(String path);
+
+        void discard() {
+        }
+    }
+
+    private static class MemoryBuffer extends PatchBuffer {
+        private final byte[] data;
+
+        MemoryBuffer(int length) {
+            super(length, null);
+            data = new byte[length];
+        }
+
+        @Override
+        void write(byte[] chunk, int count) {
+            System.arraycopy(chunk, 0, data, received, count);
+        }
+
+        @Override
+        ApplicationPatch toPatch(String path) {
+            return new ApplicationPatch(path, data);
+        }
+    }
+
+    private static class FileBuffer extends PatchBuffer {
+        private final File file;
+        private RandomAccessFile out;
+
+        FileBuffer(int length, File spoolFolder) throws IOException {
+            super(length, spoolFolder);
+            file = ApplicationPatch.createSpoolFile(spoolFolder);
+        }
+
+        @Override
+        void open() throws IOException {
+            out = new RandomAccessFile(file, "rw");
+            // A chunk which failed half way may have been partly written
+            out.seek(received);
+        }
+
+        @Override
+        void write(byte[] chunk, int count) throws IOException {
+            out.write(chunk, 0, count);
+        }
+
+        @Override
+        void close() throws IOException {
+            out.close();
+            out = null;
+        }
+
+        @Override
+        ApplicationPatch toPatch(String path) {
+            return new ApplicationPatch(path, file);
+        }
+
+        @Override
+        void discard() {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+}
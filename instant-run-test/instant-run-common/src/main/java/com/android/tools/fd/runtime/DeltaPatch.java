@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.fd.runtime;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * A new version of a file, expressed as blocks of the version the app already has plus the
+ * bytes that aren't in it. The client computes it from the app's {@link BlockSignatures} and
+ * sends it as a patch whose path is the target path plus {@link Paths#DELTA_PATCH_SUFFIX}.
+ * <p>
+ * Format:
+ * <pre>
+ *   int blockSize, int length, 16 byte MD5 of the result
+ *   instructions, each starting with a byte:
+ *     {@link #OP_COPY}: int firstBlock, int blockCount   blocks of the app's copy
+ *     {@link #OP_DATA}: int length, length bytes         new bytes
+ *     {@link #OP_END}
+ * </pre>
+ * The result is checked against the MD5, so a delta computed against a file that has changed
+ * on the device since its signatures were sent is rejected rather than applied.
+ */
+public class DeltaPatch {
+    public static final int OP_END = 0;
+    public static final int OP_COPY = 1;
+    public static final int OP_DATA = 2;
+
+    public static boolean isDelta(String path) {
+        return path.endsWith(Paths.DELTA_PATCH_SUFFIX);
+    }
+
+    /** Returns the path of the file a delta patch rebuilds */
+    public static String getTargetPath(String path) {
+        return path.substring(0, path.length() - Paths.DELTA_PATCH_SUFFIX.length());
+    }
+
+    // Only needed on the Android side
+
+    /**
+     * Rebuilds a file from a delta and the app's copy of the file.
+     *
+     * @param delta the delta patch contents
+     * @param base the file the delta's block signatures were computed from
+     * @return the contents of the rebuilt file
+     * @throws IOException if the delta is malformed or doesn't apply to the base file
+     */
+    public static byte[] apply(byte[] delta, File base) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        apply(new ByteArrayInputStream(delta), base, result);
+        return result.toByteArray();
+    }
+
+    /**
+     * Rebuilds a file from a delta and the app's copy of the file, writing it to the given
+     * stream through a fixed size buffer. When this throws, the stream holds a partial file.
+     *
+     * @param delta the delta patch contents
+     * @param base the file the delta's block signatures were computed from
+     * @param out the stream to write the rebuilt file to
+     * @throws IOException if the delta is malformed or doesn't apply to the base file
+     */
+    public static void apply(InputStream delta, File base, OutputStream out)
+            throws IOException {
+        DataInputStream input = new DataInputStream(delta);
+        int blockSize = input.readInt();
+        int length = input.readInt();
+        byte[] md5 = new byte[16];
+        input.readFully(md5);
+        if (blockSize <= 0 || length < 0) {
+            throw new IOException("Invalid delta header");
+        }
+
+        MessageDigest digest = BlockSignatures.createDigest();
+        byte[] buffer = new byte[ApplicationPatch.SPOOL_BUFFER_SIZE];
+        int position = 0;
+        RandomAccessFile file = new RandomAccessFile(base, "r");
+        try {
+            long baseLength = file.length();
+            while (true) {
+                int op = input.readByte();
+                if (op == OP_END) {
+                    break;
+                } else if (op == OP_COPY) {
+                    int first = input.readInt();
+                    int count = input.readInt();
+                    long start = (long) first * blockSize;
+                    long end = Math.min(start + (long) count * blockSize, baseLength);
+                    if (first < 0 || count <= 0 || start >= end
+                            || end - start > length - position) {
+                        throw new IOException("Invalid block copy in delta at " + position);
+                    }
+                    file.seek(start);
+                    int remaining = (int) (end - start);
+                    while (remaining > 0) {
+                        int n = Math.min(remaining, buffer.length);
+                        file.readFully(buffer, 0, n);
+                        digest.update(buffer, 0, n);
+                        out.write(buffer, 0, n);
+                        remaining -= n;
+                    }
+                    position += (int) (end - start);
+                } else if (op == OP_DATA) {
+                    int dataLength = input.readInt();
+                    if (dataLength < 0 || dataLength > length - position) {
+                        throw new IOException("Invalid data in delta at " + position);
+                    }
+                    int remaining = dataLength;
+                    while (remaining > 0) {
+                        int n = Math.min(remaining, buffer.length);
+                        input.readFully(buffer, 0, n);
+                        digest.update(buffer, 0, n);
+                        out.write(buffer, 0, n);
+                        remaining -= n;
+                    }
+                    position += dataLength;
+                } else {
+                    throw new IOException("Unknown delta instruction " + op);
+                }
+            }
+        } finally {
+            file.close();
+        }
+
+        if (position != length) {
+            throw new IOException("Delta rebuilt " + position + " of " + length + " bytes");
+        }
+        if (!Arrays.equals(md5, digest.digest())) {
+            throw new IOException("Delta does not apply to " + base);
+        }
+    }
+}
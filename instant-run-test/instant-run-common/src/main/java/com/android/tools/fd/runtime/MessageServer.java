@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.fd.runtime;
+
+import static com.android.tools.fd.common.Log.logging;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+
+/**
+ * Accepts connections from the IDE and handles each of them on a bounded pool of worker
+ * threads, so that quick messages such as pings are answered while another connection is
+ * busy applying patches.
+ * <p>
+ * Handlers must hold the {@link #getPatchLock() patch lock} while applying patches, but not
+ * while receiving them: patches sent on concurrent connections are then applied one set at a
+ * time, in the order their transfers completed, and a long transfer doesn't hold up other
+ * connections.
+ * <p>
+ * The transport is pluggable: the app listens on a local socket, while tests and load tests
+ * can use {@link #createEndpoint(ServerSocket)} on a desktop JVM.
+ */
+public class MessageServer {
+
+    /** A listening socket */
+    public interface Endpoint {
+        /** Blocks until a client connects */
+        Connection accept() throws IOException;
+
+        void close() throws IOException;
+    }
+
+    /** A connected socket */
+    public interface Connection {
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+
+        void close() throws IOException;
+    }
+
+    /** Reads and answers the messages of one connection */
+    public interface Handler {
+        void handle(DataInputStream input, DataOutputStream output) throws IOException;
+    }
+
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    /** Number of accept failures in a row after which the endpoint is considered unusable */
+    static final int MAX_ACCEPT_FAILURES = 10;
+
+    /** Longest wait before accepting again after a failure */
+    private static final long MAX_ACCEPT_BACKOFF_MS = 1000;
+
+    private final Endpoint endpoint;
+    private final Handler handler;
+    private final ThreadPoolExecutor workers;
+    private final ReentrantLock patchLock = new ReentrantLock(true);
+    private volatile boolean stopped;
+
+    /**
+     * @param endpoint the socket to accept connections on
+     * @param handler the handler for each connection
+     * @param maxConnections the number of connections handled at the same time
+     * @param backlog the number of further connections which wait for a worker; connections
+     *     beyond that are closed right away
+     */
+    public MessageServer(Endpoint endpoint, Handler handler, int maxConnections, int backlog) {
+        this.endpoint = endpoint;
+        this.handler = handler;
+        final AtomicInteger threadCount = new AtomicInteger();
+        workers = new ThreadPoolExecutor(maxConnections, maxConnections,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(backlog),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                "InstantRun-connection-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        workers.allowCoreThreadTimeOut(true);
+    }
+
+    /** Returns the lock to hold while applying patches */
+    public ReentrantLock getPatchLock() {
+        return patchLock;
+    }
+
+    /** Starts accepting connections on a new thread */
+    public void start() {
+        Thread thread = new Thread("InstantRun-server") {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Stops accepting connections; connections already accepted are still handled */
+    public void shutdown() {
+        stopped = true;
+        try {
+            endpoint.close();
+        } catch (IOException ignore) {
+        }
+        workers.shutdown();
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    private void acceptConnections() {
+        int failures = 0;
+        while (!stopped) {
+            final Connection connection;
+            try {
+                connection = endpoint.accept();
+                failures = 0;
+            } catch (IOException e) {
+                if (stopped) {
+                    break;
+                }
+                failures++;
+                if (failures >= MAX_ACCEPT_FAILURES) {
+                    // e.g. the socket was closed underneath us
+                    if (logging != null && logging.isLoggable(Level.WARNING)) {
+                        logging.log(Level.WARNING, "Cannot accept connections, stopping", e);
+                    }
+                    shutdown();
+                    break;
+                }
+                if (logging != null && logging.isLoggable(Level.FINE)) {
+                    logging.log(Level.FINE, "Error accepting connection", e);
+                }
+                // Give the connections being handled time to release file descriptors
+                try {
+                    Thread.sleep(Math.min(MAX_ACCEPT_BACKOFF_MS, 10L << failures));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                continue;
+            }
+
+            try {
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleConnection(connection);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                if (logging != null && logging.isLoggable(Level.WARNING)) {
+                    logging.log(Level.WARNING, stopped ? "Server stopped, dropping connection"
+                            : "Too many connections, dropping connection");
+                }
+                closeQuietly(connection);
+            }
+        }
+    }
+
+    private void handleConnection(Connection connection) {
+        try {
+            DataInputStream input = new DataInputStream(connection.getInputStream());
+            DataOutputStream output = new DataOutputStream(connection.getOutputStream());
+            try {
+                handler.handle(input, output);
+            } finally {
+                // A handler which failed while applying patches must not block later patches
+                while (patchLock.isHeldByCurrentThread()) {
+                    patchLock.unlock();
+                }
+                closeQuietly(connection);
+            }
+        } catch (Throwable e) {
+            if (logging != null && logging.isLoggable(Level.FINE)) {
+                logging.log(Level.FINE, "Fatal error receiving messages", e);
+            }
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    /** Returns an endpoint which accepts TCP connections on the given socket */
+    public static Endpoint createEndpoint(final ServerSocket serverSocket) {
+        return new Endpoint() {
+            @Override
+            public Connection accept() throws IOException {
+                final Socket socket = serverSocket.accept();
+                return new Connection() {
+                    @Override
+                    public InputStream getInputStream() throws IOException {
+                        return socket.getInputStream();
+                    }
+
+                    @Override
+                    public OutputStream getOutputStream() throws IOException {
+                        return socket.getOutputStream();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        socket.close();
+                    }
+                };
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+}
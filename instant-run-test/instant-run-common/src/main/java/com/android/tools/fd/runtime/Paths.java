@@ -34,6 +34,9 @@ public final class Paths {
     /** Name for reload dex files */
     public static final String RELOAD_DEX_FILE_NAME = "classes.dex.3";
 
+    /** Suffix of patches which hold a delta against the app's copy of the file, see DeltaPatch */
+    public static final String DELTA_PATCH_SUFFIX = ".delta";
+
 
     public static String getMainApkDataDirectory( String applicationId) {
         return "/data/data/" + applicationId;
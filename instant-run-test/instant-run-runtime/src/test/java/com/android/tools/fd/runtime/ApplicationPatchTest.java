@@ -18,6 +18,8 @@ package com.android.tools.fd.runtime;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeFalse;
 
 import com.android.tools.fd.client.ApplicationPatchUtil;
 import com.android.tools.fd.client.UpdateMode;
@@ -26,17 +28,21 @@ import com.google.common.truth.Expect;
 
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.Random;
 
 @RunWith(Parameterized.class)
 public class ApplicationPatchTest {
@@ -46,12 +52,17 @@ public class ApplicationPatchTest {
         ApplicationPatch emptyData = new ApplicationPatch("path", new byte[] {});
         ApplicationPatch patch1 = new ApplicationPatch("path1", new byte[] {54, 23, -128, 4, 127, -5});
         ApplicationPatch patch2 = new ApplicationPatch("patch2", new byte[] {122, -2, 73});
+        // Spooled through the buffer several times, and not a multiple of its size
+        byte[] largeData = new byte[3 * ApplicationPatch.SPOOL_BUFFER_SIZE + 17];
+        new Random(0).nextBytes(largeData);
+        ApplicationPatch largePatch = new ApplicationPatch(Paths.RESOURCE_FILE_NAME, largeData);
 
         return Arrays.asList(new Object[][] {
                 {ImmutableList.of()},
                 {ImmutableList.of(emptyData)},
                 {ImmutableList.of(patch1)},
                 {ImmutableList.of(patch1, patch2)},
+                {ImmutableList.of(patch1, largePatch)},
         });
     }
 
@@ -64,26 +75,72 @@ public class ApplicationPatchTest {
     @Rule
     public Expect mExpect = Expect.createAndEnableStackTrace();
 
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
     @Test
     public void checkApplicationPatchReadWrite() throws IOException {
-        PipedInputStream input = new PipedInputStream();
-        PipedOutputStream outputStream = new PipedOutputStream(input);
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(write()));
+        List<ApplicationPatch> patches = ApplicationPatch.read(input);
+        assertNotNull(patches);
+        assertEquals("Should not lose or gain patches", mPatches.size(), patches.size());
+
+        for (int i = 0; i < mPatches.size(); i++) {
+            ApplicationPatch expected = mPatches.get(i);
+            ApplicationPatch actual = patches.get(i);
+            mExpect.that(actual.getBytes()).isEqualTo(expected.getBytes());
+            mExpect.that(actual.getPath()).isEqualTo(expected.getPath());
+        }
+    }
+
+    @Test
+    public void checkApplicationPatchSpooledRead() throws IOException {
+        File spoolFolder = mTemporaryFolder.newFolder();
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(write()));
+        List<ApplicationPatch> patches = ApplicationPatch.read(input, spoolFolder);
+        assertNotNull(patches);
+        assertEquals("Should not lose or gain patches", mPatches.size(), patches.size());
+
+        for (int i = 0; i < mPatches.size(); i++) {
+            ApplicationPatch expected = mPatches.get(i);
+            ApplicationPatch actual = patches.get(i);
+            mExpect.that(actual.getFile().getParentFile()).isEqualTo(spoolFolder);
+            mExpect.that(actual.getLength()).isEqualTo((long) expected.getBytes().length);
+            mExpect.that(actual.getBytes()).isEqualTo(expected.getBytes());
+            mExpect.that(actual.getPath()).isEqualTo(expected.getPath());
+        }
+
+        ApplicationPatch.delete(patches);
+        mExpect.that(spoolFolder.list()).isEmpty();
+    }
+
+    @Test
+    public void checkApplicationPatchTruncatedSpooledRead() throws IOException {
+        assumeFalse(mPatches.isEmpty());
+        File spoolFolder = mTemporaryFolder.newFolder();
+
+        // Cut the stream off in the middle of the last patch, or of its length if it is empty.
+        // The last 4 bytes are the update mode, which is not read with the patches.
+        byte[] bytes = write();
+        int lastLength = mPatches.get(mPatches.size() - 1).getBytes().length;
+        int truncatedLength = bytes.length - 4 - (lastLength / 2 + 1);
         try {
-            DataOutputStream output = new DataOutputStream(outputStream);
-            ApplicationPatchUtil.write(output, mPatches, UpdateMode.HOT_SWAP);
-
-            List<ApplicationPatch> patches = ApplicationPatch.read(new DataInputStream(input));
-            assertNotNull(patches);
-            assertEquals("Should not lose or gain patches", mPatches.size(), patches.size());
-
-            for (int i = 0; i < mPatches.size(); i++) {
-                ApplicationPatch expected = mPatches.get(i);
-                ApplicationPatch actual = patches.get(i);
-                mExpect.that(actual.getBytes()).isEqualTo(expected.getBytes());
-                mExpect.that(actual.getPath()).isEqualTo(expected.getPath());
-            }
-        } finally {
-            outputStream.close();
+            ApplicationPatch.read(
+                    new DataInputStream(new ByteArrayInputStream(bytes, 0, truncatedLength)),
+                    spoolFolder);
+            fail("Truncated patches should not be read");
+        } catch (EOFException expected) {
         }
+        mExpect.that(spoolFolder.list()).isEmpty();
+    }
+
+    /**
+     * Returns the patches as the IDE sends them. Not a pipe, since patches that don't fit in its
+     * buffer would block the writer.
+     */
+    private byte[] write() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ApplicationPatchUtil.write(new DataOutputStream(bytes), mPatches, UpdateMode.HOT_SWAP);
+        return bytes.toByteArray();
     }
 }
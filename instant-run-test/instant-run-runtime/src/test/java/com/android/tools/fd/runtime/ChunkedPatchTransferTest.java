@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.fd.runtime;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.tools.fd.client.ChunkedPatchWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends patches with {@link ChunkedPatchWriter} to a loopback socket, where a thread plays the
+ * app side with {@link ChunkedPatchReader}.
+ */
+public class ChunkedPatchTransferTest {
+
+    private ServerSocket mServerSocket;
+    private Thread mServerThread;
+    /** Where the app side spools patches to, or null to receive them into memory */
+    private volatile File mSpoolFolder;
+    private final BlockingQueue<List<ApplicationPatch>> mReceived =
+            new LinkedBlockingQueue<List<ApplicationPatch>>();
+
+    @Before
+    public void startServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        mServerThread = new Thread("chunked-patch-server") {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()) {
+                    Socket socket;
+                    try {
+                        socket = mServerSocket.accept();
+                    } catch (IOException e) {
+                        return;
+                    }
+                    try {
+                        DataInputStream input = new DataInputStream(socket.getInputStream());
+                        DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+                        List<ApplicationPatch> patches =
+                                ChunkedPatchReader.read(input, output, mSpoolFolder);
+                        mReceived.add(patches);
+                        output.writeBoolean(true);
+                    } catch (IOException e) {
+                        // the client dropped the connection or sent a bad chunk; it resumes
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException ignore) {
+                        }
+                    }
+                }
+            }
+        };
+        mServerThread.start();
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        mServerSocket.close();
+        mServerThread.join(5000);
+        if (mSpoolFolder != null) {
+            File[] files = mSpoolFolder.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+            //noinspection ResultOfMethodCallIgnored
+            mSpoolFolder.delete();
+        }
+    }
+
+    private void spoolToFiles() throws IOException {
+        File folder = File.createTempFile("spool", "");
+        if (!folder.delete() || !folder.mkdir()) {
+            throw new IOException("Cannot create " + folder);
+        }
+        mSpoolFolder = folder;
+    }
+
+    @Test
+    public void transfersPatches() throws Exception {
+        checkTransfer(false);
+    }
+
+    @Test
+    public void transfersDeflatedPatches() throws Exception {
+        checkTransfer(true);
+    }
+
+    private void checkTransfer(boolean deflate) throws Exception {
+        List<ApplicationPatch> patches = Arrays.asList(
+                new ApplicationPatch("empty", new byte[0]),
+                new ApplicationPatch("small", new byte[] {54, 23, -128, 4, 127, -5}),
+                new ApplicationPatch(Paths.RESOURCE_FILE_NAME, compressibleBytes(300 * 1024)),
+                new ApplicationPatch(Paths.RELOAD_DEX_FILE_NAME, randomBytes(200 * 1024)));
+
+        ChunkedPatchWriter writer = new ChunkedPatchWriter(deflate);
+        send(writer, 1L, patches, null);
+
+        assertPatchesEqual(patches, mReceived.poll(5, TimeUnit.SECONDS));
+        long total = 300 * 1024 + 200 * 1024 + 6;
+        if (deflate) {
+            assertTrue("compressible patch should be deflated", writer.getBytesSent() < total);
+        } else {
+            assertEquals(total, writer.getBytesSent());
+        }
+    }
+
+    @Test
+    public void resumesAfterDroppedConnection() throws Exception {
+        List<ApplicationPatch> patches = Arrays.asList(
+                new ApplicationPatch("first", randomBytes(100 * 1024)),
+                new ApplicationPatch("second", randomBytes(400 * 1024)));
+
+        ChunkedPatchWriter dropped = new ChunkedPatchWriter(false);
+        try {
+            send(dropped, 2L, patches, new DropAfter(250 * 1024));
+            fail("connection should have been dropped");
+        } catch (IOException expected) {
+        }
+
+        ChunkedPatchWriter resumed = new ChunkedPatchWriter(false);
+        send(resumed, 2L, patches, null);
+
+        assertPatchesEqual(patches, mReceived.poll(5, TimeUnit.SECONDS));
+        assertTrue("resumed transfer should skip the chunks the app has",
+                resumed.getBytesSent() < 300 * 1024);
+    }
+
+    @Test
+    public void resendsCorruptedChunk() throws Exception {
+        List<ApplicationPatch> patches = Arrays.asList(
+                new ApplicationPatch("patch", randomBytes(300 * 1024)));
+
+        try {
+            send(new ChunkedPatchWriter(false), 3L, patches, new CorruptAt(200 * 1024));
+            fail("corrupted chunk should have been rejected");
+        } catch (IOException expected) {
+        }
+        send(new ChunkedPatchWriter(false), 3L, patches, null);
+
+        assertPatchesEqual(patches, mReceived.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void newTransferStartsOver() throws Exception {
+        List<ApplicationPatch> patches = Arrays.asList(
+                new ApplicationPatch("patch", randomBytes(300 * 1024)));
+
+        try {
+            send(new ChunkedPatchWriter(false), 4L, patches, new DropAfter(200 * 1024));
+            fail("connection should have been dropped");
+        } catch (IOException expected) {
+        }
+
+        ChunkedPatchWriter writer = new ChunkedPatchWriter(false);
+        send(writer, 5L, patches, null);
+
+        assertPatchesEqual(patches, mReceived.poll(5, TimeUnit.SECONDS));
+        assertEquals(300 * 1024, writer.getBytesSent());
+    }
+
+    @Test
+    public void spoolsPatchesToFiles() throws Exception {
+        spoolToFiles();
+        checkTransfer(true);
+        assertEquals(4, mSpoolFolder.list().length);
+    }
+
+    @Test
+    public void resumesSpooledTransfer() throws Exception {
+        spoolToFiles();
+        List<ApplicationPatch> patches = Arrays.asList(
+                new ApplicationPatch("first", randomBytes(100 * 1024)),
+                new ApplicationPatch("second", randomBytes(400 * 1024)));
+
+        try {
+            send(new ChunkedPatchWriter(false), 6L, patches, new DropAfter(250 * 1024));
+            fail("connection should have been dropped");
+        } catch (IOException expected) {
+        }
+
+        ChunkedPatchWriter resumed = new ChunkedPatchWriter(false);
+        send(resumed, 6L, patches, null);
+
+        List<ApplicationPatch> received = mReceived.poll(5, TimeUnit.SECONDS);
+        assertPatchesEqual(patches, received);
+        for (ApplicationPatch patch : received) {
+            assertEquals(mSpoolFolder, patch.getFile().getParentFile());
+        }
+        assertTrue("resumed transfer should skip the chunks the app has",
+                resumed.getBytesSent() < 300 * 1024);
+    }
+
+    @Test
+    public void abandonedSpooledTransferIsDeleted() throws Exception {
+        spoolToFiles();
+        List<ApplicationPatch> patches = Arrays.asList(
+                new ApplicationPatch("patch", randomBytes(300 * 1024)));
+
+        try {
+            send(new ChunkedPatchWriter(false), 7L, patches, new DropAfter(200 * 1024));
+            fail("connection should have been dropped");
+        } catch (IOException expected) {
+        }
+        send(new ChunkedPatchWriter(false), 8L, patches, null);
+
+        assertPatchesEqual(patches, mReceived.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, mSpoolFolder.list().length);
+    }
+
+    private void send(ChunkedPatchWriter writer, long transferId,
+            List<ApplicationPatch> patches, Filter filter) throws IOException {
+        List<ChunkedPatchWriter.Source> sources = new ArrayList<ChunkedPatchWriter.Source>();
+        for (ApplicationPatch patch : patches) {
+            sources.add(ChunkedPatchWriter.of(patch));
+        }
+
+        Socket socket = new Socket(mServerSocket.getInetAddress(), mServerSocket.getLocalPort());
+        try {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            if (filter != null) {
+                filter.setOut(out);
+                out = filter;
+            }
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(out));
+            writer.write(input, output, transferId, sources);
+            if (!input.readBoolean()) {
+                fail("app did not acknowledge the patches");
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void assertPatchesEqual(List<ApplicationPatch> expected,
+            List<ApplicationPatch> actual) {
+        if (actual == null) {
+            fail("app did not receive the patches");
+        }
+        assertEquals("Should not lose or gain patches", expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getPath(), actual.get(i).getPath());
+            assertArrayEquals(expected.get(i).getBytes(), actual.get(i).getBytes());
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] compressibleBytes(int length) {
+        byte[] bytes = new byte[length];
+        byte[] text = "<LinearLayout android:layout_width=\"match_parent\"/>\n".getBytes();
+        for (int i = 0; i < length; i++) {
+            bytes[i] = text[i % text.length];
+        }
+        return bytes;
+    }
+
+    private abstract static class Filter extends FilterOutputStream {
+        long mWritten;
+
+        Filter() {
+            super(null);
+        }
+
+        void setOut(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (int i = 0; i < len; i++) {
+                write(b[off + i]);
+            }
+        }
+    }
+
+    /** Fails the connection after some bytes, like a dropped adb forward. */
+    private static class DropAfter extends Filter {
+        private final long mLimit;
+
+        DropAfter(long limit) {
+            mLimit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (mWritten++ == mLimit) {
+                out.flush();
+                out.close();
+                throw new IOException("connection dropped");
+            }
+            out.write(b);
+        }
+    }
+
+    /** Flips the bits of one byte. */
+    private static class CorruptAt extends Filter {
+        private final long mPosition;
+
+        CorruptAt(long position) {
+            mPosition = position;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(mWritten++ == mPosition ? ~b : b);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.fd.runtime;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.tools.fd.client.DeltaPatchWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Computes deltas with {@link DeltaPatchWriter} against the signatures of a base file and
+ * rebuilds the new file from them with {@link DeltaPatch}.
+ */
+public class DeltaPatchTest {
+
+    private File mBase;
+
+    @Before
+    public void createBase() throws IOException {
+        mBase = File.createTempFile("base", ".ap_");
+    }
+
+    @After
+    public void deleteBase() {
+        //noinspection ResultOfMethodCallIgnored
+        mBase.delete();
+    }
+
+    @Test
+    public void rollingChecksum() {
+        byte[] bytes = randomBytes(5000, 1);
+        int length = 1000;
+        int checksum = BlockSignatures.weakChecksum(bytes, 0, length);
+        for (int i = 1; i + length <= bytes.length; i++) {
+            checksum = BlockSignatures.roll(checksum, bytes[i - 1], bytes[i + length - 1], length);
+            assertEquals(BlockSignatures.weakChecksum(bytes, i, length), checksum);
+        }
+    }
+
+    @Test
+    public void signaturesRoundTrip() throws IOException {
+        byte[] bytes = randomBytes(100 * 1024 + 17, 2);
+        BlockSignatures signatures = signaturesOf(bytes);
+        BlockSignatures parsed = BlockSignatures.parse(signatures.toByteArray());
+        assertEquals(signatures.getBlockSize(), parsed.getBlockSize());
+        assertEquals(bytes.length, parsed.getLength());
+        assertEquals(signatures.getBlockCount(), parsed.getBlockCount());
+        for (int i = 0; i < parsed.getBlockCount(); i++) {
+            assertEquals(signatures.getWeakChecksum(i), parsed.getWeakChecksum(i));
+            assertEquals(signatures.getStrongChecksum(i), parsed.getStrongChecksum(i));
+        }
+    }
+
+    @Test
+    public void sendsOnlyChangedBlocks() throws IOException {
+        byte[] base = randomBytes(3 * 1024 * 1024 + 123, 3);
+        byte[] target = base.clone();
+        // Edit in place, and insert and remove bytes so that later blocks move
+        System.arraycopy(randomBytes(2000, 4), 0, target, 100000, 2000);
+        target = splice(target, 1500000, 0, randomBytes(777, 5));
+        target = splice(target, 2500000, 3000, new byte[0]);
+
+        byte[] delta = checkDelta(base, target);
+        assertTrue("delta should be small, was " + delta.length, delta.length < 32 * 1024);
+    }
+
+    @Test
+    public void matchesShortLastBlock() throws IOException {
+        byte[] base = randomBytes(200 * 1024 + 5, 6);
+        byte[] target = splice(base, 0, 0, new byte[] {1, 2, 3});
+        byte[] delta = checkDelta(base, target);
+        assertTrue("delta should be small, was " + delta.length, delta.length < 1024);
+    }
+
+    @Test
+    public void skipsUnrelatedFiles() throws IOException {
+        byte[] base = randomBytes(100 * 1024, 7);
+        byte[] target = randomBytes(100 * 1024, 8);
+        assertNull(DeltaPatchWriter.createDelta(signaturesOf(base), target));
+    }
+
+    @Test
+    public void rejectsChangedBase() throws IOException {
+        byte[] base = randomBytes(100 * 1024, 9);
+        byte[] target = splice(base, 5000, 10, new byte[0]);
+        byte[] delta = DeltaPatchWriter.createDelta(signaturesOf(base), target);
+
+        base[50000]++;
+        write(base);
+        try {
+            DeltaPatch.apply(delta, mBase);
+            fail("delta should not apply to a changed file");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void pathNames() {
+        String path = Paths.RESOURCE_FILE_NAME + Paths.DELTA_PATCH_SUFFIX;
+        assertTrue(DeltaPatch.isDelta(path));
+        assertEquals(Paths.RESOURCE_FILE_NAME, DeltaPatch.getTargetPath(path));
+    }
+
+    private byte[] checkDelta(byte[] base, byte[] target) throws IOException {
+        byte[] delta = DeltaPatchWriter.createDelta(signaturesOf(base), target);
+        if (delta == null) {
+            fail("delta should be smaller than the file");
+        }
+        write(base);
+        assertArrayEquals(target, DeltaPatch.apply(delta, mBase));
+        return delta;
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        FileOutputStream output = new FileOutputStream(mBase);
+        try {
+            output.write(bytes);
+        } finally {
+            output.close();
+        }
+    }
+
+    private static BlockSignatures signaturesOf(byte[] bytes) throws IOException {
+        return BlockSignatures.compute(new ByteArrayInputStream(bytes), bytes.length);
+    }
+
+    private static byte[] splice(byte[] bytes, int offset, int remove, byte[] insert) {
+        byte[] result = new byte[bytes.length - remove + insert.length];
+        System.arraycopy(bytes, 0, result, 0, offset);
+        System.arraycopy(insert, 0, result, offset, insert.length);
+        System.arraycopy(bytes, offset + remove, result, offset + insert.length,
+                bytes.length - offset - remove);
+        return result;
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
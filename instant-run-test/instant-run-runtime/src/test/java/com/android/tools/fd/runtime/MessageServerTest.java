@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.fd.runtime;
+
+import static com.android.tools.fd.common.ProtocolConstants.MESSAGE_EOF;
+import static com.android.tools.fd.common.ProtocolConstants.MESSAGE_PATCHES;
+import static com.android.tools.fd.common.ProtocolConstants.MESSAGE_PING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs a {@link MessageServer} on a loopback TCP socket with a handler that speaks a small
+ * subset of the protocol: pings, and "patches" which are numbers that the handler records.
+ */
+public class MessageServerTest {
+
+    private MessageServer mServer;
+    private ServerSocket mServerSocket;
+    private final List<Integer> mApplied = Collections.synchronizedList(new ArrayList<Integer>());
+    private final CountDownLatch mPatchStarted = new CountDownLatch(1);
+    private final CountDownLatch mReleasePatches = new CountDownLatch(1);
+    private final AtomicInteger mActive = new AtomicInteger();
+    private final AtomicInteger mMaxActive = new AtomicInteger();
+
+    private void startServer(int maxConnections, int backlog) throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mServer = new MessageServer(MessageServer.createEndpoint(mServerSocket), new Handler(),
+                maxConnections, backlog);
+        mServer.start();
+    }
+
+    @After
+    public void stopServer() {
+        mReleasePatches.countDown();
+        if (mServer != null) {
+            mServer.shutdown();
+        }
+    }
+
+    @Test
+    public void answersPingsWhilePatching() throws Exception {
+        startServer(4, 4);
+        Socket patching = connect();
+        new DataOutputStream(patching.getOutputStream()).writeInt(MESSAGE_PATCHES);
+        new DataOutputStream(patching.getOutputStream()).writeInt(0);
+        assertTrue("patch should start", mPatchStarted.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 10; i++) {
+            ping();
+        }
+
+        mReleasePatches.countDown();
+        DataInputStream input = new DataInputStream(patching.getInputStream());
+        assertTrue(input.readBoolean());
+        patching.close();
+        assertEquals(Arrays.asList(0), mApplied);
+    }
+
+    @Test
+    public void appliesPatchesInOrder() throws Exception {
+        startServer(8, 8);
+        List<Socket> sockets = new ArrayList<Socket>();
+        ReentrantLock patchLock = mServer.getPatchLock();
+        for (int i = 0; i < 6; i++) {
+            Socket socket = connect();
+            DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+            output.writeInt(MESSAGE_PATCHES);
+            output.writeInt(i);
+            sockets.add(socket);
+            if (i == 0) {
+                assertTrue("patch should start", mPatchStarted.await(5, TimeUnit.SECONDS));
+            } else {
+                // wait until this patch is queued behind the earlier ones
+                long deadline = System.currentTimeMillis() + 5000;
+                while (patchLock.getQueueLength() < i) {
+                    if (System.currentTimeMillis() > deadline) {
+                        fail("patch " + i + " was not queued");
+                    }
+                    Thread.sleep(5);
+                }
+            }
+        }
+
+        mReleasePatches.countDown();
+        for (Socket socket : sockets) {
+            assertTrue(new DataInputStream(socket.getInputStream()).readBoolean());
+            socket.close();
+        }
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), mApplied);
+    }
+
+    @Test
+    public void dropsConnectionsBeyondBacklog() throws Exception {
+        startServer(1, 1);
+        Socket patching = connect();
+        new DataOutputStream(patching.getOutputStream()).writeInt(MESSAGE_PATCHES);
+        new DataOutputStream(patching.getOutputStream()).writeInt(0);
+        assertTrue("patch should start", mPatchStarted.await(5, TimeUnit.SECONDS));
+
+        // the only worker is busy: one connection waits, the next one is dropped
+        Socket waiting = connect();
+        Socket dropped = connect();
+        try {
+            DataOutputStream output = new DataOutputStream(dropped.getOutputStream());
+            output.writeInt(MESSAGE_PING);
+            new DataInputStream(dropped.getInputStream()).readBoolean();
+            fail("connection beyond the backlog should be closed");
+        } catch (IOException expected) {
+        }
+        dropped.close();
+
+        // the waiting connection is handled once the worker is done with the patch
+        mReleasePatches.countDown();
+        assertTrue(new DataInputStream(patching.getInputStream()).readBoolean());
+        patching.close();
+        DataOutputStream output = new DataOutputStream(waiting.getOutputStream());
+        output.writeInt(MESSAGE_PING);
+        assertTrue(new DataInputStream(waiting.getInputStream()).readBoolean());
+        output.writeInt(MESSAGE_EOF);
+        waiting.close();
+    }
+
+    @Test
+    public void handlesConcurrentClients() throws Exception {
+        final int maxConnections = 4;
+        startServer(maxConnections, 64);
+        mReleasePatches.countDown();
+
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> clients = new ArrayList<Thread>();
+        for (int i = 0; i < 16; i++) {
+            Thread client = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 25; j++) {
+                            ping();
+                        }
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            client.start();
+            clients.add(client);
+        }
+        for (Thread client : clients) {
+            client.join(20000);
+        }
+        assertEquals(0, failures.get());
+        assertTrue("at most " + maxConnections + " connections should be handled at once",
+                mMaxActive.get() <= maxConnections);
+    }
+
+    @Test
+    public void stopsWhenAcceptKeepsFailing() throws Exception {
+        final AtomicInteger accepts = new AtomicInteger();
+        mServer = new MessageServer(new MessageServer.Endpoint() {
+            @Override
+            public MessageServer.Connection accept() throws IOException {
+                accepts.incrementAndGet();
+                throw new IOException("socket closed");
+            }
+
+            @Override
+            public void close() {
+            }
+        }, new Handler(), 1, 1);
+        mServer.start();
+
+        long deadline = System.currentTimeMillis() + 15000;
+        while (!mServer.isStopped()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("server should stop");
+            }
+            Thread.sleep(10);
+        }
+        assertEquals(MessageServer.MAX_ACCEPT_FAILURES, accepts.get());
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(mServerSocket.getInetAddress(), mServerSocket.getLocalPort());
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private void ping() throws IOException {
+        Socket socket = connect();
+        try {
+            DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            output.writeInt(MESSAGE_PING);
+            if (!input.readBoolean()) {
+                fail("ping not acknowledged");
+            }
+            output.writeInt(MESSAGE_EOF);
+        } finally {
+            socket.close();
+        }
+    }
+
+    private class Handler implements MessageServer.Handler {
+        @Override
+        public void handle(DataInputStream input, DataOutputStream output) throws IOException {
+            int active = mActive.incrementAndGet();
+            while (true) {
+                int max = mMaxActive.get();
+                if (active <= max || mMaxActive.compareAndSet(max, active)) {
+                    break;
+                }
+            }
+            try {
+                while (true) {
+                    int message = input.readInt();
+                    if (message == MESSAGE_PING) {
+                        output.writeBoolean(true);
+                    } else if (message == MESSAGE_PATCHES) {
+                        int patch = input.readInt();
+                        ReentrantLock patchLock = mServer.getPatchLock();
+                        patchLock.lock();
+                        try {
+                            mPatchStarted.countDown();
+                            mReleasePatches.await();
+                            mApplied.add(patch);
+                        } catch (InterruptedException e) {
+                            throw new IOException("interrupted");
+                        } finally {
+                            patchLock.unlock();
+                        }
+                        output.writeBoolean(true);
+                    } else {
+                        return;
+                    }
+                }
+            } finally {
+                mActive.decrementAndGet();
+            }
+        }
+    }
+}
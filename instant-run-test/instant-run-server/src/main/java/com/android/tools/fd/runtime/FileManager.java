@@ -69,6 +69,9 @@ public class FileManager {
     /** Name of the right directory */
     private static final String FOLDER_NAME_RIGHT = "right";
 
+    /** Name of the folder incoming patches are spooled to */
+    private static final String PATCH_SPOOL_FOLDER_NAME = "patch-spool";
+
     /** Prefix for reload.dex files */
     private static final String RELOAD_DEX_PREFIX = "reload";
 
@@ -257,18 +260,7 @@ public class FileManager {
         // Pick highest available number + 1 - we want these to be sortable
         if (files != null) {
             for (File file : files) {
-                String name = file.getName();
-                if (name.startsWith(RELOAD_DEX_PREFIX) && name.endsWith(CLASSES_DEX_SUFFIX)) {
-                    String middle = name.substring(RELOAD_DEX_PREFIX.length(),
-                            name.length() - CLASSES_DEX_SUFFIX.length());
-                    try {
-                        int version = Integer.decode(middle);
-                        if (version > max) {
-                            max = version;
-                        }
-                    } catch (NumberFormatException ignore) {
-                    }
-                }
+                max = Math.max(max, getTempDexVersion(file.getName()));
             }
         }
 
@@ -283,6 +275,36 @@ public class FileManager {
         return file;
     }
 
+    /** Returns the number of a reload dex file, or -1 if the name isn't one */
+    private static int getTempDexVersion(String name) {
+        if (name.startsWith(RELOAD_DEX_PREFIX) && name.endsWith(CLASSES_DEX_SUFFIX)) {
+            String middle = name.substring(RELOAD_DEX_PREFIX.length(),
+                    name.length() - CLASSES_DEX_SUFFIX.length());
+            try {
+                return Integer.decode(middle);
+            } catch (NumberFormatException ignore) {
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the most recently written reload dex file, if any */
+    private static File getLatestTempDexFile() {
+        File[] files = getTempDexFileFolder(getDataFolder()).listFiles();
+        File latest = null;
+        int max = -1;
+        if (files != null) {
+            for (File file : files) {
+                int version = getTempDexVersion(file.getName());
+                if (version > max) {
+                    max = version;
+                    latest = file;
+                }
+            }
+        }
+        return latest;
+    }
+
     public static boolean writeRawBytes( File destination,  byte[] bytes) {
         try {
             BufferedOutputStream output = new BufferedOutputStream(new FileOutputStream(destination));
@@ -303,8 +325,11 @@ public class FileManager {
     }
 
     public static boolean extractZip( File destination,  byte[] zipBytes) {
+        return extractZip(destination, new ByteArrayInputStream(zipBytes));
+    }
+
+    public static boolean extractZip( File destination,  InputStream inputStream) {
         if (USE_EXTRACTED_RESOURCES) {
-            InputStream inputStream = new ByteArrayInputStream(zipBytes);
             ZipInputStream zipInputStream = new ZipInputStream(inputStream);
             try {
                 byte[] buffer = new byte[2000];
@@ -401,6 +426,125 @@ public class FileManager {
     }
 
 
+    /**
+     * Writes resource data from a patch, moving the file a spooled patch was received into
+     * rather than reading it into memory.
+     */
+    public static void writeAaptResources( String relativePath,  ApplicationPatch patch) {
+        File spooled = patch.getFile();
+        if (spooled == null) {
+            writeAaptResources(relativePath, patch.getBytes());
+            return;
+        }
+
+        File resourceFile = getResourceFile(getWriteFolder(false));
+        File file = resourceFile;
+        if (USE_EXTRACTED_RESOURCES) {
+            file = new File(file, relativePath);
+        }
+        File folder = file.getParentFile();
+        if (!folder.isDirectory()) {
+            boolean created = folder.mkdirs();
+            if (!created) {
+                if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
+                    Log.v(LOG_TAG, "Cannot create local resource file directory " + folder);
+                }
+                return;
+            }
+        }
+
+        //noinspection ConstantConditions
+        if (relativePath.equals(RESOURCE_FILE_NAME) && USE_EXTRACTED_RESOURCES) {
+            try {
+                InputStream input = new BufferedInputStream(new FileInputStream(spooled));
+                try {
+                    extractZip(resourceFile, input);
+                } finally {
+                    input.close();
+                }
+            } catch (IOException ioe) {
+                Log.e(LOG_TAG, "Failed to read spooled resources " + spooled, ioe);
+            }
+        } else {
+            moveFile(spooled, file);
+        }
+    }
+
+    /** Like {@link #writeTempDexFile(byte[])}, moving the file of a spooled patch */
+    public static String writeTempDexFile( ApplicationPatch patch) {
+        File spooled = patch.getFile();
+        if (spooled == null) {
+            return writeTempDexFile(patch.getBytes());
+        }
+        File file = getTempDexFile();
+        if (file != null) {
+            moveFile(spooled, file);
+            return file.getPath();
+        } else {
+            Log.e(LOG_TAG, "No file to write temp dex content to");
+        }
+        return null;
+    }
+
+    /**
+     * Moves a file, which is a rename since the spool folder is on the same file system as
+     * the destinations, copying it through a fixed size buffer if the rename fails.
+     */
+    private static void moveFile( File source,  File destination) {
+        if (destination.exists() && !destination.delete()) {
+            Log.e(LOG_TAG, "Failed to delete file " + destination);
+        }
+        if (source.renameTo(destination)) {
+            return;
+        }
+        try {
+            InputStream input = new FileInputStream(source);
+            try {
+                OutputStream output = new FileOutputStream(destination);
+                try {
+                    byte[] buffer = new byte[64 * 1024];
+                    int count;
+                    while ((count = input.read(buffer)) != -1) {
+                        output.write(buffer, 0, count);
+                    }
+                } finally {
+                    output.close();
+                }
+            } finally {
+                input.close();
+            }
+            //noinspection ResultOfMethodCallIgnored
+            source.delete();
+        } catch (IOException ioe) {
+            Log.wtf(LOG_TAG, "Failed to write file, clean project and rebuild " + destination, ioe);
+            throw new RuntimeException(
+                    String.format(
+                            "InstantRun could not write file %1$s, clean project and rebuild ",
+                            destination));
+        }
+    }
+
+    /**
+     * Returns the folder incoming patches are spooled to before they are moved into place.
+     * It is inside the data folder so that moving them is a rename.
+     */
+    public static File getSpoolFolder() {
+        return new File(getDataFolder(), PATCH_SPOOL_FOLDER_NAME);
+    }
+
+    /** Removes patch files left behind by transfers of an earlier process */
+    public static void purgeSpoolFolder() {
+        File[] files = getSpoolFolder().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.delete()) {
+                Log.e(LOG_TAG, "Could not delete spooled patch " + file);
+            }
+        }
+    }
+
     public static String writeTempDexFile(byte[] bytes) {
         File file = getTempDexFile();
         if (file != null) {
@@ -452,6 +596,46 @@ public class FileManager {
     }
 
 
+    /**
+     * Returns the app's current copy of a patch path, which a {@link DeltaPatch} for that path
+     * is applied to: the active resource file, or the last reload dex file. Returns null if
+     * there is none.
+     */
+    public static File getDeltaBase( String path) {
+        File file = null;
+        //noinspection ConstantConditions
+        if (path.equals(RESOURCE_FILE_NAME) && !USE_EXTRACTED_RESOURCES) {
+            file = getExternalResourceFile();
+        } else if (path.equals(Paths.RELOAD_DEX_FILE_NAME)) {
+            file = getLatestTempDexFile();
+        }
+        return file != null && file.isFile() ? file : null;
+    }
+
+    /**
+     * Returns the serialized {@link BlockSignatures} of the app's copy of the given path, or
+     * null if it doesn't have one.
+     */
+    public static byte[] getBlockSignatures( String path) {
+        File file = getDeltaBase(path);
+        if (file == null || file.length() > Integer.MAX_VALUE) {
+            return null;
+        }
+        try {
+            InputStream input = new BufferedInputStream(new FileInputStream(file));
+            try {
+                return BlockSignatures.compute(input, (int) file.length()).toByteArray();
+            } finally {
+                input.close();
+            }
+        } catch (IOException ioe) {
+            if (Log.isLoggable(LOG_TAG, Log.ERROR)) {
+                Log.e(LOG_TAG, "Failed to read file " + file, ioe);
+            }
+            return null;
+        }
+    }
+
     public static byte[] getCheckSum( String path) {
         if (USE_EXTRACTED_RESOURCES) {
             // Currently only handle this for resource files
@@ -17,6 +17,7 @@ package com.android.tools.fd.runtime;
 
 import static com.android.tools.fd.common.ProtocolConstants.MESSAGE_EOF;
 import static com.android.tools.fd.common.ProtocolConstants.MESSAGE_PATCHES;
+import static com.android.tools.fd.common.ProtocolConstants.MESSAGE_PATCHES_CHUNKED;
 import static com.android.tools.fd.common.ProtocolConstants.MESSAGE_PATH_CHECKSUM;
 import static com.android.tools.fd.common.ProtocolConstants.MESSAGE_PATH_EXISTS;
 import static com.android.tools.fd.common.ProtocolConstants.MESSAGE_PING;
@@ -41,15 +42,21 @@ import android.os.Handler;
 import android.util.Log;
 
 import dalvik.system.DexClassLoader;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Method;
-import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Server running in the app listening for messages from the IDE and updating the code and resources
@@ -74,11 +81,17 @@ public class Server {
      */
     private static final boolean POST_ALIVE_STATUS = false;
 
-    private LocalServerSocket serverSocket;
+    /** Number of IDE connections handled at the same time */
+    private static final int MAX_CONNECTIONS = 4;
+
+    /** Number of further IDE connections which wait for one of those to finish */
+    private static final int CONNECTION_BACKLOG = 16;
+
+    private MessageServer messageServer;
 
     private final Context context;
 
-    private static int wrongTokenCount;
+    private static final AtomicInteger wrongTokenCount = new AtomicInteger();
 
 
     public static Server create( Context context) {
@@ -87,6 +100,7 @@ public class Server {
 
     private Server( String packageName,  Context context) {
         this.context = context;
+        LocalServerSocket serverSocket;
         try {
             serverSocket = new LocalServerSocket(packageName);
             if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
@@ -97,39 +111,20 @@ public class Server {
             Log.e(LOG_TAG, "IO Error creating local socket at " + packageName, e);
             return;
         }
-        startServer();
+        FileManager.purgeSpoolFolder();
+        startServer(serverSocket);
 
         if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
             Log.v(LOG_TAG, "Started server for package " + packageName);
         }
     }
 
-    private void startServer() {
+    private void startServer( LocalServerSocket serverSocket) {
         try {
-            Thread socketServerThread = new Thread(new SocketServerThread());
-            socketServerThread.start();
-        } catch (Throwable e) {
-            // Make sure an exception doesn't cause the rest of the user's
-            // onCreate() method to be invoked
-            if (Log.isLoggable(LOG_TAG, Log.ERROR)) {
-                Log.e(LOG_TAG, "Fatal error starting Instant Run server", e);
-            }
-        }
-    }
-
-    public void shutdown() {
-        if (serverSocket != null) {
-            try {
-                serverSocket.close();
-            } catch (IOException ignore) {
-            }
-            serverSocket = null;
-        }
-    }
+            messageServer = new MessageServer(new LocalEndpoint(serverSocket),
+                    new MessageHandler(), MAX_CONNECTIONS, CONNECTION_BACKLOG);
+            messageServer.start();
 
-    private class SocketServerThread extends Thread {
-        @Override
-        public void run() {
             if (POST_ALIVE_STATUS) {
                 final Handler handler = new Handler();
                 Timer timer = new Timer();
@@ -147,72 +142,73 @@ public class Server {
 
                 timer.schedule(task, 1, 30000L);
             }
-
-            while (true) {
-                try {
-                    LocalServerSocket serverSocket = Server.this.serverSocket;
-                    if (serverSocket == null) {
-                        break; // stopped?
-                    }
-                    LocalSocket socket = serverSocket.accept();
-
-                    if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
-                        Log.v(LOG_TAG, "Received connection from IDE: spawning connection thread");
-                    }
-
-                    SocketServerReplyThread socketServerReplyThread = new SocketServerReplyThread(
-                            socket);
-                    socketServerReplyThread.run();
-
-                    if (wrongTokenCount > 50) {
-                        if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
-                            Log.v(LOG_TAG, "Stopping server: too many wrong token connections");
-                        }
-                        Server.this.serverSocket.close();
-                        break;
-                    }
-                } catch (Throwable e) {
-                    if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
-                        Log.v(LOG_TAG, "Fatal error accepting connection on local socket", e);
-                    }
-                }
+        } catch (Throwable e) {
+            // Make sure an exception doesn't cause the rest of the user's
+            // onCreate() method to be invoked
+            if (Log.isLoggable(LOG_TAG, Log.ERROR)) {
+                Log.e(LOG_TAG, "Fatal error starting Instant Run server", e);
             }
         }
     }
 
-    private class SocketServerReplyThread extends Thread {
+    public void shutdown() {
+        if (messageServer != null) {
+            messageServer.shutdown();
+        }
+    }
 
-        private final LocalSocket socket;
+    /** Accepts connections from the IDE on the app's local socket */
+    private static class LocalEndpoint implements MessageServer.Endpoint {
+        private final LocalServerSocket serverSocket;
 
-        SocketServerReplyThread(LocalSocket socket) {
-            this.socket = socket;
+        LocalEndpoint(LocalServerSocket serverSocket) {
+            this.serverSocket = serverSocket;
         }
 
         @Override
-        public void run() {
-            try {
-                DataInputStream input = new DataInputStream(socket.getInputStream());
-                DataOutputStream output = new DataOutputStream(socket.getOutputStream());
-                try {
-                    handle(input, output);
-                } finally {
-                    try {
-                        input.close();
-                    } catch (IOException ignore) {
-                    }
-                    try {
-                        output.close();
-                    } catch (IOException ignore) {
-                    }
+        public MessageServer.Connection accept() throws IOException {
+            final LocalSocket socket = serverSocket.accept();
+            if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
+                Log.v(LOG_TAG, "Received connection from IDE");
+            }
+            return new MessageServer.Connection() {
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    return socket.getInputStream();
                 }
-            } catch (IOException e) {
-                if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
-                    Log.v(LOG_TAG, "Fatal error receiving messages", e);
+
+                @Override
+                public OutputStream getOutputStream() throws IOException {
+                    return socket.getOutputStream();
                 }
-            }
+
+                @Override
+                public void close() throws IOException {
+                    socket.close();
+                }
+            };
         }
 
-        private void handle(DataInputStream input, DataOutputStream output) throws IOException {
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * Handles the messages of one IDE connection. Connections are handled concurrently, so
+     * patches are applied and activities restarted while holding the
+     * {@link MessageServer#getPatchLock() patch lock}. Patch data is received into the spool
+     * folder without it, so other connections are answered during a long transfer.
+     * <p>
+     * Computing a checksum holds the lock too, as applying a patch may be copying the reload
+     * dex file it reads. The size of the resource file is read without it: resources are
+     * written to the inactive folder, which only becomes visible when the folders are swapped.
+     */
+    private class MessageHandler implements MessageServer.Handler {
+
+        @Override
+        public void handle(DataInputStream input, DataOutputStream output) throws IOException {
             long magic = input.readLong();
             if (magic != PROTOCOL_IDENTIFIER) {
                 Log.w(LOG_TAG, "Unrecognized header format "
@@ -272,29 +268,33 @@ public class Server {
                     }
 
                     case MESSAGE_PATH_CHECKSUM: {
-                        if (USE_EXTRACTED_RESOURCES) {
-                            long begin = System.currentTimeMillis();
-                            String path = input.readUTF();
-                            byte[] checksum = FileManager.getCheckSum(path);
-                            if (checksum != null) {
-                                output.writeInt(checksum.length);
-                                output.write(checksum);
-                                if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
-                                    long end = System.currentTimeMillis();
-                                    String hash = new BigInteger(1, checksum).toString(16);
-                                    Log.v(LOG_TAG, "Received checksum(" + path + ") from the " +
-                                            "IDE: took " + (end - begin) + "ms to compute " + hash);
-                                }
-                            } else {
-                                output.writeInt(0);
-                                if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
-                                    Log.v(LOG_TAG, "Received checksum(" + path + ") from the " +
-                                            "IDE: returning <null>");
-                                }
+                        long begin = System.currentTimeMillis();
+                        String path = input.readUTF();
+                        byte[] checksum;
+                        ReentrantLock patchLock = messageServer.getPatchLock();
+                        patchLock.lock();
+                        try {
+                            //noinspection ConstantConditions
+                            checksum = USE_EXTRACTED_RESOURCES
+                                    ? FileManager.getCheckSum(path)
+                                    : FileManager.getBlockSignatures(path);
+                        } finally {
+                            patchLock.unlock();
+                        }
+                        if (checksum != null) {
+                            output.writeInt(checksum.length);
+                            output.write(checksum);
+                            if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
+                                long end = System.currentTimeMillis();
+                                Log.v(LOG_TAG, "Received checksum(" + path + ") from the " +
+                                        "IDE: took " + (end - begin) + "ms to compute "
+                                        + checksum.length + " bytes");
                             }
                         } else {
-                            if (Log.isLoggable(LOG_TAG, Log.ERROR)) {
-                                Log.e(LOG_TAG, "Unexpected message type: " + message);
+                            output.writeInt(0);
+                            if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
+                                Log.v(LOG_TAG, "Received checksum(" + path + ") from the " +
+                                        "IDE: returning <null>");
                             }
                         }
                         continue;
@@ -305,36 +305,29 @@ public class Server {
                             return;
                         }
 
-                        Activity activity = Restarter.getForegroundActivity(context);
-                        if (activity != null) {
-                            if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
-                                Log.v(LOG_TAG, "Restarting activity per user request");
+                        ReentrantLock patchLock = messageServer.getPatchLock();
+                        patchLock.lock();
+                        try {
+                            Activity activity = Restarter.getForegroundActivity(context);
+                            if (activity != null) {
+                                if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
+                                    Log.v(LOG_TAG, "Restarting activity per user request");
+                                }
+                                Restarter.restartActivityOnUiThread(activity);
                             }
-                            Restarter.restartActivityOnUiThread(activity);
+                        } finally {
+                            patchLock.unlock();
                         }
                         continue;
                     }
 
-                    case MESSAGE_PATCHES: {
+                    case MESSAGE_PATCHES:
+                    case MESSAGE_PATCHES_CHUNKED: {
                         if (!authenticate(input)) {
                             return;
                         }
 
-                        List<ApplicationPatch> changes = ApplicationPatch.read(input);
-                        if (changes == null) {
-                            continue;
-                        }
-
-                        boolean hasResources = hasResources(changes);
-                        int updateMode = input.readInt();
-                        updateMode = handlePatches(changes, hasResources, updateMode);
-
-                        boolean showToast = input.readBoolean();
-
-                        // Send an "ack" back to the IDE; this is used for timing purposes only
-                        output.writeBoolean(true);
-
-                        restart(updateMode, hasResources, showToast);
+                        receivePatches(message, input, output);
                         continue;
                     }
 
@@ -362,18 +355,122 @@ public class Server {
             }
         }
 
+        /**
+         * Receives patches into the spool folder and applies them. Patch files are moved into
+         * place as they are applied, whatever is left is removed afterwards.
+         * <p>
+         * Only applying the patches holds the patch lock, so patches from other connections
+         * are applied one set at a time, in the order their transfers completed.
+         */
+        private void receivePatches(int message, DataInputStream input,
+                DataOutputStream output) throws IOException {
+            File spoolFolder = FileManager.getSpoolFolder();
+            List<ApplicationPatch> received = message == MESSAGE_PATCHES
+                    ? ApplicationPatch.read(input, spoolFolder)
+                    : ChunkedPatchReader.read(input, output, spoolFolder);
+            List<ApplicationPatch> changes = null;
+            try {
+                // The IDE sends these right after the patches, without waiting for a reply
+                int updateMode = input.readInt();
+                boolean showToast = input.readBoolean();
+
+                ReentrantLock patchLock = messageServer.getPatchLock();
+                patchLock.lock();
+                try {
+                    // Deltas are applied to the app's current files, which other patches
+                    // replace
+                    changes = applyDeltas(received, spoolFolder);
+                    if (changes == null) {
+                        // Tell the IDE to send the whole files instead
+                        output.writeBoolean(false);
+                        return;
+                    }
+
+                    boolean hasResources = hasResources(changes);
+                    updateMode = handlePatches(changes, hasResources, updateMode);
+
+                    // Send an "ack" back to the IDE; this is used for timing purposes only
+                    output.writeBoolean(true);
+
+                    restart(updateMode, hasResources, showToast);
+                } finally {
+                    patchLock.unlock();
+                }
+            } finally {
+                ApplicationPatch.delete(received);
+                if (changes != null) {
+                    ApplicationPatch.delete(changes);
+                }
+            }
+        }
+
         private boolean authenticate( DataInputStream input) throws IOException {
             long token = input.readLong();
             if (token != AppInfo.token) {
                 Log.w(LOG_TAG, "Mismatched identity token from client; received " + token
                         + " and expected " + AppInfo.token);
-                wrongTokenCount++;
+                if (wrongTokenCount.incrementAndGet() > 50) {
+                    if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
+                        Log.v(LOG_TAG, "Stopping server: too many wrong token connections");
+                    }
+                    messageServer.shutdown();
+                }
                 return false;
             }
             return true;
         }
     }
 
+    /**
+     * Replaces delta patches with the files they rebuild, written to the spool folder, or
+     * returns null if one of them doesn't apply to the app's copy of the file.
+     */
+    private static List<ApplicationPatch> applyDeltas( List<ApplicationPatch> changes,
+             File spoolFolder) throws IOException {
+        List<ApplicationPatch> applied = new ArrayList<ApplicationPatch>(changes.size());
+        List<ApplicationPatch> rebuilt = new ArrayList<ApplicationPatch>();
+        for (ApplicationPatch change : changes) {
+            String path = change.getPath();
+            if (!DeltaPatch.isDelta(path)) {
+                applied.add(change);
+                continue;
+            }
+            String target = DeltaPatch.getTargetPath(path);
+            File base = FileManager.getDeltaBase(target);
+            if (base == null) {
+                Log.w(LOG_TAG, "No file to apply the delta for " + target + " to");
+                ApplicationPatch.delete(rebuilt);
+                return null;
+            }
+            File file = ApplicationPatch.createSpoolFile(spoolFolder);
+            ApplicationPatch patch = new ApplicationPatch(target, file);
+            rebuilt.add(patch);
+            try {
+                InputStream input = change.openStream();
+                try {
+                    OutputStream output = new BufferedOutputStream(new FileOutputStream(file));
+                    try {
+                        DeltaPatch.apply(input, base, output);
+                    } finally {
+                        output.close();
+                    }
+                } finally {
+                    input.close();
+                }
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Could not apply the delta for " + target, e);
+                ApplicationPatch.delete(rebuilt);
+                return null;
+            }
+            applied.add(patch);
+            if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
+                Log.v(LOG_TAG, "Rebuilt " + target + " from a " + change.getLength()
+                        + " byte delta");
+            }
+        }
+        return applied;
+    }
+
     private static boolean isResourcePath(String path) {
         return path.equals(RESOURCE_FILE_NAME) || path.startsWith("res/");
     }
@@ -418,7 +515,7 @@ public class Server {
         if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
             Log.v(LOG_TAG, "Received resource changes (" + path + ")");
         }
-        FileManager.writeAaptResources(path, patch.getBytes());
+        FileManager.writeAaptResources(path, patch);
         //noinspection ResourceType
         updateMode = Math.max(updateMode, UPDATE_MODE_WARM_SWAP);
         return updateMode;
@@ -429,7 +526,7 @@ public class Server {
             Log.v(LOG_TAG, "Received incremental code patch");
         }
         try {
-            String dexFile = FileManager.writeTempDexFile(patch.getBytes());
+            String dexFile = FileManager.writeTempDexFile(patch);
             if (dexFile == null) {
                 Log.e(LOG_TAG, "No file to write the code to");
                 return updateMode;